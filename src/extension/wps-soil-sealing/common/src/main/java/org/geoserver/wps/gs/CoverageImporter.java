@@ -3,8 +3,13 @@ package org.geoserver.wps.gs;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.media.jai.Interpolation;
@@ -19,10 +24,14 @@ import org.geoserver.catalog.StoreInfo;
 import org.geoserver.catalog.StyleInfo;
 import org.geoserver.catalog.WorkspaceInfo;
 import org.geoserver.wps.WPSException;
+import org.geoserver.wps.gs.soilsealing.BandFanOut;
+import org.geoserver.wps.gs.soilsealing.CRSCache;
+import org.geoserver.wps.gs.soilsealing.CoverageUtilities;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.coverage.grid.io.GridCoverage2DReader;
 import org.geotools.coverage.grid.io.imageio.GeoToolsWriteParams;
+import org.geotools.data.DataSourceException;
 import org.geotools.gce.geotiff.GeoTiffFormat;
 import org.geotools.gce.geotiff.GeoTiffReader;
 import org.geotools.gce.geotiff.GeoTiffWriteParams;
@@ -76,153 +85,274 @@ public class CoverageImporter {
     public String execute(GridCoverage2D coverage, String name, CatalogBuilder cb,
             WorkspaceInfo ws, StoreInfo storeInfo, CoordinateReferenceSystem srs,
             ProjectionPolicy srsHandling, StyleInfo targetStyle) throws ProcessException {
+        return execute(coverage, name, cb, ws, storeInfo, srs, srsHandling, targetStyle, false);
+    }
+
+    /**
+     * Creates a new Coverage Layer and assign the 'targetStyle' to it. The coverage is written only once, directly into its final location inside
+     * the data directory; if requested, internal overviews are added to that same file before registering it into the catalog.
+     * 
+     * @param coverage
+     * @param name
+     * @param cb
+     * @param ws
+     * @param storeInfo
+     * @param srs
+     * @param srsHandling
+     * @param targetStyle
+     * @param overviews if <code>true</code> internal overviews are added to the written GeoTIFF
+     * @return
+     * @throws ProcessException
+     */
+    public String execute(GridCoverage2D coverage, String name, CatalogBuilder cb,
+            WorkspaceInfo ws, StoreInfo storeInfo, CoordinateReferenceSystem srs,
+            ProjectionPolicy srsHandling, StyleInfo targetStyle, boolean overviews)
+            throws ProcessException {
         try {
-            final File directory = this.catalog.getResourceLoader().findOrCreateDirectory("data",
-                    ws.getName(), storeInfo.getName());
-            final File file = File.createTempFile(storeInfo.getName(), ".tif", directory);
-            ((CoverageStoreInfo) storeInfo).setURL(file.toURL().toExternalForm());
-            ((CoverageStoreInfo) storeInfo).setType("GeoTIFF");
-
-            // check the target crs
-            CoordinateReferenceSystem cvCrs = coverage.getCoordinateReferenceSystem();
-            String targetSRSCode = null;
-            if (srs != null) {
-                try {
-                    Integer code = CRS.lookupEpsgCode(srs, true);
-                    if (code == null) {
-                        throw new WPSException("Could not find a EPSG code for " + srs);
-                    }
-                    targetSRSCode = "EPSG:" + code;
-                } catch (Exception e) {
-                    throw new ProcessException(
-                            "Could not lookup the EPSG code for the provided srs", e);
+            final File file = writeCoverage(coverage, ws, storeInfo, srs, srsHandling, overviews);
+            return registerCoverage(file, name, cb, storeInfo, targetStyle);
+        } catch (MalformedURLException e) {
+            throw new ProcessException("URL Error", e);
+        } catch (IOException e) {
+            throw new ProcessException("I/O Exception", e);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new ProcessException("Exception", e);
+        }
+    }
+
+    /**
+     * Creates a new Coverage Layer for each coverage and assign the 'targetStyle' to them. The GeoTIFFs are written at the same time, so that
+     * coverages computed from the same source tiles (see {@link BandFanOut}) are written in a single pass; the layers are then registered into the
+     * catalog one by one.
+     * 
+     * @param coverages
+     * @param names the name of each coverage, <code>null</code> to keep the names of the stores
+     * @param cb
+     * @param ws
+     * @param storeInfos the store of each coverage
+     * @param srs
+     * @param srsHandling
+     * @param targetStyle
+     * @param overviews if <code>true</code> internal overviews are added to the written GeoTIFFs
+     * @param executor executor used for writing the GeoTIFFs, if <code>null</code> the one of the application context is used
+     * @return the names of the layers, in the same order of the coverages
+     * @throws ProcessException
+     */
+    public List<String> execute(List<GridCoverage2D> coverages, List<String> names,
+            CatalogBuilder cb, final WorkspaceInfo ws, List<StoreInfo> storeInfos,
+            final CoordinateReferenceSystem srs, final ProjectionPolicy srsHandling,
+            StyleInfo targetStyle, final boolean overviews, SoilSealingExecutor executor)
+            throws ProcessException {
+        List<Callable<File>> tasks = new ArrayList<Callable<File>>(coverages.size());
+        for (int i = 0; i < coverages.size(); i++) {
+            final GridCoverage2D coverage = coverages.get(i);
+            final StoreInfo storeInfo = storeInfos.get(i);
+            tasks.add(new Callable<File>() {
+
+                @Override
+                public File call() throws Exception {
+                    return writeCoverage(coverage, ws, storeInfo, srs, srsHandling, overviews);
                 }
+            });
+        }
+        // Executor shared between the requests, looked up in the application context if it has not been provided
+        if (executor == null) {
+            executor = SoilSealingExecutor.lookup();
+        }
+        try {
+            List<File> files = executor.invokeAll(tasks);
+            List<String> layers = new ArrayList<String>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                layers.add(registerCoverage(files.get(i), names != null ? names.get(i) : null, cb,
+                        storeInfos.get(i), targetStyle));
+            }
+            return layers;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ProcessException) {
+                throw (ProcessException) e.getCause();
+            }
+            throw new ProcessException("Exception", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException("Interrupted while writing the coverages", e);
+        } catch (ProcessException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ProcessException("Exception", e);
+        }
+    }
+
+    /**
+     * Writes the coverage as a GeoTIFF into the data directory of its store, resampling it to the target CRS if needed.
+     * 
+     * @return the written file
+     */
+    private File writeCoverage(GridCoverage2D coverage, WorkspaceInfo ws, StoreInfo storeInfo,
+            CoordinateReferenceSystem srs, ProjectionPolicy srsHandling, boolean overviews)
+            throws Exception {
+        final File directory = this.catalog.getResourceLoader().findOrCreateDirectory("data",
+                ws.getName(), storeInfo.getName());
+        final File file = File.createTempFile(storeInfo.getName(), ".tif", directory);
+        ((CoverageStoreInfo) storeInfo).setURL(file.toURL().toExternalForm());
+        ((CoverageStoreInfo) storeInfo).setType("GeoTIFF");
+
+        // check the target crs
+        CoordinateReferenceSystem cvCrs = coverage.getCoordinateReferenceSystem();
+        String targetSRSCode = null;
+        if (srs != null) {
+            try {
+                Integer code = CRSCache.lookupEpsgCode(srs, true);
+                if (code == null) {
+                    throw new WPSException("Could not find a EPSG code for " + srs);
+                }
+                targetSRSCode = "EPSG:" + code;
+            } catch (Exception e) {
+                throw new ProcessException(
+                        "Could not lookup the EPSG code for the provided srs", e);
+            }
+        } else {
+            // check we can extract a code from the original data
+            if (cvCrs == null) {
+                // data is geometryless, we need a fake SRS
+                targetSRSCode = "EPSG:4326";
+                srsHandling = ProjectionPolicy.FORCE_DECLARED;
+                srs = DefaultGeographicCRS.WGS84;
             } else {
-                // check we can extract a code from the original data
-                if (cvCrs == null) {
-                    // data is geometryless, we need a fake SRS
-                    targetSRSCode = "EPSG:4326";
-                    srsHandling = ProjectionPolicy.FORCE_DECLARED;
-                    srs = DefaultGeographicCRS.WGS84;
+                CoordinateReferenceSystem nativeCrs = cvCrs;
+                if (nativeCrs == null) {
+                    throw new ProcessException("The original data has no native CRS, "
+                            + "you need to specify the srs parameter");
                 } else {
-                    CoordinateReferenceSystem nativeCrs = cvCrs;
-                    if (nativeCrs == null) {
-                        throw new ProcessException("The original data has no native CRS, "
-                                + "you need to specify the srs parameter");
-                    } else {
-                        try {
-                            Integer code = CRS.lookupEpsgCode(nativeCrs, true);
-                            if (code == null) {
-                                throw new ProcessException("Could not find an EPSG code for data "
-                                        + "native spatial reference system: " + nativeCrs);
-                            } else {
-                                targetSRSCode = "EPSG:" + code;
-                                srs = CRS.decode(targetSRSCode, true);
-                            }
-                        } catch (Exception e) {
-                            throw new ProcessException(
-                                    "Failed to loookup an official EPSG code for "
-                                            + "the source data native "
-                                            + "spatial reference system", e);
+                    try {
+                        Integer code = CRSCache.lookupEpsgCode(nativeCrs, true);
+                        if (code == null) {
+                            throw new ProcessException("Could not find an EPSG code for data "
+                                    + "native spatial reference system: " + nativeCrs);
+                        } else {
+                            targetSRSCode = "EPSG:" + code;
+                            srs = CRSCache.decode(targetSRSCode, true);
                         }
+                    } catch (Exception e) {
+                        throw new ProcessException(
+                                "Failed to loookup an official EPSG code for "
+                                        + "the source data native "
+                                        + "spatial reference system", e);
                     }
                 }
             }
+        }
 
-            MathTransform tx = CRS.findMathTransform(cvCrs, srs);
+        MathTransform tx = CRSCache.findMathTransform(cvCrs, srs);
 
-            if (!tx.isIdentity() || !CRS.equalsIgnoreMetadata(cvCrs, srs)) {
-                coverage = WCSUtils.resample(coverage, cvCrs, srs, null,
-                        Interpolation.getInstance(Interpolation.INTERP_NEAREST));
-            }
+        if (!tx.isIdentity() || !CRS.equalsIgnoreMetadata(cvCrs, srs)) {
+            coverage = WCSUtils.resample(coverage, cvCrs, srs, null,
+                    Interpolation.getInstance(Interpolation.INTERP_NEAREST));
+        }
 
-            GeoTiffWriter writer = new GeoTiffWriter(file);
+        GeoTiffWriter writer = new GeoTiffWriter(file);
 
-            // setting the write parameters for this geotiff
-            final ParameterValueGroup params = new GeoTiffFormat().getWriteParameters();
-            params.parameter(AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.getName().toString())
-                    .setValue(DEFAULT_WRITE_PARAMS);
-            final GeneralParameterValue[] wps = (GeneralParameterValue[]) params.values().toArray(
-                    new GeneralParameterValue[1]);
+        // setting the write parameters for this geotiff
+        final ParameterValueGroup params = new GeoTiffFormat().getWriteParameters();
+        params.parameter(AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.getName().toString())
+                .setValue(DEFAULT_WRITE_PARAMS);
+        final GeneralParameterValue[] wps = (GeneralParameterValue[]) params.values().toArray(
+                new GeneralParameterValue[1]);
 
+        try {
+            writer.write(coverage, wps);
+        } finally {
+            try {
+                writer.dispose();
+            } catch (Exception e) {
+                // we tried, no need to fuss around this one
+            }
+        }
+
+        // add the internal overviews to the written file
+        if (overviews) {
+            GeoTiffReader ovReader = null;
             try {
-                writer.write(coverage, wps);
+                ovReader = new GeoTiffReader(file);
+                CoverageUtilities.generateOverviews(ovReader);
+            } catch (DataSourceException e) {
+                // we tried, no need to fuss around this one
+                LOGGER.log(Level.WARNING, "Unable to add overviews to " + file, e);
             } finally {
-                try {
-                    writer.dispose();
-                } catch (Exception e) {
-                    // we tried, no need to fuss around this one
+                if (ovReader != null) {
+                    ovReader.dispose();
                 }
             }
+        }
+        return file;
+    }
 
-            // add or update the datastore info
-            // if (add) {
-            // this.catalog.add((CoverageStoreInfo) storeInfo);
-            // } else {
-            this.catalog.save((CoverageStoreInfo) storeInfo);
-            // }
+    /**
+     * Registers the written GeoTIFF into the catalog as the coverage and the layer of its store.
+     * 
+     * @return the name of the new layer
+     */
+    private String registerCoverage(File file, String name, CatalogBuilder cb,
+            StoreInfo storeInfo, StyleInfo targetStyle) throws Exception {
+        // add or update the datastore info
+        // if (add) {
+        // this.catalog.add((CoverageStoreInfo) storeInfo);
+        // } else {
+        this.catalog.save((CoverageStoreInfo) storeInfo);
+        // }
 
-            cb.setStore((CoverageStoreInfo) storeInfo);
+        cb.setStore((CoverageStoreInfo) storeInfo);
 
-            GridCoverage2DReader reader = new GeoTiffReader(file);
-            if (reader == null) {
-                throw new ProcessException("Could not aquire reader for coverage.");
-            }
+        GridCoverage2DReader reader = new GeoTiffReader(file);
+        if (reader == null) {
+            throw new ProcessException("Could not aquire reader for coverage.");
+        }
 
-            // coverage read params
-            final Map customParameters = new HashMap();
-            /*
-             * String useJAIImageReadParam = "USE_JAI_IMAGEREAD"; if (useJAIImageReadParam != null) {
-             * customParameters.put(AbstractGridFormat.USE_JAI_IMAGEREAD.getName().toString(), Boolean.valueOf(useJAIImageReadParam)); }
-             */
+        // coverage read params
+        final Map customParameters = new HashMap();
+        /*
+         * String useJAIImageReadParam = "USE_JAI_IMAGEREAD"; if (useJAIImageReadParam != null) {
+         * customParameters.put(AbstractGridFormat.USE_JAI_IMAGEREAD.getName().toString(), Boolean.valueOf(useJAIImageReadParam)); }
+         */
 
-            CoverageInfo cinfo = cb.buildCoverage(reader, customParameters);
-            reader.dispose();
+        CoverageInfo cinfo = cb.buildCoverage(reader, customParameters);
+        reader.dispose();
 
-            // check if the name of the coverage was specified
-            if (name != null) {
-                cinfo.setName(name);
-            }
+        // check if the name of the coverage was specified
+        if (name != null) {
+            cinfo.setName(name);
+        }
 
-            // do some post configuration, if srs is not known or unset, transform to 4326
-            if ("UNKNOWN".equals(cinfo.getSRS())) {
-                // CoordinateReferenceSystem sourceCRS = cinfo.getBoundingBox().getCoordinateReferenceSystem();
-                // CoordinateReferenceSystem targetCRS = CRS.decode("EPSG:4326", true);
-                // ReferencedEnvelope re = cinfo.getBoundingBox().transform(targetCRS, true);
-                cinfo.setSRS("EPSG:4326");
-                // cinfo.setCRS( targetCRS );
-                // cinfo.setBoundingBox( re );
-            }
+        // do some post configuration, if srs is not known or unset, transform to 4326
+        if ("UNKNOWN".equals(cinfo.getSRS())) {
+            // CoordinateReferenceSystem sourceCRS = cinfo.getBoundingBox().getCoordinateReferenceSystem();
+            // CoordinateReferenceSystem targetCRS = CRSCache.decode("EPSG:4326", true);
+            // ReferencedEnvelope re = cinfo.getBoundingBox().transform(targetCRS, true);
+            cinfo.setSRS("EPSG:4326");
+            // cinfo.setCRS( targetCRS );
+            // cinfo.setBoundingBox( re );
+        }
 
-            // add/save
-            this.catalog.add(cinfo);
+        // add/save
+        this.catalog.add(cinfo);
 
-            LayerInfo layerInfo = cb.buildLayer(cinfo);
-            if (targetStyle != null) {
-                layerInfo.setDefaultStyle(targetStyle);
-            }
+        LayerInfo layerInfo = cb.buildLayer(cinfo);
+        if (targetStyle != null) {
+            layerInfo.setDefaultStyle(targetStyle);
+        }
 
-            boolean valid = true;
-            try {
-                if (!this.catalog.validate(layerInfo, true).isEmpty()) {
-                    valid = false;
-                }
-            } catch (Exception e) {
+        boolean valid = true;
+        try {
+            if (!this.catalog.validate(layerInfo, true).isEmpty()) {
                 valid = false;
             }
-
-            layerInfo.setEnabled(valid);
-            this.catalog.add(layerInfo);
-
-            return layerInfo.prefixedName();
-
-        } catch (MalformedURLException e) {
-            throw new ProcessException("URL Error", e);
-        } catch (IOException e) {
-            throw new ProcessException("I/O Exception", e);
         } catch (Exception e) {
-            e.printStackTrace();
-            throw new ProcessException("Exception", e);
+            valid = false;
         }
+
+        layerInfo.setEnabled(valid);
+        this.catalog.add(layerInfo);
+
+        return layerInfo.prefixedName();
     }
 }
\ No newline at end of file
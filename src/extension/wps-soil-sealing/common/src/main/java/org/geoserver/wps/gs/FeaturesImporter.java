@@ -17,6 +17,7 @@ import org.geoserver.catalog.StoreInfo;
 import org.geoserver.catalog.StyleInfo;
 import org.geoserver.catalog.WorkspaceInfo;
 import org.geoserver.wps.WPSException;
+import org.geoserver.wps.gs.soilsealing.CRSCache;
 import org.geotools.data.DataStore;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.DefaultTransaction;
@@ -27,7 +28,6 @@ import org.geotools.data.simple.SimpleFeatureStore;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.process.ProcessException;
-import org.geotools.referencing.CRS;
 import org.geotools.util.logging.Logging;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -81,7 +81,7 @@ public class FeaturesImporter {
         String targetSRSCode = null;
         if (srs != null) {
             try {
-                Integer code = CRS.lookupEpsgCode(srs, true);
+                Integer code = CRSCache.lookupEpsgCode(srs, true);
                 if (code == null) {
                     throw new WPSException("Could not find a EPSG code for " + srs);
                 }
@@ -103,7 +103,7 @@ public class FeaturesImporter {
                             + "you need to specify the srs parameter");
                 } else {
                     try {
-                        Integer code = CRS.lookupEpsgCode(nativeCrs, true);
+                        Integer code = CRSCache.lookupEpsgCode(nativeCrs, true);
                         if (code == null) {
                             throw new ProcessException("Could not find an EPSG code for data "
                                     + "native spatial reference system: " + nativeCrs);
@@ -5,6 +5,7 @@
 package org.geoserver.wps.gs;
 
 import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.awt.image.DataBuffer;
 import java.awt.image.RenderedImage;
@@ -26,8 +27,9 @@ import javax.media.jai.RasterFormatTag;
 import javax.media.jai.iterator.RandomIter;
 import javax.media.jai.iterator.RandomIterFactory;
 
+import org.geoserver.wps.gs.soilsealing.CRSCache;
 import org.geotools.coverage.grid.GridCoverage2D;
-import org.geotools.referencing.CRS;
+import org.geotools.referencing.operation.transform.ConcatenatedTransform;
 import org.opengis.metadata.spatial.PixelOrientation;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -66,6 +68,12 @@ public class GridCoverage2DRIA extends GeometricOpImage {
 
     private final MathTransform dst2srcCRSTransform;
 
+    /** Destination to source grid transform, when affine */
+    private final AffineTransform dst2srcGrid;
+
+    /** Maximum error of the interpolated source positions in pixels, 0 to transform each position */
+    private final double maxPixelError;
+
     /** Color table representing source's IndexColorModel. */
     private byte[][] ctable = null; // ETj: just for keeping compiler quiet: let's see if we really
 
@@ -82,6 +90,23 @@ public class GridCoverage2DRIA extends GeometricOpImage {
      */
     public static GridCoverage2DRIA create(final GridCoverage2D src, final GridCoverage2D dst,
             final double nodata) {
+        return create(src, dst, nodata, 0);
+    }
+
+    /**
+     * Wrap the src coverage in the dst layout, interpolating the source positions when the transform between the two grids is not affine.
+     * 
+     * @param src the data coverage to be remapped on dst grid
+     * @param dst the provider of the final grid
+     * @param nodata the nodata value to set for cells not covered by src but included in dst. All bands will share the same nodata value.
+     * @param maxPixelError maximum error of the interpolated source positions in source pixels, 0 to transform each position
+     * @return an instance of Coverage2RenderedImageAdapter
+     */
+    public static GridCoverage2DRIA create(final GridCoverage2D src, final GridCoverage2D dst,
+            final double nodata, final double maxPixelError) {
+        if (maxPixelError < 0) {
+            throw new IllegalArgumentException("The maximum pixel error can't be negative");
+        }
 
         // === Create Layout
         final ImageLayout imageLayout = new ImageLayout(dst.getRenderedImage());
@@ -103,18 +128,19 @@ public class GridCoverage2DRIA extends GeometricOpImage {
 
         return new GridCoverage2DRIA(src, dst, vectorize(src.getRenderedImage()), imageLayout,
                 null, false, extender, Interpolation.getInstance(Interpolation.INTERP_NEAREST),
-                new double[] { nodata });
+                new double[] { nodata }, maxPixelError);
     }
 
     protected GridCoverage2DRIA(final GridCoverage2D src, final GridCoverage2D dst,
             final Vector sources, final ImageLayout layout, final Map configuration,
             final boolean cobbleSources, final BorderExtender extender, final Interpolation interp,
-            final double[] nodata) {
+            final double[] nodata, final double maxPixelError) {
 
         super(sources, layout, configuration, cobbleSources, extender, interp, nodata);
 
         this.src = src;
         this.dst = dst;
+        this.maxPixelError = maxPixelError;
 
         // === Take one for all all the transformation we need to pass from
         // model, sample, src, target and viceversa.
@@ -138,7 +164,7 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             CoordinateReferenceSystem sourceCRS = src.getCoordinateReferenceSystem2D();
             CoordinateReferenceSystem targetCRS = dst.getCoordinateReferenceSystem2D();
 
-            src2dstCRSTransform = CRS.findMathTransform(sourceCRS, targetCRS, true);
+            src2dstCRSTransform = CRSCache.findMathTransform(sourceCRS, targetCRS, true);
             dst2srcCRSTransform = src2dstCRSTransform.inverse();
         } catch (FactoryException e) {
             throw new IllegalArgumentException("Can't create a transform between CRS", e);
@@ -146,6 +172,10 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             throw new IllegalArgumentException("Can't create a transform between CRS", e);
         }
 
+        // the whole chain collapses to an affine transform when the CRS are equivalent
+        MathTransform dst2src = ConcatenatedTransform.create(g2wd, dst2srcCRSTransform, w2gs);
+        dst2srcGrid = dst2src instanceof AffineTransform ? new AffineTransform(
+                (AffineTransform) dst2src) : null;
     }
 
     @Override
@@ -420,6 +450,9 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             lpad = rpad = tpad = bpad = 0;
         }
 
+        // source positions of the whole tile
+        float[] warpData = warpRect(dst.getX(), dst.getY(), dst.getWidth(), dst.getHeight(), null);
+
         int minX, maxX, minY, maxY;
         RandomIter iter;
         if (extender != null) {
@@ -427,9 +460,7 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             maxX = src.getMaxX();
             minY = src.getMinY();
             maxY = src.getMaxY();
-            Rectangle bounds = new Rectangle(src.getMinX() - lpad, src.getMinY() - tpad,
-                    src.getWidth() + lpad + rpad, src.getHeight() + tpad + bpad);
-            iter = RandomIterFactory.create(src.getExtendedData(bounds, extender), bounds);
+            iter = createExtendedIter(src, warpData, lpad, rpad, tpad, bpad);
         } else {
             minX = src.getMinX() + lpad;
             maxX = src.getMaxX() - rpad;
@@ -453,8 +484,6 @@ public class GridCoverage2DRIA extends GeometricOpImage {
         int precH = 1 << interp.getSubsampleBitsH();
         int precV = 1 << interp.getSubsampleBitsV();
 
-        float[] warpData = new float[2 * dstWidth];
-
         int[][] samples = new int[kheight][kwidth];
 
         int lineOffset = 0;
@@ -469,10 +498,7 @@ public class GridCoverage2DRIA extends GeometricOpImage {
                 int pixelOffset = lineOffset;
                 lineOffset += lineStride;
 
-                // warp.warpRect(dst.getX(), dst.getY() + h, dstWidth, 1, warpData);
-                warpRect(dst.getX(), dst.getY() + h, dstWidth, 1, warpData);
-
-                int count = 0;
+                int count = 2 * dstWidth * h;
                 for (int w = 0; w < dstWidth; w++) {
                     float sx = warpData[count++];
                     float sy = warpData[count++];
@@ -513,10 +539,7 @@ public class GridCoverage2DRIA extends GeometricOpImage {
                 int pixelOffset = lineOffset;
                 lineOffset += lineStride;
 
-                // warp.warpRect(dst.getX(), dst.getY() + h, dstWidth, 1, warpData);
-                warpRect(dst.getX(), dst.getY() + h, dstWidth, 1, warpData);
-
-                int count = 0;
+                int count = 2 * dstWidth * h;
                 for (int w = 0; w < dstWidth; w++) {
                     float sx = warpData[count++];
                     float sy = warpData[count++];
@@ -568,6 +591,9 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             lpad = rpad = tpad = bpad = 0;
         }
 
+        // source positions of the whole tile
+        float[] warpData = warpRect(dst.getX(), dst.getY(), dst.getWidth(), dst.getHeight(), null);
+
         int minX, maxX, minY, maxY;
         RandomIter iter;
         if (extender != null) {
@@ -575,9 +601,7 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             maxX = src.getMaxX();
             minY = src.getMinY();
             maxY = src.getMaxY();
-            Rectangle bounds = new Rectangle(src.getMinX() - lpad, src.getMinY() - tpad,
-                    src.getWidth() + lpad + rpad, src.getHeight() + tpad + bpad);
-            iter = RandomIterFactory.create(src.getExtendedData(bounds, extender), bounds);
+            iter = createExtendedIter(src, warpData, lpad, rpad, tpad, bpad);
         } else {
             minX = src.getMinX() + lpad;
             maxX = src.getMaxX() - rpad;
@@ -601,8 +625,6 @@ public class GridCoverage2DRIA extends GeometricOpImage {
         int precH = 1 << interp.getSubsampleBitsH();
         int precV = 1 << interp.getSubsampleBitsV();
 
-        float[] warpData = new float[2 * dstWidth];
-
         int[][] samples = new int[kheight][kwidth];
 
         int lineOffset = 0;
@@ -616,10 +638,7 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             int pixelOffset = lineOffset;
             lineOffset += lineStride;
 
-            // warp.warpRect(dst.getX(), dst.getY() + h, dstWidth, 1, warpData);
-            warpRect(dst.getX(), dst.getY() + h, dstWidth, 1, warpData);
-
-            int count = 0;
+            int count = 2 * dstWidth * h;
             for (int w = 0; w < dstWidth; w++) {
                 float sx = warpData[count++];
                 float sy = warpData[count++];
@@ -668,6 +687,9 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             lpad = rpad = tpad = bpad = 0;
         }
 
+        // source positions of the whole tile
+        float[] warpData = warpRect(dst.getX(), dst.getY(), dst.getWidth(), dst.getHeight(), null);
+
         int minX, maxX, minY, maxY;
         RandomIter iter;
         if (extender != null) {
@@ -675,9 +697,7 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             maxX = src.getMaxX();
             minY = src.getMinY();
             maxY = src.getMaxY();
-            Rectangle bounds = new Rectangle(src.getMinX() - lpad, src.getMinY() - tpad,
-                    src.getWidth() + lpad + rpad, src.getHeight() + tpad + bpad);
-            iter = RandomIterFactory.create(src.getExtendedData(bounds, extender), bounds);
+            iter = createExtendedIter(src, warpData, lpad, rpad, tpad, bpad);
         } else {
             minX = src.getMinX() + lpad;
             maxX = src.getMaxX() - rpad;
@@ -701,8 +721,6 @@ public class GridCoverage2DRIA extends GeometricOpImage {
         int precH = 1 << interp.getSubsampleBitsH();
         int precV = 1 << interp.getSubsampleBitsV();
 
-        float[] warpData = new float[2 * dstWidth];
-
         int[][] samples = new int[kheight][kwidth];
 
         int lineOffset = 0;
@@ -716,10 +734,7 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             int pixelOffset = lineOffset;
             lineOffset += lineStride;
 
-            // warp.warpRect(dst.getX(), dst.getY() + h, dstWidth, 1, warpData);
-            warpRect(dst.getX(), dst.getY() + h, dstWidth, 1, warpData);
-
-            int count = 0;
+            int count = 2 * dstWidth * h;
             for (int w = 0; w < dstWidth; w++) {
                 float sx = warpData[count++];
                 float sy = warpData[count++];
@@ -768,6 +783,9 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             lpad = rpad = tpad = bpad = 0;
         }
 
+        // source positions of the whole tile
+        float[] warpData = warpRect(dst.getX(), dst.getY(), dst.getWidth(), dst.getHeight(), null);
+
         int minX, maxX, minY, maxY;
         RandomIter iter;
         if (extender != null) {
@@ -775,9 +793,7 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             maxX = src.getMaxX();
             minY = src.getMinY();
             maxY = src.getMaxY();
-            Rectangle bounds = new Rectangle(src.getMinX() - lpad, src.getMinY() - tpad,
-                    src.getWidth() + lpad + rpad, src.getHeight() + tpad + bpad);
-            iter = RandomIterFactory.create(src.getExtendedData(bounds, extender), bounds);
+            iter = createExtendedIter(src, warpData, lpad, rpad, tpad, bpad);
         } else {
             minX = src.getMinX() + lpad;
             maxX = src.getMaxX() - rpad;
@@ -801,8 +817,6 @@ public class GridCoverage2DRIA extends GeometricOpImage {
         int precH = 1 << interp.getSubsampleBitsH();
         int precV = 1 << interp.getSubsampleBitsV();
 
-        float[] warpData = new float[2 * dstWidth];
-
         int[][] samples = new int[kheight][kwidth];
 
         int lineOffset = 0;
@@ -816,10 +830,7 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             int pixelOffset = lineOffset;
             lineOffset += lineStride;
 
-            // warp.warpRect(dst.getX(), dst.getY() + h, dstWidth, 1, warpData);
-            warpRect(dst.getX(), dst.getY() + h, dstWidth, 1, warpData);
-
-            int count = 0;
+            int count = 2 * dstWidth * h;
             for (int w = 0; w < dstWidth; w++) {
                 float sx = warpData[count++];
                 float sy = warpData[count++];
@@ -868,6 +879,9 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             lpad = rpad = tpad = bpad = 0;
         }
 
+        // source positions of the whole tile
+        float[] warpData = warpRect(dst.getX(), dst.getY(), dst.getWidth(), dst.getHeight(), null);
+
         int minX, maxX, minY, maxY;
         RandomIter iter;
         if (extender != null) {
@@ -875,9 +889,7 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             maxX = src.getMaxX();
             minY = src.getMinY();
             maxY = src.getMaxY();
-            Rectangle bounds = new Rectangle(src.getMinX() - lpad, src.getMinY() - tpad,
-                    src.getWidth() + lpad + rpad, src.getHeight() + tpad + bpad);
-            iter = RandomIterFactory.create(src.getExtendedData(bounds, extender), bounds);
+            iter = createExtendedIter(src, warpData, lpad, rpad, tpad, bpad);
         } else {
             minX = src.getMinX() + lpad;
             maxX = src.getMaxX() - rpad;
@@ -898,8 +910,6 @@ public class GridCoverage2DRIA extends GeometricOpImage {
         int[] bandOffsets = dst.getBandOffsets();
         float[][] data = dst.getFloatDataArrays();
 
-        float[] warpData = new float[2 * dstWidth];
-
         float[][] samples = new float[kheight][kwidth];
 
         int lineOffset = 0;
@@ -913,10 +923,7 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             int pixelOffset = lineOffset;
             lineOffset += lineStride;
 
-            // warp.warpRect(dst.getX(), dst.getY() + h, dstWidth, 1, warpData);
-            warpRect(dst.getX(), dst.getY() + h, dstWidth, 1, warpData);
-
-            int count = 0;
+            int count = 2 * dstWidth * h;
             for (int w = 0; w < dstWidth; w++) {
                 float sx = warpData[count++];
                 float sy = warpData[count++];
@@ -965,6 +972,9 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             lpad = rpad = tpad = bpad = 0;
         }
 
+        // source positions of the whole tile
+        float[] warpData = warpRect(dst.getX(), dst.getY(), dst.getWidth(), dst.getHeight(), null);
+
         int minX, maxX, minY, maxY;
         RandomIter iter;
         if (extender != null) {
@@ -972,9 +982,7 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             maxX = src.getMaxX();
             minY = src.getMinY();
             maxY = src.getMaxY();
-            Rectangle bounds = new Rectangle(src.getMinX() - lpad, src.getMinY() - tpad,
-                    src.getWidth() + lpad + rpad, src.getHeight() + tpad + bpad);
-            iter = RandomIterFactory.create(src.getExtendedData(bounds, extender), bounds);
+            iter = createExtendedIter(src, warpData, lpad, rpad, tpad, bpad);
         } else {
             minX = src.getMinX() + lpad;
             maxX = src.getMaxX() - rpad;
@@ -995,8 +1003,6 @@ public class GridCoverage2DRIA extends GeometricOpImage {
         int[] bandOffsets = dst.getBandOffsets();
         double[][] data = dst.getDoubleDataArrays();
 
-        float[] warpData = new float[2 * dstWidth];
-
         double[][] samples = new double[kheight][kwidth];
 
         int lineOffset = 0;
@@ -1005,10 +1011,7 @@ public class GridCoverage2DRIA extends GeometricOpImage {
             int pixelOffset = lineOffset;
             lineOffset += lineStride;
 
-            // warp.warpRect(dst.getX(), dst.getY() + h, dstWidth, 1, warpData);
-            warpRect(dst.getX(), dst.getY() + h, dstWidth, 1, warpData);
-
-            int count = 0;
+            int count = 2 * dstWidth * h;
             for (int w = 0; w < dstWidth; w++) {
                 float sx = warpData[count++];
                 float sy = warpData[count++];
@@ -1046,6 +1049,57 @@ public class GridCoverage2DRIA extends GeometricOpImage {
         }
     }
 
+    /**
+     * Returns an iterator on the source extended with the border extender, limited to the area read for the provided source positions, that is
+     * the positions falling inside the source plus the interpolation padding around them. Only this area is copied, instead of the whole
+     * padded source.
+     */
+    private RandomIter createExtendedIter(PlanarImage src, float[] warpData, int lpad, int rpad,
+            int tpad, int bpad) {
+        Rectangle bounds = getExtendedBounds(src, warpData, lpad, rpad, tpad, bpad);
+        return RandomIterFactory.create(src.getExtendedData(bounds, extender), bounds);
+    }
+
+    /**
+     * Returns the source area extended to compute the provided destination rectangle.
+     */
+    Rectangle getExtendedBounds(Rectangle destRect) {
+        int lpad = 0, rpad = 0, tpad = 0, bpad = 0;
+        if (interp != null) {
+            lpad = interp.getLeftPadding();
+            rpad = interp.getRightPadding();
+            tpad = interp.getTopPadding();
+            bpad = interp.getBottomPadding();
+        }
+        float[] warpData = warpRect(destRect.x, destRect.y, destRect.width, destRect.height,
+                null);
+        return getExtendedBounds(getSourceImage(0), warpData, lpad, rpad, tpad, bpad);
+    }
+
+    private static Rectangle getExtendedBounds(PlanarImage src, float[] warpData, int lpad,
+            int rpad, int tpad, int bpad) {
+        int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE;
+        int x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+        for (int i = 0; i < warpData.length; i += 2) {
+            int x = floor(warpData[i]);
+            int y = floor(warpData[i + 1]);
+            if (x >= src.getMinX() && x < src.getMaxX() && y >= src.getMinY()
+                    && y < src.getMaxY()) {
+                x0 = Math.min(x0, x);
+                y0 = Math.min(y0, y);
+                x1 = Math.max(x1, x);
+                y1 = Math.max(y1, y);
+            }
+        }
+        if (x0 > x1) {
+            // no source pixel is read
+            x0 = x1 = src.getMinX();
+            y0 = y1 = src.getMinY();
+        }
+        return new Rectangle(x0 - lpad, y0 - tpad, x1 - x0 + 1 + lpad + rpad, y1 - y0 + 1 + tpad
+                + bpad);
+    }
+
     /** Returns the "floor" value of a float. */
     private static final int floor(float f) {
         return f >= 0 ? (int) f : (int) f - 1;
@@ -1080,24 +1134,46 @@ public class GridCoverage2DRIA extends GeometricOpImage {
                     * ((height + periodY - 1) / periodY) * 2];
         }
 
-        width += x0;
-        height += y0;
-        int index = 0; // destRect index
-
-        double xy[] = new double[2];
-
-        for (int y = y0; y < height; y += periodY) {
-            for (int x = x0; x < width; x += periodX) {
-                xy[0] = x;
-                xy[1] = y;
-                try {
-                    mapSrcPoint(xy);
-                    destRect[index++] = (float) xy[0];
-                    destRect[index++] = (float) xy[1];
-                } catch (TransformException e) {
-                    LOGGER.log(Level.WARNING, "Error transforming {0}", xy);
-                    destRect[index++] = Float.NaN; // ???
-                    destRect[index++] = Float.NaN; // ???
+        if (dst2srcGrid != null) {
+            // exact affine mapping, integer translations included
+            final double m00 = dst2srcGrid.getScaleX(), m01 = dst2srcGrid.getShearX();
+            final double m02 = dst2srcGrid.getTranslateX(), m10 = dst2srcGrid.getShearY();
+            final double m11 = dst2srcGrid.getScaleY(), m12 = dst2srcGrid.getTranslateY();
+            int index = 0;
+            for (int y = y0; y < y0 + height; y += periodY) {
+                for (int x = x0; x < x0 + width; x += periodX) {
+                    destRect[index++] = (float) (m00 * x + m01 * y + m02);
+                    destRect[index++] = (float) (m10 * x + m11 * y + m12);
+                }
+            }
+        } else if (maxPixelError > 0) {
+            final int nx = (width + periodX - 1) / periodX;
+            final int ny = (height + periodY - 1) / periodY;
+            if (nx > 0 && ny > 0) {
+                final GridWarp grid = new GridWarp(x0, y0, periodX, periodY, nx, destRect);
+                grid.warp(0, 0, nx - 1, ny - 1, grid.map(0, 0), grid.map(nx - 1, 0),
+                        grid.map(0, ny - 1), grid.map(nx - 1, ny - 1));
+            }
+        } else {
+            width += x0;
+            height += y0;
+            int index = 0; // destRect index
+
+            double xy[] = new double[2];
+
+            for (int y = y0; y < height; y += periodY) {
+                for (int x = x0; x < width; x += periodX) {
+                    xy[0] = x;
+                    xy[1] = y;
+                    try {
+                        mapSrcPoint(xy);
+                        destRect[index++] = (float) xy[0];
+                        destRect[index++] = (float) xy[1];
+                    } catch (TransformException e) {
+                        LOGGER.log(Level.WARNING, "Error transforming {0}", xy);
+                        destRect[index++] = Float.NaN; // ???
+                        destRect[index++] = Float.NaN; // ???
+                    }
                 }
             }
         }
@@ -1105,4 +1181,114 @@ public class GridCoverage2DRIA extends GeometricOpImage {
         return destRect;
     }
 
+    /**
+     * Source positions of a sparse grid of destination pixels, transformed exactly on control points and bilinearly interpolated in between,
+     * like the JAI WarpGrid. The control points are refined where the interpolation error exceeds the maximum pixel error, by splitting the
+     * blocks in four until the interpolated positions are close enough to the exact ones or the blocks are single pixels.
+     */
+    private class GridWarp {
+
+        private final int x0, y0, periodX, periodY, nx;
+
+        private final float[] positions;
+
+        GridWarp(int x0, int y0, int periodX, int periodY, int nx, float[] positions) {
+            this.x0 = x0;
+            this.y0 = y0;
+            this.periodX = periodX;
+            this.periodY = periodY;
+            this.nx = nx;
+            this.positions = positions;
+        }
+
+        /**
+         * Returns the exact source position of the grid point, NaN if it can't be transformed
+         */
+        double[] map(int i, int j) {
+            double[] xy = new double[] { x0 + i * periodX, y0 + j * periodY };
+            try {
+                mapSrcPoint(xy);
+            } catch (TransformException e) {
+                LOGGER.log(Level.WARNING, "Error transforming {0}", xy);
+                xy[0] = xy[1] = Double.NaN;
+            }
+            return xy;
+        }
+
+        /**
+         * Fills the positions of the block between the grid points (i0, j0) and (i1, j1), both included, given the positions of its corners.
+         */
+        void warp(int i0, int j0, int i1, int j1, double[] p00, double[] p10, double[] p01,
+                double[] p11) {
+            if (i1 - i0 <= 1 && j1 - j0 <= 1) {
+                set(i0, j0, p00);
+                set(i1, j0, p10);
+                set(i0, j1, p01);
+                set(i1, j1, p11);
+                return;
+            }
+            final int im = (i0 + i1) >>> 1;
+            final int jm = (j0 + j1) >>> 1;
+            final double[] pm0 = map(im, j0);
+            final double[] pm1 = map(im, j1);
+            final double[] p0m = map(i0, jm);
+            final double[] p1m = map(i1, jm);
+            final double[] pmm = map(im, jm);
+            if (accurate(i0, j0, i1, j1, p00, p10, p01, p11, im, j0, pm0)
+                    && accurate(i0, j0, i1, j1, p00, p10, p01, p11, im, j1, pm1)
+                    && accurate(i0, j0, i1, j1, p00, p10, p01, p11, i0, jm, p0m)
+                    && accurate(i0, j0, i1, j1, p00, p10, p01, p11, i1, jm, p1m)
+                    && accurate(i0, j0, i1, j1, p00, p10, p01, p11, im, jm, pmm)) {
+                for (int j = j0; j <= j1; j++) {
+                    for (int i = i0; i <= i1; i++) {
+                        int index = 2 * (j * nx + i);
+                        positions[index] = (float) interpolate(i0, j0, i1, j1, p00[0], p10[0],
+                                p01[0], p11[0], i, j);
+                        positions[index + 1] = (float) interpolate(i0, j0, i1, j1, p00[1],
+                                p10[1], p01[1], p11[1], i, j);
+                    }
+                }
+                return;
+            }
+            // split only the sides longer than one cell
+            final boolean splitX = i1 - i0 > 1;
+            final boolean splitY = j1 - j0 > 1;
+            if (splitX && splitY) {
+                warp(i0, j0, im, jm, p00, pm0, p0m, pmm);
+                warp(im, j0, i1, jm, pm0, p10, pmm, p1m);
+                warp(i0, jm, im, j1, p0m, pmm, p01, pm1);
+                warp(im, jm, i1, j1, pmm, p1m, pm1, p11);
+            } else if (splitX) {
+                warp(i0, j0, im, j1, p00, pm0, p01, pm1);
+                warp(im, j0, i1, j1, pm0, p10, pm1, p11);
+            } else {
+                warp(i0, j0, i1, jm, p00, p10, p0m, p1m);
+                warp(i0, jm, i1, j1, p0m, p1m, p01, p11);
+            }
+        }
+
+        private boolean accurate(int i0, int j0, int i1, int j1, double[] p00, double[] p10,
+                double[] p01, double[] p11, int i, int j, double[] exact) {
+            double dx = interpolate(i0, j0, i1, j1, p00[0], p10[0], p01[0], p11[0], i, j)
+                    - exact[0];
+            double dy = interpolate(i0, j0, i1, j1, p00[1], p10[1], p01[1], p11[1], i, j)
+                    - exact[1];
+            // false for NaN positions too
+            return dx * dx + dy * dy <= maxPixelError * maxPixelError;
+        }
+
+        private double interpolate(int i0, int j0, int i1, int j1, double v00, double v10,
+                double v01, double v11, int i, int j) {
+            double u = i1 > i0 ? (double) (i - i0) / (i1 - i0) : 0;
+            double v = j1 > j0 ? (double) (j - j0) / (j1 - j0) : 0;
+            return (1 - v) * ((1 - u) * v00 + u * v10) + v * ((1 - u) * v01 + u * v11);
+        }
+
+        private void set(int i, int j, double[] position) {
+            int index = 2 * (j * nx + i);
+            positions[index] = (float) position[0];
+            positions[index + 1] = (float) position[1];
+        }
+    }
+
 }
@@ -4,6 +4,8 @@
  */
 package org.geoserver.wps.gs;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 import org.geoserver.catalog.Catalog;
@@ -51,6 +53,21 @@ public class ImportProcess implements GSProcess {
             @DescribeParameter(name = "srsHandling", min = 0, description = "Desired SRS handling (default is FORCE_DECLARED, others are REPROJECT_TO_DECLARED or NONE)") ProjectionPolicy srsHandling,
             @DescribeParameter(name = "styleName", min = 0, description = "Name of the style to be associated with the layer (default is a standard geometry-specific style)") String styleName)
             throws ProcessException {
+        return importData(features, coverage, workspace, store, name, srs, srsHandling,
+                styleName, false);
+    }
+
+    /**
+     * Imports the features or the coverage into the catalog.
+     * 
+     * @param overviews if <code>true</code> and a coverage is imported, internal overviews are added to the GeoTIFF written into the data
+     *        directory, so that callers do not need to write and import an intermediate file
+     * @see #execute
+     */
+    public String importData(SimpleFeatureCollection features, GridCoverage2D coverage,
+            String workspace, String store, String name, CoordinateReferenceSystem srs,
+            ProjectionPolicy srsHandling, String styleName, boolean overviews)
+            throws ProcessException {
 
         // first off, decide what is the target store
         WorkspaceInfo ws;
@@ -119,10 +136,61 @@ public class ImportProcess implements GSProcess {
                     srs, srsHandling, targetStyle);
         } else if (coverage != null) {
             return new CoverageImporter(this.catalog).execute(coverage, name, cb, ws, storeInfo,
-                    srs, srsHandling, targetStyle);
+                    srs, srsHandling, targetStyle, overviews);
         }
 
         return null;
     }
 
+    /**
+     * Imports several coverages into the catalog, each one into a new coverage store and layer named after the coverage. The GeoTIFFs are written at the
+     * same time, so that coverages sharing their source tiles are computed in a single pass.
+     * 
+     * @param executor executor used for writing the GeoTIFFs, if <code>null</code> the one of the application context is used
+     * @return the names of the new layers, with workspace, in the same order of the coverages
+     * @see CoverageImporter#execute(List, List, CatalogBuilder, WorkspaceInfo, List, CoordinateReferenceSystem, ProjectionPolicy, StyleInfo,
+     *      boolean, SoilSealingExecutor)
+     */
+    public List<String> importCoverages(List<GridCoverage2D> coverages, String workspace,
+            CoordinateReferenceSystem srs, String styleName, boolean overviews,
+            SoilSealingExecutor executor) throws ProcessException {
+        WorkspaceInfo ws;
+        if (workspace != null) {
+            ws = this.catalog.getWorkspaceByName(workspace);
+            if (ws == null) {
+                throw new ProcessException("Could not find workspace " + workspace);
+            }
+        } else {
+            ws = this.catalog.getDefaultWorkspace();
+            if (ws == null) {
+                throw new ProcessException(
+                        "The catalog is empty, could not find a default workspace");
+            }
+        }
+
+        CatalogBuilder cb = new CatalogBuilder(this.catalog);
+        cb.setWorkspace(ws);
+
+        // a new coverage store for each coverage
+        List<String> names = new ArrayList<String>(coverages.size());
+        List<StoreInfo> storeInfos = new ArrayList<StoreInfo>(coverages.size());
+        for (GridCoverage2D coverage : coverages) {
+            String name = coverage.getName().toString();
+            LOGGER.info("Auto-configuring coverage store: " + name);
+            names.add(name);
+            storeInfos.add(cb.buildCoverageStore(name));
+        }
+
+        StyleInfo targetStyle = null;
+        if (styleName != null) {
+            targetStyle = this.catalog.getStyleByName(styleName);
+            if (targetStyle == null) {
+                throw new ProcessException("Could not find style " + styleName);
+            }
+        }
+
+        return new CoverageImporter(this.catalog).execute(coverages, names, cb, ws, storeInfos,
+                srs, null, targetStyle, overviews, executor);
+    }
+
 }
@@ -0,0 +1,250 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.util.logging.Logging;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Executor shared by the soil sealing processes for their compute and I/O bound tasks, like the per-ROI queries of the urban grids.
+ * <p>
+ * The number of threads is fixed for the node, so the threads and the database connections used by the processes stay bounded whatever the
+ * number of concurrent requests. Each request can have at most {@link #getMaxTasksPerRequest()} tasks queued or running at the same time: the
+ * next task of a request is queued only when one of its tasks completes, behind the tasks of the other requests, so that concurrent requests
+ * are served in a round robin fashion and a request with many ROIs cannot starve the others. By default a request can use half of the threads.
+ * </p>
+ * <p>
+ * When a task fails the tasks of its request not yet started are dropped and the running ones are interrupted.
+ * </p>
+ */
+public class SoilSealingExecutor implements DisposableBean {
+
+    private static final Logger LOGGER = Logging.getLogger(SoilSealingExecutor.class);
+
+    /** Default number of threads */
+    public static final int DEFAULT_POOL_SIZE = Math.max(2, Runtime.getRuntime()
+            .availableProcessors());
+
+    private final ExecutorService executor;
+
+    private final int poolSize;
+
+    private volatile int maxTasksPerRequest;
+
+    public SoilSealingExecutor() {
+        this(DEFAULT_POOL_SIZE);
+    }
+
+    public SoilSealingExecutor(int poolSize) {
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("The pool size must be positive");
+        }
+        this.poolSize = poolSize;
+        this.maxTasksPerRequest = getDefaultMaxTasksPerRequest(poolSize);
+        this.executor = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SoilSealingExecutor-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Executes the tasks of a single request, waiting for their completion.
+     *
+     * @param tasks the tasks to execute
+     * @return the results of the tasks, in the same order
+     * @throws ExecutionException if a task failed, or the executor has been shut down; the remaining tasks are cancelled
+     * @throws InterruptedException if the calling thread is interrupted, the remaining tasks are cancelled
+     */
+    public <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws InterruptedException,
+            ExecutionException {
+        final Request<T> request = new Request<T>(tasks);
+        request.start();
+        try {
+            List<T> results = new ArrayList<T>(tasks.size());
+            for (Future<T> future : request.futures) {
+                try {
+                    results.add(future.get());
+                } catch (CancellationException e) {
+                    // cancelled because of the failure of another task
+                    ExecutionException failure = request.getFailure();
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    throw e;
+                }
+            }
+            return results;
+        } finally {
+            request.cancel();
+        }
+    }
+
+    /**
+     * Returns the default maximum number of tasks of a single request queued or running at the same time, half of the threads
+     */
+    public static int getDefaultMaxTasksPerRequest(int poolSize) {
+        return Math.max(1, poolSize / 2);
+    }
+
+    /**
+     * Looks up the executor configured in the application context. An executor is never created on the fly, as its threads would not be
+     * stopped with the context.
+     *
+     * @throws IllegalStateException if the executor is not configured
+     */
+    public static SoilSealingExecutor lookup() {
+        SoilSealingExecutor executor = GeoServerExtensions.bean(SoilSealingExecutor.class);
+        if (executor == null) {
+            throw new IllegalStateException(
+                    "No SoilSealingExecutor configured in the application context");
+        }
+        return executor;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getMaxTasksPerRequest() {
+        return maxTasksPerRequest;
+    }
+
+    public void setMaxTasksPerRequest(int maxTasksPerRequest) {
+        if (maxTasksPerRequest <= 0) {
+            throw new IllegalArgumentException("The maximum number of tasks per request must be positive");
+        }
+        this.maxTasksPerRequest = maxTasksPerRequest;
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOGGER.warning("Some soil sealing tasks did not terminate");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The tasks of a single request, submitted to the shared pool a few at a time
+     */
+    private class Request<T> {
+
+        private final List<FutureTask<T>> futures;
+
+        /** Tasks not yet submitted to the pool */
+        private final Queue<FutureTask<T>> pending;
+
+        private boolean cancelled;
+
+        /** The first failure of the tasks */
+        private ExecutionException failure;
+
+        Request(List<? extends Callable<T>> tasks) {
+            futures = new ArrayList<FutureTask<T>>(tasks.size());
+            for (Callable<T> task : tasks) {
+                futures.add(new FutureTask<T>(task) {
+
+                    @Override
+                    protected void done() {
+                        if (!isCancelled()) {
+                            try {
+                                get();
+                            } catch (ExecutionException e) {
+                                fail(e);
+                                return;
+                            } catch (InterruptedException e) {
+                                // not possible, the task is done
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        submitNext();
+                    }
+                });
+            }
+            pending = new LinkedList<FutureTask<T>>(futures);
+        }
+
+        void start() {
+            final int count = Math.min(maxTasksPerRequest, futures.size());
+            for (int i = 0; i < count; i++) {
+                submitNext();
+            }
+        }
+
+        void submitNext() {
+            FutureTask<T> next;
+            synchronized (this) {
+                next = cancelled ? null : pending.poll();
+            }
+            if (next != null) {
+                try {
+                    executor.execute(next);
+                } catch (RejectedExecutionException e) {
+                    // the executor has been shut down
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.log(Level.FINE, e.getMessage(), e);
+                    }
+                    fail(new ExecutionException("The executor has been shut down", e));
+                }
+            }
+        }
+
+        /**
+         * Records the failure and cancels the other tasks
+         */
+        void fail(ExecutionException e) {
+            synchronized (this) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            cancel();
+        }
+
+        synchronized ExecutionException getFailure() {
+            return failure;
+        }
+
+        void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                pending.clear();
+            }
+            for (FutureTask<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,625 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.config.GeoServer;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wps.ppio.FeatureAttribute;
+import org.geotools.data.DataStore;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Transaction;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.process.ProcessException;
+import org.geotools.referencing.CRS;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Asynchronous journal of the status of the soil sealing processes. The processes enqueue the RUNNING record of a run and its later
+ * COMPLETED/FAILED transitions without waiting for the logging store; a single background writer drains the queue, coalesces the entries
+ * referring to the same <code>ftUUID</code> and commits them in one transaction per target feature type.
+ * <p>
+ * The first record written into a missing feature type is delegated to {@link WFSLog}, which creates the schema and publishes the layer. Source
+ * feature types and attribute mappings are cached, so they are built once per distinct record structure.
+ * </p>
+ * <p>
+ * When the queue is full a process waits up to {@link #getOfferTimeout()} milliseconds for room, then writes its entry synchronously together
+ * with the pending ones, so that no record is lost and the order of the entries of a run is kept. Write errors are logged without being
+ * reported to the processes.
+ * </p>
+ */
+public class StatusJournal implements DisposableBean {
+
+    private static final Logger LOGGER = Logging.getLogger(StatusJournal.class);
+
+    private static final FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+
+    /** Name of the attribute identifying the run */
+    public static final String UUID_ATTRIBUTE = "ftUUID";
+
+    /** Name of the geometry attribute of the records */
+    public static final String GEOMETRY_ATTRIBUTE = "the_geom";
+
+    /** Default maximum number of pending entries */
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    /** Default maximum number of entries written in a single batch */
+    public static final int DEFAULT_BATCH_SIZE = 200;
+
+    /** Default time, in milliseconds, the writer waits for new entries */
+    public static final long DEFAULT_FLUSH_INTERVAL = 500;
+
+    /** Default time, in milliseconds, a process waits for room in a full queue before writing its entry synchronously */
+    public static final long DEFAULT_OFFER_TIMEOUT = 1000;
+
+    private final GeoServer geoServer;
+
+    private final BlockingQueue<Entry> queue;
+
+    /** Feature types of the records, keyed by their structure */
+    private final Map<String, SimpleFeatureType> sourceTypes = new ConcurrentHashMap<String, SimpleFeatureType>();
+
+    /** Resolved targets, only accessed holding the write lock */
+    private final Map<String, Target> targets = new HashMap<String, Target>();
+
+    /** Lock held while writing, shared by the writer thread and the synchronous writes of a full queue */
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+
+    private final AtomicLong written = new AtomicLong();
+
+    /** Entries ignored because the journal was stopped */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** Entries written synchronously because the queue was full */
+    private final AtomicLong synchronousWrites = new AtomicLong();
+
+    private final Thread writer;
+
+    private volatile boolean running = true;
+
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+    private volatile long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    private volatile long offerTimeout = DEFAULT_OFFER_TIMEOUT;
+
+    public StatusJournal(GeoServer geoServer) {
+        this(geoServer, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public StatusJournal(GeoServer geoServer, int queueCapacity) {
+        this.geoServer = geoServer;
+        this.queue = new LinkedBlockingQueue<Entry>(queueCapacity);
+        this.writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "StatusJournal writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Looks up the journal configured in the application context. A journal is never created on the fly, as its writer thread would not be
+     * stopped with the context.
+     *
+     * @throws IllegalStateException if the journal is not configured
+     */
+    public static StatusJournal lookup() {
+        StatusJournal journal = GeoServerExtensions.bean(StatusJournal.class);
+        if (journal == null) {
+            throw new IllegalStateException("No StatusJournal configured in the application context");
+        }
+        return journal;
+    }
+
+    /**
+     * Enqueues the first record of a run. The record must contain the {@link #UUID_ATTRIBUTE} attribute, which identifies the run in the later
+     * updates.
+     *
+     * @param workspace target workspace, the default one if <code>null</code>
+     * @param store target store, the default one of the workspace if <code>null</code>
+     * @param typeName target feature type name
+     * @param geometry geometry of the record
+     * @param crs geometry CRS
+     * @param attributes attributes of the record
+     * @return <code>true</code> if the record has been enqueued
+     */
+    public boolean insert(String workspace, String store, String typeName, Geometry geometry,
+            CoordinateReferenceSystem crs, List<FeatureAttribute> attributes) {
+        SimpleFeature feature = buildFeature(typeName, geometry, crs, attributes);
+        Object uuid = feature.getAttribute(UUID_ATTRIBUTE);
+        if (uuid == null) {
+            throw new IllegalArgumentException("The record must contain the " + UUID_ATTRIBUTE
+                    + " attribute");
+        }
+        return enqueue(new Entry(workspace, store, typeName, uuid.toString(), feature, null, null));
+    }
+
+    /**
+     * Enqueues an update of the record of a run.
+     *
+     * @param workspace target workspace, the default one if <code>null</code>
+     * @param store target store, the default one of the workspace if <code>null</code>
+     * @param typeName target feature type name
+     * @param uuid identifier of the run
+     * @param values the new attribute values
+     * @return <code>true</code> if the update has been enqueued
+     */
+    public boolean update(String workspace, String store, String typeName, String uuid,
+            Map<String, Object> values) {
+        return enqueue(new Entry(workspace, store, typeName, uuid, null,
+                new LinkedHashMap<String, Object>(values), null));
+    }
+
+    /**
+     * Waits until all the entries enqueued so far have been written.
+     *
+     * @param timeout maximum time to wait, in milliseconds
+     * @return <code>true</code> if the entries have been written before the timeout
+     */
+    public boolean flush(long timeout) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        if (!queue.offer(new Entry(null, null, null, null, null, null, latch), timeout,
+                TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        return latch.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the writer once the pending entries have been written
+     */
+    @Override
+    public void destroy() throws Exception {
+        // the writer notices the flag within one flush interval
+        running = false;
+        writer.join(flushInterval * 10);
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getSynchronousWrites() {
+        return synchronousWrites.get();
+    }
+
+    public int getPending() {
+        return queue.size();
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = Math.max(1, flushInterval);
+    }
+
+    public long getOfferTimeout() {
+        return offerTimeout;
+    }
+
+    public void setOfferTimeout(long offerTimeout) {
+        this.offerTimeout = Math.max(0, offerTimeout);
+    }
+
+    private boolean enqueue(Entry entry) {
+        if (!running) {
+            dropped.incrementAndGet();
+            LOGGER.warning("Status journal stopped, ignoring the record of run " + entry.uuid);
+            return false;
+        }
+        try {
+            if (queue.offer(entry, offerTimeout, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            // write it anyway, keeping the interruption for the caller
+            Thread.currentThread().interrupt();
+        }
+
+        // the writer does not keep up: the entry is written with the pending ones, in order
+        synchronousWrites.incrementAndGet();
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Status journal queue full, writing the record of run " + entry.uuid
+                    + " synchronously");
+        }
+        writeLock.lock();
+        try {
+            final List<Entry> batch = new ArrayList<Entry>();
+            queue.drainTo(batch);
+            batch.add(entry);
+            write(batch);
+        } finally {
+            writeLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Builds the record, reusing the feature type of the records with the same structure
+     */
+    private SimpleFeature buildFeature(String typeName, Geometry geometry,
+            CoordinateReferenceSystem crs, List<FeatureAttribute> attributes) {
+        StringBuilder key = new StringBuilder(typeName);
+        key.append('|').append(geometry.getClass().getName());
+        key.append('|').append(crs != null ? CRS.toSRS(crs) : "");
+        for (FeatureAttribute attribute : attributes) {
+            key.append('|').append(attribute.getName()).append(':')
+                    .append(getBinding(attribute.getValue()).getName());
+        }
+
+        SimpleFeatureType schema = sourceTypes.get(key.toString());
+        if (schema == null) {
+            SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+            tb.setName(typeName);
+            tb.add(GEOMETRY_ATTRIBUTE, geometry.getClass(), crs);
+            for (FeatureAttribute attribute : attributes) {
+                tb.add((String) attribute.getName(), getBinding(attribute.getValue()));
+            }
+            schema = tb.buildFeatureType();
+            sourceTypes.put(key.toString(), schema);
+        }
+
+        List<Object> values = new ArrayList<Object>(attributes.size() + 1);
+        values.add(geometry);
+        for (FeatureAttribute attribute : attributes) {
+            values.add(attribute.getValue());
+        }
+        return SimpleFeatureBuilder.build(schema, values, null);
+    }
+
+    private static Class<?> getBinding(Object value) {
+        return value != null ? value.getClass() : String.class;
+    }
+
+    // ////
+    // Writer
+    // ////
+
+    private void writeLoop() {
+        final List<Entry> batch = new ArrayList<Entry>();
+        while (running || !queue.isEmpty()) {
+            // the lock is held from the poll to the write, so that a synchronous write never overtakes the entries taken from the queue;
+            // the synchronous writes only happen with a full queue, when the poll returns at once
+            writeLock.lock();
+            try {
+                try {
+                    Entry first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch, batchSize - 1);
+                    }
+                } catch (InterruptedException e) {
+                    // stop requested, drain what is left
+                    queue.drainTo(batch);
+                }
+                if (!batch.isEmpty()) {
+                    write(batch);
+                    batch.clear();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes a batch of entries, grouping them by target
+     */
+    private void write(List<Entry> batch) {
+        Map<String, List<Entry>> groups = new LinkedHashMap<String, List<Entry>>();
+        List<CountDownLatch> latches = new ArrayList<CountDownLatch>();
+        for (Entry entry : batch) {
+            if (entry.latch != null) {
+                latches.add(entry.latch);
+                continue;
+            }
+            String key = entry.getTargetKey();
+            List<Entry> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<Entry>();
+                groups.put(key, group);
+            }
+            group.add(entry);
+        }
+
+        for (Map.Entry<String, List<Entry>> group : groups.entrySet()) {
+            try {
+                write(group.getKey(), group.getValue());
+                written.addAndGet(group.getValue().size());
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Unable to write " + group.getValue().size()
+                        + " status records into " + group.getKey(), e);
+                // resolve the target again on the next batch
+                targets.remove(group.getKey());
+            }
+        }
+
+        for (CountDownLatch latch : latches) {
+            latch.countDown();
+        }
+    }
+
+    /**
+     * Writes the entries of a single target in one transaction
+     */
+    private void write(String key, List<Entry> entries) throws IOException {
+        // coalesce the entries of each run
+        Map<String, SimpleFeature> inserts = new LinkedHashMap<String, SimpleFeature>();
+        Map<String, Map<String, Object>> updates = new LinkedHashMap<String, Map<String, Object>>();
+        for (Entry entry : entries) {
+            if (entry.feature != null) {
+                inserts.put(entry.uuid, entry.feature);
+            } else if (inserts.containsKey(entry.uuid)) {
+                SimpleFeature feature = inserts.get(entry.uuid);
+                for (Map.Entry<String, Object> value : entry.values.entrySet()) {
+                    if (feature.getFeatureType().getDescriptor(value.getKey()) != null) {
+                        feature.setAttribute(value.getKey(), value.getValue());
+                    }
+                }
+            } else {
+                Map<String, Object> values = updates.get(entry.uuid);
+                if (values == null) {
+                    updates.put(entry.uuid, entry.values);
+                } else {
+                    values.putAll(entry.values);
+                }
+            }
+        }
+
+        Target target = targets.get(key);
+        if (target == null) {
+            target = resolveTarget(entries.get(0), inserts);
+            targets.put(key, target);
+        }
+        if (inserts.isEmpty() && updates.isEmpty()) {
+            return;
+        }
+
+        Transaction transaction = new DefaultTransaction("StatusJournal");
+        try {
+            SimpleFeatureSource source = target.dataStore.getFeatureSource(target.type
+                    .getTypeName());
+            if (!(source instanceof SimpleFeatureStore)) {
+                throw new ProcessException("The target " + key + " is read only");
+            }
+            SimpleFeatureStore store = (SimpleFeatureStore) source;
+            store.setTransaction(transaction);
+
+            if (!inserts.isEmpty()) {
+                List<SimpleFeature> features = new ArrayList<SimpleFeature>(inserts.size());
+                SimpleFeatureBuilder fb = new SimpleFeatureBuilder(target.type);
+                for (SimpleFeature feature : inserts.values()) {
+                    fb.reset();
+                    for (AttributeDescriptor ad : feature.getFeatureType().getAttributeDescriptors()) {
+                        String name = target.mapAttribute(ad.getLocalName());
+                        if (name != null) {
+                            fb.set(name, feature.getAttribute(ad.getLocalName()));
+                        }
+                    }
+                    features.add(fb.buildFeature(null));
+                }
+                store.addFeatures(new ListFeatureCollection(target.type, features));
+            }
+
+            for (Map.Entry<String, Map<String, Object>> update : updates.entrySet()) {
+                List<String> names = new ArrayList<String>();
+                List<Object> values = new ArrayList<Object>();
+                for (Map.Entry<String, Object> value : update.getValue().entrySet()) {
+                    String name = target.mapAttribute(value.getKey());
+                    if (name != null) {
+                        names.add(name);
+                        values.add(value.getValue());
+                    }
+                }
+                if (!names.isEmpty()) {
+                    Filter filter = ff.equals(ff.property(target.uuidAttribute),
+                            ff.literal(update.getKey()));
+                    store.modifyFeatures(names.toArray(new String[names.size()]),
+                            values.toArray(), filter);
+                }
+            }
+
+            transaction.commit();
+        } catch (IOException e) {
+            transaction.rollback();
+            throw e;
+        } catch (RuntimeException e) {
+            transaction.rollback();
+            throw e;
+        } finally {
+            transaction.close();
+        }
+    }
+
+    /**
+     * Looks up the target feature type, creating it through {@link WFSLog} with the first record of the batch if the layer does not exist yet.
+     */
+    private Target resolveTarget(Entry entry, Map<String, SimpleFeature> inserts)
+            throws IOException {
+        final Catalog catalog = geoServer.getCatalog();
+        WorkspaceInfo ws = entry.workspace != null ? catalog.getWorkspaceByName(entry.workspace)
+                : catalog.getDefaultWorkspace();
+        if (ws == null) {
+            throw new ProcessException("Could not find workspace " + entry.workspace);
+        }
+        DataStoreInfo storeInfo = entry.store != null ? catalog.getDataStoreByName(ws.getName(),
+                entry.store) : catalog.getDefaultDataStore(ws);
+        if (storeInfo == null) {
+            throw new ProcessException("Could not find store " + entry.store + " in workspace "
+                    + ws.getName());
+        }
+
+        if (catalog.getLayerByName(ws.getName() + ":" + entry.typeName) == null) {
+            if (inserts.isEmpty()) {
+                throw new ProcessException("The layer " + ws.getName() + ":" + entry.typeName
+                        + " does not exist and there is no record to create it from");
+            }
+            // the first record creates the schema and the layer
+            Map.Entry<String, SimpleFeature> first = inserts.entrySet().iterator().next();
+            inserts.remove(first.getKey());
+            Filter filter = ff.equals(ff.property(UUID_ATTRIBUTE), ff.literal(first.getKey()));
+            new WFSLog(geoServer).execute(DataUtilities.collection(first.getValue()),
+                    entry.typeName, ws.getName(), storeInfo.getName(), filter, true, null);
+        }
+
+        DataStore ds = (DataStore) storeInfo.getDataStore(null);
+        SimpleFeatureType type = ds.getSchema(entry.typeName);
+        if (type == null) {
+            // try with the typical Oracle mangling
+            type = ds.getSchema(entry.typeName.toUpperCase());
+        }
+        if (type == null) {
+            throw new ProcessException("Could not find the feature type " + entry.typeName
+                    + " in store " + storeInfo.getName());
+        }
+        return new Target(ds, type);
+    }
+
+    /**
+     * A resolved target feature type with its attribute name mapping
+     */
+    private static class Target {
+
+        final DataStore dataStore;
+
+        final SimpleFeatureType type;
+
+        final String uuidAttribute;
+
+        /** Source to target attribute names, a null value marks unmapped attributes */
+        final Map<String, String> mapping = new HashMap<String, String>();
+
+        Target(DataStore dataStore, SimpleFeatureType type) {
+            this.dataStore = dataStore;
+            this.type = type;
+            String uuid = mapAttribute(UUID_ATTRIBUTE);
+            this.uuidAttribute = uuid != null ? uuid : UUID_ATTRIBUTE;
+        }
+
+        /**
+         * Maps a record attribute name to the target one, with the same heuristics of {@link WFSLog}
+         */
+        String mapAttribute(String name) {
+            if (mapping.containsKey(name)) {
+                return mapping.get(name);
+            }
+            String result = null;
+            if (type.getDescriptor(name) != null) {
+                result = name;
+            } else if (GEOMETRY_ATTRIBUTE.equals(name) && type.getGeometryDescriptor() != null) {
+                result = type.getGeometryDescriptor().getLocalName();
+            } else {
+                // simple case difference first, then attribute names being cut
+                for (AttributeDescriptor td : type.getAttributeDescriptors()) {
+                    if (td.getLocalName().equalsIgnoreCase(name)) {
+                        result = td.getLocalName();
+                        break;
+                    }
+                }
+                if (result == null) {
+                    String loName = name.toLowerCase();
+                    for (AttributeDescriptor td : type.getAttributeDescriptors()) {
+                        if (loName.startsWith(td.getLocalName().toLowerCase())) {
+                            result = td.getLocalName();
+                            break;
+                        }
+                    }
+                }
+                if (result == null) {
+                    LOGGER.warning("Could not match the attribute " + name
+                            + " to the target feature type ones: " + type);
+                }
+            }
+            mapping.put(name, result);
+            return result;
+        }
+    }
+
+    /**
+     * A journal entry: either the first record of a run, an update of its attributes or a flush marker
+     */
+    private static class Entry {
+
+        final String workspace;
+
+        final String store;
+
+        final String typeName;
+
+        final String uuid;
+
+        final SimpleFeature feature;
+
+        final Map<String, Object> values;
+
+        final CountDownLatch latch;
+
+        Entry(String workspace, String store, String typeName, String uuid,
+                SimpleFeature feature, Map<String, Object> values, CountDownLatch latch) {
+            this.workspace = workspace;
+            this.store = store;
+            this.typeName = typeName;
+            this.uuid = uuid;
+            this.feature = feature;
+            this.values = values;
+            this.latch = latch;
+        }
+
+        String getTargetKey() {
+            return workspace + ":" + store + ":" + typeName;
+        }
+    }
+}
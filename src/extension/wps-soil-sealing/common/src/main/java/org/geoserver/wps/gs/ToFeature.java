@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.geoserver.wps.gs.soilsealing.CRSCache;
 import org.geoserver.wps.ppio.FeatureAttribute;
 import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
@@ -18,7 +19,6 @@ import org.geotools.process.factory.DescribeParameter;
 import org.geotools.process.factory.DescribeProcess;
 import org.geotools.process.factory.DescribeResult;
 import org.geotools.process.gs.GSProcess;
-import org.geotools.referencing.CRS;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -53,7 +53,7 @@ public class ToFeature implements GSProcess {
         }
         if (crs == null && geometry.getSRID() > 0) {
             try {
-                crs = CRS.decode("EPSG:" + geometry.getSRID());
+                crs = CRSCache.decode("EPSG:" + geometry.getSRID());
             } catch (Exception e) {
                 // unable to find the CRS
                 throw new ProcessException(e);
@@ -20,6 +20,7 @@ import org.geoserver.catalog.ProjectionPolicy;
 import org.geoserver.catalog.WorkspaceInfo;
 import org.geoserver.config.GeoServer;
 import org.geoserver.wps.WPSException;
+import org.geoserver.wps.gs.soilsealing.CRSCache;
 import org.geotools.data.DataStore;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.DefaultTransaction;
@@ -39,7 +40,6 @@ import org.geotools.process.factory.DescribeParameter;
 import org.geotools.process.factory.DescribeProcess;
 import org.geotools.process.factory.DescribeResult;
 import org.geotools.process.gs.GSProcess;
-import org.geotools.referencing.CRS;
 import org.geotools.util.logging.Logging;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -142,7 +142,7 @@ public class WFSLog implements GSProcess {
                 srsHandling = ProjectionPolicy.FORCE_DECLARED;
             } else {
                 try {
-                    Integer code = CRS.lookupEpsgCode(nativeCrs, true);
+                    Integer code = CRSCache.lookupEpsgCode(nativeCrs, true);
                     if (code == null) {
                         throw new ProcessException("Could not find an EPSG code for data "
                                 + "native spatial reference system: " + nativeCrs);
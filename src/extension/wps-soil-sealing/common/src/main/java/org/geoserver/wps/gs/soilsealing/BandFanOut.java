@@ -0,0 +1,152 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.Point;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.PlanarImage;
+
+/**
+ * Splits a multi-band image into single band images that share the computation of the source tiles, so that consumers of the bands running
+ * side by side, like the writers of their GeoTIFFs, compute each source tile only once whatever the pressure on the JAI tile cache.
+ * <p>
+ * A source tile is kept until every band has fetched it. At most {@link #getMaxPendingTiles()} tiles are kept: when a band lags behind the
+ * others the oldest pending tiles are dropped and computed again on request, so the memory stays bounded even if the bands are consumed one
+ * after the other.
+ * </p>
+ */
+public class BandFanOut {
+
+    /** Default maximum number of source tiles waiting to be fetched by all the bands */
+    public static final int DEFAULT_MAX_PENDING_TILES = 64;
+
+    private final RenderedImage source;
+
+    private final int maxPendingTiles;
+
+    /** Source tiles fetched by some of the bands, in fetch order */
+    private final LinkedHashMap<Point, PendingTile> pending = new LinkedHashMap<Point, PendingTile>();
+
+    private final RenderedImage[] bands;
+
+    public BandFanOut(RenderedImage source) {
+        this(source, DEFAULT_MAX_PENDING_TILES);
+    }
+
+    public BandFanOut(RenderedImage source, int maxPendingTiles) {
+        if (maxPendingTiles <= 0) {
+            throw new IllegalArgumentException("The maximum number of pending tiles must be positive");
+        }
+        this.source = source;
+        this.maxPendingTiles = maxPendingTiles;
+        this.bands = new RenderedImage[source.getSampleModel().getNumBands()];
+        for (int b = 0; b < bands.length; b++) {
+            bands[b] = new BandImage(b);
+        }
+    }
+
+    /**
+     * Returns the image of a single band of the source
+     */
+    public RenderedImage getBand(int band) {
+        return bands[band];
+    }
+
+    public int getNumBands() {
+        return bands.length;
+    }
+
+    public int getMaxPendingTiles() {
+        return maxPendingTiles;
+    }
+
+    /**
+     * Returns the source tile for a band, computing it if no other band has fetched it recently
+     */
+    private Raster getSourceTile(int band, int tileX, int tileY) {
+        final Point key = new Point(tileX, tileY);
+        PendingTile tile;
+        synchronized (pending) {
+            tile = pending.get(key);
+            if (tile == null) {
+                tile = new PendingTile(bands.length);
+                pending.put(key, tile);
+                // the oldest tiles are dropped, the lagging bands will compute them again
+                Iterator<PendingTile> it = pending.values().iterator();
+                while (pending.size() > maxPendingTiles && it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+            // a band reading a tile again does not count
+            if (!tile.fetched[band]) {
+                tile.fetched[band] = true;
+                if (--tile.remaining == 0) {
+                    pending.remove(key);
+                }
+            }
+        }
+        return tile.get(tileX, tileY);
+    }
+
+    /**
+     * A source tile, computed once by the first band requesting it
+     */
+    private class PendingTile {
+
+        private final boolean[] fetched;
+
+        private int remaining;
+
+        private Raster raster;
+
+        PendingTile(int numBands) {
+            this.fetched = new boolean[numBands];
+            this.remaining = numBands;
+        }
+
+        synchronized Raster get(int tileX, int tileY) {
+            if (raster == null) {
+                raster = source.getTile(tileX, tileY);
+            }
+            return raster;
+        }
+    }
+
+    /**
+     * A single band of the source
+     */
+    private class BandImage extends PlanarImage {
+
+        private final int[] bandList;
+
+        BandImage(int band) {
+            super(layoutHelper(source, band), null, null);
+            this.bandList = new int[] { band };
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            Raster tile = getSourceTile(bandList[0], tileX, tileY);
+            return tile.createChild(tile.getMinX(), tile.getMinY(), tile.getWidth(),
+                    tile.getHeight(), tile.getMinX(), tile.getMinY(), bandList);
+        }
+    }
+
+    private static ImageLayout layoutHelper(RenderedImage source, int band) {
+        ImageLayout il = new ImageLayout(source);
+        SampleModel sampleModel = source.getSampleModel().createSubsetSampleModel(
+                new int[] { band });
+        il.setSampleModel(sampleModel);
+        il.setColorModel(PlanarImage.createColorModel(sampleModel));
+        return il;
+    }
+}
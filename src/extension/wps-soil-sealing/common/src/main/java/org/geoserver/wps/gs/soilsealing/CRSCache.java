@@ -0,0 +1,152 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.NoSuchAuthorityCodeException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+/**
+ * Thread-safe cache of the CRS lookups done by the soil sealing processes for each geometry or image: the CRS decoded from an authority code
+ * or parsed from a WKT, the EPSG code of a CRS and the transform between two CRS. The cached CRS and transforms are immutable, so they are
+ * shared between the requests. Failed lookups are not cached.
+ * <p>
+ * Each map holds at most {@link #MAX_ENTRIES} entries and is simply cleared when full, since the processes only deal with a handful of CRS.
+ * </p>
+ */
+public final class CRSCache {
+
+    /** Maximum number of entries of each map */
+    public static final int MAX_ENTRIES = 1024;
+
+    /** Placeholder of the CRS without EPSG code */
+    private static final Integer NO_CODE = Integer.valueOf(Integer.MIN_VALUE);
+
+    private static final ConcurrentHashMap<List<Object>, CoordinateReferenceSystem> DECODED = new ConcurrentHashMap<List<Object>, CoordinateReferenceSystem>();
+
+    private static final ConcurrentHashMap<String, CoordinateReferenceSystem> PARSED = new ConcurrentHashMap<String, CoordinateReferenceSystem>();
+
+    private static final ConcurrentHashMap<List<Object>, Integer> CODES = new ConcurrentHashMap<List<Object>, Integer>();
+
+    private static final ConcurrentHashMap<List<Object>, MathTransform> TRANSFORMS = new ConcurrentHashMap<List<Object>, MathTransform>();
+
+    private static final AtomicLong HITS = new AtomicLong();
+
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    private CRSCache() {
+    }
+
+    /**
+     * @see CRS#decode(String)
+     */
+    public static CoordinateReferenceSystem decode(String code)
+            throws NoSuchAuthorityCodeException, FactoryException {
+        return decode(code, false);
+    }
+
+    /**
+     * @see CRS#decode(String, boolean)
+     */
+    public static CoordinateReferenceSystem decode(String code, boolean longitudeFirst)
+            throws NoSuchAuthorityCodeException, FactoryException {
+        final List<Object> key = Arrays.<Object> asList(code, longitudeFirst);
+        CoordinateReferenceSystem crs = DECODED.get(key);
+        if (hit(crs != null)) {
+            return crs;
+        }
+        crs = CRS.decode(code, longitudeFirst);
+        put(DECODED, key, crs);
+        return crs;
+    }
+
+    /**
+     * @see CRS#parseWKT(String)
+     */
+    public static CoordinateReferenceSystem parseWKT(String wkt) throws FactoryException {
+        CoordinateReferenceSystem crs = PARSED.get(wkt);
+        if (hit(crs != null)) {
+            return crs;
+        }
+        crs = CRS.parseWKT(wkt);
+        put(PARSED, wkt, crs);
+        return crs;
+    }
+
+    /**
+     * @see CRS#lookupEpsgCode(CoordinateReferenceSystem, boolean)
+     */
+    public static Integer lookupEpsgCode(CoordinateReferenceSystem crs, boolean fullScan)
+            throws FactoryException {
+        final List<Object> key = Arrays.<Object> asList(crs, fullScan);
+        Integer code = CODES.get(key);
+        if (hit(code != null)) {
+            return code == NO_CODE ? null : code;
+        }
+        code = CRS.lookupEpsgCode(crs, fullScan);
+        put(CODES, key, code != null ? code : NO_CODE);
+        return code;
+    }
+
+    /**
+     * @see CRS#findMathTransform(CoordinateReferenceSystem, CoordinateReferenceSystem)
+     */
+    public static MathTransform findMathTransform(CoordinateReferenceSystem sourceCRS,
+            CoordinateReferenceSystem targetCRS) throws FactoryException {
+        return findMathTransform(sourceCRS, targetCRS, false);
+    }
+
+    /**
+     * @see CRS#findMathTransform(CoordinateReferenceSystem, CoordinateReferenceSystem, boolean)
+     */
+    public static MathTransform findMathTransform(CoordinateReferenceSystem sourceCRS,
+            CoordinateReferenceSystem targetCRS, boolean lenient) throws FactoryException {
+        final List<Object> key = Arrays.<Object> asList(sourceCRS, targetCRS, lenient);
+        MathTransform transform = TRANSFORMS.get(key);
+        if (hit(transform != null)) {
+            return transform;
+        }
+        transform = CRS.findMathTransform(sourceCRS, targetCRS, lenient);
+        put(TRANSFORMS, key, transform);
+        return transform;
+    }
+
+    public static long getHits() {
+        return HITS.get();
+    }
+
+    public static long getMisses() {
+        return MISSES.get();
+    }
+
+    /**
+     * Removes all the entries
+     */
+    public static void clear() {
+        DECODED.clear();
+        PARSED.clear();
+        CODES.clear();
+        TRANSFORMS.clear();
+    }
+
+    private static boolean hit(boolean hit) {
+        (hit ? HITS : MISSES).incrementAndGet();
+        return hit;
+    }
+
+    private static <K, V> void put(ConcurrentHashMap<K, V> map, K key, V value) {
+        if (map.size() >= MAX_ENTRIES) {
+            map.clear();
+        }
+        map.put(key, value);
+    }
+}
@@ -7,23 +7,48 @@ package org.geoserver.wps.gs.soilsealing;
 import java.awt.Shape;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
+import java.awt.image.ComponentSampleModel;
 import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
 import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import javax.media.jai.JAI;
 import javax.media.jai.ROI;
 import javax.media.jai.ROIShape;
 
+import org.geoserver.catalog.CoverageInfo;
+import org.geoserver.data.util.CoverageUtils;
 import org.geotools.coverage.GridSampleDimension;
 import org.geotools.coverage.TypeMap;
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.GranuleSource;
+import org.geotools.coverage.grid.io.StructuredGridCoverage2DReader;
 import org.geotools.data.DataSourceException;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.filter.text.ecql.ECQL;
+import org.geotools.gce.imagemosaic.ImageMosaicFormat;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.geometry.jts.LiteShape2;
 import org.geotools.process.ProcessException;
+import org.geotools.referencing.operation.matrix.XAffineTransform;
 import org.geotools.referencing.operation.transform.AffineTransform2D;
 import org.geotools.referencing.operation.transform.ProjectiveTransform;
 import org.geotools.util.Utilities;
@@ -33,13 +58,19 @@ import org.geotools.utils.progress.ProcessingEvent;
 import org.geotools.utils.progress.ProcessingEventListener;
 import org.jaitools.imageutils.ROIGeometry;
 import org.opengis.coverage.SampleDimensionType;
+import org.opengis.coverage.grid.GridCoverageReader;
 import org.opengis.coverage.grid.GridEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
 import org.opengis.geometry.MismatchedDimensionException;
+import org.opengis.metadata.spatial.PixelOrientation;
 import org.opengis.parameter.GeneralParameterValue;
 import org.opengis.parameter.ParameterDescriptor;
 import org.opengis.parameter.ParameterValue;
+import org.opengis.parameter.ParameterValueGroup;
 import org.opengis.referencing.operation.TransformException;
+import org.vfny.geoserver.global.GeoserverDataDirectory;
 
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.MultiPolygon;
@@ -55,6 +86,9 @@ import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
  * @author Alessio Fabiani, GeoSolutions
  */
 public class CoverageUtilities {
+    /** Name of the attribute holding the granule location in the image mosaic index */
+    public static final String LOCATION_ATTRIBUTE = "location";
+
     /**
      * Do not allows instantiation of this class.
      */
@@ -358,6 +392,232 @@ public class CoverageUtilities {
         }
     }
 
+    /**
+     * Reads a row of integer samples from the provided {@link Raster}. Byte rasters backed by a {@link ComponentSampleModel} are read directly from
+     * their {@link DataBufferByte} without going through the {@link SampleModel} accessors.
+     * 
+     * @param raster the input {@link Raster}
+     * @param band the band to read
+     * @param x first column
+     * @param y row
+     * @param width number of samples to read
+     * @param samples output array, at least <code>width</code> long
+     * @return the output array
+     */
+    public static int[] readRow(Raster raster, int band, int x, int y, int width, int[] samples) {
+        final SampleModel sm = raster.getSampleModel();
+        final DataBuffer db = raster.getDataBuffer();
+        if (db instanceof DataBufferByte && sm instanceof ComponentSampleModel) {
+            final ComponentSampleModel csm = (ComponentSampleModel) sm;
+            final int bank = csm.getBankIndices()[band];
+            final byte[] data = ((DataBufferByte) db).getData(bank);
+            final int pixelStride = csm.getPixelStride();
+            int index = db.getOffsets()[bank] + csm.getBandOffsets()[band]
+                    + (y - raster.getSampleModelTranslateY()) * csm.getScanlineStride()
+                    + (x - raster.getSampleModelTranslateX()) * pixelStride;
+            for (int i = 0; i < width; i++, index += pixelStride) {
+                samples[i] = data[index] & 0xFF;
+            }
+            return samples;
+        }
+        return raster.getSamples(x, y, width, 1, band, samples);
+    }
+
+    /**
+     * Reads a row of double samples from the provided {@link Raster}. Double rasters backed by a {@link ComponentSampleModel} are read directly
+     * from their {@link DataBufferDouble}.
+     * 
+     * @see #readRow(Raster, int, int, int, int, int[])
+     */
+    public static double[] readRow(Raster raster, int band, int x, int y, int width,
+            double[] samples) {
+        final SampleModel sm = raster.getSampleModel();
+        final DataBuffer db = raster.getDataBuffer();
+        if (db instanceof DataBufferDouble && sm instanceof ComponentSampleModel) {
+            final ComponentSampleModel csm = (ComponentSampleModel) sm;
+            final int bank = csm.getBankIndices()[band];
+            final double[] data = ((DataBufferDouble) db).getData(bank);
+            final int pixelStride = csm.getPixelStride();
+            int index = db.getOffsets()[bank] + csm.getBandOffsets()[band]
+                    + (y - raster.getSampleModelTranslateY()) * csm.getScanlineStride()
+                    + (x - raster.getSampleModelTranslateX()) * pixelStride;
+            for (int i = 0; i < width; i++, index += pixelStride) {
+                samples[i] = data[index];
+            }
+            return samples;
+        }
+        return raster.getSamples(x, y, width, 1, band, samples);
+    }
+
+    /**
+     * Returns a signature of the granule index of the coverage, if it is a structured mosaic
+     * 
+     * @see #getGranulesSignature(SimpleFeatureCollection, File)
+     */
+    public static String getGranulesSignature(CoverageInfo coverage) throws IOException {
+        GridCoverageReader reader = coverage.getGridCoverageReader(null, null);
+        if (reader instanceof StructuredGridCoverage2DReader) {
+            StructuredGridCoverage2DReader structured = (StructuredGridCoverage2DReader) reader;
+            String name = coverage.getNativeCoverageName() != null ? coverage
+                    .getNativeCoverageName() : structured.getGridCoverageNames()[0];
+            GranuleSource granules = structured.getGranules(name, true);
+            File storeFile = GeoserverDataDirectory.findDataFile(coverage.getStore().getURL());
+            File dir = storeFile == null || storeFile.isDirectory() ? storeFile : storeFile
+                    .getParentFile();
+            return getGranulesSignature(granules.getGranules(Query.ALL), dir);
+        }
+        return "";
+    }
+
+    /**
+     * Returns a signature of the provided granules: their number and bounds, and a digest of the attributes of each granule and of the
+     * modification time and length of its file, so that a granule ingested again with the same footprint changes the signature.
+     * 
+     * @param granules the granules of the mosaic index
+     * @param mosaicDir directory the relative granule locations are resolved against, may be <code>null</code>
+     */
+    public static String getGranulesSignature(SimpleFeatureCollection granules, File mosaicDir)
+            throws IOException {
+        final List<String> entries = new ArrayList<String>();
+        final SimpleFeatureIterator it = granules.features();
+        try {
+            while (it.hasNext()) {
+                final SimpleFeature granule = it.next();
+                final StringBuilder entry = new StringBuilder();
+                for (Object value : granule.getAttributes()) {
+                    entry.append(value instanceof Geometry ? ((Geometry) value)
+                            .getEnvelopeInternal() : value).append(';');
+                }
+                final Object location = granule.getAttribute(LOCATION_ATTRIBUTE);
+                if (location != null) {
+                    File file = new File(location.toString());
+                    if (!file.isAbsolute() && mosaicDir != null) {
+                        file = new File(mosaicDir, location.toString());
+                    }
+                    entry.append(file.lastModified()).append(';').append(file.length());
+                }
+                entries.add(entry.toString());
+            }
+        } finally {
+            it.close();
+        }
+        // the granules are listed in no particular order
+        Collections.sort(entries);
+        final StringBuilder all = new StringBuilder();
+        for (String entry : entries) {
+            all.append(entry).append('\n');
+        }
+        String digest = digest(all.toString().getBytes("UTF-8"));
+        if (digest == null) {
+            digest = Integer.toHexString(all.toString().hashCode());
+        }
+        return entries.size() + ":" + granules.getBounds() + ":" + digest;
+    }
+
+    /**
+     * Returns a normalized representation of the filter
+     */
+    public static String normalize(Filter filter) {
+        if (filter == null) {
+            return "";
+        }
+        try {
+            return ECQL.toCQL(filter);
+        } catch (Exception e) {
+            return filter.toString().trim().replaceAll("\\s+", " ");
+        }
+    }
+
+    /**
+     * Returns the hexadecimal MD5 digest of the provided bytes, or <code>null</code> if MD5 is not available
+     */
+    public static String digest(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(bytes);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a sidecar index file of the coverage, in the directory of its store, named after the coverage, the type of the index and a
+     * digest of the granule index signature and of the filters, so that a change in the mosaic content makes the index unused until it is
+     * rebuilt.
+     *
+     * @param coverage the coverage
+     * @param type the type of the index, part of the file name
+     * @param filters the filters used for reading the coverage
+     * @throws IOException if the directory of the coverage store can't be found
+     */
+    public static File getIndexFile(CoverageInfo coverage, String type, Filter... filters)
+            throws IOException {
+        File storeFile = GeoserverDataDirectory.findDataFile(coverage.getStore().getURL());
+        if (storeFile == null) {
+            throw new IOException("Unable to find the data of the coverage "
+                    + coverage.prefixedName());
+        }
+        final File dir = storeFile.isDirectory() ? storeFile : storeFile.getParentFile();
+        final StringBuilder key = new StringBuilder(getGranulesSignature(coverage));
+        for (Filter filter : filters) {
+            key.append('|').append(normalize(filter));
+        }
+        String digest = digest(key.toString().getBytes("UTF-8"));
+        if (digest == null) {
+            digest = Integer.toHexString(key.toString().hashCode());
+        }
+        return new File(dir, coverage.getName() + "_" + type + "_" + digest + ".idx");
+    }
+
+    /**
+     * Checks if the read coverage is on the native grid of the coverage, so that the sidecar indexes built on the native raster space can be
+     * used with its image
+     */
+    public static boolean isOnNativeGrid(CoverageInfo ci, GridCoverage2D coverage) {
+        final GridGeometry2D nativeGrid = (GridGeometry2D) ci.getGrid();
+        try {
+            AffineTransform tx = ((AffineTransform) nativeGrid
+                    .getGridToCRS2D(PixelOrientation.UPPER_LEFT)).createInverse();
+            tx.concatenate((AffineTransform) coverage.getGridGeometry().getGridToCRS2D(
+                    PixelOrientation.UPPER_LEFT));
+            return XAffineTransform.isIdentity(tx, 1E-6);
+        } catch (NoninvertibleTransformException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the read parameters of the coverage with the provided filter and, if not <code>null</code>, grid geometry
+     */
+    public static GeneralParameterValue[] getReadParameters(CoverageInfo ci,
+            GridCoverageReader reader, Filter filter, GridGeometry2D gridGeometry) {
+        final ParameterValueGroup readParametersDescriptor = reader.getFormat()
+                .getReadParameters();
+        // get params for this coverage and override what's needed
+        final Map<String, Serializable> defaultParams = ci.getParameters();
+        GeneralParameterValue[] params = CoverageUtils.getParameters(readParametersDescriptor,
+                defaultParams, false);
+        params = replaceParameter(params, filter, ImageMosaicFormat.FILTER);
+        if (gridGeometry != null) {
+            params = replaceParameter(params, gridGeometry, AbstractGridFormat.READ_GRIDGEOMETRY2D);
+        }
+        return params;
+    }
+
+    /**
+     * Reads the coverage with the provided filter and, if not <code>null</code>, grid geometry
+     *
+     * @return the read coverage, or <code>null</code> if no data is found
+     */
+    public static GridCoverage2D readCoverage(CoverageInfo ci, GridCoverageReader reader,
+            Filter filter, GridGeometry2D gridGeometry) throws IOException {
+        return (GridCoverage2D) reader.read(getReadParameters(ci, reader, filter, gridGeometry));
+    }
+
     /**
      * @param retValue
      * @return the number of steps processed, or 0 if none was done, or -1 on error.
@@ -0,0 +1,213 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+/**
+ * Run-length encoded band of a categorical raster, like the CLC or imperviousness ones. Each row is stored as a sequence of runs of pixels
+ * sharing the same value, so that long runs of the same class take a couple of integers instead of one sample per pixel and can be processed
+ * as a whole, for instance by intersecting the runs of two rasters or by clipping them to the spans of a zone.
+ * <p>
+ * The runs of a row are stored as pairs of end column (exclusive) and value; the first run of each row starts at the minimum column of the
+ * bounds and each following run starts at the end of the previous one.
+ * </p>
+ */
+public final class RunLengthRaster {
+
+    /** Values stored for each run: end column (exclusive) and value */
+    public static final int RUN_SIZE = 2;
+
+    private final Rectangle bounds;
+
+    /** Runs for each row */
+    private final int[][] runs;
+
+    /** Number of runs for each row */
+    private final int[] numRuns;
+
+    private RunLengthRaster(Rectangle bounds) {
+        this.bounds = new Rectangle(bounds);
+        this.runs = new int[bounds.height][];
+        this.numRuns = new int[bounds.height];
+    }
+
+    /**
+     * Encodes a band of the provided raster.
+     *
+     * @param raster the raster, with integral samples
+     * @param band the band to encode
+     * @param rect the area to encode, must be inside the raster bounds
+     * @return the encoded band
+     */
+    public static RunLengthRaster encode(Raster raster, int band, Rectangle rect) {
+        if (!raster.getBounds().contains(rect)) {
+            throw new IllegalArgumentException("The area to encode must be inside the raster");
+        }
+        final RunLengthRaster result = new RunLengthRaster(rect);
+        final Row row = new Row();
+        for (int y = 0; y < rect.height; y++) {
+            row.encode(raster, band, rect.x, rect.y + y, rect.width);
+            result.runs[y] = Arrays.copyOf(row.runs, row.numRuns * RUN_SIZE);
+            result.numRuns[y] = row.numRuns;
+        }
+        return result;
+    }
+
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    /**
+     * @return the number of runs of the provided row
+     */
+    public int getNumRuns(int y) {
+        return numRuns[y - bounds.y];
+    }
+
+    /**
+     * Returns the runs of the provided row, as pairs of end column (exclusive) and value; the returned array must not be modified
+     */
+    public int[] getRuns(int y) {
+        return runs[y - bounds.y];
+    }
+
+    /**
+     * Returns the index in {@link #getRuns(int)} of the run containing the provided pixel
+     */
+    public int findRun(int x, int y) {
+        if (!bounds.contains(x, y)) {
+            throw new IndexOutOfBoundsException("Pixel " + x + "," + y + " outside " + bounds);
+        }
+        final int[] row = runs[y - bounds.y];
+        int low = 0;
+        int high = numRuns[y - bounds.y] - 1;
+        // first run ending after x
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (row[mid * RUN_SIZE] <= x) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low * RUN_SIZE;
+    }
+
+    public int getSample(int x, int y) {
+        return runs[y - bounds.y][findRun(x, y) + 1];
+    }
+
+    /**
+     * Decodes a whole row.
+     *
+     * @param y the row
+     * @param samples optional array receiving the samples, at least as long as the bounds width
+     * @return the samples of the row
+     */
+    public int[] decodeRow(int y, int[] samples) {
+        if (samples == null) {
+            samples = new int[bounds.width];
+        }
+        final int[] row = runs[y - bounds.y];
+        int start = 0;
+        for (int r = 0; r < numRuns[y - bounds.y] * RUN_SIZE; r += RUN_SIZE) {
+            final int end = row[r] - bounds.x;
+            Arrays.fill(samples, start, end, row[r + 1]);
+            start = end;
+        }
+        return samples;
+    }
+
+    /**
+     * @return the total number of runs
+     */
+    public long getNumRuns() {
+        long result = 0;
+        for (int n : numRuns) {
+            result += n;
+        }
+        return result;
+    }
+
+    /**
+     * @return the estimated memory footprint in bytes
+     */
+    public long estimateSize() {
+        // array headers and references of the rows, plus the runs
+        return 64 + bounds.height * 24L + getNumRuns() * RUN_SIZE * 4;
+    }
+
+    /**
+     * A single encoded row, whose buffers are reused by each {@link #encode} call so that scanning many rows one at a time allocates nothing
+     * once the buffers are large enough. The runs use the same layout of the rows of a {@link RunLengthRaster}.
+     */
+    public static final class Row {
+
+        private int[] samples = new int[16];
+
+        private int[] runs = new int[RUN_SIZE * 16];
+
+        private int numRuns;
+
+        /**
+         * Encodes a span of a row of a band, replacing the previous content.
+         *
+         * @param raster the raster, with integral samples
+         * @param band the band to encode
+         * @param x the first column, the span must be inside the raster bounds
+         * @param y the row
+         * @param width the number of columns
+         */
+        public void encode(Raster raster, int band, int x, int y, int width) {
+            if (samples.length < width) {
+                samples = new int[width];
+            }
+            CoverageUtilities.readRow(raster, band, x, y, width, samples);
+            int count = 0;
+            for (int i = 0; i < width; i++) {
+                if (i + 1 == width || samples[i + 1] != samples[i]) {
+                    if (count + RUN_SIZE > runs.length) {
+                        runs = Arrays.copyOf(runs, runs.length * 2);
+                    }
+                    runs[count++] = x + i + 1;
+                    runs[count++] = samples[i];
+                }
+            }
+            numRuns = count / RUN_SIZE;
+        }
+
+        public int getNumRuns() {
+            return numRuns;
+        }
+
+        /**
+         * Returns the runs, as pairs of end column (exclusive) and value; the array may be longer than the runs and must not be modified
+         */
+        public int[] getRuns() {
+            return runs;
+        }
+
+        /**
+         * Returns the index in {@link #getRuns()} of the run containing the provided column, which must be inside the encoded span
+         */
+        public int findRun(int x) {
+            int low = 0;
+            int high = numRuns - 1;
+            // first run ending after x
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (runs[mid * RUN_SIZE] <= x) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low * RUN_SIZE;
+        }
+    }
+}
@@ -7,14 +7,23 @@ package org.geoserver.wps.gs;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
 
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.awt.geom.Point2D;
 import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
+import java.util.logging.Logger;
 
+import javax.media.jai.BorderExtender;
+import javax.media.jai.BorderExtenderConstant;
+import javax.media.jai.PlanarImage;
 import javax.media.jai.RasterFactory;
+import javax.media.jai.TiledImage;
 
 import org.geoserver.wps.WPSTestSupport;
 import org.geotools.coverage.CoverageFactoryFinder;
@@ -24,7 +33,11 @@ import org.geotools.coverage.grid.GridCoverageFactory;
 import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.coverage.grid.ViewType;
 import org.geotools.geometry.Envelope2D;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.geotools.util.logging.Logging;
+import org.junit.Ignore;
 import org.junit.Test;
 
 /**
@@ -33,6 +46,8 @@ import org.junit.Test;
  */
 public class Coverage2RenderedImageAdapterTest extends WPSTestSupport {
 
+    private static final Logger LOGGER = Logging.getLogger(Coverage2RenderedImageAdapterTest.class);
+
     protected final static double NODATA = 3.0d;
 
     public Coverage2RenderedImageAdapterTest() {
@@ -220,4 +235,128 @@ public class Coverage2RenderedImageAdapterTest extends WPSTestSupport {
         // Thread.sleep(20000);
     }
 
+    /**
+     * Remaps a large source on a tiled grid, checking that each tile extends only the source area it reads.
+     */
+    @Test
+    public void testLargeSourceTiles() {
+        final int size = 1024;
+        final int tileSize = 256;
+        GridCoverage2DRIA cria = createTiledRemapping(size, tileSize);
+        Raster srcData = cria.getSourceImage(0).getData();
+
+        for (int t = 0; t < size / tileSize; t++) {
+            Raster tile = cria.getTile(t, t);
+            Rectangle bounds = tile.getBounds();
+            for (int y = bounds.y; y < bounds.y + bounds.height; y += 17) {
+                for (int x = bounds.x; x < bounds.x + bounds.width; x += 17) {
+                    assertEquals(srcData.getSampleFloat(x, y, 0), tile.getSampleFloat(x, y, 0));
+                }
+            }
+            // one unit per pixel, the extended area is the tile plus the interpolation padding
+            Rectangle extended = cria.getExtendedBounds(bounds);
+            assertTrue(extended.contains(bounds));
+            assertTrue((long) extended.width * extended.height < 2L * tileSize * tileSize);
+        }
+    }
+
+    /**
+     * Compares the time spent per tile when remapping a large source with the cost of extending the whole source, as done before the
+     * extension was limited to the source area of the tile. Not run with the unit tests, as it takes a few seconds and only reports timings.
+     */
+    @Ignore
+    @Test
+    public void benchmarkLargeSourceTiles() {
+        final int size = 4000;
+        final int tileSize = 256;
+        GridCoverage2DRIA cria = createTiledRemapping(size, tileSize);
+
+        final int tiles = 8;
+        long extendedArea = 0;
+        long start = System.nanoTime();
+        for (int t = 0; t < tiles; t++) {
+            cria.getTile(t, t);
+        }
+        final long tileTime = (System.nanoTime() - start) / tiles;
+        for (int t = 0; t < tiles; t++) {
+            Rectangle extended = cria.getExtendedBounds(cria.getTileRect(t, t));
+            extendedArea += (long) extended.width * extended.height;
+        }
+
+        // previous behaviour: the whole source was extended for each tile
+        PlanarImage source = cria.getSourceImage(0);
+        BorderExtender extender = new BorderExtenderConstant(new double[] { NODATA });
+        start = System.nanoTime();
+        for (int t = 0; t < tiles; t++) {
+            source.getExtendedData(source.getBounds(), extender);
+        }
+        final long extensionTime = (System.nanoTime() - start) / tiles;
+
+        LOGGER.info("Tile computation: " + tileTime / 1000 + "us and " + extendedArea / tiles
+                + " source pixels extended per tile, whole source extension: " + extensionTime
+                / 1000 + "us and " + (long) source.getWidth() * source.getHeight()
+                + " source pixels per tile");
+    }
+
+    /**
+     * Creates the remapping of a source of the provided size on a tiled destination with the same grid
+     */
+    private GridCoverage2DRIA createTiledRemapping(int size, int tileSize) {
+        // one unit per pixel, to compare the samples exactly
+        GridCoverage2D src = createTestCoverage(size, size, 0, 0, size, size);
+
+        SampleModel sampleModel = RasterFactory.createBandedSampleModel(DataBuffer.TYPE_FLOAT,
+                tileSize, tileSize, 1);
+        TiledImage image = new TiledImage(0, 0, size, size, 0, 0, sampleModel,
+                PlanarImage.createColorModel(sampleModel));
+        GridCoverage2D dst = CoverageFactoryFinder.getGridCoverageFactory(null).create("Tiled",
+                image, new Envelope2D(DefaultGeographicCRS.WGS84, 0, 0, size, size));
+
+        return GridCoverage2DRIA.create(src, dst, NODATA);
+    }
+
+    @Test
+    public void testAffineWarp() {
+        GridCoverage2D src = createTestCoverage(500, 500, 0, 0, 10, 10);
+        GridCoverage2D dst = createTestCoverage(250, 250, 0, 0, 10, 10);
+
+        GridCoverage2DRIA cria = GridCoverage2DRIA.create(src, dst, NODATA);
+        float[] positions = cria.warpRect(10, 20, 3, 2, null);
+        float[] expected = new float[] { 20, 40, 22, 40, 24, 40, 20, 42, 22, 42, 24, 42 };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], positions[i], 1E-4f);
+        }
+    }
+
+    /**
+     * Compares the interpolated source positions of a cross CRS remapping with the exact ones.
+     */
+    @Test
+    public void testInterpolatedWarp() throws Exception {
+        final int size = 500;
+        final double maxPixelError = 0.1;
+        GridCoverage2D src = createTestCoverage(size, size, 8, 44, 2, 2);
+        GridCoverage2D dst = CoverageFactoryFinder.getGridCoverageFactory(null).create(
+                "UTM",
+                RasterFactory.createBandedRaster(DataBuffer.TYPE_FLOAT, size, size, 1, null),
+                new ReferencedEnvelope(430000, 570000, 4900000, 5080000, CRS
+                        .decode("EPSG:32632")));
+
+        GridCoverage2DRIA exact = GridCoverage2DRIA.create(src, dst, NODATA);
+        GridCoverage2DRIA interpolated = GridCoverage2DRIA.create(src, dst, NODATA, maxPixelError);
+
+        long start = System.nanoTime();
+        float[] expected = exact.warpRect(0, 0, size, size, null);
+        final long exactTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        float[] positions = interpolated.warpRect(0, 0, size, size, null);
+        final long interpolatedTime = System.nanoTime() - start;
+
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], positions[i], (float) maxPixelError + 1E-3f);
+        }
+        LOGGER.info("Exact positions: " + exactTime / 1000 + "us, interpolated positions: "
+                + interpolatedTime / 1000 + "us");
+    }
+
 }
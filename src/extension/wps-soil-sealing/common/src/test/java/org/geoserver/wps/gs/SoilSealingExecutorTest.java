@@ -0,0 +1,311 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SoilSealingExecutorTest {
+
+    private SoilSealingExecutor executor;
+
+    @After
+    public void dispose() {
+        if (executor != null) {
+            executor.destroy();
+        }
+    }
+
+    /**
+     * Task sleeping for a while, keeping track of the tasks running at the same time
+     */
+    private static class SleepingTask implements Callable<Integer> {
+
+        private final int id;
+
+        private final long sleep;
+
+        private final AtomicInteger running;
+
+        private final AtomicInteger maxRunning;
+
+        private final AtomicInteger completed;
+
+        SleepingTask(int id, long sleep, AtomicInteger running, AtomicInteger maxRunning,
+                AtomicInteger completed) {
+            this.id = id;
+            this.sleep = sleep;
+            this.running = running;
+            this.maxRunning = maxRunning;
+            this.completed = completed;
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            int current = running.incrementAndGet();
+            synchronized (maxRunning) {
+                maxRunning.set(Math.max(maxRunning.get(), current));
+            }
+            try {
+                Thread.sleep(sleep);
+            } finally {
+                running.decrementAndGet();
+            }
+            completed.incrementAndGet();
+            return id;
+        }
+    }
+
+    private List<Callable<Integer>> createTasks(int count, long sleep, AtomicInteger running,
+            AtomicInteger maxRunning, AtomicInteger completed) {
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < count; i++) {
+            tasks.add(new SleepingTask(i, sleep, running, maxRunning, completed));
+        }
+        return tasks;
+    }
+
+    @Test
+    public void testDefaultCap() {
+        executor = new SoilSealingExecutor(8);
+        Assert.assertEquals(4, executor.getMaxTasksPerRequest());
+        Assert.assertEquals(1, SoilSealingExecutor.getDefaultMaxTasksPerRequest(1));
+        Assert.assertEquals(1, SoilSealingExecutor.getDefaultMaxTasksPerRequest(3));
+    }
+
+    @Test
+    public void testCap() throws Exception {
+        executor = new SoilSealingExecutor(4);
+        executor.setMaxTasksPerRequest(2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger completed = new AtomicInteger();
+
+        List<Integer> results = executor.invokeAll(createTasks(10, 20, running, maxRunning,
+                completed));
+
+        // all the results, in the order of the tasks
+        Assert.assertEquals(10, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            Assert.assertEquals(i, results.get(i).intValue());
+        }
+        Assert.assertEquals(10, completed.get());
+        Assert.assertTrue(maxRunning.get() <= 2);
+    }
+
+    @Test
+    public void testFairness() throws Exception {
+        executor = new SoilSealingExecutor(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger completedA = new AtomicInteger();
+        final CountDownLatch startedA = new CountDownLatch(1);
+        final CountDownLatch releaseA = new CountDownLatch(1);
+
+        // a large request, whose first task waits for the second request to be queued
+        final List<Callable<Integer>> tasksA = createTasks(10, 10, running, maxRunning,
+                completedA);
+        final Callable<Integer> first = tasksA.get(0);
+        tasksA.set(0, new Callable<Integer>() {
+
+            @Override
+            public Integer call() throws Exception {
+                startedA.countDown();
+                releaseA.await();
+                return first.call();
+            }
+        });
+        final AtomicReference<Exception> errorA = new AtomicReference<Exception>();
+        Thread requestA = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    executor.invokeAll(tasksA);
+                } catch (Exception e) {
+                    errorA.set(e);
+                }
+            }
+        };
+        requestA.start();
+        Assert.assertTrue(startedA.await(10, TimeUnit.SECONDS));
+
+        // the small request is queued before the next task of the large one
+        Thread releaser = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    // release anyway
+                }
+                releaseA.countDown();
+            }
+        };
+        releaser.start();
+        List<Callable<Integer>> tasksB = new ArrayList<Callable<Integer>>();
+        tasksB.add(new Callable<Integer>() {
+
+            @Override
+            public Integer call() throws Exception {
+                return completedA.get();
+            }
+        });
+        // at most the task of the large request that was running has completed
+        Assert.assertTrue(executor.invokeAll(tasksB).get(0) <= 1);
+
+        requestA.join(10000);
+        Assert.assertNull(errorA.get());
+        Assert.assertEquals(10, completedA.get());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        executor = new SoilSealingExecutor(2);
+        executor.setMaxTasksPerRequest(1);
+        final AtomicInteger executed = new AtomicInteger();
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 10; i++) {
+            final int id = i;
+            tasks.add(new Callable<Integer>() {
+
+                @Override
+                public Integer call() throws Exception {
+                    executed.incrementAndGet();
+                    if (id == 1) {
+                        throw new Exception("Task failure");
+                    }
+                    return id;
+                }
+            });
+        }
+
+        try {
+            executor.invokeAll(tasks);
+            Assert.fail("The failure should be propagated");
+        } catch (ExecutionException e) {
+            Assert.assertEquals("Task failure", e.getCause().getMessage());
+        }
+        // the tasks after the failed one are not started
+        Thread.sleep(100);
+        Assert.assertEquals(2, executed.get());
+    }
+
+    @Test
+    public void testFailureWhileWaiting() throws Exception {
+        executor = new SoilSealingExecutor(2);
+        executor.setMaxTasksPerRequest(2);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        // the first task is waited for, while the second one fails
+        tasks.add(new Callable<Integer>() {
+
+            @Override
+            public Integer call() throws Exception {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+                return 0;
+            }
+        });
+        tasks.add(new Callable<Integer>() {
+
+            @Override
+            public Integer call() throws Exception {
+                throw new IllegalStateException("Task failure");
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        try {
+            executor.invokeAll(tasks);
+            Assert.fail("The failure should be propagated");
+        } catch (ExecutionException e) {
+            Assert.assertEquals("Task failure", e.getCause().getMessage());
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        // the running task has been interrupted
+        Assert.assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCancellation() throws Exception {
+        executor = new SoilSealingExecutor(2);
+        executor.setMaxTasksPerRequest(1);
+        final AtomicInteger started = new AtomicInteger();
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 5; i++) {
+            tasks.add(new Callable<Integer>() {
+
+                @Override
+                public Integer call() throws Exception {
+                    started.incrementAndGet();
+                    running.countDown();
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                        throw e;
+                    }
+                    return 0;
+                }
+            });
+        }
+
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        Thread request = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    executor.invokeAll(tasks);
+                } catch (Exception e) {
+                    error.set(e);
+                }
+            }
+        };
+        request.start();
+        Assert.assertTrue(running.await(5, TimeUnit.SECONDS));
+        request.interrupt();
+        request.join(5000);
+
+        Assert.assertTrue(error.get() instanceof InterruptedException);
+        Assert.assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        // the pending tasks are never started
+        Thread.sleep(100);
+        Assert.assertEquals(1, started.get());
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        executor = new SoilSealingExecutor(1);
+        executor.destroy();
+        AtomicInteger counter = new AtomicInteger();
+        try {
+            executor.invokeAll(createTasks(3, 1, counter, counter, counter));
+            Assert.fail("The executor has been shut down");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        executor = null;
+    }
+}
@@ -0,0 +1,261 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.catalog.impl.DataStoreInfoImpl;
+import org.geoserver.catalog.impl.FeatureTypeInfoImpl;
+import org.geoserver.catalog.impl.LayerInfoImpl;
+import org.geoserver.catalog.impl.NamespaceInfoImpl;
+import org.geoserver.catalog.impl.StyleInfoImpl;
+import org.geoserver.catalog.impl.WorkspaceInfoImpl;
+import org.geoserver.config.impl.GeoServerImpl;
+import org.geoserver.wps.ppio.FeatureAttribute;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+public class StatusJournalTest {
+
+    private static final String WORKSPACE = "soilsealing";
+
+    private static final String STORE = "journal";
+
+    private static final String TYPE_NAME = "status";
+
+    private final GeometryFactory factory = new GeometryFactory();
+
+    private BlockingCatalog catalog;
+
+    private GeoServerImpl geoServer;
+
+    private MemoryDataStore dataStore;
+
+    private StatusJournal journal;
+
+    /**
+     * Catalog able to hold the writer thread while it resolves the target of the records
+     */
+    private static class BlockingCatalog extends CatalogImpl {
+
+        private volatile CountDownLatch release;
+
+        private final CountDownLatch blocked = new CountDownLatch(1);
+
+        @Override
+        public WorkspaceInfo getWorkspaceByName(String name) {
+            CountDownLatch latch = release;
+            if (latch != null) {
+                blocked.countDown();
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.getWorkspaceByName(name);
+        }
+    }
+
+    @Before
+    public void setup() throws Exception {
+        catalog = new BlockingCatalog();
+        NamespaceInfoImpl namespace = new NamespaceInfoImpl();
+        namespace.setPrefix(WORKSPACE);
+        namespace.setURI("http://www.geo-solutions.it/soilsealing");
+        catalog.add(namespace);
+        WorkspaceInfoImpl workspace = new WorkspaceInfoImpl();
+        workspace.setName(WORKSPACE);
+        catalog.add(workspace);
+
+        DataStoreInfoImpl store = new DataStoreInfoImpl(catalog);
+        store.setName(STORE);
+        store.setWorkspace(workspace);
+        store.setEnabled(true);
+        catalog.add(store);
+
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName(TYPE_NAME);
+        tb.add(StatusJournal.GEOMETRY_ATTRIBUTE, Point.class);
+        tb.add(StatusJournal.UUID_ATTRIBUTE, String.class);
+        tb.add("itemStatus", String.class);
+        dataStore = new MemoryDataStore();
+        dataStore.createSchema(tb.buildFeatureType());
+        catalog.getResourcePool().getDataStoreCache().put(
+                catalog.getDataStoreByName(WORKSPACE, STORE).getId(), dataStore);
+
+        FeatureTypeInfoImpl featureType = new FeatureTypeInfoImpl(catalog);
+        featureType.setName(TYPE_NAME);
+        featureType.setNativeName(TYPE_NAME);
+        featureType.setNamespace(namespace);
+        featureType.setStore(store);
+        featureType.setEnabled(true);
+        catalog.add(featureType);
+        StyleInfoImpl style = new StyleInfoImpl(catalog);
+        style.setName("point");
+        style.setFilename("point.sld");
+        catalog.add(style);
+        LayerInfoImpl layer = new LayerInfoImpl();
+        layer.setResource(featureType);
+        layer.setType(LayerInfo.Type.VECTOR);
+        layer.setDefaultStyle(style);
+        catalog.add(layer);
+
+        geoServer = new GeoServerImpl();
+        geoServer.setCatalog(catalog);
+    }
+
+    @After
+    public void dispose() throws Exception {
+        if (journal != null) {
+            journal.destroy();
+        }
+        dataStore.dispose();
+    }
+
+    private boolean insert(String uuid) {
+        List<FeatureAttribute> attributes = new ArrayList<FeatureAttribute>();
+        attributes.add(new FeatureAttribute(StatusJournal.UUID_ATTRIBUTE, uuid));
+        attributes.add(new FeatureAttribute("itemStatus", "RUNNING"));
+        return journal.insert(WORKSPACE, STORE, TYPE_NAME, factory.createPoint(new Coordinate(0,
+                0)), null, attributes);
+    }
+
+    private boolean complete(String uuid) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("itemStatus", "COMPLETED");
+        return journal.update(WORKSPACE, STORE, TYPE_NAME, uuid, values);
+    }
+
+    /**
+     * Returns the status of the written runs
+     */
+    private Map<String, String> readStatus() throws Exception {
+        Map<String, String> result = new HashMap<String, String>();
+        SimpleFeatureIterator it = dataStore.getFeatureSource(TYPE_NAME).getFeatures().features();
+        try {
+            while (it.hasNext()) {
+                SimpleFeature feature = it.next();
+                Assert.assertNull(result.put(
+                        (String) feature.getAttribute(StatusJournal.UUID_ATTRIBUTE),
+                        (String) feature.getAttribute("itemStatus")));
+            }
+        } finally {
+            it.close();
+        }
+        return result;
+    }
+
+    private void assertCompleted(int runs) throws Exception {
+        Map<String, String> status = readStatus();
+        Assert.assertEquals(runs, status.size());
+        for (int i = 0; i < runs; i++) {
+            Assert.assertEquals("COMPLETED", status.get("run" + i));
+        }
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        journal = new StatusJournal(geoServer);
+        journal.setBatchSize(7);
+        journal.setFlushInterval(50);
+        for (int i = 0; i < 50; i++) {
+            Assert.assertTrue(insert("run" + i));
+            Assert.assertTrue(complete("run" + i));
+        }
+        Assert.assertTrue(journal.flush(10000));
+
+        assertCompleted(50);
+        Assert.assertEquals(100, journal.getWritten());
+        Assert.assertEquals(0, journal.getPending());
+        Assert.assertEquals(0, journal.getSynchronousWrites());
+        Assert.assertEquals(0, journal.getDropped());
+    }
+
+    @Test
+    public void testUpdateOfWrittenRecord() throws Exception {
+        journal = new StatusJournal(geoServer);
+        journal.setFlushInterval(50);
+        Assert.assertTrue(insert("run0"));
+        Assert.assertTrue(journal.flush(10000));
+        Assert.assertEquals(Collections.singletonMap("run0", "RUNNING"), readStatus());
+
+        Assert.assertTrue(complete("run0"));
+        Assert.assertTrue(journal.flush(10000));
+        assertCompleted(1);
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        journal = new StatusJournal(geoServer);
+        journal.setFlushInterval(50);
+        for (int i = 0; i < 20; i++) {
+            insert("run" + i);
+            complete("run" + i);
+        }
+        // the pending entries are written before the writer stops
+        journal.destroy();
+        assertCompleted(20);
+
+        // the entries of a stopped journal are ignored
+        Assert.assertFalse(insert("run20"));
+        Assert.assertEquals(1, journal.getDropped());
+        journal = null;
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        journal = new StatusJournal(geoServer, 2);
+        journal.setFlushInterval(50);
+        journal.setOfferTimeout(20);
+
+        // the writer is held on the first record, the queue fills up
+        catalog.release = new CountDownLatch(1);
+        final CountDownLatch release = catalog.release;
+        Thread process = new Thread() {
+
+            @Override
+            public void run() {
+                for (int i = 0; i < 6; i++) {
+                    insert("run" + i);
+                    complete("run" + i);
+                }
+            }
+        };
+        process.start();
+        Assert.assertTrue(catalog.blocked.await(10, TimeUnit.SECONDS));
+        Thread.sleep(300);
+        catalog.release = null;
+        release.countDown();
+        process.join(10000);
+        Assert.assertFalse(process.isAlive());
+        Assert.assertTrue(journal.flush(10000));
+
+        // nothing is lost and the updates follow their records
+        assertCompleted(6);
+        Assert.assertTrue(journal.getSynchronousWrites() > 0);
+        Assert.assertEquals(0, journal.getDropped());
+        Assert.assertEquals(12, journal.getWritten());
+    }
+}
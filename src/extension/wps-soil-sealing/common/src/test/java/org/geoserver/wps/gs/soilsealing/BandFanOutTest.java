@@ -0,0 +1,103 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+
+import javax.media.jai.TiledImage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BandFanOutTest {
+
+    private static final int DEF_W = 64;
+
+    private static final int DEF_H = 48;
+
+    private static final int DEF_TILE = 16;
+
+    private static final int NUM_BANDS = 3;
+
+    /**
+     * Source image counting the computed tiles
+     */
+    private static class CountingImage extends TiledImage {
+
+        private int tiles;
+
+        CountingImage(SampleModel sampleModel) {
+            super(0, 0, DEF_W, DEF_H, 0, 0, sampleModel, null);
+        }
+
+        @Override
+        public synchronized Raster getTile(int tileX, int tileY) {
+            tiles++;
+            return super.getTile(tileX, tileY);
+        }
+    }
+
+    private CountingImage createSource() {
+        SampleModel sm = new PixelInterleavedSampleModel(DataBuffer.TYPE_INT, DEF_TILE, DEF_TILE,
+                NUM_BANDS, DEF_TILE * NUM_BANDS, new int[] { 0, 1, 2 });
+        CountingImage image = new CountingImage(sm);
+        for (int y = 0; y < DEF_H; y++) {
+            for (int x = 0; x < DEF_W; x++) {
+                for (int b = 0; b < NUM_BANDS; b++) {
+                    image.setSample(x, y, b, x * 1000 + y * 10 + b);
+                }
+            }
+        }
+        image.tiles = 0;
+        return image;
+    }
+
+    @Test
+    public void testInterleavedBands() {
+        CountingImage source = createSource();
+        BandFanOut fanOut = new BandFanOut(source);
+        Assert.assertEquals(NUM_BANDS, fanOut.getNumBands());
+        // the bands are consumed side by side, like parallel writers
+        for (int ty = 0; ty < DEF_H / DEF_TILE; ty++) {
+            for (int tx = 0; tx < DEF_W / DEF_TILE; tx++) {
+                for (int b = 0; b < NUM_BANDS; b++) {
+                    checkTile(fanOut.getBand(b), tx, ty, b);
+                }
+            }
+        }
+        Assert.assertEquals((DEF_W / DEF_TILE) * (DEF_H / DEF_TILE), source.tiles);
+    }
+
+    @Test
+    public void testLaggingBand() {
+        CountingImage source = createSource();
+        BandFanOut fanOut = new BandFanOut(source, 2);
+        // the bands are consumed one after the other, the dropped tiles are computed again
+        for (int b = 0; b < NUM_BANDS; b++) {
+            RenderedImage band = fanOut.getBand(b);
+            Assert.assertEquals(1, band.getSampleModel().getNumBands());
+            for (int ty = 0; ty < DEF_H / DEF_TILE; ty++) {
+                for (int tx = 0; tx < DEF_W / DEF_TILE; tx++) {
+                    checkTile(band, tx, ty, b);
+                }
+            }
+        }
+        Assert.assertTrue(source.tiles > (DEF_W / DEF_TILE) * (DEF_H / DEF_TILE));
+    }
+
+    private void checkTile(RenderedImage band, int tx, int ty, int b) {
+        Raster tile = band.getTile(tx, ty);
+        Assert.assertEquals(1, tile.getNumBands());
+        for (int y = tile.getMinY(); y < tile.getMinY() + tile.getHeight(); y++) {
+            for (int x = tile.getMinX(); x < tile.getMinX() + tile.getWidth(); x++) {
+                Assert.assertEquals(x * 1000 + y * 10 + b, tile.getSample(x, y, 0));
+            }
+        }
+    }
+}
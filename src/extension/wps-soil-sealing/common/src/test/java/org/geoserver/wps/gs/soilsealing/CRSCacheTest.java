@@ -0,0 +1,40 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+public class CRSCacheTest {
+
+    @Before
+    public void setup() {
+        CRSCache.clear();
+    }
+
+    @Test
+    public void testCachedLookups() throws Exception {
+        final long hits = CRSCache.getHits();
+        final long misses = CRSCache.getMisses();
+
+        CoordinateReferenceSystem utm32N = CRSCache.decode("EPSG:32632");
+        Assert.assertSame(utm32N, CRSCache.decode("EPSG:32632"));
+        Assert.assertNotSame(utm32N, CRSCache.decode("EPSG:32632", true));
+
+        MathTransform transform = CRSCache.findMathTransform(utm32N, DefaultGeographicCRS.WGS84);
+        Assert.assertSame(transform,
+                CRSCache.findMathTransform(utm32N, DefaultGeographicCRS.WGS84));
+
+        Assert.assertEquals(Integer.valueOf(32632), CRSCache.lookupEpsgCode(utm32N, false));
+        Assert.assertEquals(Integer.valueOf(32632), CRSCache.lookupEpsgCode(utm32N, false));
+
+        Assert.assertEquals(hits + 3, CRSCache.getHits());
+        Assert.assertEquals(misses + 4, CRSCache.getMisses());
+    }
+}
@@ -0,0 +1,110 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+
+public class CoverageUtilitiesTest {
+
+    private final GeometryFactory factory = new GeometryFactory();
+
+    private File dir;
+
+    private SimpleFeatureType type;
+
+    @Before
+    public void setup() throws IOException {
+        dir = File.createTempFile("mosaic", "");
+        dir.delete();
+        dir.mkdir();
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName("granules");
+        builder.add("the_geom", Polygon.class);
+        builder.add(CoverageUtilities.LOCATION_ATTRIBUTE, String.class);
+        builder.add("year", Integer.class);
+        type = builder.buildFeatureType();
+    }
+
+    @After
+    public void dispose() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private File writeGranule(String name, int length) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private List<SimpleFeature> createGranules(String... locations) {
+        List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+        for (int i = 0; i < locations.length; i++) {
+            Geometry footprint = factory.toGeometry(new Envelope(new Coordinate(i, 0),
+                    new Coordinate(i + 1, 1)));
+            features.add(SimpleFeatureBuilder.build(type, new Object[] { footprint,
+                    locations[i], 2006 + i }, "granules." + i));
+        }
+        return features;
+    }
+
+    private String getSignature(List<SimpleFeature> granules) throws IOException {
+        return CoverageUtilities.getGranulesSignature(new ListFeatureCollection(type, granules),
+                dir);
+    }
+
+    @Test
+    public void testGranulesSignature() throws IOException {
+        File first = writeGranule("first.tif", 10);
+        writeGranule("second.tif", 10);
+        String signature = getSignature(createGranules("first.tif", "second.tif"));
+
+        // the order of the granules does not matter
+        List<SimpleFeature> reversed = createGranules("first.tif", "second.tif");
+        Collections.reverse(reversed);
+        Assert.assertEquals(signature, getSignature(reversed));
+
+        // the same footprints with different attributes
+        Assert.assertFalse(signature.equals(getSignature(createGranules("first.tif",
+                "third.tif"))));
+
+        // a granule ingested again with the same footprint and location
+        Assert.assertTrue(first.setLastModified(first.lastModified() - 60000));
+        Assert.assertFalse(signature.equals(getSignature(createGranules("first.tif",
+                "second.tif"))));
+        signature = getSignature(createGranules("first.tif", "second.tif"));
+        writeGranule("second.tif", 20);
+        Assert.assertFalse(signature.equals(getSignature(createGranules("first.tif",
+                "second.tif"))));
+    }
+}
@@ -0,0 +1,78 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+
+import javax.media.jai.RasterFactory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RunLengthRasterTest {
+
+    @Test
+    public void testEncode() {
+        final int[][] rows = new int[][] { { 1, 1, 1, 2, 2, 3 }, { 4, 4, 4, 4, 4, 4 },
+                { 1, 2, 1, 2, 1, 2 } };
+        WritableRaster raster = RasterFactory.createBandedRaster(DataBuffer.TYPE_BYTE, 6,
+                rows.length, 2, null);
+        for (int y = 0; y < rows.length; y++) {
+            raster.setSamples(0, y, 6, 1, 1, rows[y]);
+        }
+
+        // the whole band
+        RunLengthRaster encoded = RunLengthRaster.encode(raster, 1, raster.getBounds());
+        Assert.assertEquals(3, encoded.getNumRuns(0));
+        Assert.assertArrayEquals(new int[] { 3, 1, 5, 2, 6, 3 }, encoded.getRuns(0));
+        Assert.assertEquals(1, encoded.getNumRuns(1));
+        Assert.assertEquals(6, encoded.getNumRuns(2));
+        Assert.assertEquals(10, encoded.getNumRuns());
+        for (int y = 0; y < rows.length; y++) {
+            Assert.assertArrayEquals(rows[y], encoded.decodeRow(y, null));
+            for (int x = 0; x < 6; x++) {
+                Assert.assertEquals(rows[y][x], encoded.getSample(x, y));
+            }
+        }
+        Assert.assertEquals(2, encoded.findRun(3, 0));
+
+        // a sub area
+        encoded = RunLengthRaster.encode(raster, 1, new Rectangle(2, 0, 3, 1));
+        Assert.assertArrayEquals(new int[] { 3, 1, 5, 2 }, encoded.getRuns(0));
+        Assert.assertEquals(2, encoded.getSample(4, 0));
+    }
+
+    @Test
+    public void testRow() {
+        WritableRaster raster = RasterFactory.createBandedRaster(DataBuffer.TYPE_BYTE, 40, 2, 1,
+                null);
+        for (int x = 0; x < 40; x++) {
+            raster.setSample(x, 0, 0, x % 2);
+            raster.setSample(x, 1, 0, x / 10);
+        }
+
+        // the buffers grow with the many runs of the first row
+        RunLengthRaster.Row row = new RunLengthRaster.Row();
+        row.encode(raster, 0, 0, 0, 40);
+        Assert.assertEquals(40, row.getNumRuns());
+        for (int x = 0; x < 40; x++) {
+            int r = row.findRun(x);
+            Assert.assertEquals(x + 1, row.getRuns()[r]);
+            Assert.assertEquals(x % 2, row.getRuns()[r + 1]);
+        }
+
+        // and are reused by the following ones, matching the encoding of the whole raster
+        Rectangle span = new Rectangle(5, 1, 30, 1);
+        row.encode(raster, 0, span.x, span.y, span.width);
+        RunLengthRaster encoded = RunLengthRaster.encode(raster, 0, span);
+        Assert.assertEquals(encoded.getNumRuns(1), row.getNumRuns());
+        for (int i = 0; i < row.getNumRuns() * RunLengthRaster.RUN_SIZE; i++) {
+            Assert.assertEquals(encoded.getRuns(1)[i], row.getRuns()[i]);
+        }
+        Assert.assertEquals(2, row.findRun(12));
+    }
+}
@@ -16,14 +16,12 @@ import javax.media.jai.ImageLayout;
 import javax.media.jai.PointOpImage;
 import javax.media.jai.ROI;
 import javax.media.jai.ROIShape;
-import javax.media.jai.iterator.RectIter;
-import javax.media.jai.iterator.RectIterFactory;
 
+import org.geoserver.wps.gs.soilsealing.CRSCache;
 import org.geotools.coverage.grid.GridEnvelope2D;
 import org.geotools.coverage.grid.GridGeometry2D;
-import org.geotools.geometry.jts.JTS;
 import org.geotools.geometry.jts.ReferencedEnvelope;
-import org.geotools.referencing.CRS;
+import org.geotools.referencing.operation.transform.ConcatenatedTransform;
 import org.jaitools.imageutils.ImageLayout2;
 import org.opengis.coverage.grid.GridEnvelope;
 import org.opengis.metadata.spatial.PixelOrientation;
@@ -33,17 +31,11 @@ import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.MathTransform2D;
 import org.opengis.referencing.operation.TransformException;
 
-import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.Envelope;
-import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.LinearRing;
-import com.vividsolutions.jts.geom.Polygon;
-
 /**
  * This class calculates the area for each pixel of the input image, providing an associated envelope. An optional ROI can be used for reducing the
  * computation. Also the user can define a set of valid values of the input image on which calculating the area. Note that a pixel with value 0 is
- * skipped. The operation can be executed only on integer images in order to be able to handle the valid values.
+ * skipped. The operation can be executed only on integer images in order to be able to handle the valid values. The Eckert IV pixel areas are
+ * provided by a {@link PixelAreaTable}, see its documentation for the tolerance with respect to the reprojection of each pixel polygon.
  */
 public class AreaOpImage extends PointOpImage {
 
@@ -71,15 +63,15 @@ public class AreaOpImage extends PointOpImage {
     /** Transformation from Input envelope crs to Eckert IV */
     private final MathTransform transform;
 
+    /** Table providing the Eckert IV area of each pixel */
+    private final PixelAreaTable areaTable;
+
     /** Optional ROI used for reducing the computation area */
     private ROI roiUsed;
 
     /** Flag indicating the presence of ROI */
     private final boolean noROI;
 
-    /** Geometry factory used */
-    private static final GeometryFactory GEOM_FACTORY = new GeometryFactory();
-
     public AreaOpImage(RenderedImage source, ImageLayout layout, Map configuration,
             ReferencedEnvelope env, double multiplier, Set<Integer> validValues, ROI roi) {
         super(source, layoutHelper(source, layout), configuration, true);
@@ -97,11 +89,17 @@ public class AreaOpImage extends PointOpImage {
         CoordinateReferenceSystem sourceCRS = envelope.getCoordinateReferenceSystem();
 
         try {
-            CoordinateReferenceSystem targetCRS = CRS.parseWKT(TARGET_CRS_WKT);
-            transform = CRS.findMathTransform(sourceCRS, targetCRS);
+            CoordinateReferenceSystem targetCRS = CRSCache.parseWKT(TARGET_CRS_WKT);
+            transform = CRSCache.findMathTransform(sourceCRS, targetCRS);
+            // Pixel areas are computed once from the grid to Eckert IV transform
+            areaTable = new PixelAreaTable(ConcatenatedTransform.create(g2w, transform),
+                    getBounds());
         } catch (FactoryException e) {
             LOGGER.log(Level.SEVERE, e.getMessage(), e);
             throw new IllegalArgumentException(e);
+        } catch (TransformException e) {
+            LOGGER.log(Level.SEVERE, e.getMessage(), e);
+            throw new IllegalArgumentException(e);
         }
 
         // Setting of the roi
@@ -158,109 +156,48 @@ public class AreaOpImage extends PointOpImage {
 
         // massage roi
         ROI tileRoi = null;
+        boolean tileInROI = noROI;
         if (!noROI) {
             Rectangle roiRect = destRect.getBounds();
             // Expand tile dimensions
             roiRect.grow(1, 1);
             tileRoi = roiUsed.intersect(new ROIShape(roiRect));
+            // Avoid the per-pixel check if the whole tile is inside the ROI
+            tileInROI = roiUsed.contains(destRect);
         }
 
         if (noROI || !tileRoi.getBounds().isEmpty()) {
             // Source tile
             Raster source = sources[0];
-            // Envelope of the tile in the Raster space
-            ReferencedEnvelope tileEnv = new ReferencedEnvelope(destRect.getMinX(),
-                    destRect.getMaxX(), destRect.getMinY(), destRect.getMaxY(), null);
-            Envelope env = null;
-            try {
-                // Transform to the model space
-                env = JTS.transform(tileEnv, g2w);
-            } catch (TransformException e) {
-                LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                return;
-            }
-
-            // Iterator on the input tile
-            RectIter iter = RectIterFactory.create(source, destRect);
 
             int originX = destRect.x;
             int originY = destRect.y;
             int width = destRect.width;
             int height = destRect.height;
 
-            try {
-                Polygon polygon = null;
-                // Calculation of the iteration steps
-                double pX = env.getMinX();
-                double pY = env.getMaxY();
-                double stepX = (env.getMaxX() - env.getMinX()) / width;
-                double stepY = (env.getMaxY() - env.getMinY()) / height;
+            // Row buffers reused for the whole tile
+            int[] samples = new int[width];
+            double[] areas = new double[width];
+            double[] values = new double[width];
 
-                Coordinate[] tempCoordinates = new Coordinate[5];
-
-                iter.startBands();
-                iter.startLines();
+            try {
                 // Cycle on all the input tile
-                int i = 0;
-                while (!iter.finishedLines()) {
-                    iter.startPixels();
+                for (int i = 0; i < height; i++) {
                     int y = originY + i;
-                    // start of the row
-                    pX = env.getMinX();
-                    int j = 0;
-                    while (!iter.finishedPixels()) {
-                        int x = originX + j;
-                        int sample = iter.getSample(0);
+                    source.getSamples(originX, y, width, 1, 0, samples);
+                    areaTable.getRowAreas(y, originX, width, areas);
+                    for (int j = 0; j < width; j++) {
+                        int sample = samples[j];
                         // Check if the pixel value is valid and if it is inside the ROI
                         boolean validValue = sample != 0
                                 && ((validCheck && validValues.contains(sample)) || !validCheck);
-                        boolean inROI = noROI || tileRoi.contains(x, y);
-                        if (validValue && inROI) {
-                            double nX = pX + stepX;
-                            double nY = pY - stepY;
-
-                            // Creation of a new Polygon or update of the previous one
-                            if (polygon == null) {
-                                tempCoordinates[0] = new Coordinate(pX, pY);
-                                tempCoordinates[1] = new Coordinate(nX, pY);
-                                tempCoordinates[2] = new Coordinate(nX, nY);
-                                tempCoordinates[3] = new Coordinate(pX, nY);
-                                tempCoordinates[4] = tempCoordinates[0];
-                                LinearRing linearRing = GEOM_FACTORY
-                                        .createLinearRing(tempCoordinates);
-                                polygon = GEOM_FACTORY.createPolygon(linearRing, null);
-                            } else {
-                                tempCoordinates[0].x = pX;
-                                tempCoordinates[0].y = pY;
-                                tempCoordinates[1].x = nX;
-                                tempCoordinates[1].y = pY;
-                                tempCoordinates[2].x = nX;
-                                tempCoordinates[2].y = nY;
-                                tempCoordinates[3].x = pX;
-                                tempCoordinates[3].y = nY;
-                                polygon.geometryChanged();
-                            }
-
-                            // transform to EckertIV and compute area
-                            Geometry targetGeometry = JTS.transform(polygon, transform);
-                            // Set the values to the image
-                            double area = targetGeometry.getArea() * multi;
-                            if (area > 0) {
-                                dest.setSample(x, y, 0, area);
-                            }
-                        }
-
-                        // move on
-                        pX = pX + stepX;
-                        j++;
-                        iter.nextPixelDone();
+                        boolean inROI = tileInROI || tileRoi.contains(originX + j, y);
+                        double area = validValue && inROI ? areas[j] * multi : 0;
+                        values[j] = area > 0 ? area : 0;
                     }
-                    // move to next row
-                    pY = pY - stepY;
-                    i++;
-                    iter.nextLineDone();
+                    // Set the values to the image
+                    dest.setSamples(originX, y, width, 1, 0, values);
                 }
-
             } catch (Exception e) {
                 LOGGER.log(Level.SEVERE, e.getMessage(), e);
                 return;
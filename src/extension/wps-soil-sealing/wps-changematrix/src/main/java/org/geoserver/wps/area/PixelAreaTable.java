@@ -0,0 +1,219 @@
+package org.geoserver.wps.area;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * Lookup table providing the equal-area surface of every pixel of an image, computed analytically from the grid-to-world transform instead of
+ * reprojecting one polygon per pixel.
+ * <p>
+ * The area of a single pixel is the area of the quadrilateral obtained by pushing its four corners through the supplied grid to equal-area
+ * transform (straight edges, exactly as done when reprojecting a JTS polygon). Depending on how the area varies on the image, one of the following
+ * modes is selected at construction time:
+ * <ul>
+ * <li>{@link Mode#CONSTANT}: the areas sampled at the corners, at the edge midpoints and at the centre of the image differ less than the tolerance
+ * (e.g. equal-area or affine projected CRSs on a small extent). A single value is used for the whole image.</li>
+ * <li>{@link Mode#ROWS}: the area only depends on the row (e.g. geographic CRSs, where each row is a latitude band). One exact value is computed
+ * for each row and stored in the table.</li>
+ * <li>{@link Mode#INTERPOLATED}: any other case. Exact values are computed on control columns and linearly interpolated in between; the
+ * control-column spacing is halved until the interpolation error, checked on sample rows, is below the tolerance.</li>
+ * </ul>
+ * The tolerance is relative to the per-pixel Eckert IV area computed by the previous implementation and defaults to {@value #DEFAULT_TOLERANCE};
+ * it can be changed through the {@value #TOLERANCE_KEY} system property. {@link Mode#ROWS} is exact.
+ */
+public class PixelAreaTable {
+
+    /** Available computation modes */
+    public enum Mode {
+        CONSTANT, ROWS, INTERPOLATED
+    }
+
+    /** System property used for changing the relative tolerance */
+    public static final String TOLERANCE_KEY = "org.geoserver.wps.area.tolerance";
+
+    /** Default relative tolerance with respect to the exact per-pixel area */
+    public static final double DEFAULT_TOLERANCE = 1E-4;
+
+    /** Relative difference under which two exact areas are considered equal */
+    private static final double EQUALITY_THRESHOLD = 1E-9;
+
+    /** Initial spacing of the control columns for the interpolated mode */
+    private static final int MAX_STEP = 64;
+
+    /** Transformation from raster space to the equal-area CRS */
+    private final MathTransform gridToEqualArea;
+
+    /** Image bounds */
+    private final Rectangle bounds;
+
+    /** Selected mode */
+    private final Mode mode;
+
+    /** Area used in {@link Mode#CONSTANT} */
+    private double constantArea;
+
+    /** Areas of each row used in {@link Mode#ROWS} */
+    private double[] rowAreas;
+
+    /** Control columns spacing used in {@link Mode#INTERPOLATED} */
+    private int step;
+
+    public PixelAreaTable(MathTransform gridToEqualArea, Rectangle bounds)
+            throws TransformException {
+        this(gridToEqualArea, bounds, Double.parseDouble(System.getProperty(TOLERANCE_KEY,
+                Double.toString(DEFAULT_TOLERANCE))));
+    }
+
+    public PixelAreaTable(MathTransform gridToEqualArea, Rectangle bounds, double tolerance)
+            throws TransformException {
+        if (bounds == null || bounds.isEmpty()) {
+            throw new IllegalArgumentException("The image bounds must not be empty");
+        }
+        this.gridToEqualArea = gridToEqualArea;
+        this.bounds = new Rectangle(bounds);
+
+        // Sampling of the exact areas on a 3x3 grid of pixels
+        final int[] rows = { bounds.y, bounds.y + bounds.height / 2,
+                bounds.y + bounds.height - 1 };
+        final int[] cols = { bounds.x, bounds.x + bounds.width / 2, bounds.x + bounds.width - 1 };
+        final double[][] samples = new double[3][3];
+        double min = Double.POSITIVE_INFINITY;
+        double max = 0;
+        boolean rowInvariant = true;
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                samples[i][j] = getPixelArea(cols[j], rows[i]);
+                min = Math.min(min, samples[i][j]);
+                max = Math.max(max, samples[i][j]);
+            }
+            rowInvariant &= equals(samples[i][0], samples[i][1], EQUALITY_THRESHOLD)
+                    && equals(samples[i][0], samples[i][2], EQUALITY_THRESHOLD);
+        }
+
+        if (equals(min, max, tolerance)) {
+            mode = Mode.CONSTANT;
+            constantArea = samples[1][1];
+        } else if (rowInvariant) {
+            mode = Mode.ROWS;
+            rowAreas = new double[bounds.height];
+            for (int i = 0; i < bounds.height; i++) {
+                rowAreas[i] = getPixelArea(bounds.x, bounds.y + i);
+            }
+        } else {
+            mode = Mode.INTERPOLATED;
+            step = Math.min(MAX_STEP, Integer.highestOneBit(Math.max(1, bounds.width - 1)));
+            double[] exact = new double[bounds.width];
+            double[] interpolated = new double[bounds.width];
+            while (step > 1) {
+                double error = 0;
+                for (int i = 0; i < 3; i++) {
+                    getExactRowAreas(rows[i], bounds.x, bounds.width, exact);
+                    getRowAreas(rows[i], bounds.x, bounds.width, interpolated);
+                    for (int j = 0; j < bounds.width; j++) {
+                        error = Math.max(error, Math.abs(interpolated[j] - exact[j])
+                                / Math.abs(exact[j]));
+                    }
+                }
+                if (error <= tolerance) {
+                    break;
+                }
+                step /= 2;
+            }
+        }
+    }
+
+    /**
+     * Returns the selected {@link Mode}
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Computes the exact area of the pixel at the provided raster position.
+     */
+    public double getPixelArea(int x, int y) throws TransformException {
+        double[] corners = new double[] { x, y, x + 1, y, x + 1, y + 1, x, y + 1 };
+        gridToEqualArea.transform(corners, 0, corners, 0, 4);
+        return quadArea(corners, 0, 2, 4, 6);
+    }
+
+    /**
+     * Fills the provided array with the areas of the pixels of the row <code>y</code>, starting from column <code>x</code>.
+     *
+     * @param y row index
+     * @param x first column index
+     * @param width number of pixels to compute
+     * @param areas output array, at least <code>width</code> long
+     * @throws TransformException
+     */
+    public void getRowAreas(int y, int x, int width, double[] areas) throws TransformException {
+        switch (mode) {
+        case CONSTANT:
+            Arrays.fill(areas, 0, width, constantArea);
+            break;
+        case ROWS:
+            Arrays.fill(areas, 0, width, rowAreas[y - bounds.y]);
+            break;
+        default:
+            if (step <= 1) {
+                getExactRowAreas(y, x, width, areas);
+                return;
+            }
+            final int last = bounds.x + bounds.width - 1;
+            // control columns covering the requested span
+            int c0 = bounds.x + ((x - bounds.x) / step) * step;
+            int c1 = Math.min(c0 + step, last);
+            double a0 = getPixelArea(c0, y);
+            double a1 = c1 == c0 ? a0 : getPixelArea(c1, y);
+            for (int j = 0; j < width; j++) {
+                int col = x + j;
+                if (col > c1) {
+                    c0 = c1;
+                    a0 = a1;
+                    c1 = Math.min(c0 + step, last);
+                    a1 = getPixelArea(c1, y);
+                }
+                areas[j] = c1 == c0 ? a0 : a0 + (a1 - a0) * (col - c0) / (c1 - c0);
+            }
+        }
+    }
+
+    /**
+     * Computes the exact areas of a row span, transforming each corner only once.
+     */
+    private void getExactRowAreas(int y, int x, int width, double[] areas)
+            throws TransformException {
+        // upper and lower corners of the whole span
+        double[] corners = new double[(width + 1) * 4];
+        for (int j = 0; j <= width; j++) {
+            corners[j * 2] = x + j;
+            corners[j * 2 + 1] = y;
+            corners[(width + 1 + j) * 2] = x + j;
+            corners[(width + 1 + j) * 2 + 1] = y + 1;
+        }
+        gridToEqualArea.transform(corners, 0, corners, 0, (width + 1) * 2);
+        final int lower = (width + 1) * 2;
+        for (int j = 0; j < width; j++) {
+            areas[j] = quadArea(corners, j * 2, (j + 1) * 2, lower + (j + 1) * 2, lower + j * 2);
+        }
+    }
+
+    /**
+     * Shoelace formula for the quadrilateral whose vertices start at the provided offsets.
+     */
+    private static double quadArea(double[] c, int p0, int p1, int p2, int p3) {
+        double sum = c[p0] * c[p1 + 1] - c[p1] * c[p0 + 1];
+        sum += c[p1] * c[p2 + 1] - c[p2] * c[p1 + 1];
+        sum += c[p2] * c[p3 + 1] - c[p3] * c[p2 + 1];
+        sum += c[p3] * c[p0 + 1] - c[p0] * c[p3 + 1];
+        return Math.abs(sum) / 2;
+    }
+
+    private static boolean equals(double a, double b, double tolerance) {
+        return Math.abs(a - b) <= tolerance * Math.max(Math.abs(a), Math.abs(b));
+    }
+}
@@ -0,0 +1,75 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.PlanarImage;
+import javax.media.jai.PointOpImage;
+import javax.media.jai.ROI;
+
+import org.jaitools.imageutils.ImageLayout2;
+
+/**
+ * Lazily computes the change map <code>ref * multiplier + now</code> of two categorical images. Pixels outside the optional ROI are set to 0. This
+ * is the raster output companion of the pure Java change matrix calculator.
+ */
+class ChangeMapOpImage extends PointOpImage {
+
+    /** Multiplier applied to the reference class */
+    private final int multiplier;
+
+    /** Optional ROI */
+    private final ROI roi;
+
+    ChangeMapOpImage(RenderedImage ref, RenderedImage cur, ROI roi, int multiplier) {
+        super(ref, cur, layoutHelper(ref), null, true);
+        this.multiplier = multiplier;
+        this.roi = roi;
+    }
+
+    /**
+     * Preparation of the image layout by setting the sample model data type to int.
+     */
+    private static ImageLayout layoutHelper(RenderedImage source) {
+        ImageLayout il = new ImageLayout2(source);
+        SampleModel sampleModel = new PixelInterleavedSampleModel(DataBuffer.TYPE_INT,
+                source.getTileWidth(), source.getTileHeight(), 1, source.getTileWidth(),
+                new int[] { 0 });
+        il.setSampleModel(sampleModel);
+        il.setColorModel(PlanarImage.createColorModel(sampleModel));
+        return il;
+    }
+
+    @Override
+    protected void computeRect(Raster[] sources, WritableRaster dest, Rectangle destRect) {
+        if (roi != null && !roi.intersects(destRect)) {
+            // Nothing to do, the tile is already filled with 0
+            return;
+        }
+        final boolean inside = roi == null || roi.contains(destRect);
+
+        final int width = destRect.width;
+        final int[] refRow = new int[width];
+        final int[] curRow = new int[width];
+        final int[] values = new int[width];
+        for (int y = destRect.y; y < destRect.y + destRect.height; y++) {
+            CoverageUtilities.readRow(sources[0], 0, destRect.x, y, width, refRow);
+            CoverageUtilities.readRow(sources[1], 0, destRect.x, y, width, curRow);
+            for (int i = 0; i < width; i++) {
+                values[i] = inside || roi.contains(destRect.x + i, y) ? refRow[i] * multiplier
+                        + curRow[i] : 0;
+            }
+            dest.setSamples(destRect.x, y, width, 1, 0, values);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.util.Set;
+
+/**
+ * Primitive accumulator for the transitions between the classes of two categorical rasters. Counts and areas are stored in flat arrays indexed by
+ * <code>ref * size + now</code>, where <code>size</code> is the greatest class plus one. Instances are not thread safe: each thread should fill its
+ * own accumulator and the partial results should be merged at the end through {@link #merge(ChangeMatrixAccumulator)}.
+ */
+public class ChangeMatrixAccumulator {
+
+    /** Greatest class value plus one */
+    private final int size;
+
+    /** Lookup table of the classes to take into account */
+    private final boolean[] validClasses;
+
+    /** Number of pixels for each transition */
+    private final long[] counts;
+
+    /** Total area for each transition */
+    private final double[] areas;
+
+    public ChangeMatrixAccumulator(Set<Integer> classes) {
+        if (classes == null || classes.isEmpty()) {
+            throw new IllegalArgumentException("The classes set must not be empty");
+        }
+        int max = 0;
+        for (Integer c : classes) {
+            if (c < 0) {
+                throw new IllegalArgumentException("Negative class values are not supported: "
+                        + c);
+            }
+            max = Math.max(max, c);
+        }
+        this.size = max + 1;
+        this.validClasses = new boolean[size];
+        for (Integer c : classes) {
+            validClasses[c] = true;
+        }
+        this.counts = new long[size * size];
+        this.areas = new double[size * size];
+    }
+
+    /**
+     * Creates an empty accumulator sharing the class domain of the provided one
+     */
+    public ChangeMatrixAccumulator(ChangeMatrixAccumulator other) {
+        this.size = other.size;
+        this.validClasses = other.validClasses;
+        this.counts = new long[size * size];
+        this.areas = new double[size * size];
+    }
+
+    /**
+     * Checks if the provided class must be taken into account
+     */
+    public boolean isValid(int value) {
+        return value >= 0 && value < size && validClasses[value];
+    }
+
+    /**
+     * Adds a single pixel transition. Transitions involving classes outside the domain are ignored.
+     *
+     * @param ref reference class
+     * @param now current class
+     * @param area area associated to the pixel
+     */
+    public void add(int ref, int now, double area) {
+        if (isValid(ref) && isValid(now)) {
+            final int index = ref * size + now;
+            counts[index]++;
+            areas[index] += area;
+        }
+    }
+
+    /**
+     * Adds a run of pixels sharing the same transition. Transitions involving classes outside the domain are ignored.
+     *
+     * @param ref reference class
+     * @param now current class
+     * @param pixels number of pixels
+     * @param area total area of the pixels
+     */
+    public void add(int ref, int now, long pixels, double area) {
+        if (isValid(ref) && isValid(now)) {
+            final int index = ref * size + now;
+            counts[index] += pixels;
+            areas[index] += area;
+        }
+    }
+
+    /**
+     * Sums the content of another accumulator into this one
+     */
+    public void merge(ChangeMatrixAccumulator other) {
+        if (other.size != size) {
+            throw new IllegalArgumentException("Unable to merge accumulators of different size");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+            areas[i] += other.areas[i];
+        }
+    }
+
+    /**
+     * Returns the number of pixels for the provided transition
+     */
+    public long getCount(int ref, int now) {
+        return isValid(ref) && isValid(now) ? counts[ref * size + now] : 0;
+    }
+
+    /**
+     * Returns the total area for the provided transition
+     */
+    public double getArea(int ref, int now) {
+        return isValid(ref) && isValid(now) ? areas[ref * size + now] : 0;
+    }
+
+    /**
+     * Creates a {@link ChangeMatrixDTO} from the accumulated values
+     */
+    public ChangeMatrixDTO toDTO(Set<Integer> classes, String rasterName, String refYear,
+            String nowYear) {
+        final ChangeMatrixDTO changeMatrix = new ChangeMatrixDTO();
+        changeMatrix.setRasterName(rasterName);
+        if (refYear != null) {
+            changeMatrix.setRefYear(refYear);
+        }
+        if (nowYear != null) {
+            changeMatrix.setNowYear(nowYear);
+        }
+        for (Integer elRef : classes) {
+            for (Integer elNow : classes) {
+                changeMatrix.add(new ChangeMatrixElement(elRef, elNow, getCount(elRef, elNow),
+                        getArea(elRef, elNow)));
+            }
+        }
+        return changeMatrix;
+    }
+}
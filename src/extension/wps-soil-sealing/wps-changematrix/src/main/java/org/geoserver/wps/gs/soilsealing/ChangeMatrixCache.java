@@ -0,0 +1,338 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.CoverageInfo;
+import org.geoserver.catalog.CoverageStoreInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geotools.util.logging.Logging;
+import org.opengis.filter.Filter;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
+
+/**
+ * Bounded, size-aware LRU cache of the {@link ChangeMatrixDTO} computed by the {@link ChangeMatrixProcess} together with the name of the generated
+ * layer. Keys are built from the coverage name, the normalized filters, a hash of the normalized ROI and the class set; the granule index
+ * signature of structured mosaics is part of the key, so that a change in the mosaic content invalidates the previous entries. Entries are also
+ * dropped when the coverage, its store or the generated layer are modified or removed from the catalog.
+ */
+public class ChangeMatrixCache implements CatalogListener {
+
+    private static final Logger LOGGER = Logging.getLogger(ChangeMatrixCache.class);
+
+    /** Default maximum number of entries */
+    public static final int DEFAULT_MAX_ENTRIES = 200;
+
+    /** Default maximum estimated size in bytes */
+    public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+    /** Estimated size of a single {@link ChangeMatrixElement} */
+    private static final int ELEMENT_SIZE = 64;
+
+    /** Estimated overhead of a single entry */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    /** Cached values, in access order */
+    private final LinkedHashMap<String, CachedChangeMatrix> entries = new LinkedHashMap<String, CachedChangeMatrix>(
+            16, 0.75f, true);
+
+    /** Last granule index signature seen for each coverage */
+    private final Map<String, String> signatures = new HashMap<String, String>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    private long maxSize = DEFAULT_MAX_SIZE;
+
+    /** Current estimated size */
+    private long size;
+
+    public ChangeMatrixCache(Catalog catalog) {
+        if (catalog != null) {
+            catalog.addListener(this);
+        }
+    }
+
+    /**
+     * Builds the cache key for a change matrix request.
+     *
+     * @param coverage the input coverage
+     * @param referenceFilter filter selecting the reference data
+     * @param nowFilter filter selecting the current data
+     * @param roi optional ROI, in WGS84
+     * @param classes domain of the classes
+     * @return the key, or <code>null</code> if the request cannot be cached
+     */
+    public String buildKey(CoverageInfo coverage, Filter referenceFilter, Filter nowFilter,
+            Geometry roi, Set<Integer> classes) {
+        final String coverageName = coverage.prefixedName();
+        final String signature;
+        try {
+            signature = CoverageUtilities.getGranulesSignature(coverage);
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "Unable to read the granule index of " + coverageName, e);
+            }
+            return null;
+        }
+        return buildKey(coverageName, signature, referenceFilter, nowFilter, roi, classes);
+    }
+
+    /**
+     * Builds the cache key for a change matrix request on a coverage with the provided granule index signature, invalidating the entries built
+     * on a different signature.
+     */
+    String buildKey(String coverageName, String signature, Filter referenceFilter,
+            Filter nowFilter, Geometry roi, Set<Integer> classes) {
+        synchronized (this) {
+            // a new granule index makes all the entries of the coverage stale
+            String previous = signatures.put(coverageName, signature);
+            if (previous != null && !previous.equals(signature)) {
+                invalidate(coverageName);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(coverageName);
+        sb.append('|').append(signature);
+        sb.append('|').append(CoverageUtilities.normalize(referenceFilter));
+        sb.append('|').append(CoverageUtilities.normalize(nowFilter));
+        sb.append('|').append(roi == null ? "" : hash(roi));
+        sb.append('|').append(new TreeSet<Integer>(classes));
+        return sb.toString();
+    }
+
+    /**
+     * Returns the cached value for the provided key, if any. The returned value hands out copies of the cached matrix, so callers are free to
+     * modify it.
+     */
+    public synchronized CachedChangeMatrix get(String key) {
+        CachedChangeMatrix value = key != null ? entries.get(key) : null;
+        if (value != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("ChangeMatrix cache " + (value != null ? "hit" : "miss") + ", hits: "
+                    + hits.get() + ", misses: " + misses.get());
+        }
+        return value;
+    }
+
+    /**
+     * Adds a new value to the cache, evicting the least recently used entries if needed. The matrix is copied, later changes of the provided
+     * instance do not affect the cached value.
+     */
+    public synchronized void put(String key, CoverageInfo coverage, ChangeMatrixDTO changeMatrix,
+            String layerName) {
+        if (key == null) {
+            return;
+        }
+        CachedChangeMatrix value = new CachedChangeMatrix(coverage.prefixedName(), coverage
+                .getStore().getId(), new ChangeMatrixDTO(changeMatrix), layerName, ENTRY_OVERHEAD + key.length() * 2
+                + changeMatrix.getChangeMatrix().size() * ELEMENT_SIZE);
+        CachedChangeMatrix old = entries.put(key, value);
+        if (old != null) {
+            size -= old.size;
+        }
+        size += value.size;
+        // eviction of the least recently used entries
+        Iterator<CachedChangeMatrix> it = entries.values().iterator();
+        while ((entries.size() > maxEntries || size > maxSize) && it.hasNext()) {
+            size -= it.next().size;
+            it.remove();
+        }
+    }
+
+    /**
+     * Removes the entry associated to the provided key
+     */
+    public synchronized void remove(String key) {
+        CachedChangeMatrix old = entries.remove(key);
+        if (old != null) {
+            size -= old.size;
+        }
+    }
+
+    /**
+     * Removes all the entries computed on the provided coverage
+     */
+    public synchronized void invalidate(String coverageName) {
+        Iterator<CachedChangeMatrix> it = entries.values().iterator();
+        while (it.hasNext()) {
+            CachedChangeMatrix value = it.next();
+            if (value.coverageName.equals(coverageName)) {
+                size -= value.size;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all the entries
+     */
+    public synchronized void clear() {
+        entries.clear();
+        signatures.clear();
+        size = 0;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    // ////
+    // Catalog events
+    // ////
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // nothing to do
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // wait for the post modify event
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    /**
+     * Drops the entries related to the provided catalog object
+     */
+    private synchronized void invalidate(CatalogInfo info) {
+        Iterator<CachedChangeMatrix> it = entries.values().iterator();
+        while (it.hasNext()) {
+            CachedChangeMatrix value = it.next();
+            boolean stale = false;
+            if (info instanceof CoverageInfo) {
+                stale = value.coverageName.equals(((CoverageInfo) info).prefixedName());
+            } else if (info instanceof CoverageStoreInfo) {
+                stale = info.getId() != null && info.getId().equals(value.storeId);
+            } else if (info instanceof LayerInfo) {
+                stale = value.layerName.length() > 0
+                        && value.layerName.equals(((LayerInfo) info).getName());
+            }
+            if (stale) {
+                size -= value.size;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns an hash of the normalized geometry
+     */
+    private static String hash(Geometry roi) {
+        Geometry normalized = (Geometry) roi.clone();
+        normalized.normalize();
+        byte[] wkb = new WKBWriter().write(normalized);
+        String digest = CoverageUtilities.digest(wkb);
+        return digest != null ? digest : normalized.toText();
+    }
+
+    /**
+     * A cached change matrix
+     */
+    public static class CachedChangeMatrix {
+
+        private final String coverageName;
+
+        private final String storeId;
+
+        private final ChangeMatrixDTO changeMatrix;
+
+        private final String layerName;
+
+        private final long size;
+
+        CachedChangeMatrix(String coverageName, String storeId, ChangeMatrixDTO changeMatrix,
+                String layerName, long size) {
+            this.coverageName = coverageName;
+            this.storeId = storeId;
+            this.changeMatrix = changeMatrix;
+            this.layerName = layerName != null ? layerName : "";
+            this.size = size;
+        }
+
+        /**
+         * @return a copy of the cached matrix
+         */
+        public ChangeMatrixDTO getChangeMatrix() {
+            return new ChangeMatrixDTO(changeMatrix);
+        }
+
+        /**
+         * @return the name of the generated layer, empty if only the matrix has been computed
+         */
+        public String getLayerName() {
+            return layerName;
+        }
+    }
+}
@@ -71,6 +71,20 @@ public class ChangeMatrixDTO {
     public ChangeMatrixDTO() {
     }
 
+    /**
+     * Copy constructor, duplicating the elements of the provided matrix.
+     * 
+     * @param other
+     */
+    public ChangeMatrixDTO(ChangeMatrixDTO other) {
+        this.rasterName = other.rasterName;
+        this.refYear = other.refYear;
+        this.nowYear = other.nowYear;
+        for (ChangeMatrixElement el : other.changeMatrix) {
+            add(new ChangeMatrixElement(el.getRef(), el.getNow(), el.getPixels(), el.getArea()));
+        }
+    }
+
     /**
      * Add an element to the changeMatrix
      * 
@@ -5,13 +5,17 @@
 package org.geoserver.wps.gs.soilsealing;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.xml.namespace.QName;
+
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.CoverageInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.catalog.StoreInfo;
@@ -22,14 +26,20 @@ import org.geoserver.wfs.TransactionEventType;
 import org.geoserver.wfs.TransactionListener;
 import org.geoserver.wfs.WFSException;
 import org.geotools.data.DataUtilities;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.NameImpl;
 import org.geotools.util.logging.Logging;
 import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory;
 
 public class ChangeMatrixDeleteTransactionListener implements TransactionListener {
 
     protected static final Logger LOGGER = Logging
             .getLogger(ChangeMatrixDeleteTransactionListener.class);
 
+    private static final FilterFactory FF = CommonFactoryFinder.getFilterFactory(null);
+
     protected GeoServer geoServer;
 
     protected Catalog catalog;
@@ -94,7 +104,15 @@ public class ChangeMatrixDeleteTransactionListener implements TransactionListene
                                         + " into the Catalog");
                             }
 
-                            if (ws != null) {
+                            if (ws != null && layerName != null
+                                    && isReferenced(event, features, wsName, layerName)) {
+                                // the layer is shared with the runs served by the change matrix cache
+                                if (LOGGER.isLoggable(Level.FINE)) {
+                                    LOGGER.fine("ChangeMatrixDeleteTransactionListener - layer "
+                                            + layerName
+                                            + " still referenced by other records, keeping it");
+                                }
+                            } else if (ws != null) {
                                 // being sure the store exists in the catalog
                                 CoverageInfo coverageInfo = catalog.getCoverageByName(wsName,
                                         layerName);
@@ -328,4 +346,41 @@ public class ChangeMatrixDeleteTransactionListener implements TransactionListene
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Checks whether the layer is referenced by completed records other than the ones being deleted: the runs served by the
+     * {@link ChangeMatrixCache} share the layer generated by the run that computed the matrix.
+     */
+    private boolean isReferenced(TransactionEvent event, List features, String wsName,
+            String layerName) {
+        int deleted = 0;
+        for (Object ft : features) {
+            if (ft instanceof SimpleFeature) {
+                SimpleFeature feature = (SimpleFeature) ft;
+                if (wsName.equals(feature.getAttribute("wsName"))
+                        && layerName.equals(feature.getAttribute("layerName"))
+                        && "COMPLETED".equals(feature.getAttribute("itemStatus"))) {
+                    deleted++;
+                }
+            }
+        }
+
+        QName typeName = event.getLayerName();
+        FeatureTypeInfo info = typeName != null ? catalog.getFeatureTypeByName(new NameImpl(
+                typeName.getNamespaceURI(), typeName.getLocalPart())) : null;
+        if (info == null) {
+            return false;
+        }
+        List<Filter> filters = new ArrayList<Filter>();
+        filters.add(FF.equals(FF.property("wsName"), FF.literal(wsName)));
+        filters.add(FF.equals(FF.property("layerName"), FF.literal(layerName)));
+        filters.add(FF.equals(FF.property("itemStatus"), FF.literal("COMPLETED")));
+        try {
+            return info.getFeatureSource(null, null).getFeatures(FF.and(filters)).size() > deleted;
+        } catch (IOException e) {
+            LOGGER.warning("ChangeMatrixDeleteTransactionListener - Could not count the records of layer "
+                    + layerName + ": " + e.getLocalizedMessage());
+            return false;
+        }
+    }
+}
@@ -40,19 +40,23 @@ import java.awt.image.RenderedImage;
 import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
 import java.awt.image.renderable.ParameterBlock;
-import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -75,7 +79,6 @@ import jcuda.driver.CUmodule;
 import jcuda.driver.JCudaDriver;
 import net.sf.json.JSONSerializer;
 
-import org.apache.commons.io.FileUtils;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.CoverageInfo;
 import org.geoserver.config.CoverageAccessInfo;
@@ -84,25 +87,16 @@ import org.geoserver.data.util.CoverageUtils;
 import org.geoserver.wps.WPSException;
 import org.geoserver.wps.area.AreaDescriptor;
 import org.geoserver.wps.area.AreaRIF;
-import org.geoserver.wps.gs.CoverageImporter;
+import org.geoserver.wps.gs.soilsealing.ChangeMatrixCache.CachedChangeMatrix;
 import org.geoserver.wps.gs.ImportProcess;
-import org.geoserver.wps.gs.ToFeature;
-import org.geoserver.wps.gs.WFSLog;
+import org.geoserver.wps.gs.StatusJournal;
 import org.geoserver.wps.ppio.FeatureAttribute;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridCoverageFactory;
 import org.geotools.coverage.grid.GridGeometry2D;
-import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
-import org.geotools.data.DataSourceException;
-import org.geotools.data.collection.ListFeatureCollection;
-import org.geotools.data.simple.SimpleFeatureCollection;
-import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.factory.GeoTools;
 import org.geotools.factory.Hints;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
-import org.geotools.gce.geotiff.GeoTiffFormat;
-import org.geotools.gce.geotiff.GeoTiffWriter;
 import org.geotools.gce.imagemosaic.ImageMosaicFormat;
 import org.geotools.geometry.Envelope2D;
 import org.geotools.geometry.jts.JTS;
@@ -117,12 +111,10 @@ import org.geotools.process.gs.GSProcess;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.geotools.resources.image.ImageUtilities;
-import org.geotools.util.NullProgressListener;
+import org.geotools.util.logging.Logging;
 import org.jaitools.imageutils.ImageLayout2;
 import org.opengis.coverage.grid.GridCoverageReader;
-import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.filter.Filter;
-import org.opengis.filter.FilterFactory;
 import org.opengis.metadata.spatial.PixelOrientation;
 import org.opengis.parameter.GeneralParameterValue;
 import org.opengis.parameter.ParameterValueGroup;
@@ -147,6 +139,8 @@ import com.vividsolutions.jts.geom.PrecisionModel;
 @DescribeProcess(title = "ChangeMatrix", description = "Compute the ChangeMatrix between two coverages")
 public class ChangeMatrixProcess implements GSProcess {
 
+    private static final Logger LOGGER = Logging.getLogger(ChangeMatrixProcess.class);
+
     static {
         Registry.registerRIF(JAI.getDefaultInstance(), new ChangeMatrixDescriptor(),
                 new ChangeMatrixRIF(), Registry.JAI_TOOLS_PRODUCT);
@@ -161,12 +155,13 @@ public class ChangeMatrixProcess implements GSProcess {
 
     private static final int PIXEL_MULTY_ARG_INDEX = 100;
 
+    /** System property used for selecting the calculator to use when JCUDA is not requested, JAIEXT (default) or JAVA */
+    public static final String CALCULATOR_KEY = "org.geoserver.wps.changematrix.calculator";
+
     private static final int TOTAL_CLASSES = 44;
 
     private static final double HACONVERTER = 0.0001f;
 
-    private static final FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
-
     private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory(
             new PrecisionModel());
 
@@ -174,6 +169,12 @@ public class ChangeMatrixProcess implements GSProcess {
 
     private GeoServer geoserver;
 
+    /** Optional cache of the computed results */
+    private ChangeMatrixCache cache;
+
+    /** Asynchronous journal of the process status */
+    private StatusJournal statusJournal;
+
     public ChangeMatrixProcess(Catalog catalog, GeoServer geoserver) {
         this.catalog = catalog;
         this.geoserver = geoserver;
@@ -185,6 +186,8 @@ public class ChangeMatrixProcess implements GSProcess {
      * @param rasterT1 rasterT1 that is the update situation (Mandatory)
      * @param roi that identifies the optional ROI (so that could be null)
      * @param JCUDA that indicates if the ChangeMatrix must be calculated using JCUDA or the JAI (could be null, default false)
+     * @param matrixOnly that indicates if only the ChangeMatrix must be computed, without creating and importing the output raster (could be null,
+     *        default false). It takes precedence over JCUDA.
      * @return
      */
     @DescribeResult(name = "changeMatrix", description = "the ChangeMatrix", type = ChangeMatrixDTO.class)
@@ -197,7 +200,8 @@ public class ChangeMatrixProcess implements GSProcess {
             @DescribeParameter(name = "nowFilter", description = "Filter to use on the raster data", min = 1) Filter nowFilter,
             @DescribeParameter(name = "classes", collectionType = Integer.class, min = 1, description = "The domain of the classes used in input rasters") Set<Integer> classes,
             @DescribeParameter(name = "ROI", min = 0, description = "Region Of Interest") Geometry roi,
-            @DescribeParameter(name = "JCUDA", min = 0, description = "Calculation of the ChangeMatrix by using JCUDA") Boolean jCudaEnabled)
+            @DescribeParameter(name = "JCUDA", min = 0, description = "Calculation of the ChangeMatrix by using JCUDA") Boolean jCudaEnabled,
+            @DescribeParameter(name = "matrixOnly", min = 0, description = "Compute only the ChangeMatrix without creating the output raster") Boolean matrixOnly)
             throws IOException {
 
         // DEBUG OPTION
@@ -211,6 +215,12 @@ public class ChangeMatrixProcess implements GSProcess {
             jcuda = jCudaEnabled;
         }
 
+        // Check if only the matrix must be computed
+        final boolean onlyMatrix = matrixOnly != null && matrixOnly;
+        if (onlyMatrix) {
+            jcuda = false;
+        }
+
         // get the original Coverages
         CoverageInfo ciReference = catalog.getCoverageByName(referenceName);
         if (ciReference == null) {
@@ -225,18 +235,50 @@ public class ChangeMatrixProcess implements GSProcess {
         ROI roiObj = null;
         // ///////////////////////////////////////////////
 
+        // ///////////////////////////////////////////////
+        // Result cache key, built before the ROI gets modified ...
+        final String cacheKey = cache != null ? cache.buildKey(ciReference, referenceFilter,
+                nowFilter, roi, classes) : null;
+        // ///////////////////////////////////////////////
+
         // ///////////////////////////////////////////////
         // Logging to WFS variables ...
         final String wsName = ciReference.getNamespace().getPrefix();
         final UUID uuid = UUID.randomUUID();
-        SimpleFeatureCollection features = null;
-        Filter filter = null;
-        ToFeature toFeatureProcess = new ToFeature();
-        WFSLog wfsLogProcess = new WFSLog(geoserver);
+        final StatusJournal statusJournal = getStatusJournal();
+        boolean logged = false;
         // ///////////////////////////////////////////////
 
         try {
 
+            // //////////////////////////////////////////////////////////////////////
+            // Look for a cached result ...
+            // //////////////////////////////////////////////////////////////////////
+            if (cacheKey != null) {
+                CachedChangeMatrix cached = cache.get(cacheKey);
+                if (cached != null && cached.getLayerName().length() > 0
+                        && catalog.getCoverageByName(wsName, cached.getLayerName()) == null) {
+                    // the generated layer has been removed meanwhile
+                    cache.remove(cacheKey);
+                    cached = null;
+                }
+                if (cached != null && (onlyMatrix || cached.getLayerName().length() > 0)) {
+                    final ChangeMatrixDTO changeMatrix = cached.getChangeMatrix();
+                    // the record shares the layer of the run that computed the matrix, which is not
+                    // removed while other completed records still reference it
+                    List<FeatureAttribute> attributes = buildLogAttributes(uuid, "COMPLETED",
+                            "Change Matrix Process completed successfully (cached)",
+                            referenceName, defaultStyle, referenceFilter, nowFilter, roi, wsName);
+                    setAttribute(attributes, "layerName", cached.getLayerName());
+                    setAttribute(attributes, "changeMatrix",
+                            JSONSerializer.toJSON(changeMatrix).toString());
+                    statusJournal.insert(wsName, storeName, typeName,
+                            JTS.toGeometry(ciReference.getNativeBoundingBox()),
+                            ciReference.getCRS(), attributes);
+                    return changeMatrix;
+                }
+            }
+
             // read reference coverage
             GridCoverageReader referenceReader = ciReference.getGridCoverageReader(null, null);
             ParameterValueGroup readParametersDescriptor = referenceReader.getFormat()
@@ -295,7 +337,7 @@ public class ChangeMatrixProcess implements GSProcess {
                     roiObj = CoverageUtilities.prepareROI2(roi, gridToWorldCorner);
                 } else {
                     // reproject
-                    MathTransform transform = CRS.findMathTransform(DefaultGeographicCRS.WGS84,
+                    MathTransform transform = CRSCache.findMathTransform(DefaultGeographicCRS.WGS84,
                             crs, true);
                     if (transform.isIdentity()) {
                         roiPrj = roi;
@@ -373,38 +415,16 @@ public class ChangeMatrixProcess implements GSProcess {
             /**
              * Convert the spread attributes into a FeatureType
              */
-            List<FeatureAttribute> attributes = new ArrayList<FeatureAttribute>();
-
-            attributes.add(new FeatureAttribute("ftUUID", uuid.toString()));
-            attributes.add(new FeatureAttribute("runBegin", new Date()));
-            attributes.add(new FeatureAttribute("runEnd", new Date()));
-            attributes.add(new FeatureAttribute("itemStatus", "RUNNING"));
-            attributes.add(new FeatureAttribute("itemStatusMessage", "Instrumented by Server"));
-            attributes.add(new FeatureAttribute("referenceName", referenceName));
-            attributes.add(new FeatureAttribute("defaultStyle", defaultStyle));
-            attributes.add(new FeatureAttribute("referenceFilter", referenceFilter.toString()));
-            attributes.add(new FeatureAttribute("nowFilter", nowFilter.toString()));
-            attributes.add(new FeatureAttribute("roi", roi.getEnvelope()));
-            attributes.add(new FeatureAttribute("wsName", wsName));
-            attributes.add(new FeatureAttribute("layerName", ""));
-            attributes.add(new FeatureAttribute("changeMatrix", ""));
-
-            features = toFeatureProcess.execute(JTS.toGeometry(ciReference.getNativeBoundingBox()),
-                    ciReference.getCRS(), typeName, attributes, null);
-
-            if (features == null || features.isEmpty()) {
-                throw new ProcessException("There was an error while converting attributes into FeatureType.");
-            }
+            List<FeatureAttribute> attributes = buildLogAttributes(uuid, "RUNNING",
+                    "Instrumented by Server", referenceName, defaultStyle, referenceFilter,
+                    nowFilter, roi, wsName);
 
             /**
              * LOG into the DB
              */
-            filter = ff.equals(ff.property("ftUUID"), ff.literal(uuid.toString()));
-            features = wfsLogProcess.execute(features, typeName, wsName, storeName, filter, true, new NullProgressListener());
-
-            if (features == null || features.isEmpty()) {
-                throw new ProcessException("There was an error while logging FeatureType into the storage.");
-            }
+            logged = statusJournal.insert(wsName, storeName, typeName,
+                    JTS.toGeometry(ciReference.getNativeBoundingBox()), ciReference.getCRS(),
+                    attributes);
 
             // //////////////////////////////////////////////////////////////////////
             // Compute the Change Matrix ...
@@ -428,91 +448,49 @@ public class ChangeMatrixProcess implements GSProcess {
                 }
             }
             // Calculation of the Area Image
-            GridGeometry2D gg2D = referenceCoverage.getGridGeometry();
-            ParameterBlock pb = new ParameterBlock();
-            pb.setSource(referenceCoverage.getRenderedImage(), 0);
-            pb.set(new ReferencedEnvelope(gg2D.getEnvelope()), 0);
-            pb.set(HACONVERTER, 1);
-            pb.set(classes, 2);
-            if(roiObj != null){
-                pb.set(roiObj, 3);
-            }
-            RenderedOp areaImage = JAI.create("area", pb);
-
-            // Selection of the Object used for calculating the ChangeMatrix
-            ChangeMatrixCalculator calculator = ChangeMatrixCalculator.getCalculator(jcuda);
-            // Calculation of the ChangeMatrix
-            ChangeMatrixContainer container = calculator.computeChangeMatrix(geoserver,
-                    referenceCoverage.getRenderedImage(), nowCoverage.getRenderedImage(),
-                    areaImage, classes, roiObj, rasterName, refYear, nowYear);
-
-            // Setting of the results
-            result = container.getResult();
-            ChangeMatrixDTO changeMatrix = container.getDto();
-
-            // //////////////////////////////////////////////////////////////////////
-            // Import into GeoServer the new raster 'result' ...
-            // //////////////////////////////////////////////////////////////////////
-            /**
-             * create the final coverage using final envelope
-             */
-            // hints for tiling
-            final Hints hints = GeoTools.getDefaultHints().clone();
+            RenderedOp areaImage = createAreaImage(referenceCoverage, classes, roiObj);
+
+            ChangeMatrixDTO changeMatrix = null;
+            String layerName = "";
+            if (onlyMatrix) {
+                // Streaming computation of the ChangeMatrix, no output raster is created
+                final ChangeMatrixAccumulator cm = computeMatrix(ciReference, referenceFilter,
+                        nowFilter, referenceCoverage, nowCoverage, areaImage, classes, roiObj);
+                areaImage.dispose();
+                changeMatrix = cm.toDTO(classes, null, refYear, nowYear);
+            } else {
+                // Selection of the Object used for calculating the ChangeMatrix
+                ChangeMatrixCalculator calculator = ChangeMatrixCalculator.getCalculator(jcuda);
+                // Calculation of the ChangeMatrix
+                ChangeMatrixContainer container = calculator.computeChangeMatrix(geoserver,
+                        referenceCoverage.getRenderedImage(), nowCoverage.getRenderedImage(),
+                        areaImage, classes, roiObj, rasterName, refYear, nowYear);
 
-            final GridCoverage2D retValue = new GridCoverageFactory(hints).create(rasterName,
-                    result, referenceCoverage.getEnvelope());
-            /**
-             * Add Overviews...
-             */
-            final File file = File.createTempFile(retValue.getName().toString(), ".tif");
-            GeoTiffWriter writer = new GeoTiffWriter(file);
-
-            // setting the write parameters for this geotiff
-            final ParameterValueGroup gtiffParams = new GeoTiffFormat().getWriteParameters();
-            gtiffParams.parameter(AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.getName().toString())
-                    .setValue(CoverageImporter.DEFAULT_WRITE_PARAMS);
-            final GeneralParameterValue[] wps = (GeneralParameterValue[]) gtiffParams.values()
-                    .toArray(new GeneralParameterValue[1]);
-
-            try {
-                writer.write(retValue, wps);
-            } finally {
-                try {
-                    writer.dispose();
-                } catch (Exception e) {
-                    throw new IOException("Unable to write the output raster.", e);
-                }
-            }
+                // Setting of the results
+                result = container.getResult();
+                changeMatrix = container.getDto();
 
-            // Disposal of the input Raster
-            PlanarImage.wrapRenderedImage(result).dispose();
+                // //////////////////////////////////////////////////////////////////////
+                // Import into GeoServer the new raster 'result' ...
+                // //////////////////////////////////////////////////////////////////////
+                /**
+                 * create the final coverage using final envelope
+                 */
+                // hints for tiling
+                final Hints hints = GeoTools.getDefaultHints().clone();
 
-            AbstractGridCoverage2DReader gtiffReader = null;
-            try {
-                gtiffReader = new GeoTiffFormat().getReader(file);
-                CoverageUtilities.generateOverviews(gtiffReader);
-            } catch (DataSourceException e) {
-                // we tried, no need to fuss around this one
-            }
+                final GridCoverage2D retValue = new GridCoverageFactory(hints).create(rasterName,
+                        result, referenceCoverage.getEnvelope());
 
-            /**
-             * import the new coverage into the GeoServer catalog
-             */
-            try {
+                /**
+                 * import the new coverage into the GeoServer catalog, the tiled and compressed GeoTIFF with its internal overviews is written
+                 * only once, directly into the data directory
+                 */
                 ImportProcess importProcess = new ImportProcess(catalog);
-                GridCoverage2D retOvValue = gtiffReader.read(wps);
-                 importProcess.execute(null, retOvValue, wsName, null, retValue.getName().toString(), retValue.getCoordinateReferenceSystem(), null,
-                 defaultStyle);
-            } finally {
-                if (gtiffReader != null) {
-                    gtiffReader.dispose();
-                }
-
-                try {
-                     FileUtils.forceDelete(file);
-                } catch (Exception e) {
-                    // we tried, no need to fuss around this one
-                }
+                importProcess.importData(null, retValue, wsName, null, retValue.getName()
+                        .toString(), retValue.getCoordinateReferenceSystem(), null, defaultStyle,
+                        true);
+                layerName = rasterName;
             }
 
             // //////////////////////////////////////////////////////////////////////
@@ -521,24 +499,18 @@ public class ChangeMatrixProcess implements GSProcess {
             /**
              * Update Feature Attributes and LOG into the DB
              */
-            filter = ff.equals(ff.property("ftUUID"), ff.literal(uuid.toString()));
-
-            SimpleFeature feature = SimpleFeatureBuilder.copy(features.subCollection(filter)
-                    .toArray(new SimpleFeature[1])[0]);
+            Map<String, Object> values = new HashMap<String, Object>();
+            values.put("runEnd", new Date());
+            values.put("itemStatus", "COMPLETED");
+            values.put("itemStatusMessage", "Change Matrix Process completed successfully");
+            values.put("layerName", layerName);
+            values.put("changeMatrix", JSONSerializer.toJSON(changeMatrix).toString());
 
-            // build the feature
-            feature.setAttribute("runEnd", new Date());
-            feature.setAttribute("itemStatus", "COMPLETED");
-            feature.setAttribute("itemStatusMessage",
-                    "Change Matrix Process completed successfully");
-            feature.setAttribute("layerName", rasterName);
-            feature.setAttribute("changeMatrix", JSONSerializer.toJSON(changeMatrix).toString());
+            statusJournal.update(wsName, storeName, typeName, uuid.toString(), values);
 
-            ListFeatureCollection output = new ListFeatureCollection(features.getSchema());
-            output.add(feature);
-
-            features = wfsLogProcess.execute(output, typeName, wsName, storeName, filter, false,
-                    new NullProgressListener());
+            if (cacheKey != null) {
+                cache.put(cacheKey, ciReference, changeMatrix, layerName);
+            }
 
             // //////////////////////////////////////////////////////////////////////
             // Return the computed Change Matrix ...
@@ -546,31 +518,21 @@ public class ChangeMatrixProcess implements GSProcess {
             return changeMatrix;
         } catch (Exception e) {
 
-            if (features != null) {
+            if (logged) {
                 // //////////////////////////////////////////////////////////////////////
                 // Updating WFS ...
                 // //////////////////////////////////////////////////////////////////////
                 /**
                  * Update Feature Attributes and LOG into the DB
                  */
-                filter = ff.equals(ff.property("ftUUID"), ff.literal(uuid.toString()));
-
-                SimpleFeature feature = SimpleFeatureBuilder.copy(features.subCollection(filter)
-                        .toArray(new SimpleFeature[1])[0]);
-
-                // build the feature
-                feature.setAttribute("runEnd", new Date());
-                feature.setAttribute("itemStatus", "FAILED");
-                feature.setAttribute(
-                        "itemStatusMessage",
+                Map<String, Object> values = new HashMap<String, Object>();
+                values.put("runEnd", new Date());
+                values.put("itemStatus", "FAILED");
+                values.put("itemStatusMessage",
                         "There was an error while while processing Input parameters: "
                                 + e.getMessage());
 
-                ListFeatureCollection output = new ListFeatureCollection(features.getSchema());
-                output.add(feature);
-
-                features = wfsLogProcess.execute(output, typeName, wsName, storeName, filter,
-                false, new NullProgressListener());
+                statusJournal.update(wsName, storeName, typeName, uuid.toString(), values);
             }
 
             throw new WPSException("Could process request ", e);
@@ -588,6 +550,112 @@ public class ChangeMatrixProcess implements GSProcess {
         }
     }
 
+    /**
+     * Creates the image of the area of each pixel of the coverage, in hectares
+     *
+     * @param coverage the coverage
+     * @param classes optional classes whose pixels must be taken into account
+     * @param roi optional ROI
+     */
+    static RenderedOp createAreaImage(GridCoverage2D coverage, Set<Integer> classes, ROI roi) {
+        ParameterBlock pb = new ParameterBlock();
+        pb.setSource(coverage.getRenderedImage(), 0);
+        pb.set(new ReferencedEnvelope(coverage.getGridGeometry().getEnvelope()), 0);
+        pb.set(HACONVERTER, 1);
+        pb.set(classes, 2);
+        if (roi != null) {
+            pb.set(roi, 3);
+        }
+        return JAI.create("area", pb);
+    }
+
+    /**
+     * Streaming computation of the change matrix. When a {@link ChangeMatrixSummaryIndex} has been built for the coverage and the filters, the
+     * stored transitions of the blocks fully inside the ROI are summed and only the other pixels are visited.
+     */
+    private ChangeMatrixAccumulator computeMatrix(CoverageInfo ciReference,
+            Filter referenceFilter, Filter nowFilter, GridCoverage2D referenceCoverage,
+            GridCoverage2D nowCoverage, RenderedImage areaImage, Set<Integer> classes, ROI roi)
+            throws IOException {
+        final RenderedImage ref = referenceCoverage.getRenderedImage();
+        final ChangeMatrixAccumulator result = new ChangeMatrixAccumulator(classes);
+        List<Rectangle> blocks = Collections.emptyList();
+        final ChangeMatrixSummaryIndex index = ChangeMatrixSummaryIndex.open(ciReference,
+                referenceFilter, nowFilter, referenceCoverage);
+        if (index != null) {
+            blocks = index.getBlocks(new Rectangle(ref.getMinX(), ref.getMinY(), ref.getWidth(),
+                    ref.getHeight()), roi);
+            index.sum(blocks, result);
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Change matrix of " + ciReference.prefixedName() + ": "
+                        + blocks.size() + " blocks read from the summary index");
+            }
+        }
+        result.merge(TileChangeMatrixCalculator.compute(ref, nowCoverage.getRenderedImage(),
+                areaImage, classes, roi, blocks, geoserver.getGlobal().getCoverageAccess()
+                        .getThreadPoolExecutor()));
+        return result;
+    }
+
+    /**
+     * Builds the attributes of the WFS log feature
+     */
+    private static List<FeatureAttribute> buildLogAttributes(UUID uuid, String status,
+            String statusMessage, String referenceName, String defaultStyle,
+            Filter referenceFilter, Filter nowFilter, Geometry roi, String wsName) {
+        List<FeatureAttribute> attributes = new ArrayList<FeatureAttribute>();
+
+        attributes.add(new FeatureAttribute("ftUUID", uuid.toString()));
+        attributes.add(new FeatureAttribute("runBegin", new Date()));
+        attributes.add(new FeatureAttribute("runEnd", new Date()));
+        attributes.add(new FeatureAttribute("itemStatus", status));
+        attributes.add(new FeatureAttribute("itemStatusMessage", statusMessage));
+        attributes.add(new FeatureAttribute("referenceName", referenceName));
+        attributes.add(new FeatureAttribute("defaultStyle", defaultStyle));
+        attributes.add(new FeatureAttribute("referenceFilter", referenceFilter.toString()));
+        attributes.add(new FeatureAttribute("nowFilter", nowFilter.toString()));
+        attributes.add(new FeatureAttribute("roi", roi != null ? roi.getEnvelope() : null));
+        attributes.add(new FeatureAttribute("wsName", wsName));
+        attributes.add(new FeatureAttribute("layerName", ""));
+        attributes.add(new FeatureAttribute("changeMatrix", ""));
+        return attributes;
+    }
+
+    /**
+     * Sets the value of an attribute built by {@link #buildLogAttributes}
+     */
+    private static void setAttribute(List<FeatureAttribute> attributes, String name, Object value) {
+        for (FeatureAttribute attribute : attributes) {
+            if (name.equals(attribute.getName())) {
+                attribute.setValue(value);
+            }
+        }
+    }
+
+    /**
+     * Returns the journal used for logging the process status, looking it up in the application context if it has not been injected
+     * 
+     * @throws IllegalStateException if it has not been injected nor configured in the application context
+     */
+    public synchronized StatusJournal getStatusJournal() {
+        if (statusJournal == null) {
+            statusJournal = StatusJournal.lookup();
+        }
+        return statusJournal;
+    }
+
+    public synchronized void setStatusJournal(StatusJournal statusJournal) {
+        this.statusJournal = statusJournal;
+    }
+
+    public ChangeMatrixCache getCache() {
+        return cache;
+    }
+
+    public void setCache(ChangeMatrixCache cache) {
+        this.cache = cache;
+    }
+
     /**
      * @return an hardcoded ChangeMatrixOutput usefull for testing
      */
@@ -748,6 +816,32 @@ public class ChangeMatrixProcess implements GSProcess {
                 return container;
             }
         },
+        JAVA {
+            @Override
+            public ChangeMatrixContainer computeChangeMatrix(GeoServer geoserver,
+                    RenderedImage ref, RenderedImage cur, RenderedImage area,
+                    Set<Integer> usedClass, ROI roi, String rasterName, String refYear,
+                    String nowYear) {
+                // Tiles are processed in parallel on the coverage access executor
+                ExecutorService executor = null;
+                if (geoserver != null) {
+                    executor = geoserver.getGlobal().getCoverageAccess().getThreadPoolExecutor();
+                }
+                final ChangeMatrixAccumulator cm = TileChangeMatrixCalculator.compute(ref, cur,
+                        area, usedClass, roi, executor);
+
+                // ImageDisposal
+                if (area instanceof RenderedOp) {
+                    ((RenderedOp) area).dispose();
+                }
+
+                // Creation of the final Container
+                ChangeMatrixContainer container = new ChangeMatrixContainer();
+                container.setDto(cm.toDTO(usedClass, rasterName, refYear, nowYear));
+                container.setResult(new ChangeMapOpImage(ref, cur, roi, PIXEL_MULTY_ARG_INDEX));
+                return container;
+            }
+        },
         JCUDA {
             @Override
             public ChangeMatrixContainer computeChangeMatrix(GeoServer geoserver,
@@ -1094,7 +1188,8 @@ public class ChangeMatrixProcess implements GSProcess {
                 ROI roi, String rasterName, String refYear, String nowYear);
 
         /**
-         * Returns a calculator for JCUDA or the JAI operation
+         * Returns a calculator for JCUDA or, if JCUDA is not requested, the calculator configured through the {@value ChangeMatrixProcess#CALCULATOR_KEY} system
+         * property (JAIEXT by default, JAVA for using the tile parallel {@link TileChangeMatrixCalculator})
          * 
          * @param jcuda
          * @return
@@ -1103,7 +1198,8 @@ public class ChangeMatrixProcess implements GSProcess {
             if (jcuda) {
                 return JCUDA;
             } else {
-                return JAIEXT;
+                return JAVA.name().equalsIgnoreCase(System.getProperty(CALCULATOR_KEY)) ? JAVA
+                        : JAIEXT;
             }
         }
     }
@@ -0,0 +1,331 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.media.jai.ROI;
+
+import org.geoserver.catalog.CoverageInfo;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.util.logging.Logging;
+import org.opengis.filter.Filter;
+
+/**
+ * Sidecar index of a mosaic storing, for a pair of filters (usually two years), the class transitions of each block of the native grid. The
+ * change matrix of a ROI can then sum the stored transitions of the blocks fully inside the ROI and compute pixel by pixel only the border
+ * ones.
+ * <p>
+ * The index is a binary file in the directory of the mosaic, named after the coverage and a digest of the filters and of the granule index
+ * signature, so that a change in the mosaic content makes it unused until it is rebuilt. It contains a header with the native grid range and the
+ * block size, the offsets of the blocks and, for each block, the sparse list of its transitions as reference class, current class, number of
+ * pixels and area.
+ * </p>
+ */
+public class ChangeMatrixSummaryIndex {
+
+    private static final Logger LOGGER = Logging.getLogger(ChangeMatrixSummaryIndex.class);
+
+    /** Default block size in pixels */
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    /** Classes stored in the index: all the byte values */
+    static final int NUM_CLASSES = 256;
+
+    private static final int MAGIC = 0x434D5349;
+
+    private static final int VERSION = 1;
+
+    /** Bytes of a stored transition: reference and current classes, pixels and area */
+    private static final int TRANSITION_SIZE = 18;
+
+    private final File file;
+
+    /** Native grid range of the coverage */
+    private final Rectangle gridBounds;
+
+    private final int blockSize;
+
+    private final int numBlocksX;
+
+    /** Offset of each block in the file, row by row */
+    private final long[] offsets;
+
+    private ChangeMatrixSummaryIndex(File file, Rectangle gridBounds, int blockSize, long[] offsets) {
+        this.file = file;
+        this.gridBounds = gridBounds;
+        this.blockSize = blockSize;
+        this.numBlocksX = numBlocks(gridBounds.width, blockSize);
+        this.offsets = offsets;
+    }
+
+    /**
+     * Returns the index file of the coverage and the provided filters
+     *
+     * @throws IOException if the directory of the coverage store can't be found
+     */
+    public static File getFile(CoverageInfo coverage, Filter referenceFilter, Filter nowFilter)
+            throws IOException {
+        return CoverageUtilities.getIndexFile(coverage, "cmsummary", referenceFilter, nowFilter);
+    }
+
+    /**
+     * Opens the index of the coverage and filters, if it exists and the read coverage is on the native grid of the coverage
+     * 
+     * @return the index, or <code>null</code> if not available
+     */
+    public static ChangeMatrixSummaryIndex open(CoverageInfo ci, Filter referenceFilter,
+            Filter nowFilter, GridCoverage2D coverage) {
+        if (!CoverageUtilities.isOnNativeGrid(ci, coverage)) {
+            return null;
+        }
+        try {
+            return open(getFile(ci, referenceFilter, nowFilter), new Rectangle(
+                    ((GridGeometry2D) ci.getGrid()).getGridRange2D()));
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "Unable to locate the summary index of "
+                        + ci.prefixedName(), e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Computes the transitions of each block and writes the index.
+     *
+     * @param file the index file
+     * @param gridBounds native grid range of the coverage
+     * @param blockSize block size in pixels
+     * @param ref reference image, covering the whole native grid range
+     * @param cur current image, with the same bounds of the reference one
+     * @param area image containing the area of each pixel
+     * @throws IOException if the index can't be written
+     */
+    public static void build(File file, Rectangle gridBounds, int blockSize, RenderedImage ref,
+            RenderedImage cur, RenderedImage area) throws IOException {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("The block size must be positive");
+        }
+        final Rectangle imageBounds = new Rectangle(ref.getMinX(), ref.getMinY(),
+                ref.getWidth(), ref.getHeight());
+        if (!imageBounds.contains(gridBounds)) {
+            throw new IllegalArgumentException("The images must cover the whole grid range");
+        }
+        final Set<Integer> classes = new HashSet<Integer>();
+        for (int c = 0; c < NUM_CLASSES; c++) {
+            classes.add(c);
+        }
+        final int numBlocksX = numBlocks(gridBounds.width, blockSize);
+        final int numBlocksY = numBlocks(gridBounds.height, blockSize);
+        final long[] offsets = new long[numBlocksX * numBlocksY];
+
+        // the blocks are written to a temporary file of this build, moved once complete
+        final File temp = File.createTempFile(file.getName() + ".", ".tmp", file.getParentFile());
+        final RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        boolean completed = false;
+        try {
+            raf.setLength(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(gridBounds.x);
+            raf.writeInt(gridBounds.y);
+            raf.writeInt(gridBounds.width);
+            raf.writeInt(gridBounds.height);
+            raf.writeInt(blockSize);
+            final long offsetsPosition = raf.getFilePointer();
+            raf.seek(offsetsPosition + offsets.length * 8L);
+
+            ChangeMatrixAccumulator acc = new ChangeMatrixAccumulator(classes);
+            for (int by = 0; by < numBlocksY; by++) {
+                for (int bx = 0; bx < numBlocksX; bx++) {
+                    final Rectangle block = getBlock(gridBounds, blockSize, bx, by);
+                    TileChangeMatrixCalculator.accumulate(block, ref, cur, area, acc);
+                    offsets[by * numBlocksX + bx] = raf.getFilePointer();
+                    writeBlock(raf, acc);
+                    acc = new ChangeMatrixAccumulator(acc);
+                }
+            }
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(offsets.length * 8);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+            raf.seek(offsetsPosition);
+            raf.write(bytes.toByteArray());
+            completed = true;
+        } finally {
+            raf.close();
+            if (!completed) {
+                temp.delete();
+            }
+        }
+        if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+            temp.delete();
+            // a concurrent build of the same index may have just moved its own file
+            if (!file.exists()) {
+                throw new IOException("Unable to write the change matrix index " + file);
+            }
+        }
+    }
+
+    private static void writeBlock(RandomAccessFile raf, ChangeMatrixAccumulator acc)
+            throws IOException {
+        final List<Integer> transitions = new ArrayList<Integer>();
+        for (int ref = 0; ref < NUM_CLASSES; ref++) {
+            for (int now = 0; now < NUM_CLASSES; now++) {
+                if (acc.getCount(ref, now) > 0) {
+                    transitions.add(ref * NUM_CLASSES + now);
+                }
+            }
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + transitions.size()
+                * TRANSITION_SIZE);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(transitions.size());
+        for (int transition : transitions) {
+            final int ref = transition / NUM_CLASSES;
+            final int now = transition % NUM_CLASSES;
+            out.writeByte(ref);
+            out.writeByte(now);
+            out.writeLong(acc.getCount(ref, now));
+            out.writeDouble(acc.getArea(ref, now));
+        }
+        raf.write(bytes.toByteArray());
+    }
+
+    /**
+     * Opens an existing index.
+     *
+     * @param file the index file
+     * @param gridBounds the current native grid range of the coverage
+     * @return the index, or <code>null</code> if the file does not exist or has been built for a different grid
+     */
+    public static ChangeMatrixSummaryIndex open(File file, Rectangle gridBounds) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                final Rectangle bounds = new Rectangle(in.readInt(), in.readInt(),
+                        in.readInt(), in.readInt());
+                final int blockSize = in.readInt();
+                if (!bounds.equals(gridBounds) || blockSize <= 0) {
+                    return null;
+                }
+                final long[] offsets = new long[numBlocks(bounds.width, blockSize)
+                        * numBlocks(bounds.height, blockSize)];
+                for (int i = 0; i < offsets.length; i++) {
+                    offsets[i] = in.readLong();
+                }
+                return new ChangeMatrixSummaryIndex(file, bounds, blockSize, offsets);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.WARNING)) {
+                LOGGER.log(Level.WARNING, "Unable to read the change matrix index " + file, e);
+            }
+            return null;
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Returns the blocks fully inside the provided bounds and ROI.
+     *
+     * @param bounds bounds of the images in the native grid space
+     * @param roi optional ROI in the native grid space
+     * @return the blocks
+     */
+    public List<Rectangle> getBlocks(Rectangle bounds, ROI roi) {
+        final List<Rectangle> result = new ArrayList<Rectangle>();
+        final Rectangle area = bounds.intersection(gridBounds);
+        if (area.isEmpty()) {
+            return result;
+        }
+        final int minBlockX = (area.x - gridBounds.x) / blockSize;
+        final int maxBlockX = (area.x + area.width - 1 - gridBounds.x) / blockSize;
+        final int minBlockY = (area.y - gridBounds.y) / blockSize;
+        final int maxBlockY = (area.y + area.height - 1 - gridBounds.y) / blockSize;
+        for (int by = minBlockY; by <= maxBlockY; by++) {
+            for (int bx = minBlockX; bx <= maxBlockX; bx++) {
+                final Rectangle block = getBlock(gridBounds, blockSize, bx, by);
+                if (bounds.contains(block) && (roi == null || roi.contains(block))) {
+                    result.add(block);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the stored transitions of the provided blocks to the accumulator
+     *
+     * @param blocks blocks returned by {@link #getBlocks(Rectangle, ROI)}
+     * @param acc the accumulator
+     * @throws IOException if the index can't be read
+     */
+    public void sum(List<Rectangle> blocks, ChangeMatrixAccumulator acc) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] buffer = new byte[0];
+            for (Rectangle block : blocks) {
+                final int bx = (block.x - gridBounds.x) / blockSize;
+                final int by = (block.y - gridBounds.y) / blockSize;
+                raf.seek(offsets[by * numBlocksX + bx]);
+                final int length = raf.readInt() * TRANSITION_SIZE;
+                if (buffer.length < length) {
+                    buffer = new byte[length];
+                }
+                raf.readFully(buffer, 0, length);
+                final DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer,
+                        0, length));
+                for (int i = 0; i < length; i += TRANSITION_SIZE) {
+                    final int ref = in.readUnsignedByte();
+                    final int now = in.readUnsignedByte();
+                    acc.add(ref, now, in.readLong(), in.readDouble());
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int numBlocks(int size, int blockSize) {
+        return (size + blockSize - 1) / blockSize;
+    }
+
+    private static Rectangle getBlock(Rectangle gridBounds, int blockSize, int bx, int by) {
+        return new Rectangle(gridBounds.x + bx * blockSize, gridBounds.y + by * blockSize,
+                blockSize, blockSize).intersection(gridBounds);
+    }
+}
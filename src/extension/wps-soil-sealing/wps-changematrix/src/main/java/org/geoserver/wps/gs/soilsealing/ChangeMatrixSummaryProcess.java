@@ -0,0 +1,100 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.media.jai.RenderedOp;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CoverageInfo;
+import org.geoserver.wps.WPSException;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.process.factory.DescribeParameter;
+import org.geotools.process.factory.DescribeProcess;
+import org.geotools.process.factory.DescribeResult;
+import org.geotools.process.gs.GSProcess;
+import org.geotools.util.logging.Logging;
+import org.opengis.coverage.grid.GridCoverageReader;
+import org.opengis.filter.Filter;
+
+/**
+ * Precomputes the {@link ChangeMatrixSummaryIndex} of a mosaic for a pair of filters, so that the following {@link ChangeMatrixProcess}
+ * executions only computing the matrix can reuse the transitions of the blocks fully inside their ROI.
+ */
+@DescribeProcess(title = "ChangeMatrixSummary", description = "Precompute the ChangeMatrix transitions of each block of a coverage for two filters")
+public class ChangeMatrixSummaryProcess implements GSProcess {
+
+    private static final Logger LOGGER = Logging.getLogger(ChangeMatrixSummaryProcess.class);
+
+    private Catalog catalog;
+
+    public ChangeMatrixSummaryProcess(Catalog catalog) {
+        this.catalog = catalog;
+    }
+
+    @DescribeResult(name = "index", description = "the name of the written index file", type = String.class)
+    public String execute(
+            @DescribeParameter(name = "name", description = "Name of the raster, optionally fully qualified (workspace:name)") String referenceName,
+            @DescribeParameter(name = "referenceFilter", description = "Filter to use on the raster data", min = 1) Filter referenceFilter,
+            @DescribeParameter(name = "nowFilter", description = "Filter to use on the raster data", min = 1) Filter nowFilter,
+            @DescribeParameter(name = "blockSize", min = 0, description = "Size in pixels of the summarized blocks") Integer blockSize)
+            throws IOException {
+        final CoverageInfo ciReference = catalog.getCoverageByName(referenceName);
+        if (ciReference == null) {
+            throw new WPSException("Could not find coverage " + referenceName);
+        }
+        final int size = blockSize != null ? blockSize
+                : ChangeMatrixSummaryIndex.DEFAULT_BLOCK_SIZE;
+        if (size <= 0) {
+            throw new WPSException("The block size must be positive");
+        }
+
+        final GridGeometry2D nativeGrid = (GridGeometry2D) ciReference.getGrid();
+        final File file = ChangeMatrixSummaryIndex.getFile(ciReference, referenceFilter,
+                nowFilter);
+        GridCoverage2D referenceCoverage = null;
+        GridCoverage2D nowCoverage = null;
+        RenderedOp areaImage = null;
+        try {
+            final GridCoverageReader reader = ciReference.getGridCoverageReader(null, null);
+            referenceCoverage = CoverageUtilities.readCoverage(ciReference, reader,
+                    referenceFilter, nativeGrid);
+            if (referenceCoverage == null) {
+                throw new WPSException("Input Reference Coverage not found");
+            }
+            nowCoverage = CoverageUtilities.readCoverage(ciReference, reader, nowFilter,
+                    nativeGrid);
+            if (nowCoverage == null) {
+                throw new WPSException("Input Current Coverage not found");
+            }
+
+            // areas of all the classes, the ones outside the requested domain are dropped later
+            areaImage = ChangeMatrixProcess.createAreaImage(referenceCoverage, null, null);
+            ChangeMatrixSummaryIndex.build(file, new Rectangle(nativeGrid.getGridRange2D()),
+                    size, referenceCoverage.getRenderedImage(), nowCoverage.getRenderedImage(),
+                    areaImage);
+            if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.info("Written the change matrix index " + file);
+            }
+            return file.getName();
+        } finally {
+            if (areaImage != null) {
+                areaImage.dispose();
+            }
+            if (referenceCoverage != null) {
+                referenceCoverage.dispose(true);
+            }
+            if (nowCoverage != null) {
+                nowCoverage.dispose(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.media.jai.PlanarImage;
+import javax.media.jai.ROI;
+
+import org.geotools.process.ProcessException;
+
+/**
+ * Pure Java change matrix computation. The tiles of the reference and current images are read straight from their data buffers and the
+ * transitions are counted into one {@link ChangeMatrixAccumulator} per worker; the partial accumulators are merged once all the tiles have been
+ * visited.
+ * <p>
+ * Tiles fully inside the ROI are run-length encoded, and the transitions are counted once for each intersection of the runs of the two
+ * years instead of once for each pixel.
+ * </p>
+ */
+class TileChangeMatrixCalculator {
+
+    private TileChangeMatrixCalculator() {
+    }
+
+    /**
+     * Computes the change matrix between the two images.
+     *
+     * @param ref reference image
+     * @param cur current image, must have the same bounds of the reference one
+     * @param area optional image containing the area of each pixel
+     * @param classes classes to take into account
+     * @param roi optional ROI
+     * @param executor optional executor used for processing the tiles in parallel; if <code>null</code> the tiles are processed by the calling
+     *        thread
+     * @return the accumulated transitions
+     */
+    static ChangeMatrixAccumulator compute(final RenderedImage ref, final RenderedImage cur,
+            final RenderedImage area, Set<Integer> classes, final ROI roi,
+            ExecutorService executor) {
+        return compute(ref, cur, area, classes, roi, Collections.<Rectangle> emptyList(),
+                executor);
+    }
+
+    /**
+     * Computes the change matrix between the two images, skipping the pixels of the excluded rectangles, whose transitions are already known.
+     *
+     * @param ref reference image
+     * @param cur current image, must have the same bounds of the reference one
+     * @param area optional image containing the area of each pixel
+     * @param classes classes to take into account
+     * @param roi optional ROI
+     * @param excluded rectangles of pixels to skip, not overlapping each other
+     * @param executor optional executor used for processing the tiles in parallel; if <code>null</code> the tiles are processed by the calling
+     *        thread
+     * @return the accumulated transitions
+     */
+    static ChangeMatrixAccumulator compute(final RenderedImage ref, final RenderedImage cur,
+            final RenderedImage area, Set<Integer> classes, final ROI roi,
+            final List<Rectangle> excluded, ExecutorService executor) {
+        final ChangeMatrixAccumulator result = new ChangeMatrixAccumulator(classes);
+
+        // Selection of the tiles to process
+        final List<TileRequest> tiles = getTiles(ref, roi, excluded);
+        if (tiles.isEmpty()) {
+            return result;
+        }
+
+        // Workers pull the tiles from a shared index
+        final AtomicInteger next = new AtomicInteger();
+        final int numWorkers = executor == null ? 1 : Math.min(tiles.size(), Runtime
+                .getRuntime().availableProcessors());
+        final List<Callable<ChangeMatrixAccumulator>> workers = new ArrayList<Callable<ChangeMatrixAccumulator>>(
+                numWorkers);
+        for (int i = 0; i < numWorkers; i++) {
+            workers.add(new Callable<ChangeMatrixAccumulator>() {
+
+                @Override
+                public ChangeMatrixAccumulator call() throws Exception {
+                    ChangeMatrixAccumulator partial = new ChangeMatrixAccumulator(result);
+                    int index;
+                    while ((index = next.getAndIncrement()) < tiles.size()) {
+                        accumulate(tiles.get(index), ref, cur, area, roi, excluded, partial);
+                    }
+                    return partial;
+                }
+            });
+        }
+
+        try {
+            if (executor == null) {
+                result.merge(workers.get(0).call());
+            } else {
+                List<Future<ChangeMatrixAccumulator>> futures = new ArrayList<Future<ChangeMatrixAccumulator>>(
+                        numWorkers);
+                for (Callable<ChangeMatrixAccumulator> worker : workers) {
+                    futures.add(executor.submit(worker));
+                }
+                for (Future<ChangeMatrixAccumulator> future : futures) {
+                    result.merge(future.get());
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new ProcessException("Unable to compute the change matrix", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException("Change matrix computation interrupted", e);
+        } catch (Exception e) {
+            throw new ProcessException("Unable to compute the change matrix", e);
+        }
+        return result;
+    }
+
+    /**
+     * Accumulates the transitions of a single tile.
+     */
+    static void accumulate(TileRequest tile, RenderedImage ref, RenderedImage cur,
+            RenderedImage area, ROI roi, List<Rectangle> excluded, ChangeMatrixAccumulator acc) {
+        final Rectangle rect = tile.rect;
+        final Raster refRaster = getRaster(ref, ref, tile);
+        final Raster curRaster = getRaster(cur, ref, tile);
+        final Raster areaRaster = area != null ? getRaster(area, ref, tile) : null;
+
+        // Excluded rectangles crossing the tile
+        final List<Rectangle> skipped = new ArrayList<Rectangle>();
+        for (Rectangle r : excluded) {
+            if (r.intersects(rect)) {
+                skipped.add(r);
+            }
+        }
+
+        // If the tile is fully inside the ROI no per-pixel check is needed
+        final boolean inside = roi == null || roi.contains(rect);
+        if (inside && skipped.isEmpty()) {
+            accumulateRuns(rect, refRaster, curRaster, areaRaster, acc);
+            return;
+        }
+
+        final int width = rect.width;
+        final int[] refRow = new int[width];
+        final int[] curRow = new int[width];
+        final double[] areaRow = new double[width];
+        for (int y = rect.y; y < rect.y + rect.height; y++) {
+            CoverageUtilities.readRow(refRaster, 0, rect.x, y, width, refRow);
+            CoverageUtilities.readRow(curRaster, 0, rect.x, y, width, curRow);
+            if (areaRaster != null) {
+                CoverageUtilities.readRow(areaRaster, 0, rect.x, y, width, areaRow);
+            }
+            for (int i = 0; i < width; i++) {
+                if ((inside || roi.contains(rect.x + i, y)) && !contains(skipped, rect.x + i, y)) {
+                    acc.add(refRow[i], curRow[i], areaRow[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Accumulates the transitions of a rectangle of the images, which must be inside their bounds.
+     */
+    static void accumulate(Rectangle rect, RenderedImage ref, RenderedImage cur,
+            RenderedImage area, ChangeMatrixAccumulator acc) {
+        final int minTileX = PlanarImage.XToTileX(rect.x, ref.getTileGridXOffset(),
+                ref.getTileWidth());
+        final int maxTileX = PlanarImage.XToTileX(rect.x + rect.width - 1,
+                ref.getTileGridXOffset(), ref.getTileWidth());
+        final int minTileY = PlanarImage.YToTileY(rect.y, ref.getTileGridYOffset(),
+                ref.getTileHeight());
+        final int maxTileY = PlanarImage.YToTileY(rect.y + rect.height - 1,
+                ref.getTileGridYOffset(), ref.getTileHeight());
+        for (int ty = minTileY; ty <= maxTileY; ty++) {
+            for (int tx = minTileX; tx <= maxTileX; tx++) {
+                final TileRequest tile = new TileRequest(tx, ty, new Rectangle(
+                        ref.getTileGridXOffset() + tx * ref.getTileWidth(),
+                        ref.getTileGridYOffset() + ty * ref.getTileHeight(), ref.getTileWidth(),
+                        ref.getTileHeight()).intersection(rect));
+                accumulateRuns(tile.rect, getRaster(ref, ref, tile), getRaster(cur, ref, tile),
+                        area != null ? getRaster(area, ref, tile) : null, acc);
+            }
+        }
+    }
+
+    private static boolean contains(List<Rectangle> rects, int x, int y) {
+        for (Rectangle r : rects) {
+            if (r.contains(x, y)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Accumulates the transitions of a whole tile intersecting the runs of the reference and current rasters.
+     */
+    static void accumulateRuns(Rectangle rect, Raster refRaster, Raster curRaster,
+            Raster areaRaster, ChangeMatrixAccumulator acc) {
+        final RunLengthRaster refRuns = RunLengthRaster.encode(refRaster, 0, rect);
+        final RunLengthRaster curRuns = RunLengthRaster.encode(curRaster, 0, rect);
+
+        final double[] areaRow = new double[rect.width];
+        // cumulated areas of the row, to get the area of a run with a subtraction
+        final double[] areaSums = new double[rect.width + 1];
+        for (int y = rect.y; y < rect.y + rect.height; y++) {
+            if (areaRaster != null) {
+                CoverageUtilities.readRow(areaRaster, 0, rect.x, y, rect.width, areaRow);
+                for (int i = 0; i < rect.width; i++) {
+                    areaSums[i + 1] = areaSums[i] + areaRow[i];
+                }
+            }
+            final int[] ref = refRuns.getRuns(y);
+            final int[] cur = curRuns.getRuns(y);
+            final int refEnd = refRuns.getNumRuns(y) * RunLengthRaster.RUN_SIZE;
+            final int curEnd = curRuns.getNumRuns(y) * RunLengthRaster.RUN_SIZE;
+            int start = rect.x;
+            for (int i = 0, j = 0; i < refEnd && j < curEnd;) {
+                final int end = Math.min(ref[i], cur[j]);
+                acc.add(ref[i + 1], cur[j + 1], end - start, areaSums[end - rect.x]
+                        - areaSums[start - rect.x]);
+                start = end;
+                if (ref[i] == end) {
+                    i += RunLengthRaster.RUN_SIZE;
+                }
+                if (cur[j] == end) {
+                    j += RunLengthRaster.RUN_SIZE;
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists the tiles of the reference image intersecting the ROI, clipped to the image bounds.
+     */
+    static List<TileRequest> getTiles(RenderedImage ref, ROI roi) {
+        return getTiles(ref, roi, Collections.<Rectangle> emptyList());
+    }
+
+    /**
+     * Lists the tiles of the reference image intersecting the ROI and not fully inside an excluded rectangle, clipped to the image bounds.
+     */
+    static List<TileRequest> getTiles(RenderedImage ref, ROI roi, List<Rectangle> excluded) {
+        final Rectangle bounds = new Rectangle(ref.getMinX(), ref.getMinY(), ref.getWidth(),
+                ref.getHeight());
+        final List<TileRequest> tiles = new ArrayList<TileRequest>(ref.getNumXTiles()
+                * ref.getNumYTiles());
+        for (int ty = ref.getMinTileY(); ty < ref.getMinTileY() + ref.getNumYTiles(); ty++) {
+            for (int tx = ref.getMinTileX(); tx < ref.getMinTileX() + ref.getNumXTiles(); tx++) {
+                Rectangle rect = new Rectangle(ref.getTileGridXOffset() + tx * ref.getTileWidth(),
+                        ref.getTileGridYOffset() + ty * ref.getTileHeight(), ref.getTileWidth(),
+                        ref.getTileHeight()).intersection(bounds);
+                if (!rect.isEmpty() && (roi == null || roi.intersects(rect))
+                        && !isExcluded(rect, excluded)) {
+                    tiles.add(new TileRequest(tx, ty, rect));
+                }
+            }
+        }
+        return tiles;
+    }
+
+    private static boolean isExcluded(Rectangle rect, List<Rectangle> excluded) {
+        for (Rectangle r : excluded) {
+            if (r.contains(rect)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the data of the requested tile, using the tile itself when the image shares the tile grid of the reference image.
+     */
+    private static Raster getRaster(RenderedImage image, RenderedImage ref, TileRequest tile) {
+        if (image.getTileWidth() == ref.getTileWidth()
+                && image.getTileHeight() == ref.getTileHeight()
+                && image.getTileGridXOffset() == ref.getTileGridXOffset()
+                && image.getTileGridYOffset() == ref.getTileGridYOffset()) {
+            return image.getTile(tile.tileX, tile.tileY);
+        }
+        return image.getData(tile.rect);
+    }
+
+    /**
+     * A tile of the reference image with its bounds clipped to the image
+     */
+    static class TileRequest {
+
+        final int tileX;
+
+        final int tileY;
+
+        final Rectangle rect;
+
+        TileRequest(int tileX, int tileY, Rectangle rect) {
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.rect = rect;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.area;
+
+import java.awt.Rectangle;
+
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.geotools.referencing.operation.transform.ConcatenatedTransform;
+import org.junit.Assert;
+import org.junit.Test;
+import org.opengis.metadata.spatial.PixelOrientation;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.MathTransform2D;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+
+public class PixelAreaTableTest {
+
+    private static final String ECKERT_IV_WKT = "PROJCS[\"World_Eckert_IV\",GEOGCS[\"GCS_WGS_1984\",DATUM[\"D_WGS_1984\",SPHEROID[\"WGS_1984\",6378137.0,298.257223563]],PRIMEM[\"Greenwich\",0.0],UNIT[\"Degree\",0.0174532925199433]],PROJECTION[\"Eckert_IV\"],PARAMETER[\"Central_Meridian\",0.0],UNIT[\"Meter\",1.0]]";
+
+    private static final GeometryFactory GEOM_FACTORY = new GeometryFactory();
+
+    private static final Rectangle BOUNDS = new Rectangle(0, 0, 300, 200);
+
+    @Test
+    public void testGeographic() throws Exception {
+        ReferencedEnvelope env = new ReferencedEnvelope(6, 18, 36, 47, DefaultGeographicCRS.WGS84);
+        // Each row is a latitude band, the table must be exact
+        checkAreas(env, PixelAreaTable.Mode.ROWS, 1E-9);
+    }
+
+    @Test
+    public void testProjected() throws Exception {
+        ReferencedEnvelope env = new ReferencedEnvelope(300000, 900000, 4000000, 5200000,
+                CRS.decode("EPSG:32632"));
+        checkAreas(env, PixelAreaTable.Mode.INTERPOLATED, PixelAreaTable.DEFAULT_TOLERANCE);
+    }
+
+    @Test
+    public void testSmallExtent() throws Exception {
+        ReferencedEnvelope env = new ReferencedEnvelope(500000, 500600, 4500000, 4500400,
+                CRS.decode("EPSG:32632"));
+        checkAreas(env, PixelAreaTable.Mode.CONSTANT, PixelAreaTable.DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * Compares the table with the reprojection of each pixel polygon to Eckert IV
+     */
+    private void checkAreas(ReferencedEnvelope env, PixelAreaTable.Mode expectedMode,
+            double tolerance) throws Exception {
+        MathTransform2D g2w = new GridGeometry2D(new GridEnvelope2D(BOUNDS), env)
+                .getGridToCRS2D(PixelOrientation.UPPER_LEFT);
+        CoordinateReferenceSystem eckert = CRS.parseWKT(ECKERT_IV_WKT);
+        MathTransform transform = CRS.findMathTransform(env.getCoordinateReferenceSystem(),
+                eckert);
+
+        PixelAreaTable table = new PixelAreaTable(ConcatenatedTransform.create(g2w, transform),
+                BOUNDS);
+        Assert.assertEquals(expectedMode, table.getMode());
+
+        double[] areas = new double[BOUNDS.width];
+        for (int y = BOUNDS.y; y < BOUNDS.y + BOUNDS.height; y += 7) {
+            table.getRowAreas(y, BOUNDS.x, BOUNDS.width, areas);
+            for (int x = BOUNDS.x; x < BOUNDS.x + BOUNDS.width; x += 5) {
+                double expected = JTS.transform(pixelPolygon(g2w, x, y), transform).getArea();
+                Assert.assertEquals(expected, areas[x - BOUNDS.x], expected * tolerance);
+            }
+        }
+    }
+
+    private Polygon pixelPolygon(MathTransform2D g2w, int x, int y) throws Exception {
+        double[] c = new double[] { x, y, x + 1, y, x + 1, y + 1, x, y + 1 };
+        g2w.transform(c, 0, c, 0, 4);
+        Coordinate[] coordinates = new Coordinate[] { new Coordinate(c[0], c[1]),
+                new Coordinate(c[2], c[3]), new Coordinate(c[4], c[5]),
+                new Coordinate(c[6], c[7]), new Coordinate(c[0], c[1]) };
+        return GEOM_FACTORY.createPolygon(GEOM_FACTORY.createLinearRing(coordinates), null);
+    }
+}
@@ -0,0 +1,217 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.event.impl.CatalogPostModifyEventImpl;
+import org.geoserver.catalog.event.impl.CatalogRemoveEventImpl;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.catalog.impl.CoverageInfoImpl;
+import org.geoserver.catalog.impl.CoverageStoreInfoImpl;
+import org.geoserver.catalog.impl.LayerInfoImpl;
+import org.geoserver.catalog.impl.NamespaceInfoImpl;
+import org.geoserver.wps.gs.soilsealing.ChangeMatrixCache.CachedChangeMatrix;
+import org.geotools.filter.text.ecql.ECQL;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.filter.Filter;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class ChangeMatrixCacheTest {
+
+    private final Set<Integer> classes = new TreeSet<Integer>(Arrays.asList(0, 1, 2));
+
+    private CoverageStoreInfoImpl store;
+
+    private CoverageInfoImpl coverage;
+
+    private ChangeMatrixCache cache;
+
+    @Before
+    public void setup() {
+        Catalog catalog = new CatalogImpl();
+        NamespaceInfoImpl namespace = new NamespaceInfoImpl();
+        namespace.setPrefix("geosolutions");
+        store = new CoverageStoreInfoImpl(catalog);
+        store.setId("store");
+        coverage = new CoverageInfoImpl(catalog);
+        coverage.setId("coverage");
+        coverage.setName("landcover");
+        coverage.setNamespace(namespace);
+        coverage.setStore(store);
+        cache = new ChangeMatrixCache(null);
+    }
+
+    private String buildKey(String signature, String nowFilter) throws Exception {
+        Filter reference = ECQL.toFilter("year = 2006");
+        return cache.buildKey(coverage.prefixedName(), signature, reference,
+                ECQL.toFilter(nowFilter), null, classes);
+    }
+
+    private ChangeMatrixDTO createMatrix(double pixels) {
+        ChangeMatrixDTO matrix = new ChangeMatrixDTO();
+        matrix.setRasterName("landcover");
+        matrix.setRefYear("2006");
+        matrix.setNowYear("2009");
+        for (int ref : classes) {
+            for (int now : classes) {
+                matrix.add(new ChangeMatrixElement(ref, now, pixels + ref * 3 + now, ref + now));
+            }
+        }
+        return matrix;
+    }
+
+    private void assertMatrix(ChangeMatrixDTO expected, ChangeMatrixDTO actual) {
+        Assert.assertEquals(expected.getRasterName(), actual.getRasterName());
+        Assert.assertEquals(expected.getRefYear(), actual.getRefYear());
+        Assert.assertEquals(expected.getNowYear(), actual.getNowYear());
+        Assert.assertEquals(expected.getChangeMatrix().size(), actual.getChangeMatrix().size());
+        ChangeMatrixElement[] expectedElements = expected.getChangeMatrix().toArray(
+                new ChangeMatrixElement[0]);
+        ChangeMatrixElement[] actualElements = actual.getChangeMatrix().toArray(
+                new ChangeMatrixElement[0]);
+        for (int i = 0; i < expectedElements.length; i++) {
+            Assert.assertEquals(expectedElements[i].getRef(), actualElements[i].getRef());
+            Assert.assertEquals(expectedElements[i].getNow(), actualElements[i].getNow());
+            Assert.assertEquals(expectedElements[i].getPixels(), actualElements[i].getPixels(), 0);
+            Assert.assertEquals(expectedElements[i].getArea(), actualElements[i].getArea(), 0);
+        }
+    }
+
+    @Test
+    public void testHitAndMiss() throws Exception {
+        String key = buildKey("s1", "year = 2009");
+        Assert.assertNull(cache.get(key));
+        Assert.assertEquals(1, cache.getMisses());
+
+        ChangeMatrixDTO matrix = createMatrix(10);
+        cache.put(key, coverage, matrix, "changeMatrix_1");
+        CachedChangeMatrix cached = cache.get(buildKey("s1", "year = 2009"));
+        Assert.assertNotNull(cached);
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals("changeMatrix_1", cached.getLayerName());
+        assertMatrix(createMatrix(10), cached.getChangeMatrix());
+
+        // a different request
+        Assert.assertNull(cache.get(buildKey("s1", "year = 2012")));
+        Assert.assertNull(cache.get(null));
+    }
+
+    @Test
+    public void testCopies() throws Exception {
+        String key = buildKey("s1", "year = 2009");
+        ChangeMatrixDTO matrix = createMatrix(10);
+        cache.put(key, coverage, matrix, "changeMatrix_1");
+
+        // changes of the stored instance do not reach the cache
+        matrix.setRasterName("changed");
+        matrix.add(new ChangeMatrixElement(5, 5, 1));
+
+        // neither do changes of the returned ones
+        ChangeMatrixDTO returned = cache.get(key).getChangeMatrix();
+        Assert.assertNotSame(returned, cache.get(key).getChangeMatrix());
+        returned.setRefYear("2000");
+        returned.getChangeMatrix().iterator().next().setPixels(-1);
+        returned.getChangeMatrix().clear();
+
+        assertMatrix(createMatrix(10), cache.get(key).getChangeMatrix());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        cache.setMaxEntries(2);
+        String first = buildKey("s1", "year = 2009");
+        String second = buildKey("s1", "year = 2012");
+        String third = buildKey("s1", "year = 2015");
+        cache.put(first, coverage, createMatrix(1), "");
+        cache.put(second, coverage, createMatrix(2), "");
+        // the first entry becomes the most recently used
+        Assert.assertNotNull(cache.get(first));
+        cache.put(third, coverage, createMatrix(3), "");
+
+        Assert.assertEquals(2, cache.getEntries());
+        Assert.assertNotNull(cache.get(first));
+        Assert.assertNull(cache.get(second));
+        Assert.assertNotNull(cache.get(third));
+
+        // a size bound smaller than two entries
+        long size = cache.getSize();
+        cache.setMaxSize(size / 2 + 1);
+        cache.put(second, coverage, createMatrix(2), "");
+        Assert.assertEquals(1, cache.getEntries());
+        Assert.assertNotNull(cache.get(second));
+        Assert.assertTrue(cache.getSize() <= size / 2 + 1);
+    }
+
+    @Test
+    public void testSignatureChange() throws Exception {
+        String key = buildKey("s1", "year = 2009");
+        cache.put(key, coverage, createMatrix(1), "changeMatrix_1");
+        Assert.assertEquals(key, buildKey("s1", "year = 2009"));
+        Assert.assertEquals(1, cache.getEntries());
+
+        // a new granule index makes the previous entries stale
+        String newKey = buildKey("s2", "year = 2009");
+        Assert.assertFalse(key.equals(newKey));
+        Assert.assertEquals(0, cache.getEntries());
+        Assert.assertNull(cache.get(key));
+        Assert.assertNull(cache.get(newKey));
+    }
+
+    @Test
+    public void testCatalogEvents() throws Exception {
+        String matrixOnly = buildKey("s1", "year = 2009");
+        String withLayer = buildKey("s1", "year = 2012");
+        cache.put(matrixOnly, coverage, createMatrix(1), null);
+        cache.put(withLayer, coverage, createMatrix(2), "changeMatrix_2");
+
+        // the removal of the generated layer drops only the entry referring to it
+        LayerInfoImpl layer = new LayerInfoImpl();
+        layer.setName("changeMatrix_2");
+        CatalogRemoveEventImpl remove = new CatalogRemoveEventImpl();
+        remove.setSource(layer);
+        cache.handleRemoveEvent(remove);
+        Assert.assertEquals(1, cache.getEntries());
+        Assert.assertNotNull(cache.get(matrixOnly));
+
+        // the modification of the coverage
+        CatalogPostModifyEventImpl modify = new CatalogPostModifyEventImpl();
+        modify.setSource(coverage);
+        cache.handlePostModifyEvent(modify);
+        Assert.assertEquals(0, cache.getEntries());
+
+        // the removal of the store
+        cache.put(matrixOnly, coverage, createMatrix(1), null);
+        remove = new CatalogRemoveEventImpl();
+        remove.setSource(store);
+        cache.handleRemoveEvent(remove);
+        Assert.assertEquals(0, cache.getEntries());
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testRoiKey() throws Exception {
+        GeometryFactory factory = new GeometryFactory();
+        Geometry roi = factory.toGeometry(new Envelope(new Coordinate(0, 0), new Coordinate(1, 1)));
+        Geometry reversed = roi.reverse();
+        Filter reference = ECQL.toFilter("year = 2006");
+        Filter now = ECQL.toFilter("year = 2009");
+
+        // equal geometries with a different orientation share the key
+        Assert.assertEquals(cache.buildKey("landcover", "s1", reference, now, roi, classes),
+                cache.buildKey("landcover", "s1", reference, now, reversed, classes));
+        Assert.assertFalse(cache.buildKey("landcover", "s1", reference, now, roi, classes)
+                .equals(cache.buildKey("landcover", "s1", reference, now, null, classes)));
+    }
+}
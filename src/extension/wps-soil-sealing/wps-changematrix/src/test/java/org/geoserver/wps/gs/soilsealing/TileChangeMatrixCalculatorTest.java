@@ -0,0 +1,249 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor;
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+import it.geosolutions.jaiext.changematrix.ChangeMatrixRIF;
+
+import java.awt.Rectangle;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.media.jai.JAI;
+import javax.media.jai.ParameterBlockJAI;
+import javax.media.jai.RasterFactory;
+import javax.media.jai.ROI;
+import javax.media.jai.ROIShape;
+import javax.media.jai.RenderedOp;
+import javax.media.jai.TiledImage;
+
+import org.geotools.image.jai.Registry;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TileChangeMatrixCalculatorTest {
+
+    public static final int DEF_H = 256;
+
+    public static final int DEF_W = 256;
+
+    public static final int DEF_TILE_H = 32;
+
+    public static final int DEF_TILE_W = 32;
+
+    public static final double PIXEL_AREA = 0.5;
+
+    private static TiledImage reference;
+
+    private static TiledImage now;
+
+    private static TiledImage area;
+
+    private static Set<Integer> classes;
+
+    private static ExecutorService executor;
+
+    static {
+        try {
+            Registry.registerRIF(JAI.getDefaultInstance(), new ChangeMatrixDescriptor(),
+                    new ChangeMatrixRIF(), Registry.JAI_TOOLS_PRODUCT);
+        } catch (Throwable e) {
+            // swallow exception in case the op has already been registered.
+        }
+    }
+
+    private static TiledImage createImage(int dataType) {
+        SampleModel sm = new ComponentSampleModel(dataType, DEF_W, DEF_H, 1, DEF_W,
+                new int[] { 0 });
+        return new TiledImage(sm, DEF_TILE_W, DEF_TILE_H);
+    }
+
+    @BeforeClass
+    public static void setup() {
+        reference = createImage(DataBuffer.TYPE_BYTE);
+        now = createImage(DataBuffer.TYPE_BYTE);
+        area = createImage(DataBuffer.TYPE_DOUBLE);
+        for (int y = 0; y < DEF_H; y++) {
+            for (int x = 0; x < DEF_W; x++) {
+                reference.setSample(x, y, 0, (x / 16 + y / 16) % 4);
+                now.setSample(x, y, 0, (x / 8 + y / 32) % 4);
+                area.setSample(x, y, 0, PIXEL_AREA);
+            }
+        }
+
+        classes = new TreeSet<Integer>();
+        classes.add(1);
+        classes.add(2);
+        classes.add(3);
+
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public static void dispose() {
+        executor.shutdown();
+        reference.dispose();
+        now.dispose();
+        area.dispose();
+    }
+
+    @Test
+    public void testNoROI() {
+        checkMatrix(null, null);
+        checkMatrix(null, executor);
+    }
+
+    @Test
+    public void testROI() {
+        // ROI not aligned to the tile grid
+        ROI roi = new ROIShape(new Rectangle(40, 17, 150, 100));
+        checkMatrix(roi, null);
+        checkMatrix(roi, executor);
+    }
+
+    @Test
+    public void testSummaryIndex() throws Exception {
+        File file = File.createTempFile("cmsummary", ".idx");
+        try {
+            Rectangle gridBounds = new Rectangle(0, 0, DEF_W, DEF_H);
+            ChangeMatrixSummaryIndex.build(file, gridBounds, 48, reference, now, area);
+            Assert.assertNull(ChangeMatrixSummaryIndex.open(file, new Rectangle(0, 0, 10, 10)));
+            ChangeMatrixSummaryIndex index = ChangeMatrixSummaryIndex.open(file, gridBounds);
+            Assert.assertNotNull(index);
+
+            // blocks inside the ROI come from the index, the rest is computed
+            ROI roi = new ROIShape(new Rectangle(40, 17, 150, 100));
+            List<Rectangle> blocks = index.getBlocks(gridBounds, roi);
+            Assert.assertEquals(2, blocks.size());
+            ChangeMatrixAccumulator result = new ChangeMatrixAccumulator(classes);
+            index.sum(blocks, result);
+            result.merge(TileChangeMatrixCalculator.compute(reference, now, area, classes, roi,
+                    blocks, executor));
+            checkMatrix(roi, result);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testAccumulateRuns() {
+        // a tile not at the origin, with runs changing between the years and an area changing for each pixel
+        Rectangle bounds = new Rectangle(64, 32, 40, 24);
+        WritableRaster ref = RasterFactory.createBandedRaster(DataBuffer.TYPE_BYTE,
+                bounds.width, bounds.height, 1, bounds.getLocation());
+        WritableRaster cur = RasterFactory.createBandedRaster(DataBuffer.TYPE_BYTE,
+                bounds.width, bounds.height, 1, bounds.getLocation());
+        WritableRaster areas = RasterFactory.createBandedRaster(DataBuffer.TYPE_DOUBLE,
+                bounds.width, bounds.height, 1, bounds.getLocation());
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                ref.setSample(x, y, 0, (x / 7 + y) % 4);
+                cur.setSample(x, y, 0, x % 11 == 0 ? 0 : (x / 5 + y / 3) % 4);
+                areas.setSample(x, y, 0, 0.25 * (x - bounds.x) + y);
+            }
+        }
+
+        // the whole tile and a part of it
+        Rectangle[] rects = new Rectangle[] { bounds, new Rectangle(70, 35, 21, 9) };
+        for (Rectangle rect : rects) {
+            for (WritableRaster area : new WritableRaster[] { areas, null }) {
+                ChangeMatrixAccumulator expected = new ChangeMatrixAccumulator(classes);
+                for (int y = rect.y; y < rect.y + rect.height; y++) {
+                    for (int x = rect.x; x < rect.x + rect.width; x++) {
+                        expected.add(ref.getSample(x, y, 0), cur.getSample(x, y, 0),
+                                area != null ? area.getSampleDouble(x, y, 0) : 0);
+                    }
+                }
+                ChangeMatrixAccumulator actual = new ChangeMatrixAccumulator(classes);
+                TileChangeMatrixCalculator.accumulateRuns(rect, ref, cur, area, actual);
+                for (int i = 0; i < 4; i++) {
+                    for (int j = 0; j < 4; j++) {
+                        Assert.assertEquals(expected.getCount(i, j), actual.getCount(i, j));
+                        Assert.assertEquals(expected.getArea(i, j), actual.getArea(i, j), 1E-6);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testJaiExt() {
+        checkJaiExt(null);
+        checkJaiExt(new ROIShape(new Rectangle(40, 17, 150, 100)));
+        checkJaiExt(new ROIShape(new Ellipse2D.Double(13.5, 21.2, 201.3, 167.8)));
+    }
+
+    /**
+     * Compares the result with the one of the jai-ext ChangeMatrix operation on the same images and ROI
+     */
+    private void checkJaiExt(ROI roi) {
+        ParameterBlockJAI pbj = new ParameterBlockJAI("ChangeMatrix");
+        ChangeMatrix cm = new ChangeMatrix(classes);
+        pbj.setParameter("result", cm);
+        pbj.setParameter(
+                ChangeMatrixDescriptor.PARAM_NAMES[ChangeMatrixDescriptor.PIXEL_MULTY_ARG_INDEX],
+                100);
+        pbj.setParameter(ChangeMatrixDescriptor.PARAM_NAMES[ChangeMatrixDescriptor.AREA_MAP_INDEX],
+                area);
+        if (roi != null) {
+            pbj.setParameter("ROI", roi);
+        }
+        pbj.addSource(reference);
+        pbj.addSource(now);
+        RenderedOp op = JAI.create("ChangeMatrix", pbj, null);
+        op.getTiles();
+        cm.freeze();
+
+        ChangeMatrixAccumulator result = TileChangeMatrixCalculator.compute(reference, now, area,
+                classes, roi, executor);
+        for (Integer ref : classes) {
+            for (Integer cur : classes) {
+                Assert.assertEquals((double) cm.retrievePairOccurrences(ref, cur),
+                        (double) result.getCount(ref, cur), 0);
+                Assert.assertEquals(cm.retrieveTotalArea(ref, cur), result.getArea(ref, cur),
+                        1E-6);
+            }
+        }
+        op.dispose();
+    }
+
+    private void checkMatrix(ROI roi, ExecutorService executor) {
+        checkMatrix(roi, TileChangeMatrixCalculator.compute(reference, now, area, classes, roi,
+                executor));
+    }
+
+    private void checkMatrix(ROI roi, ChangeMatrixAccumulator result) {
+        ChangeMatrixAccumulator expected = new ChangeMatrixAccumulator(classes);
+        for (int y = 0; y < DEF_H; y++) {
+            for (int x = 0; x < DEF_W; x++) {
+                if (roi == null || roi.contains(x, y)) {
+                    expected.add(reference.getSample(x, y, 0), now.getSample(x, y, 0),
+                            PIXEL_AREA);
+                }
+            }
+        }
+
+        for (Integer ref : classes) {
+            for (Integer cur : classes) {
+                Assert.assertEquals(expected.getCount(ref, cur), result.getCount(ref, cur));
+                Assert.assertEquals(expected.getArea(ref, cur), result.getArea(ref, cur), 1E-6);
+            }
+        }
+        // Classes outside the domain must be ignored
+        Assert.assertEquals(0, result.getCount(0, 1));
+    }
+}
@@ -0,0 +1,255 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.wps.gs.SoilSealingExecutor;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Bounded, size-aware LRU cache of the {@link SoilSealingAdministrativeUnit} trees, with their populations and the geometries transformed to
+ * the reference CRS or raster space of the requests. Entries are keyed by geocoding layer, population layer and unit name, and are dropped
+ * when one of the two feature types or their stores are modified or removed from the catalog. The cached units are shared by the requests,
+ * so their populations and subs are read only.
+ */
+public class AdministrativeUnitCache implements CatalogListener {
+
+    private static final Logger LOGGER = Logging.getLogger(AdministrativeUnitCache.class);
+
+    /** Default maximum estimated size in bytes */
+    public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+    /** Cached values, in access order */
+    private final LinkedHashMap<String, CachedUnit> entries = new LinkedHashMap<String, CachedUnit>(
+            16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private long maxSize = DEFAULT_MAX_SIZE;
+
+    /** Current estimated size */
+    private long size;
+
+    public AdministrativeUnitCache(Catalog catalog) {
+        if (catalog != null) {
+            catalog.addListener(this);
+        }
+    }
+
+    /**
+     * Returns the administrative units with their subtrees, loading the ones not cached yet with a single {@link AdministrativeUnitLoader}.
+     *
+     * @param aus the units, as <code>name_parent</code>
+     * @param geoCodingReference layer of the administrative units
+     * @param populationReference layer of the populations of the municipalities
+     * @param executor optional executor for the loader
+     * @return the units, in the same order
+     * @throws IOException if a unit name is invalid or not found
+     */
+    List<SoilSealingAdministrativeUnit> load(List<String> aus, FeatureTypeInfo geoCodingReference,
+            FeatureTypeInfo populationReference, SoilSealingExecutor executor) throws IOException {
+        final List<SoilSealingAdministrativeUnit> result = new ArrayList<SoilSealingAdministrativeUnit>(
+                aus.size());
+        final List<String> missing = new ArrayList<String>();
+        for (String au : aus) {
+            SoilSealingAdministrativeUnit unit = get(geoCodingReference, populationReference, au);
+            result.add(unit);
+            if (unit == null) {
+                missing.add(au);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        final List<SoilSealingAdministrativeUnit> loaded = new AdministrativeUnitLoader(
+                geoCodingReference, populationReference, executor).load(missing);
+        for (int i = 0, j = 0; i < result.size(); i++) {
+            if (result.get(i) == null) {
+                SoilSealingAdministrativeUnit unit = loaded.get(j++);
+                result.set(i, unit);
+                put(geoCodingReference, populationReference, aus.get(i), unit);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the cached unit, if any
+     */
+    synchronized SoilSealingAdministrativeUnit get(FeatureTypeInfo geoCodingReference,
+            FeatureTypeInfo populationReference, String au) {
+        CachedUnit value = geoCodingReference.getId() != null
+                && populationReference.getId() != null ? entries.get(buildKey(
+                geoCodingReference, populationReference, au)) : null;
+        if (value != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Administrative unit cache " + (value != null ? "hit" : "miss")
+                    + ", hits: " + hits.get() + ", misses: " + misses.get());
+        }
+        return value != null ? value.unit : null;
+    }
+
+    /**
+     * Adds a unit, evicting the least recently used entries if needed
+     */
+    synchronized void put(FeatureTypeInfo geoCodingReference, FeatureTypeInfo populationReference,
+            String au, SoilSealingAdministrativeUnit unit) {
+        final long unitSize = unit.estimateSize();
+        if (geoCodingReference.getId() == null || populationReference.getId() == null
+                || unitSize > maxSize) {
+            return;
+        }
+        CachedUnit value = new CachedUnit(new String[] { geoCodingReference.getId(),
+                populationReference.getId(), geoCodingReference.getStore().getId(),
+                populationReference.getStore().getId() }, unit, unitSize);
+        CachedUnit old = entries.put(buildKey(geoCodingReference, populationReference, au), value);
+        if (old != null) {
+            size -= old.size;
+        }
+        size += unitSize;
+        // eviction of the least recently used entries
+        Iterator<CachedUnit> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().size;
+            it.remove();
+        }
+    }
+
+    /**
+     * Removes all the entries
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    // ////
+    // Catalog events
+    // ////
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // nothing to do
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // wait for the post modify event
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    /**
+     * Drops the entries related to the provided catalog object
+     */
+    private synchronized void invalidate(CatalogInfo info) {
+        if (!(info instanceof FeatureTypeInfo || info instanceof DataStoreInfo)
+                || info.getId() == null) {
+            return;
+        }
+        Iterator<CachedUnit> it = entries.values().iterator();
+        while (it.hasNext()) {
+            CachedUnit value = it.next();
+            if (value.dependsOn(info.getId())) {
+                size -= value.size;
+                it.remove();
+            }
+        }
+    }
+
+    private static String buildKey(FeatureTypeInfo geoCodingReference,
+            FeatureTypeInfo populationReference, String au) {
+        return geoCodingReference.getId() + "|" + populationReference.getId() + "|" + au;
+    }
+
+    /**
+     * A cached unit with the ids of the feature types and stores it has been read from
+     */
+    private static class CachedUnit {
+
+        private final String[] sourceIds;
+
+        private final SoilSealingAdministrativeUnit unit;
+
+        private final long size;
+
+        CachedUnit(String[] sourceIds, SoilSealingAdministrativeUnit unit, long size) {
+            this.sourceIds = sourceIds;
+            this.unit = unit;
+            this.size = size;
+        }
+
+        boolean dependsOn(String id) {
+            for (String sourceId : sourceIds) {
+                if (id.equals(sourceId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
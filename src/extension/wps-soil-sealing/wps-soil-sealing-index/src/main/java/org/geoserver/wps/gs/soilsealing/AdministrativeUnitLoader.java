@@ -0,0 +1,331 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.wps.gs.SoilSealingExecutor;
+import org.geoserver.wps.gs.soilsealing.SoilSealingAdministrativeUnit.AuType;
+import org.geotools.data.DataStore;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.FeatureReader;
+import org.geotools.data.Query;
+import org.geotools.data.Transaction;
+import org.geotools.factory.CommonFactoryFinder;
+import org.opengis.feature.Property;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Loads the trees of {@link SoilSealingAdministrativeUnit}s level by level: the requested units are read with a single query, then each level
+ * of their subtrees costs one query for the children of all the districts and regions of the level and one query for the populations of all
+ * its municipalities, instead of a few queries for each unit. The two queries of a level are independent and run at the same time when an
+ * executor is provided.
+ */
+class AdministrativeUnitLoader {
+
+    private static final FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+
+    /** Maximum number of units in the filter of a single query, larger sets are split */
+    static final int MAX_FILTER_SIZE = 500;
+
+    private final FeatureTypeInfo geoCodingReference;
+
+    private final FeatureTypeInfo populationReference;
+
+    private final SoilSealingExecutor executor;
+
+    /**
+     * @param geoCodingReference layer of the administrative units
+     * @param populationReference layer of the populations of the municipalities
+     * @param executor optional executor for the queries of a level, if <code>null</code> they run one after the other
+     */
+    AdministrativeUnitLoader(FeatureTypeInfo geoCodingReference,
+            FeatureTypeInfo populationReference, SoilSealingExecutor executor) {
+        this.geoCodingReference = geoCodingReference;
+        this.populationReference = populationReference;
+        this.executor = executor;
+    }
+
+    /**
+     * Loads the administrative units with their subtrees.
+     *
+     * @param aus the units, as <code>name_parent</code>
+     * @return the units, in the same order
+     * @throws IOException if a unit name is invalid or not found
+     */
+    List<SoilSealingAdministrativeUnit> load(List<String> aus) throws IOException {
+        // requested units, by name and parent
+        final Map<String, String[]> keys = new LinkedHashMap<String, String[]>();
+        for (String au : aus) {
+            if (!au.contains("_")) {
+                throw new IOException("Invalid Administrative Unit name");
+            }
+            keys.put(au, new String[] { au.split("_")[0], au.split("_")[1] });
+        }
+
+        final Map<String, SoilSealingAdministrativeUnit> found = new HashMap<String, SoilSealingAdministrativeUnit>();
+        final List<Filter> filters = new ArrayList<Filter>(keys.size());
+        for (String[] key : keys.values()) {
+            filters.add(ff.and(Arrays.asList(ff.equals(ff.property("name"), ff.literal(key[0])),
+                    ff.equals(ff.property("parent"), ff.literal(key[1])))));
+        }
+        readUnits(filters, new FeatureHandler() {
+
+            @Override
+            public void handle(SimpleFeature feature) {
+                SoilSealingAdministrativeUnit unit = createUnit(feature);
+                String key = unit.getName() + "_" + unit.getParent();
+                // the first record wins
+                if (!found.containsKey(key)) {
+                    found.put(key, unit);
+                }
+            }
+        });
+
+        final List<SoilSealingAdministrativeUnit> result = new ArrayList<SoilSealingAdministrativeUnit>(
+                aus.size());
+        for (String au : aus) {
+            String[] key = keys.get(au);
+            SoilSealingAdministrativeUnit unit = found.get(key[0] + "_" + key[1]);
+            if (unit == null || unit.getType() == null || unit.getTheGeom() == null) {
+                throw new IOException("Invalid Administrative Unit name: no record found!");
+            }
+            result.add(unit);
+        }
+
+        // the subtrees, level by level, a unit requested twice is loaded once
+        List<SoilSealingAdministrativeUnit> units = new ArrayList<SoilSealingAdministrativeUnit>(
+                new LinkedHashSet<SoilSealingAdministrativeUnit>(result));
+        while (!units.isEmpty()) {
+            units = loadLevel(units);
+        }
+        return result;
+    }
+
+    /**
+     * Loads the populations of the municipalities and the children of the other units of a level
+     *
+     * @return the children, making the next level
+     */
+    private List<SoilSealingAdministrativeUnit> loadLevel(List<SoilSealingAdministrativeUnit> units)
+            throws IOException {
+        final List<SoilSealingAdministrativeUnit> municipalities = new ArrayList<SoilSealingAdministrativeUnit>();
+        final List<SoilSealingAdministrativeUnit> parents = new ArrayList<SoilSealingAdministrativeUnit>();
+        for (SoilSealingAdministrativeUnit unit : units) {
+            switch (unit.getType()) {
+            case MUNICIPALITY:
+                municipalities.add(unit);
+                break;
+            case DISTRICT:
+            case REGION:
+                parents.add(unit);
+                break;
+            default:
+                break;
+            }
+        }
+
+        final List<SoilSealingAdministrativeUnit> children = new ArrayList<SoilSealingAdministrativeUnit>();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(2);
+        if (!municipalities.isEmpty()) {
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    loadPopulations(municipalities);
+                    return null;
+                }
+            });
+        }
+        if (!parents.isEmpty()) {
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    children.addAll(loadChildren(parents));
+                    return null;
+                }
+            });
+        }
+
+        if (executor == null || tasks.size() < 2) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+        } else {
+            try {
+                executor.invokeAll(tasks);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Reads the children of the provided units with one query, the children of a unit are the units of the next type having the unit name as
+     * parent
+     */
+    private List<SoilSealingAdministrativeUnit> loadChildren(
+            List<SoilSealingAdministrativeUnit> parents) throws IOException {
+        // parents by child type and name
+        final Map<String, List<SoilSealingAdministrativeUnit>> byKey = new HashMap<String, List<SoilSealingAdministrativeUnit>>();
+        final List<Filter> filters = new ArrayList<Filter>(parents.size());
+        for (SoilSealingAdministrativeUnit parent : parents) {
+            final int childType = parent.getType().getValue() + 1;
+            final String key = childType + "_" + parent.getName();
+            List<SoilSealingAdministrativeUnit> sameKey = byKey.get(key);
+            if (sameKey == null) {
+                sameKey = new LinkedList<SoilSealingAdministrativeUnit>();
+                byKey.put(key, sameKey);
+                filters.add(ff.and(Arrays.asList(
+                        ff.equals(ff.property("type"), ff.literal(childType)),
+                        ff.equals(ff.property("parent"), ff.literal(parent.getName())))));
+            }
+            sameKey.add(parent);
+        }
+
+        final List<SoilSealingAdministrativeUnit> children = new ArrayList<SoilSealingAdministrativeUnit>();
+        final List<IOException> errors = new ArrayList<IOException>(1);
+        readUnits(filters, new FeatureHandler() {
+
+            @Override
+            public void handle(SimpleFeature feature) {
+                SoilSealingAdministrativeUnit child = createUnit(feature);
+                if (child.getType() == null || child.getTheGeom() == null) {
+                    errors.add(new IOException("Invalid Administrative Unit name: no record found!"));
+                    return;
+                }
+                List<SoilSealingAdministrativeUnit> sameKey = byKey.get(child.getType()
+                        .getValue() + "_" + child.getParent());
+                if (sameKey != null) {
+                    for (SoilSealingAdministrativeUnit parent : sameKey) {
+                        parent.addSub(child);
+                    }
+                    children.add(child);
+                }
+            }
+        });
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+        return children;
+    }
+
+    /**
+     * Reads the populations of the provided municipalities with one query
+     */
+    private void loadPopulations(List<SoilSealingAdministrativeUnit> municipalities)
+            throws IOException {
+        final Map<String, Map<String, Integer>> populations = new HashMap<String, Map<String, Integer>>();
+        final List<Filter> filters = new ArrayList<Filter>(municipalities.size());
+        for (SoilSealingAdministrativeUnit municipality : municipalities) {
+            if (!populations.containsKey(municipality.getName())) {
+                populations.put(municipality.getName(), new HashMap<String, Integer>());
+                filters.add(ff.equals(ff.property("au_name"), ff.literal(municipality.getName())));
+            }
+        }
+        read(populationReference, filters, new FeatureHandler() {
+
+            @Override
+            public void handle(SimpleFeature feature) {
+                Map<String, Integer> population = populations.get(String.valueOf(feature
+                        .getAttribute("au_name")));
+                if (population == null) {
+                    return;
+                }
+                for (Property prop : feature.getProperties()) {
+                    if (prop.getName().getLocalPart().startsWith("a_")) {
+                        Object yearPopulationValue = prop.getValue();
+                        if (yearPopulationValue != null) {
+                            population.put(prop.getName().getLocalPart().split("a_")[1],
+                                    ((Number) yearPopulationValue).intValue());
+                        }
+                    }
+                }
+            }
+        });
+        for (SoilSealingAdministrativeUnit municipality : municipalities) {
+            municipality.putPopulation(populations.get(municipality.getName()));
+        }
+    }
+
+    private SoilSealingAdministrativeUnit createUnit(SimpleFeature feature) {
+        Object type = feature.getAttribute("type");
+        return new SoilSealingAdministrativeUnit((String) feature.getAttribute("name"),
+                (String) feature.getAttribute("parent"), type != null ? AuType
+                        .getType(((Number) type).intValue()) : null,
+                (Geometry) feature.getDefaultGeometry(), geoCodingReference, populationReference);
+    }
+
+    private void readUnits(List<Filter> filters, FeatureHandler handler) throws IOException {
+        read(geoCodingReference, filters, handler);
+    }
+
+    /**
+     * Reads the features matching any of the filters, with one query for each {@link #MAX_FILTER_SIZE} filters
+     */
+    private void read(FeatureTypeInfo featureType, List<Filter> filters, FeatureHandler handler)
+            throws IOException {
+        final DataStore ds = (DataStore) featureType.getStore().getDataStore(null);
+        final String typeName = featureType.getFeatureType().getName().getLocalPart();
+        for (int i = 0; i < filters.size(); i += MAX_FILTER_SIZE) {
+            List<Filter> chunk = filters.subList(i, Math.min(filters.size(), i + MAX_FILTER_SIZE));
+            Filter queryFilter = chunk.size() == 1 ? chunk.get(0) : ff.or(chunk);
+
+            FeatureReader<SimpleFeatureType, SimpleFeature> ftReader = null;
+            Transaction transaction = new DefaultTransaction();
+            try {
+                ftReader = ds.getFeatureReader(new Query(typeName, queryFilter), transaction);
+                while (ftReader.hasNext()) {
+                    handler.handle(ftReader.next());
+                }
+            } finally {
+                if (ftReader != null) {
+                    ftReader.close();
+                }
+
+                transaction.commit();
+                transaction.close();
+            }
+        }
+    }
+
+    /**
+     * Callback for the features read by a query
+     */
+    private interface FeatureHandler {
+
+        void handle(SimpleFeature feature);
+    }
+}
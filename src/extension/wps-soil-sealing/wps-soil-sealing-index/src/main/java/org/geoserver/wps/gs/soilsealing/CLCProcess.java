@@ -6,7 +6,6 @@ package org.geoserver.wps.gs.soilsealing;
 
 import it.geosolutions.jaiext.bandmerge.BandMergeCRIF;
 import it.geosolutions.jaiext.bandmerge.BandMergeDescriptor;
-import it.geosolutions.jaiext.stats.Statistics;
 import it.geosolutions.jaiext.stats.Statistics.StatsType;
 import it.geosolutions.jaiext.zonal.ZonalStatsDescriptor;
 import it.geosolutions.jaiext.zonal.ZonalStatsRIF;
@@ -103,6 +102,44 @@ public class CLCProcess implements GSProcess {
 
     }
 
+    /** Optional roll-up of the leaf zones into the requested ones */
+    private final ZoneRollUp rollUp;
+
+    /** Optional class histogram pyramid of the reference coverage */
+    private final ClassHistogramPyramid referencePyramid;
+
+    /** Optional class histogram pyramid of the now coverage */
+    private final ClassHistogramPyramid nowPyramid;
+
+    public CLCProcess() {
+        this(null);
+    }
+
+    /**
+     * Creates a process computing the statistics on the leaf ROIs and summing them into the zones described by the provided roll-up; the
+     * populations must refer to the rolled up zones.
+     * 
+     * @param rollUp roll-up of the leaf ROIs, may be <code>null</code>
+     */
+    public CLCProcess(ZoneRollUp rollUp) {
+        this(rollUp, null, null);
+    }
+
+    /**
+     * Creates a process reading the histograms of the areas fully inside the ROIs from the provided pyramids, which must be built on the raster
+     * space of the input coverages; they are used only if one is available for each input coverage.
+     * 
+     * @param rollUp roll-up of the leaf ROIs, may be <code>null</code>
+     * @param referencePyramid pyramid of the reference coverage, may be <code>null</code>
+     * @param nowPyramid pyramid of the now coverage, may be <code>null</code>
+     */
+    public CLCProcess(ZoneRollUp rollUp, ClassHistogramPyramid referencePyramid,
+            ClassHistogramPyramid nowPyramid) {
+        this.rollUp = rollUp;
+        this.referencePyramid = referencePyramid;
+        this.nowPyramid = nowPyramid;
+    }
+
     // HP to verify
     // HP1 = geometries in raster space
     // HP2 = Coverages already cropped
@@ -130,24 +167,41 @@ public class CLCProcess implements GSProcess {
         }
 
         // Control on the population number for the 3° and 4° indexes
-        int numAreas = rois.size();
+        checkIndex(index, rollUp != null ? rollUp.getNumZones() : rois.size(), populations);
 
-        // PixelArea value
-        double area = 0;
-        if (pixelArea == null) {
-            area = PIXEL_AREA;
-        } else {
-            area = pixelArea;
-        }
+        // Histograms of the leaf zones
+        List<ZonalHistogram> results = computeHistograms(referenceCoverage, nowCoverage, rois);
 
-        // Convert to Ha
-        area *= UrbanGridProcess.HACONVERTER;
+        int numBands = results.isEmpty() ? (refExists && nowExists ? 2 : 1) : results.get(
+                ZERO_IDX).getNumBands();
+        return computeIndexes(results, numBands, classes, index, pixelArea, populations, coeff,
+                multiplier);
+    }
 
-        // Check if percentual variation must be calculated
-        boolean percentual = false;
-        if (multiplier != null) {
-            percentual = multiplier;
+    /**
+     * Computes the indexes from the class histograms of the leaf zones, computed by {@link #computeHistograms} on the same ROIs, for instance in
+     * a scan shared with other requests.
+     * 
+     * @param histograms histograms of the leaf zones, with a band for each input coverage
+     * @see #execute(GridCoverage2D, GridCoverage2D, Set, int, Double, List, List, Double, Boolean)
+     */
+    public List<StatisticContainer> computeIndexes(List<ZonalHistogram> histograms,
+            Set<Integer> classes, int index, Double pixelArea, List<List<Integer>> populations,
+            Double coeff, Boolean multiplier) {
+        final int numBands = histograms.isEmpty() ? (index > FIRST_INDEX ? 2 : 1) : histograms
+                .get(ZERO_IDX).getNumBands();
+        if (index > FIRST_INDEX && numBands != 2) {
+            throw new IllegalArgumentException("This index needs 2 input images");
         }
+        checkIndex(index, rollUp != null ? rollUp.getNumZones() : histograms.size(), populations);
+        return computeIndexes(histograms, numBands, classes, index, pixelArea, populations,
+                coeff, multiplier);
+    }
+
+    /**
+     * Checks the index and the populations needed by the 3° and 4° indexes
+     */
+    private void checkIndex(int index, int numAreas, List<List<Integer>> populations) {
         // Other check related to the indexes
         switch (index) {
         case FIRST_INDEX:
@@ -171,6 +225,23 @@ public class CLCProcess implements GSProcess {
         default:
             throw new IllegalArgumentException("Wrong index selected");
         }
+    }
+
+    /**
+     * Computes the class histograms of the provided zones, reading the areas fully inside them from the pyramids, if available.
+     * 
+     * @param referenceCoverage reference coverage, may be <code>null</code> if the now one is provided
+     * @param nowCoverage now coverage, may be <code>null</code> if the reference one is provided
+     * @param rois the zones, in raster space
+     * @return a histogram for each zone, with a band for each coverage
+     */
+    public List<ZonalHistogram> computeHistograms(GridCoverage2D referenceCoverage,
+            GridCoverage2D nowCoverage, List<Geometry> rois) {
+        boolean refExists = referenceCoverage != null;
+        boolean nowExists = nowCoverage != null;
+        if (!nowExists && !refExists) {
+            throw new IllegalArgumentException("No Coverages provided");
+        }
 
         RenderedImage inputImage = null;
         // Merging of the 2 images if they are both present or selection of the single image
@@ -216,19 +287,79 @@ public class CLCProcess implements GSProcess {
             numBins = new int[] { 255 };
         }
 
-        // Creation of a list of ROIs, each one for each Geometry object
-        List<ROI> roilist = new ArrayList<ROI>();
+        // Pyramids of the bands, if available for all of them
+        ClassHistogramPyramid[] pyramids = null;
+        if (refExists && nowExists) {
+            if (referencePyramid != null && nowPyramid != null
+                    && referencePyramid.isCompatible(nowPyramid)) {
+                pyramids = new ClassHistogramPyramid[] { referencePyramid, nowPyramid };
+            }
+        } else {
+            ClassHistogramPyramid pyramid = refExists ? referencePyramid : nowPyramid;
+            if (pyramid != null) {
+                pyramids = new ClassHistogramPyramid[] { pyramid };
+            }
+        }
+
+        // Single pass over the image with all the zones rasterized into a label image
+        List<ZonalHistogram> results = ZonalHistogramCalculator.compute(inputImage, bands, rois,
+                numBins[ZERO_IDX], pyramids != null && pyramids.length == bands.length ? pyramids
+                        : null);
+
+        if (results == null) {
+            // Overlapping or non polygonal zones, each zone is computed separately
+            // Creation of a list of ROIs, each one for each Geometry object
+            List<ROI> roilist = new ArrayList<ROI>();
+
+            for (Geometry geom : rois) {
+                roilist.add(new ROIGeometry(geom));
+            }
+            // Selection of the parameters
+            RenderedOp zonalStats = ZonalStatsDescriptor.create(inputImage, null, null, roilist,
+                    null, null, false, bands, stats, minBound, maxBound, numBins, null, false,
+                    null);
+
+            // Calculation of the results
+            List<ZoneGeometry> zones = (List<ZoneGeometry>) zonalStats
+                    .getProperty(ZonalStatsDescriptor.ZS_PROPERTY);
+            results = new ArrayList<ZonalHistogram>(zones.size());
+            for (ZoneGeometry zone : zones) {
+                results.add(ZonalHistogram.fromZone(zone, bands.length, numBins[ZERO_IDX]));
+            }
+        }
+
+        return results;
+    }
+
+    private List<StatisticContainer> computeIndexes(List<ZonalHistogram> results, int numBands,
+            Set<Integer> classes, int index, Double pixelArea, List<List<Integer>> populations,
+            Double coeff, Boolean multiplier) {
+        // PixelArea value
+        double area = 0;
+        if (pixelArea == null) {
+            area = PIXEL_AREA;
+        } else {
+            area = pixelArea;
+        }
+
+        // Convert to Ha
+        area *= UrbanGridProcess.HACONVERTER;
 
-        for (Geometry geom : rois) {
-            roilist.add(new ROIGeometry(geom));
+        // Check if percentual variation must be calculated
+        boolean percentual = false;
+        if (multiplier != null) {
+            percentual = multiplier;
         }
-        // Selection of the parameters
-        RenderedOp zonalStats = ZonalStatsDescriptor.create(inputImage, null, null, roilist, null,
-                null, false, bands, stats, minBound, maxBound, numBins, null, false, null);
 
-        // Calculation of the results
-        List<ZoneGeometry> results = (List<ZoneGeometry>) zonalStats
-                .getProperty(ZonalStatsDescriptor.ZS_PROPERTY);
+        // Bands of the histograms
+        boolean multiBanded = numBands == 2;
+        int[] bands = multiBanded ? new int[] { 0, 1 } : new int[] { 0 };
+
+        // Parent zones are computed by summing the histograms of their leaves
+        if (rollUp != null) {
+            results = rollUp.apply(results);
+        }
+        int numAreas = results.size();
 
         // Class number
         int numClass = classes.size();
@@ -245,11 +376,11 @@ public class CLCProcess implements GSProcess {
             // Elaboration for a 2-band image
             if (multiBanded) {
                 // For each Geometry
-                for (ZoneGeometry zone : results) {
+                for (ZonalHistogram zone : results) {
                     // extraction of the statistics
                     double[][] coeffCop = calculateCoeffCop(classes, bands, zone, area, percentual);
                     // Geometry associated
-                    Geometry geo = ((ROIGeometry) zone.getROI()).getAsGeometry();
+                    Geometry geo = zone.getGeometry();
                     // Variation array
                     double[] coeffVariation = calculateVariation(numClass, coeffCop, percentual);
                     // Object used for storing the index results
@@ -261,11 +392,11 @@ public class CLCProcess implements GSProcess {
                 }
             } else {
                 // For each Geometry
-                for (ZoneGeometry zone : results) {
+                for (ZonalHistogram zone : results) {
                     // extraction of the statistics
                     double[] coeffCop = calculateCoeffCop(classes, bands, zone, area, percentual)[ZERO_IDX];
                     // Geometry associated
-                    Geometry geo = ((ROIGeometry) zone.getROI()).getAsGeometry();
+                    Geometry geo = zone.getGeometry();
                     // Addition of the Statistics to a List
                     container.add(new StatisticContainer(geo, coeffCop, null));
                 }
@@ -273,14 +404,12 @@ public class CLCProcess implements GSProcess {
             break;
         case SECOND_INDEX:
             // For each Geometry
-            for (ZoneGeometry zone : results) {
+            for (ZonalHistogram zone : results) {
                 double[][] coeffCop = new double[2][numClass];
                 // Cycle on the bands
                 for (int b = 0; b < numBands; b++) {
                     // extraction of the statistics
-                    Statistics out = zone.getStatsPerBandNoClassifierNoRange(b)[ZERO_IDX];
-
-                    double[] histogram = (double[]) out.getResult();
+                    long[] histogram = zone.getHistogram(b);
                     int count = 0;
                     // Storing of all the areas inside the array
                     for (Integer clc : classes) {
@@ -291,14 +420,14 @@ public class CLCProcess implements GSProcess {
                 // Calculation of the variation array
                 double[] coeffVariation = calculateVariation(numClass, coeffCop, true);
                 // Geometry associated
-                Geometry geo = ((ROIGeometry) zone.getROI()).getAsGeometry();
+                Geometry geo = zone.getGeometry();
                 // Addition of the Statistics to a List
                 container.add(new StatisticContainer(geo, coeffVariation, null));
             }
             break;
         case THIRD_INDEX:
             // For each Geometry
-            for (ZoneGeometry zone : results) {
+            for (ZonalHistogram zone : results) {
                 // Calculation of the sum of all the areas
                 double[] consMarg = calculateCLCSum(classes, bands, zone, area);
                 // Calculation of the index
@@ -310,7 +439,7 @@ public class CLCProcess implements GSProcess {
                 double secondPop = populations.get(1).get(countZones);
                 double popVar = (secondPop - firstPop);
                 // Geometry associated
-                Geometry geo = ((ROIGeometry) zone.getROI()).getAsGeometry();
+                Geometry geo = zone.getGeometry();
 
                 double result = 0;
 
@@ -349,7 +478,7 @@ public class CLCProcess implements GSProcess {
             }
             break;
         case FOURTH_INDEX:
-            for (ZoneGeometry zone : results) {
+            for (ZonalHistogram zone : results) {
                 // Calculation of the sum of all the areas
                 double[] sumArray = calculateCLCSum(classes, bands, zone, area);
                 // Calculation of the index
@@ -361,7 +490,7 @@ public class CLCProcess implements GSProcess {
                 double secondPop = populations.get(1).get(countZones);
                 double popTa = ((secondPop - firstPop) / firstPop);
                 // Geometry associated
-                Geometry geo = ((ROIGeometry) zone.getROI()).getAsGeometry();
+                Geometry geo = zone.getGeometry();
 
                 double sprawl = areaTa / popTa;
                 
@@ -399,7 +528,7 @@ public class CLCProcess implements GSProcess {
      * @param zone Object which contains the statistics for the Geometry
      * @param area pixel area
      */
-    private double[] calculateCLCSum(Set<Integer> classes, int[] bands, ZoneGeometry zone,
+    private double[] calculateCLCSum(Set<Integer> classes, int[] bands, ZonalHistogram zone,
             double area) {
 
         double[] consMarg = new double[bands.length];
@@ -407,9 +536,8 @@ public class CLCProcess implements GSProcess {
         // Cycle on the bands
         for (int b = 0; b < numBands; b++) {
             // For each bands extracts the statistics
-            Statistics out = zone.getStatsPerBandNoClassifierNoRange(b)[ZERO_IDX];
+            long[] histogram = zone.getHistogram(b);
             // Calculation of the sum of all the areas
-            double[] histogram = (double[]) out.getResult();
             for (Integer clc : classes) {
                 double clcArea = histogram[clc] * area;
                 consMarg[b] += clcArea;
@@ -455,7 +583,7 @@ public class CLCProcess implements GSProcess {
      * @param percentual boolean indicating if the result must be returned in percentual
      * @return
      */
-    private double[][] calculateCoeffCop(Set<Integer> classes, int[] bands, ZoneGeometry zone,
+    private double[][] calculateCoeffCop(Set<Integer> classes, int[] bands, ZonalHistogram zone,
             double area, boolean percentual) {
         // Result container
         double[][] coeffCop = new double[bands.length][classes.size()];
@@ -469,12 +597,10 @@ public class CLCProcess implements GSProcess {
         double adminArea;
         int numBands = bands.length;
         for (int b = 0; b < numBands; b++) {
-            // Selection of the statistics for the defined band
-            Statistics out = zone.getStatsPerBandNoClassifierNoRange(b)[ZERO_IDX];
             // Calculation of the Administrative Unit Area by taking the pixel number and multiplying it per the pixel area
-            adminArea = out.getNumSamples() * area;
+            adminArea = zone.getNumSamples(b) * area;
             // Histogram of the classes
-            double[] histogram = (double[]) out.getResult();
+            long[] histogram = zone.getHistogram(b);
             // Cycle on all the classes in order to calculate the index for each of them
             int count = 0;
             for (Integer clc : classes) {
@@ -0,0 +1,489 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.media.jai.PlanarImage;
+
+import org.geoserver.catalog.CoverageInfo;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.util.logging.Logging;
+import org.opengis.filter.Filter;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+/**
+ * Multi-level pyramid of class histograms of a categorical mosaic, for a single filter (usually a year). Level 0 splits the native grid in square
+ * cells of {@link #getCellSize()} pixels, each following level merges 2x2 cells of the previous one, up to a single cell covering the whole grid.
+ * A zone can then be decomposed in the largest cells fully inside it, whose histograms are read from the pyramid, plus the border pixels, so that
+ * the cost of a zonal histogram depends on the perimeter of the zone rather than on its area.
+ * <p>
+ * The pyramid is built once and saved in the directory of the mosaic, named after the coverage and a digest of the filter and of the granule
+ * index signature, so that a change in the mosaic content makes it unused until it is rebuilt. The opened pyramids are kept in memory by a
+ * {@link ClassHistogramPyramidCache}.
+ * </p>
+ */
+public class ClassHistogramPyramid {
+
+    private static final Logger LOGGER = Logging.getLogger(ClassHistogramPyramid.class);
+
+    /** Default size in pixels of the level 0 cells */
+    public static final int DEFAULT_CELL_SIZE = 256;
+
+    /** Classes stored in the pyramid: all the byte values */
+    static final int NUM_CLASSES = 256;
+
+    private static final int MAGIC = 0x43484950;
+
+    private static final int VERSION = 1;
+
+    private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+    /** Native grid range of the coverage */
+    private final Rectangle gridBounds;
+
+    private final int cellSize;
+
+    /** Classes of the non empty bins of each cell, for each level */
+    private final byte[][][] classes;
+
+    /** Counts of the non empty bins of each cell, for each level */
+    private final long[][][] counts;
+
+    /** Estimated size in bytes, computed when the pyramid is read */
+    private long size;
+
+    /**
+     * A cell of the pyramid
+     */
+    public static class Cell {
+
+        private final int level;
+
+        private final int index;
+
+        private final Rectangle bounds;
+
+        Cell(int level, int index, Rectangle bounds) {
+            this.level = level;
+            this.index = index;
+            this.bounds = bounds;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        /**
+         * @return the bounds of the cell in the native grid space
+         */
+        public Rectangle getBounds() {
+            return bounds;
+        }
+    }
+
+    private ClassHistogramPyramid(Rectangle gridBounds, int cellSize, int numLevels) {
+        this.gridBounds = new Rectangle(gridBounds);
+        this.cellSize = cellSize;
+        this.classes = new byte[numLevels][][];
+        this.counts = new long[numLevels][][];
+        for (int l = 0; l < numLevels; l++) {
+            final int numCells = getNumCellsX(l) * getNumCellsY(l);
+            classes[l] = new byte[numCells][];
+            counts[l] = new long[numCells][];
+        }
+    }
+
+    /**
+     * Returns the pyramid file of the coverage and the provided filter
+     *
+     * @throws IOException if the directory of the coverage store can't be found
+     */
+    public static File getFile(CoverageInfo coverage, Filter filter) throws IOException {
+        return CoverageUtilities.getIndexFile(coverage, "clchist", filter);
+    }
+
+    /**
+     * Opens the pyramid of the coverage and filter, if it has been built and the read coverage is on the native grid of the coverage.
+     * 
+     * @param ci the coverage
+     * @param filter the filter used for reading the coverage
+     * @param coverage the read coverage
+     * @param cache the cache of the opened pyramids, may be <code>null</code>
+     * @return the pyramid, or <code>null</code> if not available
+     */
+    public static ClassHistogramPyramid open(CoverageInfo ci, Filter filter,
+            GridCoverage2D coverage, ClassHistogramPyramidCache cache) {
+        if (coverage == null || !CoverageUtilities.isOnNativeGrid(ci, coverage)) {
+            return null;
+        }
+        try {
+            final File file = getFile(ci, filter);
+            final Rectangle gridBounds = new Rectangle(((GridGeometry2D) ci.getGrid())
+                    .getGridRange2D());
+            return cache != null ? cache.open(ci, file, gridBounds) : open(file, gridBounds);
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "Unable to locate the class histogram pyramid of "
+                        + ci.prefixedName(), e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Computes the histograms of a band of the image and writes the pyramid.
+     *
+     * @param file the pyramid file
+     * @param gridBounds native grid range of the coverage
+     * @param cellSize size in pixels of the level 0 cells
+     * @param image the image, covering the whole native grid range
+     * @param band the band to summarize
+     * @throws IOException if the pyramid can't be written
+     */
+    public static void build(File file, Rectangle gridBounds, int cellSize, RenderedImage image,
+            int band) throws IOException {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException("The cell size must be positive");
+        }
+        final Rectangle imageBounds = new Rectangle(image.getMinX(), image.getMinY(),
+                image.getWidth(), image.getHeight());
+        if (!imageBounds.contains(gridBounds)) {
+            throw new IllegalArgumentException("The image must cover the whole grid range");
+        }
+        final ClassHistogramPyramid pyramid = new ClassHistogramPyramid(gridBounds, cellSize,
+                getNumLevels(gridBounds, cellSize));
+
+        // level 0 from the pixels, one tile at a time
+        final long[] histogram = new long[NUM_CLASSES];
+        for (int cy = 0; cy < pyramid.getNumCellsY(0); cy++) {
+            for (int cx = 0; cx < pyramid.getNumCellsX(0); cx++) {
+                final Rectangle cell = pyramid.getCellBounds(0, cx, cy);
+                accumulate(image, band, cell, histogram);
+                pyramid.setHistogram(0, cy * pyramid.getNumCellsX(0) + cx, histogram);
+            }
+        }
+
+        // the other levels from the 2x2 cells below them
+        for (int l = 1; l < pyramid.getNumLevels(); l++) {
+            for (int cy = 0; cy < pyramid.getNumCellsY(l); cy++) {
+                for (int cx = 0; cx < pyramid.getNumCellsX(l); cx++) {
+                    for (int j = 2 * cy; j < Math.min(2 * cy + 2, pyramid.getNumCellsY(l - 1)); j++) {
+                        for (int i = 2 * cx; i < Math.min(2 * cx + 2,
+                                pyramid.getNumCellsX(l - 1)); i++) {
+                            pyramid.addHistogram(l - 1, j * pyramid.getNumCellsX(l - 1) + i,
+                                    histogram);
+                        }
+                    }
+                    pyramid.setHistogram(l, cy * pyramid.getNumCellsX(l) + cx, histogram);
+                }
+            }
+        }
+        pyramid.write(file);
+    }
+
+    /**
+     * Adds the samples of the provided area to the histogram
+     */
+    private static void accumulate(RenderedImage image, int band, Rectangle rect,
+            long[] histogram) {
+        final int minTileX = PlanarImage.XToTileX(rect.x, image.getTileGridXOffset(),
+                image.getTileWidth());
+        final int maxTileX = PlanarImage.XToTileX(rect.x + rect.width - 1,
+                image.getTileGridXOffset(), image.getTileWidth());
+        final int minTileY = PlanarImage.YToTileY(rect.y, image.getTileGridYOffset(),
+                image.getTileHeight());
+        final int maxTileY = PlanarImage.YToTileY(rect.y + rect.height - 1,
+                image.getTileGridYOffset(), image.getTileHeight());
+        for (int ty = minTileY; ty <= maxTileY; ty++) {
+            for (int tx = minTileX; tx <= maxTileX; tx++) {
+                final Rectangle area = new Rectangle(image.getTileGridXOffset() + tx
+                        * image.getTileWidth(), image.getTileGridYOffset() + ty
+                        * image.getTileHeight(), image.getTileWidth(), image.getTileHeight())
+                        .intersection(rect);
+                final RunLengthRaster encoded = RunLengthRaster.encode(image.getTile(tx, ty),
+                        band, area);
+                for (int y = area.y; y < area.y + area.height; y++) {
+                    final int[] runs = encoded.getRuns(y);
+                    int start = area.x;
+                    for (int r = 0; r < encoded.getNumRuns(y) * RunLengthRaster.RUN_SIZE; r += RunLengthRaster.RUN_SIZE) {
+                        final int value = runs[r + 1];
+                        if (value >= 0 && value < NUM_CLASSES) {
+                            histogram[value] += runs[r] - start;
+                        }
+                        start = runs[r];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores the non empty bins of the histogram into a cell and clears it
+     */
+    private void setHistogram(int level, int index, long[] histogram) {
+        int n = 0;
+        for (long count : histogram) {
+            if (count > 0) {
+                n++;
+            }
+        }
+        final byte[] cellClasses = new byte[n];
+        final long[] cellCounts = new long[n];
+        n = 0;
+        for (int c = 0; c < histogram.length; c++) {
+            if (histogram[c] > 0) {
+                cellClasses[n] = (byte) c;
+                cellCounts[n++] = histogram[c];
+                histogram[c] = 0;
+            }
+        }
+        classes[level][index] = cellClasses;
+        counts[level][index] = cellCounts;
+    }
+
+    private void addHistogram(int level, int index, long[] histogram) {
+        final byte[] cellClasses = classes[level][index];
+        final long[] cellCounts = counts[level][index];
+        for (int i = 0; i < cellClasses.length; i++) {
+            histogram[cellClasses[i] & 0xFF] += cellCounts[i];
+        }
+    }
+
+    private void write(File file) throws IOException {
+        // the pyramid is written to a temporary file of this build, moved once complete
+        final File temp = File.createTempFile(file.getName() + ".", ".tmp", file.getParentFile());
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+        boolean completed = false;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(gridBounds.x);
+            out.writeInt(gridBounds.y);
+            out.writeInt(gridBounds.width);
+            out.writeInt(gridBounds.height);
+            out.writeInt(cellSize);
+            out.writeInt(getNumLevels());
+            for (int l = 0; l < getNumLevels(); l++) {
+                for (int i = 0; i < classes[l].length; i++) {
+                    out.writeShort(classes[l][i].length);
+                    for (int c = 0; c < classes[l][i].length; c++) {
+                        out.writeByte(classes[l][i][c]);
+                        out.writeLong(counts[l][i][c]);
+                    }
+                }
+            }
+            out.flush();
+            completed = true;
+        } finally {
+            out.close();
+            if (!completed) {
+                temp.delete();
+            }
+        }
+        if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+            temp.delete();
+            // a concurrent build of the same pyramid may have just moved its own file
+            if (!file.exists()) {
+                throw new IOException("Unable to write the class histogram pyramid " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads an existing pyramid.
+     *
+     * @param file the pyramid file
+     * @param gridBounds the current native grid range of the coverage
+     * @return the pyramid, or <code>null</code> if the file does not exist or has been built for a different grid
+     */
+    public static ClassHistogramPyramid open(File file, Rectangle gridBounds) {
+        if (!file.isFile()) {
+            return null;
+        }
+        return read(file, gridBounds);
+    }
+
+    /**
+     * @return the estimated size in bytes of the pyramid
+     */
+    public long getSize() {
+        return size;
+    }
+
+    private static ClassHistogramPyramid read(File file, Rectangle gridBounds) {
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                final Rectangle bounds = new Rectangle(in.readInt(), in.readInt(),
+                        in.readInt(), in.readInt());
+                final int cellSize = in.readInt();
+                final int numLevels = in.readInt();
+                if (!bounds.equals(gridBounds) || cellSize <= 0
+                        || numLevels != getNumLevels(bounds, cellSize)) {
+                    return null;
+                }
+                final ClassHistogramPyramid pyramid = new ClassHistogramPyramid(bounds,
+                        cellSize, numLevels);
+                // object headers and references of the levels
+                long size = 64 + numLevels * 64L;
+                for (int l = 0; l < numLevels; l++) {
+                    for (int i = 0; i < pyramid.classes[l].length; i++) {
+                        final int n = in.readUnsignedShort();
+                        // array headers and references of the cell, plus its bins
+                        size += 48 + n * 9L;
+                        final byte[] cellClasses = new byte[n];
+                        final long[] cellCounts = new long[n];
+                        for (int c = 0; c < n; c++) {
+                            cellClasses[c] = in.readByte();
+                            cellCounts[c] = in.readLong();
+                        }
+                        pyramid.classes[l][i] = cellClasses;
+                        pyramid.counts[l][i] = cellCounts;
+                    }
+                }
+                pyramid.size = size;
+                return pyramid;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            if (LOGGER.isLoggable(Level.WARNING)) {
+                LOGGER.log(Level.WARNING, "Unable to read the class histogram pyramid " + file,
+                        e);
+            }
+            return null;
+        }
+    }
+
+    public int getCellSize() {
+        return cellSize;
+    }
+
+    public int getNumLevels() {
+        return classes.length;
+    }
+
+    public Rectangle getGridBounds() {
+        return new Rectangle(gridBounds);
+    }
+
+    /**
+     * Decomposes a zone in the largest cells fully inside it.
+     *
+     * @param zone the zone, in the native grid space
+     * @param bounds the area the cells must be inside of, in the native grid space
+     * @return the cells, not overlapping each other
+     */
+    public List<Cell> getCells(Geometry zone, Rectangle bounds) {
+        final List<Cell> result = new ArrayList<Cell>();
+        final Envelope envelope = zone.getEnvelopeInternal();
+        final Rectangle area = bounds.intersection(gridBounds);
+        if (envelope.isNull() || area.isEmpty()) {
+            return result;
+        }
+        final PreparedGeometry prepared = PreparedGeometryFactory.prepare(zone);
+        final int top = getNumLevels() - 1;
+        for (int cy = 0; cy < getNumCellsY(top); cy++) {
+            for (int cx = 0; cx < getNumCellsX(top); cx++) {
+                collectCells(prepared, envelope, area, top, cx, cy, result);
+            }
+        }
+        return result;
+    }
+
+    private void collectCells(PreparedGeometry zone, Envelope envelope, Rectangle area,
+            int level, int cx, int cy, List<Cell> result) {
+        final Rectangle cell = getCellBounds(level, cx, cy);
+        final Envelope cellEnvelope = new Envelope(cell.x, cell.x + cell.width, cell.y, cell.y
+                + cell.height);
+        if (!cell.intersects(area) || !envelope.intersects(cellEnvelope)) {
+            return;
+        }
+        final Geometry cellGeometry = GEOMETRY_FACTORY.toGeometry(cellEnvelope);
+        if (area.contains(cell) && zone.contains(cellGeometry)) {
+            result.add(new Cell(level, cy * getNumCellsX(level) + cx, cell));
+        } else if (level > 0 && zone.intersects(cellGeometry)) {
+            for (int j = 2 * cy; j < Math.min(2 * cy + 2, getNumCellsY(level - 1)); j++) {
+                for (int i = 2 * cx; i < Math.min(2 * cx + 2, getNumCellsX(level - 1)); i++) {
+                    collectCells(zone, envelope, area, level - 1, i, j, result);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the histogram of a cell to the provided band of the zonal histogram
+     */
+    public void add(Cell cell, ZonalHistogram histogram, int band) {
+        final byte[] cellClasses = classes[cell.level][cell.index];
+        final long[] cellCounts = counts[cell.level][cell.index];
+        for (int i = 0; i < cellClasses.length; i++) {
+            histogram.add(band, cellClasses[i] & 0xFF, cellCounts[i]);
+        }
+    }
+
+    /**
+     * Checks if the provided pyramid decomposes the zones in the same cells of this one
+     */
+    public boolean isCompatible(ClassHistogramPyramid other) {
+        return gridBounds.equals(other.gridBounds) && cellSize == other.cellSize;
+    }
+
+    private int getNumCellsX(int level) {
+        return numCells(gridBounds.width, cellSize << level);
+    }
+
+    private int getNumCellsY(int level) {
+        return numCells(gridBounds.height, cellSize << level);
+    }
+
+    private Rectangle getCellBounds(int level, int cx, int cy) {
+        final int size = cellSize << level;
+        return new Rectangle(gridBounds.x + cx * size, gridBounds.y + cy * size, size, size)
+                .intersection(gridBounds);
+    }
+
+    /**
+     * @return the number of levels needed to cover the grid with a single cell
+     */
+    private static int getNumLevels(Rectangle gridBounds, int cellSize) {
+        int levels = 1;
+        long size = cellSize;
+        while (size < gridBounds.width || size < gridBounds.height) {
+            size *= 2;
+            levels++;
+        }
+        return levels;
+    }
+
+    private static int numCells(int size, int cellSize) {
+        return (int) ((size + (long) cellSize - 1) / cellSize);
+    }
+}
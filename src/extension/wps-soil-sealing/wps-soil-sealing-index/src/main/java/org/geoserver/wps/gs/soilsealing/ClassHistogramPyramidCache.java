@@ -0,0 +1,238 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.CoverageInfo;
+import org.geoserver.catalog.CoverageStoreInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Bounded, size-aware LRU cache of the opened {@link ClassHistogramPyramid}s. Entries are keyed by pyramid file and reused only while the file
+ * keeps its modification time and length; they are dropped when the coverage or its store are modified or removed from the catalog.
+ */
+public class ClassHistogramPyramidCache implements CatalogListener {
+
+    private static final Logger LOGGER = Logging.getLogger(ClassHistogramPyramidCache.class);
+
+    /** Default maximum estimated size in bytes */
+    public static final long DEFAULT_MAX_SIZE = 128 * 1024 * 1024;
+
+    /** Cached values, in access order */
+    private final LinkedHashMap<String, CachedPyramid> entries = new LinkedHashMap<String, CachedPyramid>(
+            16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private long maxSize = DEFAULT_MAX_SIZE;
+
+    /** Current estimated size */
+    private long size;
+
+    public ClassHistogramPyramidCache(Catalog catalog) {
+        if (catalog != null) {
+            catalog.addListener(this);
+        }
+    }
+
+    /**
+     * Opens the pyramid of the coverage, reusing the cached one if the file has not been modified meanwhile.
+     *
+     * @param coverage the coverage the pyramid has been built for
+     * @param file the pyramid file
+     * @param gridBounds the current native grid range of the coverage
+     * @return the pyramid, or <code>null</code> if the file does not exist or has been built for a different grid
+     */
+    public ClassHistogramPyramid open(CoverageInfo coverage, File file, Rectangle gridBounds) {
+        if (!file.isFile()) {
+            return null;
+        }
+        final String key = file.getAbsolutePath();
+        final String version = file.lastModified() + ":" + file.length();
+        synchronized (this) {
+            CachedPyramid cached = entries.get(key);
+            if (cached != null && version.equals(cached.version)
+                    && cached.pyramid.getGridBounds().equals(gridBounds)) {
+                hits.incrementAndGet();
+                return cached.pyramid;
+            }
+        }
+        misses.incrementAndGet();
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Class histogram pyramid cache miss for " + key + ", hits: " + hits.get()
+                    + ", misses: " + misses.get());
+        }
+        final ClassHistogramPyramid pyramid = ClassHistogramPyramid.open(file, gridBounds);
+        if (pyramid != null) {
+            put(coverage, key, version, pyramid);
+        }
+        return pyramid;
+    }
+
+    /**
+     * Adds a pyramid, evicting the least recently used entries if needed
+     */
+    private synchronized void put(CoverageInfo coverage, String key, String version,
+            ClassHistogramPyramid pyramid) {
+        if (coverage.getId() == null || pyramid.getSize() > maxSize) {
+            return;
+        }
+        CachedPyramid value = new CachedPyramid(new String[] { coverage.getId(),
+                coverage.getStore() != null ? coverage.getStore().getId() : null }, version,
+                pyramid);
+        CachedPyramid old = entries.put(key, value);
+        if (old != null) {
+            size -= old.pyramid.getSize();
+        }
+        size += pyramid.getSize();
+        evict();
+    }
+
+    /**
+     * Evicts the least recently used entries exceeding the maximum size
+     */
+    private void evict() {
+        Iterator<CachedPyramid> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().pyramid.getSize();
+            it.remove();
+        }
+    }
+
+    /**
+     * Drops the pyramid read from the provided file, if any
+     */
+    public synchronized void invalidate(File file) {
+        CachedPyramid old = entries.remove(file.getAbsolutePath());
+        if (old != null) {
+            size -= old.pyramid.getSize();
+        }
+    }
+
+    /**
+     * Removes all the entries
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    // ////
+    // Catalog events
+    // ////
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // nothing to do
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // wait for the post modify event
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    /**
+     * Drops the entries related to the provided catalog object
+     */
+    private synchronized void invalidate(CatalogInfo info) {
+        if (!(info instanceof CoverageInfo || info instanceof CoverageStoreInfo)
+                || info.getId() == null) {
+            return;
+        }
+        Iterator<CachedPyramid> it = entries.values().iterator();
+        while (it.hasNext()) {
+            CachedPyramid value = it.next();
+            if (value.dependsOn(info.getId())) {
+                size -= value.pyramid.getSize();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * A cached pyramid with the version of its file and the ids of the coverage and store it has been built for
+     */
+    private static class CachedPyramid {
+
+        private final String[] sourceIds;
+
+        /** Modification time and length of the file */
+        private final String version;
+
+        private final ClassHistogramPyramid pyramid;
+
+        CachedPyramid(String[] sourceIds, String version, ClassHistogramPyramid pyramid) {
+            this.sourceIds = sourceIds;
+            this.version = version;
+            this.pyramid = pyramid;
+        }
+
+        boolean dependsOn(String id) {
+            for (String sourceId : sourceIds) {
+                if (id.equals(sourceId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CoverageInfo;
+import org.geoserver.wps.WPSException;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.process.factory.DescribeParameter;
+import org.geotools.process.factory.DescribeProcess;
+import org.geotools.process.factory.DescribeResult;
+import org.geotools.process.gs.GSProcess;
+import org.geotools.util.logging.Logging;
+import org.opengis.coverage.grid.GridCoverageReader;
+import org.opengis.filter.Filter;
+
+/**
+ * Precomputes the {@link ClassHistogramPyramid} of a mosaic for a filter (usually a year), so that the following {@link SoilSealingCLCProcess}
+ * executions can read the histograms of the areas fully inside the administrative units.
+ */
+@DescribeProcess(title = "ClassHistogramPyramid", description = "Precompute the class histogram pyramid of a coverage for a filter")
+public class ClassHistogramPyramidProcess implements GSProcess {
+
+    private static final Logger LOGGER = Logging.getLogger(ClassHistogramPyramidProcess.class);
+
+    private Catalog catalog;
+
+    /** Optional cache of the opened pyramids, to drop the previous version of the written one */
+    private ClassHistogramPyramidCache classHistogramPyramidCache;
+
+    public ClassHistogramPyramidProcess(Catalog catalog) {
+        this.catalog = catalog;
+    }
+
+    public ClassHistogramPyramidCache getClassHistogramPyramidCache() {
+        return classHistogramPyramidCache;
+    }
+
+    public void setClassHistogramPyramidCache(ClassHistogramPyramidCache classHistogramPyramidCache) {
+        this.classHistogramPyramidCache = classHistogramPyramidCache;
+    }
+
+    @DescribeResult(name = "pyramid", description = "the name of the written pyramid file", type = String.class)
+    public String execute(
+            @DescribeParameter(name = "name", description = "Name of the raster, optionally fully qualified (workspace:name)") String referenceName,
+            @DescribeParameter(name = "filter", description = "Filter to use on the raster data", min = 1) Filter filter,
+            @DescribeParameter(name = "cellSize", min = 0, description = "Size in pixels of the smallest cells") Integer cellSize)
+            throws IOException {
+        final CoverageInfo ci = catalog.getCoverageByName(referenceName);
+        if (ci == null) {
+            throw new WPSException("Could not find coverage " + referenceName);
+        }
+        final int size = cellSize != null ? cellSize : ClassHistogramPyramid.DEFAULT_CELL_SIZE;
+        if (size <= 0) {
+            throw new WPSException("The cell size must be positive");
+        }
+
+        final GridGeometry2D nativeGrid = (GridGeometry2D) ci.getGrid();
+        final File file = ClassHistogramPyramid.getFile(ci, filter);
+        GridCoverage2D coverage = null;
+        try {
+            // read the whole coverage on its native grid
+            final GridCoverageReader reader = ci.getGridCoverageReader(null, null);
+            coverage = CoverageUtilities.readCoverage(ci, reader, filter, nativeGrid);
+            if (coverage == null) {
+                throw new WPSException("Input Coverage not found");
+            }
+
+            ClassHistogramPyramid.build(file, new Rectangle(nativeGrid.getGridRange2D()), size,
+                    coverage.getRenderedImage(), 0);
+            if (classHistogramPyramidCache != null) {
+                classHistogramPyramidCache.invalidate(file);
+            }
+            if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.info("Written the class histogram pyramid " + file);
+            }
+            return file.getName();
+        } finally {
+            if (coverage != null) {
+                coverage.dispose(true);
+            }
+        }
+    }
+}
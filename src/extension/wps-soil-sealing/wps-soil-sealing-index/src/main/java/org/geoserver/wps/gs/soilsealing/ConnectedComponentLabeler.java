@@ -0,0 +1,424 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.media.jai.PlanarImage;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Streaming connected component labeling of the pixels of a given class inside a set of zones, used for computing the urban grid metrics
+ * straight from the imperviousness raster instead of the vectorized urban grids.
+ * <p>
+ * Two pixels belong to the same component if they are 4-connected, have the requested value and fall in the same zone. A component having a
+ * 4-connected pixel with the requested value outside its zone is not counted, like the urban grid polygons not within an Administrative area
+ * in the vector computation; the pixels outside the image are unknown and never make a component crossing. The image is scanned one strip of
+ * tiles at a time with a union-find algorithm: only the labels of the previous row are kept, while the area and the number of internal
+ * adjacencies of each provisional label are accumulated on the fly. At the end of each strip the completed components are collected and the
+ * labels of the growing ones are renumbered, so the label tables stay bounded by the labels of a single strip. The perimeter of a component
+ * is <code>4 * pixels - 2 * adjacencies</code> pixel sides.
+ * </p>
+ */
+class ConnectedComponentLabeler {
+
+    private ConnectedComponentLabeler() {
+    }
+
+    /**
+     * Labels the components of each zone.
+     *
+     * @param image input image
+     * @param band band to take into account
+     * @param value value of the pixels to label
+     * @param zones zones, in raster space
+     * @return the components of each zone, in the same order, or <code>null</code> if the zones are not polygonal
+     */
+    static ZoneComponents[] compute(RenderedImage image, int band, int value, List<Geometry> zones) {
+        final Rectangle bounds = new Rectangle(image.getMinX(), image.getMinY(),
+                image.getWidth(), image.getHeight());
+        final ZoneLabelRaster labels = ZoneLabelRaster.create(bounds, zones);
+        if (labels == null) {
+            return null;
+        }
+        if (!labels.isOverlapping()) {
+            return new Scan(image, band, value, labels, zones.size()).run();
+        }
+        // a pixel can only carry a single zone, overlapping zones are labelled one by one
+        final ZoneComponents[] result = new ZoneComponents[zones.size()];
+        for (int i = 0; i < zones.size(); i++) {
+            ZoneLabelRaster single = ZoneLabelRaster.create(bounds,
+                    Collections.singletonList(zones.get(i)));
+            result[i] = new Scan(image, band, value, single, 1).run()[0];
+        }
+        return result;
+    }
+
+    /**
+     * The components of a single zone
+     */
+    static class ZoneComponents {
+
+        /** Number of pixels of the zone */
+        private long zonePixels;
+
+        /** Number of pixels of all the components */
+        private long pixels;
+
+        /** Number of pixels of the biggest component */
+        private long maxPixels;
+
+        /** Number of components */
+        private int count;
+
+        /** Number of pixel sides on the boundary of the components */
+        private long edges;
+
+        long getZonePixels() {
+            return zonePixels;
+        }
+
+        long getPixels() {
+            return pixels;
+        }
+
+        long getMaxPixels() {
+            return maxPixels;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        long getEdges() {
+            return edges;
+        }
+    }
+
+    /**
+     * A single scan of the image
+     */
+    private static class Scan {
+
+        /** Initial size of the label tables */
+        private static final int INITIAL_LABELS = 1024;
+
+        private final RenderedImage image;
+
+        private final int band;
+
+        private final int value;
+
+        private final ZoneLabelRaster labels;
+
+        private final int numZones;
+
+        /** Union-find parent of each provisional label, 0 is the background */
+        private int[] parent = new int[INITIAL_LABELS];
+
+        /** Zone of each provisional label */
+        private int[] zone = new int[INITIAL_LABELS];
+
+        /** Pixels of each provisional label */
+        private long[] pixels = new long[INITIAL_LABELS];
+
+        /** Adjacencies of each provisional label */
+        private long[] adjacencies = new long[INITIAL_LABELS];
+
+        /** Whether the component of each provisional label continues outside its zone */
+        private boolean[] open = new boolean[INITIAL_LABELS];
+
+        /** New label of each provisional label, used when the labels are recycled */
+        private int[] remap = new int[INITIAL_LABELS];
+
+        private int numLabels = 1;
+
+        /** First column and number of columns read, one pixel around the active bounds */
+        private int minX;
+
+        private int width;
+
+        /** Tiles of the strip being read, fetched lazily */
+        private Raster[] strip;
+
+        private int stripY = Integer.MIN_VALUE;
+
+        private int minTileX;
+
+        private int[] samples;
+
+        Scan(RenderedImage image, int band, int value, ZoneLabelRaster labels, int numZones) {
+            this.image = image;
+            this.band = band;
+            this.value = value;
+            this.labels = labels;
+            this.numZones = numZones;
+        }
+
+        ZoneComponents[] run() {
+            final ZoneComponents[] result = new ZoneComponents[numZones];
+            for (int i = 0; i < numZones; i++) {
+                result[i] = new ZoneComponents();
+            }
+            final Rectangle active = labels.getActiveBounds();
+            if (active.isEmpty()) {
+                return result;
+            }
+
+            // the pixels around the zones are read for finding the components crossing their boundaries
+            final Rectangle area = new Rectangle(active.x - 1, active.y - 1, active.width + 2,
+                    active.height + 2).intersection(new Rectangle(image.getMinX(), image
+                    .getMinY(), image.getWidth(), image.getHeight()));
+            minX = area.x;
+            width = area.width;
+            final int tileWidth = image.getTileWidth();
+            final int xOffset = image.getTileGridXOffset();
+            minTileX = PlanarImage.XToTileX(minX, xOffset, tileWidth);
+            strip = new Raster[PlanarImage.XToTileX(minX + width - 1, xOffset, tileWidth)
+                    - minTileX + 1];
+            samples = new int[tileWidth];
+
+            // values and zones of the previous, current and next rows
+            int[] valuesAbove = new int[width];
+            int[] values = new int[width];
+            int[] valuesBelow = new int[width];
+            int[] zonesAbove = new int[width];
+            int[] zones = new int[width];
+            int[] zonesBelow = new int[width];
+            // labels of the previous and current rows
+            int[] previous = new int[width];
+            int[] current = new int[width];
+
+            readRow(active.y - 1, area, valuesAbove, zonesAbove);
+            readRow(active.y, area, values, zones);
+            final int endY = active.y + active.height;
+            for (int y = active.y; y < endY; y++) {
+                readRow(y + 1, area, valuesBelow, zonesBelow);
+                Arrays.fill(current, 0);
+                final int numRuns = labels.getNumRuns(y);
+                final int[] runs = numRuns > 0 ? labels.getRuns(y) : null;
+                for (int r = 0; r < numRuns * 3; r += 3) {
+                    final int runZone = runs[r + 2];
+                    result[runZone].zonePixels += runs[r + 1] - runs[r];
+                    for (int x = runs[r] - minX; x < runs[r + 1] - minX; x++) {
+                        if (values[x] != value) {
+                            continue;
+                        }
+                        final int label = label(x, runZone, previous, current);
+                        if (!open[label]
+                                && (isOutside(x - 1, values, zones, runZone)
+                                        || isOutside(x + 1, values, zones, runZone)
+                                        || isOutside(x, valuesAbove, zonesAbove, runZone) || isOutside(
+                                            x, valuesBelow, zonesBelow, runZone))) {
+                            open[label] = true;
+                        }
+                    }
+                }
+
+                int[] swap = valuesAbove;
+                valuesAbove = values;
+                values = valuesBelow;
+                valuesBelow = swap;
+                swap = zonesAbove;
+                zonesAbove = zones;
+                zones = zonesBelow;
+                zonesBelow = swap;
+                swap = previous;
+                previous = current;
+                current = swap;
+
+                // the labels are recycled at the end of each strip of tiles
+                if (y + 1 < endY && stripY != PlanarImage.YToTileY(y + 1,
+                        image.getTileGridYOffset(), image.getTileHeight())) {
+                    recycle(previous, result);
+                }
+            }
+
+            // all the components are complete
+            Arrays.fill(previous, 0);
+            recycle(previous, result);
+            return result;
+        }
+
+        /**
+         * Reads the values and the zones of a row, the values outside the image never match the labelled one
+         */
+        private void readRow(int y, Rectangle area, int[] values, int[] zones) {
+            Arrays.fill(zones, ZoneLabelRaster.NO_ZONE);
+            if (y < area.y || y >= area.y + area.height) {
+                Arrays.fill(values, ~value);
+                return;
+            }
+            final int numRuns = labels.getNumRuns(y);
+            final int[] runs = numRuns > 0 ? labels.getRuns(y) : null;
+            for (int r = 0; r < numRuns * 3; r += 3) {
+                Arrays.fill(zones, runs[r] - minX, runs[r + 1] - minX, runs[r + 2]);
+            }
+
+            final int tileWidth = image.getTileWidth();
+            final int xOffset = image.getTileGridXOffset();
+            final int ty = PlanarImage.YToTileY(y, image.getTileGridYOffset(),
+                    image.getTileHeight());
+            if (ty != stripY) {
+                Arrays.fill(strip, null);
+                stripY = ty;
+            }
+            // the row is split at the tile boundaries
+            int x = minX;
+            while (x < minX + width) {
+                final int tx = PlanarImage.XToTileX(x, xOffset, tileWidth);
+                final int end = Math.min(minX + width, xOffset + (tx + 1) * tileWidth);
+                Raster tile = strip[tx - minTileX];
+                if (tile == null) {
+                    tile = image.getTile(tx, ty);
+                    strip[tx - minTileX] = tile;
+                }
+                CoverageUtilities.readRow(tile, band, x, y, end - x, samples);
+                System.arraycopy(samples, 0, values, x - minX, end - x);
+                x = end;
+            }
+        }
+
+        /**
+         * Checks whether a neighbour has the labelled value but lies outside the zone of the pixel
+         */
+        private boolean isOutside(int x, int[] values, int[] zones, int pixelZone) {
+            return x >= 0 && x < width && values[x] == value && zones[x] != pixelZone;
+        }
+
+        /**
+         * Labels a single pixel of the current row, merging the components of its left and upper neighbours
+         *
+         * @return the label of the pixel
+         */
+        private int label(int x, int pixelZone, int[] previous, int[] current) {
+            final int left = x > 0 ? current[x - 1] : 0;
+            final int up = previous[x];
+            final boolean leftMatch = left != 0 && zone[left] == pixelZone;
+            final boolean upMatch = up != 0 && zone[up] == pixelZone;
+            int label;
+            if (leftMatch && upMatch) {
+                label = union(left, up);
+            } else if (leftMatch) {
+                label = left;
+            } else if (upMatch) {
+                label = up;
+            } else {
+                label = newLabel(pixelZone);
+            }
+            current[x] = label;
+            pixels[label]++;
+            adjacencies[label] += (leftMatch ? 1 : 0) + (upMatch ? 1 : 0);
+            return label;
+        }
+
+        /**
+         * Merges the provisional labels into their components, adds the components not reaching the last labelled row to the results and
+         * renumbers the others from 1, so that the label tables only hold the labels of a single strip.
+         *
+         * @param previous labels of the last labelled row, renumbered in place
+         */
+        private void recycle(int[] previous, ZoneComponents[] result) {
+            for (int l = 1; l < numLabels; l++) {
+                final int root = find(l);
+                if (root != l) {
+                    pixels[root] += pixels[l];
+                    adjacencies[root] += adjacencies[l];
+                    open[root] |= open[l];
+                }
+            }
+            // the components still growing are marked
+            Arrays.fill(remap, 0, numLabels, 0);
+            for (int x = 0; x < width; x++) {
+                if (previous[x] != 0) {
+                    previous[x] = find(previous[x]);
+                    remap[previous[x]] = -1;
+                }
+            }
+            int next = 1;
+            for (int l = 1; l < numLabels; l++) {
+                if (parent[l] != l) {
+                    continue;
+                }
+                if (remap[l] < 0) {
+                    // moved to a lower slot, all the lower labels have been processed already
+                    final int label = next++;
+                    remap[l] = label;
+                    parent[label] = label;
+                    zone[label] = zone[l];
+                    pixels[label] = pixels[l];
+                    adjacencies[label] = adjacencies[l];
+                    open[label] = open[l];
+                } else if (!open[l]) {
+                    // components continuing outside their zone are not contained in it
+                    final ZoneComponents components = result[zone[l]];
+                    components.count++;
+                    components.pixels += pixels[l];
+                    components.maxPixels = Math.max(components.maxPixels, pixels[l]);
+                    components.edges += 4 * pixels[l] - 2 * adjacencies[l];
+                }
+            }
+            for (int x = 0; x < width; x++) {
+                if (previous[x] != 0) {
+                    previous[x] = remap[previous[x]];
+                }
+            }
+            numLabels = next;
+        }
+
+        private int newLabel(int labelZone) {
+            if (numLabels == parent.length) {
+                final int size = parent.length * 2;
+                parent = Arrays.copyOf(parent, size);
+                zone = Arrays.copyOf(zone, size);
+                pixels = Arrays.copyOf(pixels, size);
+                adjacencies = Arrays.copyOf(adjacencies, size);
+                open = Arrays.copyOf(open, size);
+                remap = new int[size];
+            }
+            final int label = numLabels++;
+            parent[label] = label;
+            zone[label] = labelZone;
+            pixels[label] = 0;
+            adjacencies[label] = 0;
+            open[label] = false;
+            return label;
+        }
+
+        private int find(int label) {
+            int root = label;
+            while (parent[root] != root) {
+                root = parent[root];
+            }
+            // path compression
+            while (parent[label] != root) {
+                final int next = parent[label];
+                parent[label] = root;
+                label = next;
+            }
+            return root;
+        }
+
+        /**
+         * Merges two labels, returning the root of the merged component
+         */
+        private int union(int a, int b) {
+            final int rootA = find(a);
+            final int rootB = find(b);
+            if (rootA == rootB) {
+                return rootA;
+            }
+            final int root = Math.min(rootA, rootB);
+            parent[Math.max(rootA, rootB)] = root;
+            return root;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.geotools.geometry.jts.JTS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Cache of the transforms from a source CRS to the local Lambert Azimuthal Equal Area projections used for measuring the area and the perimeter
+ * of the geometries.
+ * <p>
+ * The projection centre is the center of the geometry envelope, quantized on a {@link #CENTER_RESOLUTION} degrees grid, so that the WKT of the
+ * local projection is parsed and the transform is looked up only once for each grid cell instead of once for each geometry. The projection is
+ * equal area whatever the centre is, so areas are unchanged; the scale distortion of the lengths grows with the squared distance from the centre
+ * (about c<sup>2</sup>/8 for an angular distance c) and stays below 2&middot;10<sup>-6</sup> (relative) for the points within 25 km of the
+ * centre, which covers the urban grid polygons since a 0.1 degrees cell moves the centre by less than 7 km.
+ * </p>
+ */
+class EqualAreaTransforms {
+
+    /** Resolution of the projection centres, in degrees */
+    static final double CENTER_RESOLUTION = 0.1;
+
+    /** Maximum number of cached equal area transforms, the cache is cleared when exceeded */
+    static final int MAX_TRANSFORMS = 4096;
+
+    /** Maximum number of cached source CRSs, the cache is cleared when exceeded */
+    static final int MAX_SOURCES = 64;
+
+    private final CoordinateReferenceSystem geographicCRS;
+
+    /** Transforms from each source CRS to the geographic CRS, source CRSs are compared by identity */
+    private final Map<CoordinateReferenceSystem, MathTransform> toGeographic = Collections
+            .synchronizedMap(new IdentityHashMap<CoordinateReferenceSystem, MathTransform>());
+
+    /** Equal area transforms, keyed by source CRS and quantized centre */
+    private final Map<TransformKey, MathTransform> transforms = new ConcurrentHashMap<TransformKey, MathTransform>();
+
+    /**
+     * @param geographicCRS the CRS used for locating the projection centre, with the same axis order of the WKT of the projection
+     */
+    EqualAreaTransforms(CoordinateReferenceSystem geographicCRS) {
+        this.geographicCRS = geographicCRS;
+    }
+
+    /**
+     * Reprojects the geometry to the local equal area projection closest to its center.
+     *
+     * @param sourceCRS CRS of the geometry
+     * @param sourceGeometry geometry to reproject
+     * @return the reprojected geometry
+     */
+    Geometry reproject(CoordinateReferenceSystem sourceCRS, Geometry sourceGeometry)
+            throws FactoryException, TransformException {
+        MathTransform trans = getTransform(sourceCRS, sourceGeometry.getEnvelopeInternal());
+        return trans.isIdentity() ? sourceGeometry : JTS.transform(sourceGeometry, trans);
+    }
+
+    /**
+     * Returns the equal area transform for a geometry with the provided envelope
+     */
+    MathTransform getTransform(CoordinateReferenceSystem sourceCRS, Envelope envelope)
+            throws FactoryException, TransformException {
+        MathTransform transPoint = toGeographic.get(sourceCRS);
+        if (transPoint == null) {
+            transPoint = CRSCache.findMathTransform(sourceCRS, geographicCRS, true);
+            if (toGeographic.size() >= MAX_SOURCES) {
+                toGeographic.clear();
+            }
+            toGeographic.put(sourceCRS, transPoint);
+        }
+        Coordinate center = JTS.transform(envelope.centre(), null, transPoint);
+        final TransformKey key = new TransformKey(sourceCRS, quantize(center.x),
+                quantize(center.y));
+        MathTransform trans = transforms.get(key);
+        if (trans == null) {
+            // Creation of a wkt for the selected centre
+            String wkt = UrbanGridProcess.PROJ_4326.replace("%LAT0%",
+                    String.valueOf(key.y * CENTER_RESOLUTION));
+            wkt = wkt.replace("%LON0%", String.valueOf(key.x * CENTER_RESOLUTION));
+            final CoordinateReferenceSystem targetCRS = CRSCache.parseWKT(wkt);
+            trans = CRSCache.findMathTransform(sourceCRS, targetCRS);
+            if (transforms.size() >= MAX_TRANSFORMS) {
+                transforms.clear();
+            }
+            transforms.put(key, trans);
+        }
+        return trans;
+    }
+
+    /**
+     * @return the number of cached equal area transforms
+     */
+    int size() {
+        return transforms.size();
+    }
+
+    private static long quantize(double value) {
+        return Math.round(value / CENTER_RESOLUTION);
+    }
+
+    /**
+     * Key of a cached transform. Source CRSs are compared by identity, since the callers reuse the same instance for all the geometries of a
+     * layer and a full comparison would cost more than the lookup it saves.
+     */
+    private static final class TransformKey {
+
+        private final CoordinateReferenceSystem crs;
+
+        private final long x;
+
+        private final long y;
+
+        TransformKey(CoordinateReferenceSystem crs, long x, long y) {
+            this.crs = crs;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(crs);
+            result = 31 * result + (int) (x ^ (x >>> 32));
+            result = 31 * result + (int) (y ^ (y >>> 32));
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TransformKey)) {
+                return false;
+            }
+            TransformKey other = (TransformKey) obj;
+            return crs == other.crs && x == other.x && y == other.y;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.media.jai.AreaOpImage;
+import javax.media.jai.BorderExtender;
+import javax.media.jai.ImageLayout;
+import javax.media.jai.PlanarImage;
+
+import org.jaitools.imageutils.ImageLayout2;
+
+/**
+ * Computes the fragmentation of index 8: for each pixel, the sum of the values of the source pixels inside a square window of the given radius,
+ * multiplied by the pixel area. Only the source pixels inside the zones are counted and the pixels outside the zones are set to 0.
+ * <p>
+ * The window sums are computed from a tile-local summed area table, so each pixel costs O(1) whatever the radius. The source has either a
+ * single band (reference or current image) or two bands (reference and current images): in the latter case the destination has three bands,
+ * the reference, the current and their difference, computed by a single evaluation.
+ * </p>
+ */
+class FragmentationOpImage extends AreaOpImage {
+
+    /** Radius of the window, in pixels */
+    private final int radius;
+
+    /** Area of a single pixel */
+    private final double pixelArea;
+
+    /** Optional zones, in raster space */
+    private final ZoneLabelRaster zones;
+
+    /** Number of bands used for the window sums */
+    private final int numSourceBands;
+
+    /**
+     * @param source source image, with one (reference or current) or two (reference and current) bands
+     * @param zones zones where the pixels are counted, <code>null</code> to count all the pixels
+     * @param radius radius of the window, in pixels
+     * @param pixelArea area of a single pixel
+     * @param config configuration hints
+     */
+    FragmentationOpImage(RenderedImage source, ZoneLabelRaster zones, int radius,
+            double pixelArea, Map<?, ?> config) {
+        super(source, layoutHelper(source), config, true, BorderExtender
+                .createInstance(BorderExtender.BORDER_ZERO), radius, radius, radius, radius);
+        this.radius = radius;
+        this.pixelArea = pixelArea;
+        this.zones = zones;
+        this.numSourceBands = Math.min(2, source.getSampleModel().getNumBands());
+    }
+
+    /**
+     * Preparation of the image layout: one float band for each source band, plus the difference band if there are two source bands.
+     */
+    private static ImageLayout layoutHelper(RenderedImage source) {
+        final int numBands = source.getSampleModel().getNumBands() > 1 ? 3 : 1;
+        ImageLayout il = new ImageLayout2(source);
+        int[] offsets = new int[numBands];
+        for (int i = 0; i < numBands; i++) {
+            offsets[i] = i;
+        }
+        SampleModel sampleModel = new PixelInterleavedSampleModel(DataBuffer.TYPE_FLOAT,
+                source.getTileWidth(), source.getTileHeight(), numBands, source.getTileWidth()
+                        * numBands, offsets);
+        il.setSampleModel(sampleModel);
+        il.setColorModel(PlanarImage.createColorModel(sampleModel));
+        return il;
+    }
+
+    @Override
+    protected void computeRect(Raster[] sources, WritableRaster dest, Rectangle destRect) {
+        final Raster source = sources[0];
+        final int window = 2 * radius + 1;
+        // source area covered by the windows of the destination pixels
+        final int sourceX = destRect.x - radius;
+        final int sourceY = destRect.y - radius;
+        final int sourceWidth = destRect.width + 2 * radius;
+        final int sourceHeight = destRect.height + 2 * radius;
+
+        // summed area table of each band, with a leading row and column of zeros
+        final int stride = sourceWidth + 1;
+        final int[][] table = new int[numSourceBands][stride * (sourceHeight + 1)];
+        final int[] samples = new int[sourceWidth];
+        final boolean[] mask = new boolean[sourceWidth];
+        for (int j = 0; j < sourceHeight; j++) {
+            final int y = sourceY + j;
+            final boolean any = fillMask(y, sourceX, mask);
+            for (int b = 0; b < numSourceBands; b++) {
+                final int[] sums = table[b];
+                final int row = (j + 1) * stride;
+                if (!any) {
+                    System.arraycopy(sums, j * stride, sums, row, stride);
+                    continue;
+                }
+                CoverageUtilities.readRow(source, b, sourceX, y, sourceWidth, samples);
+                int running = 0;
+                for (int i = 0; i < sourceWidth; i++) {
+                    if (mask[i]) {
+                        running += samples[i];
+                    }
+                    sums[row + i + 1] = sums[row - stride + i + 1] + running;
+                }
+            }
+        }
+
+        final int numBands = dest.getNumBands();
+        final float[] values = new float[destRect.width * numBands];
+        final boolean[] destMask = new boolean[destRect.width];
+        for (int j = 0; j < destRect.height; j++) {
+            final int y = destRect.y + j;
+            Arrays.fill(values, 0f);
+            if (fillMask(y, destRect.x, destMask)) {
+                final int top = j * stride;
+                final int bottom = (j + window) * stride;
+                for (int i = 0; i < destRect.width; i++) {
+                    if (!destMask[i]) {
+                        continue;
+                    }
+                    final int offset = i * numBands;
+                    for (int b = 0; b < numSourceBands; b++) {
+                        final int[] sums = table[b];
+                        final int count = sums[bottom + i + window] - sums[top + i + window]
+                                - sums[bottom + i] + sums[top + i];
+                        values[offset + b] = (float) (count * pixelArea);
+                    }
+                    if (numBands > numSourceBands) {
+                        values[offset + 2] = values[offset + 1] - values[offset];
+                    }
+                }
+            }
+            dest.setPixels(destRect.x, y, destRect.width, 1, values);
+        }
+    }
+
+    /**
+     * Fills the mask of the pixels of a row inside the zones, returns <code>false</code> if no pixel is inside
+     */
+    private boolean fillMask(int y, int x, boolean[] mask) {
+        if (zones == null) {
+            Arrays.fill(mask, true);
+            return true;
+        }
+        Arrays.fill(mask, false);
+        final int numRuns = zones.getNumRuns(y);
+        if (numRuns == 0) {
+            return false;
+        }
+        final int[] runs = zones.getRuns(y);
+        boolean any = false;
+        for (int r = 0; r < numRuns * 3; r += 3) {
+            final int start = Math.max(runs[r], x);
+            final int end = Math.min(runs[r + 1], x + mask.length);
+            if (start < end) {
+                Arrays.fill(mask, start - x, end - x, true);
+                any = true;
+            }
+        }
+        return any;
+    }
+}
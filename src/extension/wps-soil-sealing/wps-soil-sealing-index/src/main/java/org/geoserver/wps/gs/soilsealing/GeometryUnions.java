@@ -0,0 +1,66 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.geoserver.wps.gs.SoilSealingExecutor;
+import org.geotools.process.ProcessException;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.operation.union.UnaryUnionOp;
+
+/**
+ * Union of the administrative areas making a district or a region. The geometries are merged with a cascaded union, which works on spatially
+ * close groups of geometries instead of growing a single result one geometry at a time. Large inputs are split into consecutive partitions
+ * that are unioned in parallel on the executor before merging the partial results.
+ */
+final class GeometryUnions {
+
+    /** Minimum number of geometries for a parallel union */
+    static final int PARALLEL_THRESHOLD = 64;
+
+    private GeometryUnions() {
+    }
+
+    /**
+     * Returns the union of the geometries.
+     *
+     * @param geometries the geometries, consecutive ones are expected to be close to each other, like the municipalities of a district
+     * @param executor optional executor for the parallel union of large inputs
+     * @return the union, or <code>null</code> if there are no geometries
+     */
+    static Geometry union(List<Geometry> geometries, SoilSealingExecutor executor) {
+        final int partitions = executor != null ? Math.min(executor.getPoolSize(),
+                geometries.size() / (PARALLEL_THRESHOLD / 2)) : 1;
+        if (geometries.size() < PARALLEL_THRESHOLD || partitions < 2) {
+            return UnaryUnionOp.union(geometries);
+        }
+
+        List<Callable<Geometry>> tasks = new ArrayList<Callable<Geometry>>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            final List<Geometry> partition = geometries.subList(i * geometries.size()
+                    / partitions, (i + 1) * geometries.size() / partitions);
+            tasks.add(new Callable<Geometry>() {
+
+                @Override
+                public Geometry call() throws Exception {
+                    return UnaryUnionOp.union(partition);
+                }
+            });
+        }
+        try {
+            return UnaryUnionOp.union(executor.invokeAll(tasks));
+        } catch (ExecutionException e) {
+            throw new ProcessException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException(e);
+        }
+    }
+}
@@ -5,32 +5,16 @@
 package org.geoserver.wps.gs.soilsealing;
 
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 import org.geoserver.catalog.FeatureTypeInfo;
-import org.geotools.data.DefaultTransaction;
-import org.geotools.data.FeatureReader;
-import org.geotools.data.Query;
-import org.geotools.data.Transaction;
-import org.geotools.factory.CommonFactoryFinder;
-import org.geotools.jdbc.JDBCDataStore;
-import org.opengis.feature.Feature;
-import org.opengis.feature.Property;
-import org.opengis.feature.simple.SimpleFeature;
-import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.filter.Filter;
-import org.opengis.filter.FilterFactory;
 
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryFactory;
-import com.vividsolutions.jts.geom.PrecisionModel;
 
 /**
  * @author Alessio Fabiani, GeoSolutions S.A.S.
@@ -38,14 +22,6 @@ import com.vividsolutions.jts.geom.PrecisionModel;
  */
 public class SoilSealingAdministrativeUnit {
 
-    /**
-     * Geometry and Filter Factories
-     */
-    private static final FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
-
-    private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory(
-            new PrecisionModel());
-
     /**
      * GeoCoding reference layers
      */
@@ -65,141 +41,97 @@ public class SoilSealingAdministrativeUnit {
 
     private List<SoilSealingAdministrativeUnit> subs = new LinkedList<SoilSealingAdministrativeUnit>();
 
+    /** Maximum number of transformed geometries kept for each unit */
+    static final int MAX_TRANSFORMED_GEOMETRIES = 4;
+
+    /** Geometries transformed to the reference CRS or raster space, by transformation */
+    private final Map<String, Geometry> transformedGeometries = new LinkedHashMap<String, Geometry>(
+            MAX_TRANSFORMED_GEOMETRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Geometry> eldest) {
+            return size() > MAX_TRANSFORMED_GEOMETRIES;
+        }
+    };
+
     /**
-     * Default constructor
+     * Default constructor, loads the unit with its subtree
      * 
      * @param au
      * @param geoCodingReference
      * @param populationReference
      * @throws IOException
+     * @see AdministrativeUnitLoader
      */
     public SoilSealingAdministrativeUnit(String au, FeatureTypeInfo geoCodingReference,
             FeatureTypeInfo populationReference) throws IOException {
-        if (!au.contains("_")) {
-            throw new IOException("Invalid Administrative Unit name");
-        }
         this.geoCodingReference = geoCodingReference;
         this.populationReference = populationReference;
-        this.name = au.split("_")[0];
-        this.parent = au.split("_")[1];
-
-        FeatureReader<SimpleFeatureType, SimpleFeature> ftReader = null;
-        Transaction transaction = new DefaultTransaction();
-        try {
-            final JDBCDataStore ds = (JDBCDataStore) geoCodingReference.getStore().getDataStore(null);
-            Filter nameFilter = ff.equals(ff.property("name"), ff.literal(this.name));
-            Filter parentFilter = ff.equals(ff.property("parent"), ff.literal(this.parent));
-            Filter queryFilter = ff.and(Arrays.asList(nameFilter, parentFilter));
-            Query query = new Query(geoCodingReference.getFeatureType().getName().getLocalPart(), queryFilter);
-            
-            ftReader = ds.getFeatureReader(query, transaction);
-
-            while (ftReader.hasNext()) {
-                Feature feature = ftReader.next();
-                this.type = AuType.getType((Integer) feature.getProperty("type").getValue());
-                this.the_geom = (Geometry) feature.getDefaultGeometryProperty().getValue();
-                break;
-            }
-        } finally {
-            if (ftReader != null) {
-                ftReader.close();
-            }
 
-            transaction.commit();
-            transaction.close();
-        }
-
-        if (this.type == null || this.the_geom == null) {
-            throw new IOException("Invalid Administrative Unit name: no record found!");
-        }
+        SoilSealingAdministrativeUnit loaded = new AdministrativeUnitLoader(geoCodingReference,
+                populationReference, null).load(Collections.singletonList(au)).get(0);
+        this.name = loaded.name;
+        this.parent = loaded.parent;
+        this.type = loaded.type;
+        this.the_geom = loaded.the_geom;
+        this.population = loaded.population;
+        this.subs = loaded.subs;
+    }
 
-        switch (this.type) {
-        case MUNICIPALITY:
-            loadPopulationStatistics(this);
-            break;
-        case DISTRICT:
-        case REGION:
-            loadSubs(this);
-            break;
-        default:
-            break;
-        }
+    /**
+     * Creates a unit read by the {@link AdministrativeUnitLoader}, without population and subs
+     */
+    SoilSealingAdministrativeUnit(String name, String parent, AuType type, Geometry theGeom,
+            FeatureTypeInfo geoCodingReference, FeatureTypeInfo populationReference) {
+        this.name = name;
+        this.parent = parent;
+        this.type = type;
+        this.the_geom = theGeom;
+        this.geoCodingReference = geoCodingReference;
+        this.populationReference = populationReference;
     }
 
     /**
-     * 
-     * @param soilSealingAdministrativeUnit
-     * @throws IOException
+     * Adds a sub unit, while the tree is loaded by the {@link AdministrativeUnitLoader}
      */
-    private void loadSubs(SoilSealingAdministrativeUnit soilSealingAdministrativeUnit) throws IOException {
-        FeatureReader<SimpleFeatureType, SimpleFeature> ftReader = null;
-        Transaction transaction = new DefaultTransaction();
-        try {
-            final JDBCDataStore ds = (JDBCDataStore) geoCodingReference.getStore().getDataStore(null);
-            Filter parentFilter = ff.equals(ff.property("parent"), ff.literal(this.name));
-            Filter typeFilter = ff.equals(ff.property("type"), ff.literal(this.type.getValue() + 1));
-            Filter queryFilter = ff.and(Arrays.asList(typeFilter, parentFilter));
-            Query query = new Query(geoCodingReference.getFeatureType().getName().getLocalPart(), queryFilter);
-
-            ftReader = ds.getFeatureReader(query, transaction);
-
-            List<String> ftSubs = new ArrayList<String>();
-            while (ftReader.hasNext()) {
-                Feature feature = ftReader.next();
-                String au = (String) feature.getProperty("name").getValue() + "_" + this.name;
-                ftSubs.add(au);
-            }
+    void addSub(SoilSealingAdministrativeUnit sub) {
+        subs.add(sub);
+    }
 
-            for (String au : ftSubs) {
-                this.subs.add(new SoilSealingAdministrativeUnit(au, geoCodingReference,
-                        populationReference));
-            }
-        } finally {
-            if (ftReader != null) {
-                ftReader.close();
-            }
+    /**
+     * Adds the populations of some years, while the tree is loaded by the {@link AdministrativeUnitLoader}
+     */
+    void putPopulation(Map<String, Integer> values) {
+        population.putAll(values);
+    }
 
-            transaction.commit();
-            transaction.close();
+    /**
+     * Returns the geometry transformed with the provided transformation, if it has already been computed
+     */
+    Geometry getTransformedGeometry(String transformation) {
+        synchronized (transformedGeometries) {
+            return transformedGeometries.get(transformation);
         }
     }
 
     /**
-     * 
-     * @param soilSealingAdministrativeUnit
-     * @throws IOException
+     * Keeps the geometry transformed with the provided transformation, the least recently used one is dropped if there are too many
      */
-    private void loadPopulationStatistics(SoilSealingAdministrativeUnit soilSealingAdministrativeUnit) throws IOException {
-        FeatureReader<SimpleFeatureType, SimpleFeature> ftReader = null;
-        Transaction transaction = new DefaultTransaction();
-        try {
-            final JDBCDataStore ds = (JDBCDataStore) populationReference.getStore().getDataStore(null);
-            Filter auNameFilter = ff.equals(ff.property("au_name"), ff.literal(this.name));
-            Filter queryFilter = ff.and(Arrays.asList(auNameFilter));
-            Query query = new Query(populationReference.getFeatureType().getName().getLocalPart(), queryFilter);
-
-            ftReader = ds.getFeatureReader(query, transaction);
-            
-            while (ftReader.hasNext()) {
-                Feature feature = ftReader.next();
-                Collection<Property> properties = feature.getProperties();
-                for (Property prop : properties) {
-                    if (prop.getName().getLocalPart().startsWith("a_")) {
-                        Object yearPopulationValue = prop.getValue();
-                        if (yearPopulationValue != null) {
-                            population.put(prop.getName().getLocalPart().split("a_")[1], ((BigDecimal) yearPopulationValue).intValue());
-                        }
-                    }
-                }
-            }
-        } finally {
-            if (ftReader != null) {
-                ftReader.close();
-            }
+    void putTransformedGeometry(String transformation, Geometry geometry) {
+        synchronized (transformedGeometries) {
+            transformedGeometries.put(transformation, geometry);
+        }
+    }
 
-            transaction.commit();
-            transaction.close();
+    /**
+     * Returns the estimated size in bytes of the unit and its subtree, including the transformed geometries it may keep
+     */
+    long estimateSize() {
+        long size = (1 + MAX_TRANSFORMED_GEOMETRIES) * UrbanGrids.estimateSize(the_geom) + 64
+                * population.size();
+        for (SoilSealingAdministrativeUnit sub : subs) {
+            size += sub.estimateSize();
         }
+        return size;
     }
 
     /**
@@ -231,17 +163,17 @@ public class SoilSealingAdministrativeUnit {
     }
 
     /**
-     * @return the population
+     * @return the population, by year, read only since the unit may be shared by the requests through the {@link AdministrativeUnitCache}
      */
     public Map<String, Integer> getPopulation() {
-        return population;
+        return Collections.unmodifiableMap(population);
     }
 
     /**
-     * @return the subs
+     * @return the subs, read only since the unit may be shared by the requests through the {@link AdministrativeUnitCache}
      */
     public List<SoilSealingAdministrativeUnit> getSubs() {
-        return subs;
+        return Collections.unmodifiableList(subs);
     }
 
     /**
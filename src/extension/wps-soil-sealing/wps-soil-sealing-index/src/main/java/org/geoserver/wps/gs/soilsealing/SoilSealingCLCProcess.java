@@ -6,10 +6,10 @@ package org.geoserver.wps.gs.soilsealing;
 
 import java.awt.geom.AffineTransform;
 import java.io.IOException;
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -26,23 +26,19 @@ import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.CoverageInfo;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.config.GeoServer;
-import org.geoserver.data.util.CoverageUtils;
 import org.geoserver.wps.WPSException;
 import org.geoserver.wps.gs.ImportProcess;
-import org.geoserver.wps.gs.ToFeature;
-import org.geoserver.wps.gs.WFSLog;
+import org.geoserver.wps.gs.StatusJournal;
 import org.geoserver.wps.gs.soilsealing.CLCProcess.StatisticContainer;
 import org.geoserver.wps.gs.soilsealing.SoilSealingAdministrativeUnit.AuSelectionType;
+import org.geoserver.wps.gs.soilsealing.ZonalScanBatcher.Scan;
 import org.geoserver.wps.gs.soilsealing.model.SoilSealingIndex;
 import org.geoserver.wps.gs.soilsealing.model.SoilSealingOutput;
 import org.geoserver.wps.gs.soilsealing.model.SoilSealingTime;
 import org.geoserver.wps.ppio.FeatureAttribute;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridGeometry2D;
-import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.data.DataUtilities;
-import org.geotools.data.collection.ListFeatureCollection;
-import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.filter.IsEqualsToImpl;
@@ -60,7 +56,6 @@ import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.geotools.referencing.operation.transform.AffineTransform2D;
 import org.geotools.referencing.operation.transform.ProjectiveTransform;
 import org.geotools.resources.image.ImageUtilities;
-import org.geotools.util.NullProgressListener;
 import org.geotools.util.logging.Logging;
 import org.opengis.coverage.grid.GridCoverageReader;
 import org.opengis.feature.simple.SimpleFeature;
@@ -69,7 +64,6 @@ import org.opengis.filter.Filter;
 import org.opengis.geometry.MismatchedDimensionException;
 import org.opengis.metadata.spatial.PixelOrientation;
 import org.opengis.parameter.GeneralParameterValue;
-import org.opengis.parameter.ParameterValueGroup;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.NoSuchAuthorityCodeException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -92,6 +86,16 @@ import com.vividsolutions.jts.geom.Polygon;
 public class SoilSealingCLCProcess extends SoilSealingMiddlewareProcess {
 
     private final static Logger LOGGER = Logging.getLogger(SoilSealingCLCProcess.class);
+
+    /**
+     * Optional batcher of the scans of concurrent compatible requests, disabled if not injected
+     */
+    private ZonalScanBatcher zonalScanBatcher;
+
+    /**
+     * Optional cache of the opened class histogram pyramids, the pyramids are read for each request if not injected
+     */
+    private ClassHistogramPyramidCache classHistogramPyramidCache;
             
     /**
      * Default Constructor
@@ -160,8 +164,6 @@ public class SoilSealingCLCProcess extends SoilSealingMiddlewareProcess {
         // ///////////////////////////////////////////////
         // SoilSealing outcome variables ...
         RenderedOp result = null;
-        GridCoverage2D nowCoverage = null;
-        GridCoverage2D referenceCoverage = null;
         List<String> municipalities = new LinkedList<String>();
         List<Geometry> rois = new LinkedList<Geometry>();
         List<List<Integer>> populations = new LinkedList<List<Integer>>();
@@ -173,10 +175,8 @@ public class SoilSealingCLCProcess extends SoilSealingMiddlewareProcess {
         // Logging to WFS variables ...
         final String wsName = ciReference.getNamespace().getPrefix();
         final UUID uuid = UUID.randomUUID();
-        SimpleFeatureCollection features = null;
-        Filter filter = null;
-        ToFeature toFeatureProcess = new ToFeature();
-        WFSLog wfsLogProcess = new WFSLog(geoserver);
+        final StatusJournal statusJournal = getStatusJournal();
+        boolean logged = false;
         // ///////////////////////////////////////////////
 
         try {
@@ -189,66 +189,23 @@ public class SoilSealingCLCProcess extends SoilSealingMiddlewareProcess {
             // the geometries and population values.
             // //////////////////////////////////////
             final CoordinateReferenceSystem referenceCrs = ciReference.getCRS();
+            // districts and regions are summed from their municipalities
+            final ZoneRollUp rollUp = new ZoneRollUp();
             prepareAdminROIs(nowFilter, admUnits, admUnitSelectionType, ciReference,
                     geoCodingReference, populationReference, municipalities, rois, populations,
                     referenceYear, currentYear,
-                    referenceCrs, true);
+                    referenceCrs, true, rollUp);
             
-            // read reference coverage
-            GridCoverageReader referenceReader = ciReference.getGridCoverageReader(null, null);
-            ParameterValueGroup readParametersDescriptor = referenceReader.getFormat().getReadParameters();
-
-            // get params for this coverage and override what's needed
-            Map<String, Serializable> defaultParams = ciReference.getParameters();
-            GeneralParameterValue[] params = CoverageUtils.getParameters(readParametersDescriptor, defaultParams, false);
-            // merge filter
-            params = CoverageUtilities.replaceParameter(params, referenceFilter, ImageMosaicFormat.FILTER);
-            // merge USE_JAI_IMAGEREAD to false if needed
-            params = CoverageUtilities.replaceParameter(params, ImageMosaicFormat.USE_JAI_IMAGEREAD.getDefaultValue(), ImageMosaicFormat.USE_JAI_IMAGEREAD);
-            
-            GridGeometry2D gridROI = createGridROI(ciReference, rois, true, referenceCrs);
-
-            if (gridROI != null) {
-                params = CoverageUtilities.replaceParameter(params, gridROI,
-                        AbstractGridFormat.READ_GRIDGEOMETRY2D);
-            }
-            
-            referenceCoverage = (GridCoverage2D) referenceReader.read(params);
-
-            if (referenceCoverage == null) {
-                throw new WPSException("Input Reference Coverage not found");
-            }
-
-            if (nowFilter != null) {
-                // read now coverage
-                readParametersDescriptor = referenceReader.getFormat().getReadParameters();
-                // get params for this coverage and override what's needed
-                defaultParams = ciReference.getParameters();
-                params = CoverageUtils
-                        .getParameters(readParametersDescriptor, defaultParams, false);
-
-                // merge filter
-                params = CoverageUtilities.replaceParameter(params, nowFilter,
-                        ImageMosaicFormat.FILTER);
-                // merge USE_JAI_IMAGEREAD to false if needed
-                params = CoverageUtilities.replaceParameter(params,
-                        ImageMosaicFormat.USE_JAI_IMAGEREAD.getDefaultValue(),
-                        ImageMosaicFormat.USE_JAI_IMAGEREAD);
-                
-                if (gridROI != null) {
-                    params = CoverageUtilities.replaceParameter(params, gridROI,
-                            AbstractGridFormat.READ_GRIDGEOMETRY2D);
-                }
-                
-                // TODO add tiling, reuse standard values from config
-                // TODO add background value, reuse standard values from config
-                nowCoverage = (GridCoverage2D) referenceReader.read(params);
+            // //////////////////////////////////////
+            // Scan of the coverages over the ROIs,
+            // shared with the concurrent compatible
+            // requests if a batcher is configured.
+            // //////////////////////////////////////
+            final Scan scan = createScan(ciReference, referenceFilter, nowFilter, referenceCrs);
+            final List<ZonalHistogram> histograms = zonalScanBatcher != null ? zonalScanBatcher
+                    .compute(buildScanKey(ciReference, referenceFilter, nowFilter), rois, scan)
+                    : scan.compute(rois);
 
-                if (nowCoverage == null) {
-                    throw new WPSException("Input Current Coverage not found");
-                }
-            }
-            
             // ///////////////////////////////////////////////////////////////
             // Preparing classes for index 3-4
             // ///////////////////////////////////////////////////////////////
@@ -315,37 +272,24 @@ public class SoilSealingCLCProcess extends SoilSealingMiddlewareProcess {
             attributes.add(new FeatureAttribute("wsName", wsName));
             attributes.add(new FeatureAttribute("soilIndex", ""));
 
-            features = toFeatureProcess.execute(JTS.toGeometry(ciReference.getNativeBoundingBox()), ciReference.getCRS(), typeName, attributes, null);
-
-            if (features == null || features.isEmpty()) {
-                throw new ProcessException("There was an error while converting attributes into FeatureType.");
-            }
-
             /**
              * LOG into the DB
              */
-            filter = ff.equals(ff.property("ftUUID"), ff.literal(uuid.toString()));
-            features = wfsLogProcess.execute(features, typeName, wsName, storeName, filter, true, new NullProgressListener());
-
-            if (features == null || features.isEmpty()) {
-                throw new ProcessException(
-                        "There was an error while logging FeatureType into the storage.");
-            }
+            logged = statusJournal.insert(wsName, storeName, typeName, JTS.toGeometry(ciReference.getNativeBoundingBox()), ciReference.getCRS(), attributes);
             
             // ///////////////////////////////////////////////////////////////
             // Calling CLCProcess
             // ///////////////////////////////////////////////////////////////
-            final CLCProcess clcProcess = new CLCProcess();
+            final CLCProcess clcProcess = new CLCProcess(rollUp);
             
             /*LOGGER.finer("Invocking the CLCProcess with the following parameters: ");
-            LOGGER.finer(" --> referenceCoverage: " + referenceCoverage);
-            LOGGER.finer(" --> nowCoverage: " + nowCoverage);
+            LOGGER.finer(" --> histograms(" + histograms.size() + ")");
             LOGGER.finer(" --> classes: " + classes);
             LOGGER.finer(" --> index: " + index);
             LOGGER.finer(" --> rois(" + rois.size() + ")");
             LOGGER.finer(" --> populations(" + populations.size() + ")");*/
             
-            List<StatisticContainer> indexValue = clcProcess.execute(referenceCoverage, nowCoverage, classes, index, null, rois, populations, null, (index != 3 && index != 4));
+            List<StatisticContainer> indexValue = clcProcess.computeIndexes(histograms, classes, index, null, populations, null, (index != 3 && index != 4));
             
             // ///////////////////////////////////////////////////////////////
             // Preparing the Output Object which will be JSON encoded
@@ -399,20 +343,13 @@ public class SoilSealingCLCProcess extends SoilSealingMiddlewareProcess {
             /**
              * Update Feature Attributes and LOG into the DB
              */
-            filter = ff.equals(ff.property("ftUUID"), ff.literal(uuid.toString()));
-
-            SimpleFeature feature = SimpleFeatureBuilder.copy(features.subCollection(filter).toArray(new SimpleFeature[1])[0]);
-
-            // build the feature
-            feature.setAttribute("runEnd", new Date());
-            feature.setAttribute("itemStatus", "COMPLETED");
-            feature.setAttribute("itemStatusMessage", "Soil Sealing Process completed successfully");
-            feature.setAttribute("soilIndex", JSONSerializer.toJSON(soilSealingIndexResult).toString());
+            Map<String, Object> values = new HashMap<String, Object>();
+            values.put("runEnd", new Date());
+            values.put("itemStatus", "COMPLETED");
+            values.put("itemStatusMessage", "Soil Sealing Process completed successfully");
+            values.put("soilIndex", JSONSerializer.toJSON(soilSealingIndexResult).toString());
 
-            ListFeatureCollection output = new ListFeatureCollection(features.getSchema());
-            output.add(feature);
-
-            features = wfsLogProcess.execute(output, typeName, wsName, storeName, filter, false, new NullProgressListener());
+            statusJournal.update(wsName, storeName, typeName, uuid.toString(), values);
             
             // //////////////////////////////////////////////////////////////////////
             // Return the computed Soil Sealing Index ...
@@ -420,26 +357,19 @@ public class SoilSealingCLCProcess extends SoilSealingMiddlewareProcess {
             return soilSealingIndexResult;
         } catch (Exception e) {
 
-            if (features != null) {
+            if (logged) {
                 // //////////////////////////////////////////////////////////////////////
                 // Updating WFS ...
                 // //////////////////////////////////////////////////////////////////////
                 /**
                  * Update Feature Attributes and LOG into the DB
                  */
-                filter = ff.equals(ff.property("ftUUID"), ff.literal(uuid.toString()));
-
-                SimpleFeature feature = SimpleFeatureBuilder.copy(features.subCollection(filter).toArray(new SimpleFeature[1])[0]);
-
-                // build the feature
-                feature.setAttribute("runEnd", new Date());
-                feature.setAttribute("itemStatus", "FAILED");
-                feature.setAttribute("itemStatusMessage", "There was an error while while processing Input parameters: " + e.getMessage());
-
-                ListFeatureCollection output = new ListFeatureCollection(features.getSchema());
-                output.add(feature);
+                Map<String, Object> values = new HashMap<String, Object>();
+                values.put("runEnd", new Date());
+                values.put("itemStatus", "FAILED");
+                values.put("itemStatusMessage", "There was an error while while processing Input parameters: " + e.getMessage());
 
-                features = wfsLogProcess.execute(output, typeName, wsName, storeName, filter, false, new NullProgressListener());
+                statusJournal.update(wsName, storeName, typeName, uuid.toString(), values);
             }
 
             throw new WPSException("Could process request ", e);
@@ -448,15 +378,99 @@ public class SoilSealingCLCProcess extends SoilSealingMiddlewareProcess {
             if (result != null) {
                 ImageUtilities.disposePlanarImageChain(result);
             }
-            if (referenceCoverage != null) {
-                referenceCoverage.dispose(true);
-            }
-            if (nowCoverage != null) {
-                nowCoverage.dispose(true);
-            }
         }
     }
 
+    public ZonalScanBatcher getZonalScanBatcher() {
+        return zonalScanBatcher;
+    }
+
+    public void setZonalScanBatcher(ZonalScanBatcher zonalScanBatcher) {
+        this.zonalScanBatcher = zonalScanBatcher;
+    }
+
+    public ClassHistogramPyramidCache getClassHistogramPyramidCache() {
+        return classHistogramPyramidCache;
+    }
+
+    public void setClassHistogramPyramidCache(ClassHistogramPyramidCache classHistogramPyramidCache) {
+        this.classHistogramPyramidCache = classHistogramPyramidCache;
+    }
+
+    /**
+     * Returns the key of the requests whose zones can be computed by the same scan: the histograms of the CLC indexes only depend on the
+     * coverage and on the filters
+     */
+    static String buildScanKey(CoverageInfo ciReference, Filter referenceFilter, Filter nowFilter) {
+        return ciReference.prefixedName() + "|" + CoverageUtilities.normalize(referenceFilter)
+                + "|" + CoverageUtilities.normalize(nowFilter) + "|clc";
+    }
+
+    /**
+     * Creates the scan reading the coverages over the envelope of the zones and computing their class histograms
+     */
+    private Scan createScan(final CoverageInfo ciReference, final Filter referenceFilter,
+            final Filter nowFilter, final CoordinateReferenceSystem referenceCrs) {
+        return new Scan() {
+
+            @Override
+            public List<ZonalHistogram> compute(List<Geometry> zones) throws Exception {
+                GridCoverage2D referenceCoverage = null;
+                GridCoverage2D nowCoverage = null;
+                try {
+                    GridGeometry2D gridROI = createGridROI(ciReference, zones, true, referenceCrs);
+                    GridCoverageReader referenceReader = ciReference.getGridCoverageReader(null,
+                            null);
+
+                    // read reference coverage
+                    referenceCoverage = readCoverage(ciReference, referenceReader,
+                            referenceFilter, gridROI);
+                    if (referenceCoverage == null) {
+                        throw new WPSException("Input Reference Coverage not found");
+                    }
+
+                    if (nowFilter != null) {
+                        // read now coverage
+                        nowCoverage = readCoverage(ciReference, referenceReader, nowFilter,
+                                gridROI);
+                        if (nowCoverage == null) {
+                            throw new WPSException("Input Current Coverage not found");
+                        }
+                    }
+
+                    final CLCProcess clcProcess = new CLCProcess(null, ClassHistogramPyramid.open(
+                            ciReference, referenceFilter, referenceCoverage,
+                            classHistogramPyramidCache), ClassHistogramPyramid.open(ciReference,
+                            nowFilter, nowCoverage, classHistogramPyramidCache));
+                    return clcProcess.computeHistograms(referenceCoverage, nowCoverage, zones);
+                } finally {
+                    if (referenceCoverage != null) {
+                        referenceCoverage.dispose(true);
+                    }
+                    if (nowCoverage != null) {
+                        nowCoverage.dispose(true);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Reads the coverage with the provided filter, cropped to the ROI grid geometry if any
+     */
+    private static GridCoverage2D readCoverage(CoverageInfo ciReference,
+            GridCoverageReader reader, Filter filter, GridGeometry2D gridROI) throws IOException {
+        GeneralParameterValue[] params = CoverageUtilities.getReadParameters(ciReference,
+                reader, filter, gridROI);
+        // merge USE_JAI_IMAGEREAD to false if needed
+        params = CoverageUtilities.replaceParameter(params,
+                ImageMosaicFormat.USE_JAI_IMAGEREAD.getDefaultValue(),
+                ImageMosaicFormat.USE_JAI_IMAGEREAD);
+        // TODO add tiling, reuse standard values from config
+        // TODO add background value, reuse standard values from config
+        return (GridCoverage2D) reader.read(params);
+    }
+
     /**
      * 
      * @param index
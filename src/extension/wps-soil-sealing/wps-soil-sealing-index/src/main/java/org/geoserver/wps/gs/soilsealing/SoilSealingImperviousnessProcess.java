@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -26,8 +27,7 @@ import org.geoserver.config.GeoServer;
 import org.geoserver.data.util.CoverageUtils;
 import org.geoserver.wps.WPSException;
 import org.geoserver.wps.gs.ImportProcess;
-import org.geoserver.wps.gs.ToFeature;
-import org.geoserver.wps.gs.WFSLog;
+import org.geoserver.wps.gs.StatusJournal;
 import org.geoserver.wps.gs.soilsealing.CLCProcess.StatisticContainer;
 import org.geoserver.wps.gs.soilsealing.SoilSealingAdministrativeUnit.AuSelectionType;
 import org.geoserver.wps.gs.soilsealing.model.SoilSealingIndex;
@@ -38,11 +38,8 @@ import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridCoverageFactory;
 import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
-import org.geotools.data.collection.ListFeatureCollection;
-import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.factory.GeoTools;
 import org.geotools.factory.Hints;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.filter.IsEqualsToImpl;
 import org.geotools.gce.imagemosaic.ImageMosaicFormat;
 import org.geotools.geometry.jts.JTS;
@@ -51,10 +48,8 @@ import org.geotools.process.factory.DescribeParameter;
 import org.geotools.process.factory.DescribeProcess;
 import org.geotools.process.factory.DescribeResult;
 import org.geotools.resources.image.ImageUtilities;
-import org.geotools.util.NullProgressListener;
 import org.geotools.util.logging.Logging;
 import org.opengis.coverage.grid.GridCoverageReader;
-import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.filter.Filter;
 import org.opengis.geometry.Envelope;
 import org.opengis.parameter.GeneralParameterValue;
@@ -86,6 +81,32 @@ public class SoilSealingImperviousnessProcess extends SoilSealingMiddlewareProce
         super(catalog, geoserver);
     }
 
+    /**
+     * Optional in memory cache of the Urban Grids, disabled if not injected
+     */
+    private UrbanGridCache urbanGridCache;
+
+    public UrbanGridCache getUrbanGridCache() {
+        return urbanGridCache;
+    }
+
+    public void setUrbanGridCache(UrbanGridCache urbanGridCache) {
+        this.urbanGridCache = urbanGridCache;
+    }
+
+    /**
+     * Radius in pixels of the window used for the index 8
+     */
+    private int fragmentationRadius = UrbanGridProcess.DEFAULT_FRAGMENTATION_RADIUS;
+
+    public int getFragmentationRadius() {
+        return fragmentationRadius;
+    }
+
+    public void setFragmentationRadius(int fragmentationRadius) {
+        this.fragmentationRadius = fragmentationRadius;
+    }
+
     /**
      * 
      * @param referenceName
@@ -110,11 +131,11 @@ public class SoilSealingImperviousnessProcess extends SoilSealingMiddlewareProce
             @DescribeParameter(name = "typeName", description = "Name of the destination feature type to log info") String typeName,
             @DescribeParameter(name = "referenceFilter", description = "Filter to use on the raster data", min = 1) Filter referenceFilter,
             @DescribeParameter(name = "nowFilter", description = "Filter to use on the raster data", min = 0) Filter nowFilter,
-            @DescribeParameter(name = "index", min = 1, description = "Index to calculate") int index,
+            @DescribeParameter(name = "index", min = 1, description = "Index to calculate. The rasters of the index 8 are written as single precision (float) values") int index,
             @DescribeParameter(name = "subindex", min = 0, description = "String indicating which sub-index must be calculated {a,b,c}") String subIndex,
             @DescribeParameter(name = "geocoderLayer", min = 1, description = "Name of the geocoder layer, optionally fully qualified (workspace:name)") String geocoderLayer,
             @DescribeParameter(name = "geocoderPopulationLayer", min = 1, description = "Name of the geocoder population layer, optionally fully qualified (workspace:name)") String geocoderPopulationLayer,
-            @DescribeParameter(name = "imperviousnessLayer", min = 1, description = "Name of the imperviousness layer, optionally fully qualified (workspace:name)") String imperviousnessLayer,
+            @DescribeParameter(name = "imperviousnessLayer", min = 0, description = "Name of the imperviousness layer, optionally fully qualified (workspace:name). If missing, the urban grids are labelled on the raster") String imperviousnessLayer,
             @DescribeParameter(name = "admUnits", min = 1, description = "Comma Separated list of Administrative Units") String admUnits,
             @DescribeParameter(name = "admUnitSelectionType", min = 1, description = "Administrative Units Slection Type") AuSelectionType admUnitSelectionType)
             throws IOException {
@@ -134,8 +155,11 @@ public class SoilSealingImperviousnessProcess extends SoilSealingMiddlewareProce
                     + " / " + geocoderPopulationLayer + ")");
         }
 
-        FeatureTypeInfo imperviousnessReference = catalog.getFeatureTypeByName(imperviousnessLayer);
-        if (imperviousnessReference == null) {
+        // without the vectorized urban grids, they are labelled on the raster
+        final boolean rasterUrbanGrids = imperviousnessLayer == null || imperviousnessLayer.isEmpty();
+        FeatureTypeInfo imperviousnessReference = rasterUrbanGrids ? null : catalog
+                .getFeatureTypeByName(imperviousnessLayer);
+        if (imperviousnessReference == null && !rasterUrbanGrids) {
             throw new WPSException("Could not find imperviousness reference layer ("
                     + imperviousnessLayer + ")");
         }
@@ -162,10 +186,8 @@ public class SoilSealingImperviousnessProcess extends SoilSealingMiddlewareProce
         // Logging to WFS variables ...
         final String wsName = ciReference.getNamespace().getPrefix();
         final UUID uuid = UUID.randomUUID();
-        SimpleFeatureCollection features = null;
-        Filter filter = null;
-        ToFeature toFeatureProcess = new ToFeature();
-        WFSLog wfsLogProcess = new WFSLog(geoserver);
+        final StatusJournal statusJournal = getStatusJournal();
+        boolean logged = false;
         // ///////////////////////////////////////////////
 
         try {
@@ -191,9 +213,11 @@ public class SoilSealingImperviousnessProcess extends SoilSealingMiddlewareProce
             }
 
             final CoordinateReferenceSystem referenceCrs = ciReference.getCRS();
+            // districts and regions are summed from their municipalities when the index allows it
+            final ZoneRollUp rollUp = UrbanGridProcess.supportsRollUp(index, subIndex) ? new ZoneRollUp() : null;
             prepareAdminROIs(nowFilter, admUnits, admUnitSelectionType, ciReference,
                     geoCodingReference, populationReference, municipalities, rois, populations,
-                    referenceYear, currentYear, referenceCrs, toRasterSpace);
+                    referenceYear, currentYear, referenceCrs, toRasterSpace, rollUp);
 
             // read reference coverage
             GridCoverageReader referenceReader = ciReference.getGridCoverageReader(null, null);
@@ -280,28 +304,20 @@ public class SoilSealingImperviousnessProcess extends SoilSealingMiddlewareProce
             attributes.add(new FeatureAttribute("wsName", wsName));
             attributes.add(new FeatureAttribute("soilIndex", ""));
 
-            features = toFeatureProcess.execute(JTS.toGeometry(ciReference.getNativeBoundingBox()), ciReference.getCRS(), typeName, attributes, null);
-
-            if (features == null || features.isEmpty()) {
-                throw new ProcessException("There was an error while converting attributes into FeatureType.");
-            }
-
             /**
              * LOG into the DB
              */
-            filter = ff.equals(ff.property("ftUUID"), ff.literal(uuid.toString()));
-            features = wfsLogProcess.execute(features, typeName, wsName, storeName, filter, true, new NullProgressListener());
-
-            if (features == null || features.isEmpty()) {
-                throw new ProcessException(
-                        "There was an error while logging FeatureType into the storage.");
-            }
+            logged = statusJournal.insert(wsName, storeName, typeName, JTS.toGeometry(ciReference.getNativeBoundingBox()), ciReference.getCRS(), attributes);
 
             // ///////////////////////////////////////////////////////////////
             // Calling UrbanGridProcess
             // ///////////////////////////////////////////////////////////////
             final UrbanGridProcess urbanGridProcess = new UrbanGridProcess(imperviousnessReference,
-                    referenceYear, currentYear);
+                    referenceYear, currentYear, rollUp);
+            urbanGridProcess.setExecutor(getExecutor());
+            urbanGridProcess.setUrbanGridCache(urbanGridCache);
+            urbanGridProcess.setRasterUrbanGrids(rasterUrbanGrids);
+            urbanGridProcess.setFragmentationRadius(fragmentationRadius);
 
             List<StatisticContainer> indexValue = urbanGridProcess.execute(referenceCoverage,
                     nowCoverage, index, subIndex, null, rois, populations,
@@ -359,20 +375,13 @@ public class SoilSealingImperviousnessProcess extends SoilSealingMiddlewareProce
             /**
              * Update Feature Attributes and LOG into the DB
              */
-            filter = ff.equals(ff.property("ftUUID"), ff.literal(uuid.toString()));
-
-            SimpleFeature feature = SimpleFeatureBuilder.copy(features.subCollection(filter).toArray(new SimpleFeature[1])[0]);
-
-            // build the feature
-            feature.setAttribute("runEnd", new Date());
-            feature.setAttribute("itemStatus", "COMPLETED");
-            feature.setAttribute("itemStatusMessage", "Soil Sealing Process completed successfully");
-            feature.setAttribute("soilIndex", JSONSerializer.toJSON(soilSealingIndexResult).toString());
-
-            ListFeatureCollection output = new ListFeatureCollection(features.getSchema());
-            output.add(feature);
+            Map<String, Object> values = new HashMap<String, Object>();
+            values.put("runEnd", new Date());
+            values.put("itemStatus", "COMPLETED");
+            values.put("itemStatusMessage", "Soil Sealing Process completed successfully");
+            values.put("soilIndex", JSONSerializer.toJSON(soilSealingIndexResult).toString());
 
-            features = wfsLogProcess.execute(output, typeName, wsName, storeName, filter, false, new NullProgressListener());
+            statusJournal.update(wsName, storeName, typeName, uuid.toString(), values);
             
             // //////////////////////////////////////////////////////////////////////
             // Return the computed Soil Sealing Index ...
@@ -380,26 +389,19 @@ public class SoilSealingImperviousnessProcess extends SoilSealingMiddlewareProce
             return soilSealingIndexResult;
         } catch (Exception e) {
 
-            if (features != null) {
+            if (logged) {
                 // //////////////////////////////////////////////////////////////////////
                 // Updating WFS ...
                 // //////////////////////////////////////////////////////////////////////
                 /**
                  * Update Feature Attributes and LOG into the DB
                  */
-                filter = ff.equals(ff.property("ftUUID"), ff.literal(uuid.toString()));
+                Map<String, Object> values = new HashMap<String, Object>();
+                values.put("runEnd", new Date());
+                values.put("itemStatus", "FAILED");
+                values.put("itemStatusMessage", "There was an error while while processing Input parameters: " + e.getMessage());
 
-                SimpleFeature feature = SimpleFeatureBuilder.copy(features.subCollection(filter).toArray(new SimpleFeature[1])[0]);
-
-                // build the feature
-                feature.setAttribute("runEnd", new Date());
-                feature.setAttribute("itemStatus", "FAILED");
-                feature.setAttribute("itemStatusMessage", "There was an error while while processing Input parameters: " + e.getMessage());
-
-                ListFeatureCollection output = new ListFeatureCollection(features.getSchema());
-                output.add(feature);
-
-                features = wfsLogProcess.execute(output, typeName, wsName, storeName, filter, false, new NullProgressListener());
+                statusJournal.update(wsName, storeName, typeName, uuid.toString(), values);
             }
             
             throw new WPSException("Could process request ", e);
@@ -531,30 +533,25 @@ public class SoilSealingImperviousnessProcess extends SoilSealingMiddlewareProce
         }
 
         /**
-         * Import the GridCoverages as new Layers
+         * Import the GridCoverages as new Layers, written together so that the buffer tiles are computed once
          */
-        // Importing of the Reference Coverage
+        List<GridCoverage2D> coverages = new ArrayList<GridCoverage2D>(3);
+        coverages.add(reference);
+        if (now != null) {
+            coverages.add(now);
+            coverages.add(diff);
+        }
         ImportProcess importProcess = new ImportProcess(catalog);
-        importProcess.execute(null, reference, refWsName, null, reference.getName().toString(),
-                reference.getCoordinateReferenceSystem(), null, defaultStyle);
+        List<String> layerNames = importProcess.importCoverages(coverages, refWsName,
+                reference.getCoordinateReferenceSystem(), defaultStyle, false, getExecutor());
 
-        soilSealingIndexResult.getRefTime().getOutput()
-                .setLayerName(refWsName + ":" + reference.getName().toString());
+        soilSealingIndexResult.getRefTime().getOutput().setLayerName(layerNames.get(0));
 
-        // Importing of the current and difference coverages if present
+        // Current and difference coverages if present
         if (now != null) {
-            // Current coverage
-            importProcess.execute(null, now, refWsName, null, now.getName().toString(),
-                    now.getCoordinateReferenceSystem(), null, defaultStyle);
-
-            soilSealingIndexResult.getCurTime().getOutput()
-                    .setLayerName(refWsName + ":" + now.getName().toString());
-
-            // Difference coverage
-            importProcess.execute(null, diff, refWsName, null, diff.getName().toString(),
-                    diff.getCoordinateReferenceSystem(), null, defaultStyle);
+            soilSealingIndexResult.getCurTime().getOutput().setLayerName(layerNames.get(1));
 
-            soilSealingIndexResult.setDiffImageName(refWsName + ":" + diff.getName().toString());
+            soilSealingIndexResult.setDiffImageName(layerNames.get(2));
         }
     }
 }
@@ -3,6 +3,7 @@ package org.geoserver.wps.gs.soilsealing;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -11,6 +12,8 @@ import org.geoserver.catalog.CoverageInfo;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.config.GeoServer;
 import org.geoserver.wps.WPSException;
+import org.geoserver.wps.gs.SoilSealingExecutor;
+import org.geoserver.wps.gs.StatusJournal;
 import org.geoserver.wps.gs.soilsealing.SoilSealingAdministrativeUnit.AuSelectionType;
 import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.factory.CommonFactoryFinder;
@@ -20,6 +23,7 @@ import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.process.gs.GSProcess;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.operation.transform.AffineTransform2D;
+import org.geotools.referencing.operation.transform.ConcatenatedTransform;
 import org.geotools.referencing.operation.transform.ProjectiveTransform;
 import org.opengis.filter.Filter;
 import org.opengis.filter.FilterFactory;
@@ -53,6 +57,20 @@ public abstract class SoilSealingMiddlewareProcess implements GSProcess {
      * The GeoServer Bean
      */
     protected GeoServer geoserver;
+    /**
+     * The asynchronous journal of the process status
+     */
+    private StatusJournal statusJournal;
+
+    /**
+     * The executor shared by the processes for the per-ROI tasks
+     */
+    private SoilSealingExecutor executor;
+
+    /**
+     * Optional cache of the administrative units, disabled if not injected
+     */
+    private AdministrativeUnitCache administrativeUnitCache;
 
     /**
      * Default Constructor
@@ -67,6 +85,46 @@ public abstract class SoilSealingMiddlewareProcess implements GSProcess {
         this.geoserver = geoserver;
     }
 
+    /**
+     * Returns the journal used for logging the process status, looking it up in the application context if it has not been injected
+     * 
+     * @throws IllegalStateException if it has not been injected nor configured in the application context
+     */
+    public synchronized StatusJournal getStatusJournal() {
+        if (statusJournal == null) {
+            statusJournal = StatusJournal.lookup();
+        }
+        return statusJournal;
+    }
+
+    public synchronized void setStatusJournal(StatusJournal statusJournal) {
+        this.statusJournal = statusJournal;
+    }
+
+    /**
+     * Returns the executor used for the per-ROI tasks, looking it up in the application context if it has not been injected
+     * 
+     * @throws IllegalStateException if it has not been injected nor configured in the application context
+     */
+    public synchronized SoilSealingExecutor getExecutor() {
+        if (executor == null) {
+            executor = SoilSealingExecutor.lookup();
+        }
+        return executor;
+    }
+
+    public synchronized void setExecutor(SoilSealingExecutor executor) {
+        this.executor = executor;
+    }
+
+    public AdministrativeUnitCache getAdministrativeUnitCache() {
+        return administrativeUnitCache;
+    }
+
+    public void setAdministrativeUnitCache(AdministrativeUnitCache administrativeUnitCache) {
+        this.administrativeUnitCache = administrativeUnitCache;
+    }
+
     /**
      * 
      * 
@@ -96,16 +154,45 @@ public abstract class SoilSealingMiddlewareProcess implements GSProcess {
             CoordinateReferenceSystem referenceCrs, boolean toRasterSpace) throws IOException,
             NoSuchAuthorityCodeException, FactoryException, TransformException,
             NoninvertibleTransformException {
+        prepareAdminROIs(nowFilter, admUnits, admUnitSelectionType, ciReference,
+                geoCodingReference, populationReference, municipalities, rois, populations,
+                referenceYear, currentYear, referenceCrs, toRasterSpace, null);
+    }
+
+    /**
+     * Prepares the administrative ROIs. When a {@link ZoneRollUp} is provided, districts and regions in {@link AuSelectionType#AU_LIST} mode
+     * are not unioned: the ROIs of their municipalities are added instead, and the roll-up records how to sum their statistics back. The
+     * populations and names are always reported for the requested zones.
+     * 
+     * @param rollUp optional roll-up, filled with one entry for each requested zone
+     * @see #prepareAdminROIs(Filter, String, AuSelectionType, CoverageInfo, FeatureTypeInfo, FeatureTypeInfo, List, List, List, String, String,
+     *      CoordinateReferenceSystem, boolean)
+     */
+    protected void prepareAdminROIs(Filter nowFilter, String admUnits,
+            AuSelectionType admUnitSelectionType, CoverageInfo ciReference,
+            FeatureTypeInfo geoCodingReference, FeatureTypeInfo populationReference,
+            List<String> municipalities, List<Geometry> rois, List<List<Integer>> populations,
+            final String referenceYear, final String currentYear,
+            CoordinateReferenceSystem referenceCrs, boolean toRasterSpace, ZoneRollUp rollUp)
+            throws IOException, NoSuchAuthorityCodeException, FactoryException,
+            TransformException, NoninvertibleTransformException {
         // extract administrative units and geometries
         // //
         // GRID TO WORLD preparation from reference
         // //
         final AffineTransform gridToWorldCorner = (AffineTransform) ((GridGeometry2D) ciReference.getGrid()).getGridToCRS2D(PixelOrientation.UPPER_LEFT);
         
-        for (String au : admUnits.split(",")) {
-            SoilSealingAdministrativeUnit sAu = new SoilSealingAdministrativeUnit(au, geoCodingReference, populationReference);
+        // all the units and their subtrees are loaded at once, level by level, unless they are cached
+        final List<String> aus = Arrays.asList(admUnits.split(","));
+        final List<SoilSealingAdministrativeUnit> units = administrativeUnitCache != null ? administrativeUnitCache
+                .load(aus, geoCodingReference, populationReference, getExecutor())
+                : new AdministrativeUnitLoader(geoCodingReference, populationReference,
+                        getExecutor()).load(aus);
+        for (SoilSealingAdministrativeUnit sAu : units) {
             if (admUnitSelectionType == AuSelectionType.AU_LIST) {
                 Geometry roi = null;
+                // the geometries of the municipalities, unioned at once
+                List<Geometry> parts = new ArrayList<Geometry>();
                 int srID=0;
                 int referencePopulation = 0;
                 int currentPopulation = 0;
@@ -115,21 +202,26 @@ public abstract class SoilSealingMiddlewareProcess implements GSProcess {
                             gridToWorldCorner, referenceCrs, rois, populations, sAu, toRasterSpace);
                     if(hasPop){
                     	municipalities.add(sAu.getName() + " - " + sAu.getParent());
+                    	if (rollUp != null) rollUp.addLeaf(rois.size() - 1);
                     }
                     break;
                 case DISTRICT:
+                    if (rollUp != null) {
+                        rollUpSubs(nowFilter, referenceYear, currentYear, gridToWorldCorner, referenceCrs, rois, populations, sAu, sAu.getSubs(), toRasterSpace, rollUp);
+                        municipalities.add(sAu.getName() + " - " + sAu.getParent());
+                        break;
+                    }
                     for(SoilSealingAdministrativeUnit ssAu : sAu.getSubs())
                     {
-                        if (roi == null) {
-                                roi = toReferenceCRS(ssAu.getTheGeom(), referenceCrs, gridToWorldCorner, toRasterSpace);
-                                srID = roi.getSRID();
-                            }
-                        else roi = GEOMETRY_FACTORY.buildGeometry(Arrays.asList(roi, toReferenceCRS(ssAu.getTheGeom(), referenceCrs, gridToWorldCorner, toRasterSpace))).union();
+                        Geometry part = toReferenceCRS(ssAu, referenceCrs, gridToWorldCorner, toRasterSpace);
+                        if (parts.isEmpty()) srID = part.getSRID();
+                        parts.add(part);
                         if (ssAu.getPopulation() != null) {
                             if (ssAu.getPopulation().get(referenceYear) != null) referencePopulation += ssAu.getPopulation().get(referenceYear);
                             if (nowFilter != null && ssAu.getPopulation().get(currentYear) != null) currentPopulation += ssAu.getPopulation().get(currentYear);
                         }
                     }
+                    roi = GeometryUnions.union(parts, getExecutor());
                     roi.setSRID(srID);
                     rois.add(roi);
                     populations.get(0).add(referencePopulation);
@@ -137,20 +229,28 @@ public abstract class SoilSealingMiddlewareProcess implements GSProcess {
                     municipalities.add(sAu.getName() + " - " + sAu.getParent());
                     break;
                 case REGION:
+                    if (rollUp != null) {
+                        List<SoilSealingAdministrativeUnit> leaves = new ArrayList<SoilSealingAdministrativeUnit>();
+                        for (SoilSealingAdministrativeUnit ssAu : sAu.getSubs()) {
+                            leaves.addAll(ssAu.getSubs());
+                        }
+                        rollUpSubs(nowFilter, referenceYear, currentYear, gridToWorldCorner, referenceCrs, rois, populations, sAu, leaves, toRasterSpace, rollUp);
+                        municipalities.add(sAu.getName() + " - " + sAu.getParent());
+                        break;
+                    }
                     for(SoilSealingAdministrativeUnit ssAu : sAu.getSubs())
                     {
                         for(SoilSealingAdministrativeUnit sssAu : ssAu.getSubs()) {
-                            if (roi == null){
-                                roi = toReferenceCRS(sssAu.getTheGeom(), referenceCrs, gridToWorldCorner, toRasterSpace);
-                                srID = roi.getSRID();
-                            }
-                            else roi = GEOMETRY_FACTORY.buildGeometry(Arrays.asList(roi, toReferenceCRS(sssAu.getTheGeom(), referenceCrs, gridToWorldCorner, toRasterSpace))).union();
+                            Geometry part = toReferenceCRS(sssAu, referenceCrs, gridToWorldCorner, toRasterSpace);
+                            if (parts.isEmpty()) srID = part.getSRID();
+                            parts.add(part);
                             if (sssAu.getPopulation() != null) {
                                 if (sssAu.getPopulation().get(referenceYear) != null) referencePopulation += sssAu.getPopulation().get(referenceYear);
                                 if (nowFilter != null && sssAu.getPopulation().get(currentYear) != null) currentPopulation += sssAu.getPopulation().get(currentYear);
                             }
                         }
                     }
+                    roi = GeometryUnions.union(parts, getExecutor());
                     roi.setSRID(srID);
                     rois.add(roi);
                     populations.get(0).add(referencePopulation);
@@ -164,6 +264,7 @@ public abstract class SoilSealingMiddlewareProcess implements GSProcess {
                     boolean hasPop = populateInputLists(nowFilter, referenceYear, currentYear, gridToWorldCorner, referenceCrs, rois, populations, sAu, toRasterSpace);
                     if(hasPop){
                     	municipalities.add(sAu.getName() + " - " + sAu.getParent());
+                    	if (rollUp != null) rollUp.addLeaf(rois.size() - 1);
                     }
                     //municipalities.add(sAu.getName() + " - " + sAu.getParent());
                     break;
@@ -173,6 +274,7 @@ public abstract class SoilSealingMiddlewareProcess implements GSProcess {
                         hasPop = populateInputLists(nowFilter, referenceYear, currentYear, gridToWorldCorner, referenceCrs, rois, populations, ssAu, toRasterSpace);
                         if(hasPop){
                         	municipalities.add(ssAu.getName() + " - " + ssAu.getParent());
+                        	if (rollUp != null) rollUp.addLeaf(rois.size() - 1);
                         }
                         //municipalities.add(ssAu.getName() + " - " + ssAu.getParent());
                     }
@@ -184,6 +286,7 @@ public abstract class SoilSealingMiddlewareProcess implements GSProcess {
                             hasPop = populateInputLists(nowFilter, referenceYear, currentYear, gridToWorldCorner, referenceCrs, rois, populations, sssAu, toRasterSpace);
                             if(hasPop){
                             	municipalities.add(sssAu.getName() + " - " + sssAu.getParent());
+                            	if (rollUp != null) rollUp.addLeaf(rois.size() - 1);
                             }
                             //municipalities.add(sssAu.getName() + " - " + sssAu.getParent());
                         }
@@ -194,6 +297,42 @@ public abstract class SoilSealingMiddlewareProcess implements GSProcess {
         }
     }
     
+    /**
+     * Adds the ROIs of the leaves of a parent unit without unioning them, summing their populations and recording the group into the roll-up.
+     * The geometry reported for the group is the one of the parent unit in the geocoding layer.
+     * <p>
+     * The leaves are not simplified: simplifying each of them on its own would open slivers along the shared borders, that would be counted
+     * twice or not at all in the sum and would make the leaves overlap.
+     * </p>
+     */
+    private void rollUpSubs(Filter nowFilter, final String referenceYear,
+            final String currentYear, final AffineTransform gridToWorldCorner,
+            final CoordinateReferenceSystem referenceCrs, List<Geometry> rois,
+            List<List<Integer>> populations, SoilSealingAdministrativeUnit parent,
+            List<SoilSealingAdministrativeUnit> leaves, boolean toRasterSpace, ZoneRollUp rollUp)
+            throws NoSuchAuthorityCodeException, FactoryException, TransformException,
+            NoninvertibleTransformException {
+        if (leaves.isEmpty()) {
+            throw new WPSException("No municipality found for the Administrative Unit "
+                    + parent.getName());
+        }
+        final int firstLeaf = rois.size();
+        int referencePopulation = 0;
+        int currentPopulation = 0;
+        for (SoilSealingAdministrativeUnit leaf : leaves) {
+            rois.add(toReferenceCRS(leaf, referenceCrs, gridToWorldCorner, toRasterSpace, false));
+            if (leaf.getPopulation() != null) {
+                if (leaf.getPopulation().get(referenceYear) != null) referencePopulation += leaf.getPopulation().get(referenceYear);
+                if (nowFilter != null && leaf.getPopulation().get(currentYear) != null) currentPopulation += leaf.getPopulation().get(currentYear);
+            }
+        }
+        Geometry geometry = toReferenceCRS(parent, referenceCrs, gridToWorldCorner, toRasterSpace);
+        geometry.setSRID(rois.get(firstLeaf).getSRID());
+        rollUp.addGroup(geometry, firstLeaf, rois.size() - firstLeaf);
+        populations.get(0).add(referencePopulation);
+        if (nowFilter != null) populations.get(1).add(currentPopulation);
+    }
+
     /**
      * 
      * @param values
@@ -247,7 +386,7 @@ public abstract class SoilSealingMiddlewareProcess implements GSProcess {
             else if(nowFilter != null){hasPop = false;}
         }
         if(hasPop){
-        	rois.add(toReferenceCRS(sAu.getTheGeom(), referenceCrs, gridToWorldCorner, toRasterSpace));
+        	rois.add(toReferenceCRS(sAu, referenceCrs, gridToWorldCorner, toRasterSpace));
         }
         return hasPop;
     }
@@ -264,23 +403,63 @@ public abstract class SoilSealingMiddlewareProcess implements GSProcess {
      * @throws TransformException
      * @throws NoninvertibleTransformException
      */
+    /**
+     * Transforms the geometry of an administrative unit like {@link #toReferenceCRS(Geometry, CoordinateReferenceSystem, AffineTransform, boolean)},
+     * keeping the result into the unit so that cached units are transformed only once for each reference CRS and grid.
+     * 
+     * @return a copy of the transformed geometry, that can be modified
+     */
+    protected Geometry toReferenceCRS(SoilSealingAdministrativeUnit unit,
+            CoordinateReferenceSystem referenceCrs, AffineTransform gridToWorldCorner,
+            boolean toRasterSpace) throws NoSuchAuthorityCodeException, FactoryException,
+            MismatchedDimensionException, TransformException, NoninvertibleTransformException {
+        return toReferenceCRS(unit, referenceCrs, gridToWorldCorner, toRasterSpace, true);
+    }
+
+    /**
+     * Transforms the geometry of an administrative unit, optionally skipping the simplification in raster space.
+     * 
+     * @param simplify <code>false</code> to keep the exact geometry, e.g. for units whose statistics are summed with the ones of their
+     *        neighbours
+     * @return a copy of the transformed geometry, that can be modified
+     */
+    protected Geometry toReferenceCRS(SoilSealingAdministrativeUnit unit,
+            CoordinateReferenceSystem referenceCrs, AffineTransform gridToWorldCorner,
+            boolean toRasterSpace, boolean simplify) throws NoSuchAuthorityCodeException,
+            FactoryException, MismatchedDimensionException, TransformException,
+            NoninvertibleTransformException {
+        final String transformation = (toRasterSpace ? "raster|" + gridToWorldCorner + "|"
+                + referenceCrs : "crs|" + referenceCrs) + (simplify ? "" : "|exact");
+        Geometry geometry = unit.getTransformedGeometry(transformation);
+        if (geometry == null) {
+            geometry = toReferenceCRS((Geometry) unit.getTheGeom().clone(), referenceCrs,
+                    gridToWorldCorner, toRasterSpace, simplify);
+            unit.putTransformedGeometry(transformation, geometry);
+        }
+        return (Geometry) geometry.clone();
+    }
+
     protected Geometry toReferenceCRS(Geometry theGeom, CoordinateReferenceSystem referenceCrs, AffineTransform gridToWorldCorner, boolean toRasterSpace) throws NoSuchAuthorityCodeException, FactoryException, MismatchedDimensionException, TransformException, NoninvertibleTransformException {
+        return toReferenceCRS(theGeom, referenceCrs, gridToWorldCorner, toRasterSpace, true);
+    }
+
+    protected Geometry toReferenceCRS(Geometry theGeom, CoordinateReferenceSystem referenceCrs, AffineTransform gridToWorldCorner, boolean toRasterSpace, boolean simplify) throws NoSuchAuthorityCodeException, FactoryException, MismatchedDimensionException, TransformException, NoninvertibleTransformException {
         // check if we need to reproject the ROI from WGS84 (standard in the input) to the reference CRS
-        if (theGeom.getSRID() <= 0) theGeom.setSRID(CRS.lookupEpsgCode(referenceCrs, true));
-        final CoordinateReferenceSystem targetCrs = CRS.decode("EPSG:"+theGeom.getSRID(), true);
+        if (theGeom.getSRID() <= 0) theGeom.setSRID(CRSCache.lookupEpsgCode(referenceCrs, true));
+        final CoordinateReferenceSystem targetCrs = CRSCache.decode("EPSG:"+theGeom.getSRID(), true);
         if (CRS.equalsIgnoreMetadata(referenceCrs, targetCrs)) {
             Geometry rasterSpaceGeometry = JTS.transform(theGeom, new AffineTransform2D(gridToWorldCorner.createInverse()));
-            return (toRasterSpace ? DouglasPeuckerSimplifier.simplify(rasterSpaceGeometry, 1) : theGeom);
+            return (toRasterSpace ? (simplify ? DouglasPeuckerSimplifier.simplify(rasterSpaceGeometry, 1) : rasterSpaceGeometry) : theGeom);
         } else {
             // reproject
-            MathTransform transform = CRS.findMathTransform(targetCrs, referenceCrs, true);
+            MathTransform transform = CRSCache.findMathTransform(targetCrs, referenceCrs, true);
             Geometry roiPrj;
             if (transform.isIdentity()) {
                 roiPrj = theGeom;
-                roiPrj.setSRID(CRS.lookupEpsgCode(targetCrs, true));
+                roiPrj.setSRID(CRSCache.lookupEpsgCode(targetCrs, true));
             } else {
                 roiPrj = JTS.transform(theGeom, transform);
-                roiPrj.setSRID(CRS.lookupEpsgCode(referenceCrs, true));
+                roiPrj.setSRID(CRSCache.lookupEpsgCode(referenceCrs, true));
             }
             return (toRasterSpace ? JTS.transform(roiPrj, ProjectiveTransform.create(gridToWorldCorner).inverse()) : roiPrj);
         }
@@ -302,67 +481,50 @@ public abstract class SoilSealingMiddlewareProcess implements GSProcess {
     protected GridGeometry2D createGridROI(CoverageInfo ciReference, List<Geometry> rois,
             boolean toRasterSpace, final CoordinateReferenceSystem referenceCrs) 
                     throws TransformException, FactoryException, Exception {
-        // Creation of a Geometry union for cropping the input coverages
-        Geometry union = null;
-
+        // Only the envelope of the ROIs is needed for cropping the input coverages, no geometric union is computed
         CoordinateReferenceSystem covCRS = referenceCrs;
 
         final AffineTransform gridToWorldCorner = (AffineTransform) ((GridGeometry2D) ciReference
                 .getGrid()).getGridToCRS2D(PixelOrientation.UPPER_LEFT);
 
-        // Union of all the Geometries
-        for (Geometry geo : rois) {
-            if (union == null) {
-                if (toRasterSpace) {
-                    union = JTS.transform(geo, ProjectiveTransform.create(gridToWorldCorner));
-                } else {
-                    union = geo;
-                }
-            } else {
-                if (toRasterSpace) {
-                    Geometry projected = JTS.transform(geo,
-                            ProjectiveTransform.create(gridToWorldCorner));
-                    union = union.union(projected);
-                } else {
-                    union = union.union(geo);
-                }
-            }
-        }
-        // Setting of the final srID and reproject to the final CRS
-        CoordinateReferenceSystem crs = (CoordinateReferenceSystem) union.getUserData();
-        if (crs != null) {
-            MathTransform trans = CRS.findMathTransform(crs, covCRS);
-            union = JTS.transform(union, trans);
-            union.setUserData(covCRS);
+        // Transformation of the ROI envelopes to the final CRS
+        MathTransform toCoverage = toRasterSpace ? ProjectiveTransform.create(gridToWorldCorner)
+                : null;
+        Object crs = rois.isEmpty() ? null : rois.get(0).getUserData();
+        if (crs instanceof CoordinateReferenceSystem) {
+            MathTransform trans = CRSCache.findMathTransform((CoordinateReferenceSystem) crs, covCRS);
+            toCoverage = toCoverage != null ? ConcatenatedTransform.create(toCoverage, trans)
+                    : trans;
         }
 
-        if (union.getSRID() == 0) {
-            int srIDfinal = CRS.lookupEpsgCode(covCRS, true);
-            union.setSRID(srIDfinal);
-        }
-
-        if (union.getUserData() == null) {
-            union.setUserData(covCRS);
+        // Union of all the envelopes
+        com.vividsolutions.jts.geom.Envelope envelope = new com.vividsolutions.jts.geom.Envelope();
+        for (Geometry geo : rois) {
+            com.vividsolutions.jts.geom.Envelope geoEnvelope = geo.getEnvelopeInternal();
+            if (geoEnvelope.isNull()) {
+                continue;
+            }
+            envelope.expandToInclude(toCoverage != null ? JTS.transform(geoEnvelope, toCoverage)
+                    : geoEnvelope);
         }
 
         GridGeometry2D gridROI = null;
         
-        if (!union.isEmpty()) {
+        if (!envelope.isNull()) {
             
             //
             // Make sure the provided area intersects the layer BBOX in the layer CRS
             //
             final ReferencedEnvelope crsBBOX = ciReference.boundingBox();
-            union = union.intersection(JTS.toGeometry(crsBBOX));
-            if (union.isEmpty()) {
+            com.vividsolutions.jts.geom.Envelope cropEnvelope = envelope.intersection(crsBBOX);
+            if (cropEnvelope.isNull()) {
                 throw new WPSException(
                         "The provided Administrative Areas does not intersect the reference data BBOX: ",
-                        union.toText());
+                        envelope.toString());
             }
             
-            com.vividsolutions.jts.geom.Envelope envelope = union.getEnvelopeInternal();
             // create with supplied crs
-            Envelope2D bounds = JTS.getEnvelope2D(envelope, covCRS);
+            Envelope2D bounds = JTS.getEnvelope2D(cropEnvelope, covCRS);
 
             // Creation of a GridGeometry2D instance used for cropping the input images
             gridROI = new GridGeometry2D(PixelInCell.CELL_CORNER,
@@ -370,4 +532,4 @@ public abstract class SoilSealingMiddlewareProcess implements GSProcess {
         }
         return gridROI;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,205 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.wps.gs.soilsealing.UrbanGridProcess.ListContainer;
+import org.geotools.data.Transaction;
+import org.geotools.data.postgis.PostGISDialect;
+import org.geotools.data.postgis.PostGISPSDialect;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.jdbc.SQLDialect;
+import org.geotools.util.Converters;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
+
+/**
+ * Computes the urban grid statistics of the indexes 5, 6 and 7b-7c inside the database, with a single grouped query for all the ROIs and years.
+ * Only the aggregated values (total area, maximum polygon area, number of polygons and total perimeter) are transferred, instead of every
+ * urban grid polygon.
+ * <p>
+ * Only PostGIS stores are supported. Areas and perimeters are measured on the WGS84 ellipsoid with the <code>geography</code> type: the areas
+ * match the ones of the local equal area projection used by the Java path, the perimeters differ by the few ppm of distortion of that
+ * projection.
+ * </p>
+ */
+class UrbanGridAggregator {
+
+    private static final Logger LOGGER = Logging.getLogger(UrbanGridAggregator.class);
+
+    /** Name of the attribute holding the year of each urban grid polygon */
+    static final String YEAR_ATTRIBUTE = "imp_year";
+
+    private UrbanGridAggregator() {
+    }
+
+    /**
+     * Checks if the statistics can be computed inside the provided store
+     */
+    static boolean isSupported(Object store) {
+        if (!(store instanceof JDBCDataStore)) {
+            return false;
+        }
+        final SQLDialect dialect = ((JDBCDataStore) store).getSQLDialect();
+        return dialect instanceof PostGISDialect || dialect instanceof PostGISPSDialect;
+    }
+
+    /**
+     * Computes the urban grid statistics of each ROI for each year.
+     *
+     * @param ds the store holding the urban grids
+     * @param typeName name of the urban grids table
+     * @param rois ROIs, in the CRS of the urban grids
+     * @param years years to compute
+     * @return for each year, the statistics of each ROI in the same order
+     * @throws IOException if the query fails
+     */
+    static Map<String, List<ListContainer>> aggregate(JDBCDataStore ds, String typeName,
+            List<Geometry> rois, List<String> years) throws IOException {
+        final SimpleFeatureType schema = ds.getSchema(typeName);
+        final GeometryDescriptor geometryDescriptor = schema.getGeometryDescriptor();
+        final AttributeDescriptor yearDescriptor = schema.getDescriptor(YEAR_ATTRIBUTE);
+        if (geometryDescriptor == null || yearDescriptor == null) {
+            throw new IOException("The layer " + typeName + " has no geometry or year attribute");
+        }
+        final Integer nativeSrid = (Integer) geometryDescriptor.getUserData().get(
+                JDBCDataStore.JDBC_NATIVE_SRID);
+        final String sql = buildQuery(ds.getSQLDialect(), ds.getDatabaseSchema(), typeName,
+                geometryDescriptor.getLocalName(), rois.size(), years.size());
+
+        Connection cx = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            cx = ds.getConnection(Transaction.AUTO_COMMIT);
+            ps = cx.prepareStatement(sql);
+            WKBWriter writer = new WKBWriter();
+            int p = 1;
+            for (Geometry roi : rois) {
+                ps.setBytes(p++, writer.write(roi));
+                ps.setInt(p++, nativeSrid != null ? nativeSrid : roi.getSRID());
+            }
+            for (String y : years) {
+                ps.setObject(p++, toYear(y, yearDescriptor));
+            }
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Aggregating the urban grids of " + rois.size() + " ROIs: " + sql);
+            }
+            rs = ps.executeQuery();
+            return collect(rs, rois.size(), years, yearDescriptor);
+        } catch (SQLException e) {
+            throw new IOException("Unable to aggregate the urban grids of " + typeName, e);
+        } finally {
+            ds.closeSafe(rs);
+            ds.closeSafe(ps);
+            ds.closeSafe(cx);
+        }
+    }
+
+    /**
+     * Builds the grouped query, returning a row for each ROI and year with the ROI position, the year, the total area, the maximum polygon
+     * area, the number of polygons and the total perimeter. The parameters are the WKB and SRID of each ROI, followed by the years.
+     *
+     * @param dialect dialect of the store
+     * @param databaseSchema schema of the urban grids table, may be <code>null</code>
+     * @param typeName name of the urban grids table
+     * @param geometryName name of the geometry column
+     * @param numRois number of ROIs
+     * @param numYears number of years
+     */
+    static String buildQuery(SQLDialect dialect, String databaseSchema, String typeName,
+            String geometryName, int numRois, int numYears) {
+        // One row for each ROI, joined with the urban grid polygons it contains
+        final StringBuffer geometry = new StringBuffer("u.");
+        dialect.encodeColumnName(null, geometryName, geometry);
+        final StringBuffer year = new StringBuffer("u.");
+        dialect.encodeColumnName(null, YEAR_ATTRIBUTE, year);
+        final String geography = "geography(ST_Transform(" + geometry + ", 4326))";
+
+        StringBuffer sql = new StringBuffer("SELECT r.roi_id, ").append(year);
+        sql.append(", SUM(ST_Area(").append(geography).append("))");
+        sql.append(", MAX(ST_Area(").append(geography).append("))");
+        sql.append(", COUNT(*)");
+        sql.append(", SUM(ST_Perimeter(").append(geography).append("))");
+        sql.append(" FROM (VALUES ");
+        for (int i = 0; i < numRois; i++) {
+            sql.append(i > 0 ? ", " : "").append("(").append(i)
+                    .append(", ST_GeomFromWKB(?, ?))");
+        }
+        sql.append(") AS r(roi_id, geom) JOIN ");
+        if (databaseSchema != null) {
+            dialect.encodeSchemaName(databaseSchema, sql);
+            sql.append(".");
+        }
+        dialect.encodeTableName(typeName, sql);
+        sql.append(" u ON ST_Within(").append(geometry).append(", r.geom)");
+        sql.append(" WHERE ").append(year).append(" IN (");
+        for (int i = 0; i < numYears; i++) {
+            sql.append(i > 0 ? ", ?" : "?");
+        }
+        sql.append(") GROUP BY r.roi_id, ").append(year);
+        return sql.toString();
+    }
+
+    /**
+     * Splits the rows of the grouped query by year and ROI. The ROIs without urban grids in a year get empty statistics, the rows of other
+     * years are ignored.
+     *
+     * @param rs result of the query built by {@link #buildQuery}
+     * @param numRois number of ROIs
+     * @param years years to compute
+     * @param yearDescriptor the year attribute
+     * @return for each year, the statistics of each ROI in the same order
+     */
+    static Map<String, List<ListContainer>> collect(ResultSet rs, int numRois,
+            List<String> years, AttributeDescriptor yearDescriptor) throws SQLException {
+        Map<Object, List<ListContainer>> byYear = new HashMap<Object, List<ListContainer>>();
+        Map<String, List<ListContainer>> result = new HashMap<String, List<ListContainer>>();
+        for (String y : years) {
+            List<ListContainer> stats = new ArrayList<ListContainer>(numRois);
+            for (int i = 0; i < numRois; i++) {
+                stats.add(new ListContainer());
+            }
+            byYear.put(toYear(y, yearDescriptor), stats);
+            result.put(y, stats);
+        }
+
+        while (rs.next()) {
+            List<ListContainer> stats = byYear.get(toYear(rs.getObject(2), yearDescriptor));
+            if (stats != null) {
+                ListContainer container = stats.get(rs.getInt(1));
+                container.setTotalArea(rs.getDouble(3));
+                container.setMaxArea(rs.getDouble(4));
+                container.setCount(rs.getInt(5));
+                container.setTotalPerimeter(rs.getDouble(6));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Converts the year to the type of the year attribute
+     */
+    private static Object toYear(Object year, AttributeDescriptor descriptor) {
+        Object converted = Converters.convert(year, descriptor.getType().getBinding());
+        return converted != null ? converted : year;
+    }
+}
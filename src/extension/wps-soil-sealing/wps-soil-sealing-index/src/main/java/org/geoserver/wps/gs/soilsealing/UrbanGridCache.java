@@ -0,0 +1,317 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Bounded, size-aware LRU cache of the urban grid polygons of each imperviousness layer and year, used by the {@link UrbanGridProcess} for
+ * the indexes 5, 6 and 7b-7c. Each entry holds the spatially indexed polygons of a year with their precomputed equal area and perimeter, so
+ * that repeated requests on the same year do not query the database anymore. Entries are dropped when the feature type or its store are
+ * modified or removed from the catalog, and once older than the time to live, since the urban grids are written in the database by the
+ * ingestion without any catalog event.
+ * <p>
+ * The years exceeding the maximum size are remembered, so that they are computed in the database without being loaded again, and the loads of
+ * the same year are serialized with {@link #acquireLoadLock}, each lock being dropped once no load is waiting for it.
+ * </p>
+ */
+public class UrbanGridCache implements CatalogListener {
+
+    private static final Logger LOGGER = Logging.getLogger(UrbanGridCache.class);
+
+    /** Default maximum estimated size in bytes */
+    public static final long DEFAULT_MAX_SIZE = 256 * 1024 * 1024;
+
+    /** Default time to live of the entries in milliseconds */
+    public static final long DEFAULT_TIME_TO_LIVE = 60 * 60 * 1000;
+
+    /** Cached values, in access order */
+    private final LinkedHashMap<String, CachedUrbanGrids> entries = new LinkedHashMap<String, CachedUrbanGrids>(
+            16, 0.75f, true);
+
+    /** Layers and years exceeding the maximum size, with no urban grids */
+    private final LinkedHashMap<String, CachedUrbanGrids> oversized = new LinkedHashMap<String, CachedUrbanGrids>();
+
+    /** Locks serializing the loads of each layer and year, while in use */
+    private final Map<String, LoadLock> loadLocks = new HashMap<String, LoadLock>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private long maxSize = DEFAULT_MAX_SIZE;
+
+    private long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+    /** Current estimated size */
+    private long size;
+
+    public UrbanGridCache(Catalog catalog) {
+        if (catalog != null) {
+            catalog.addListener(this);
+        }
+    }
+
+    /**
+     * Returns the cached urban grids of the provided layer and year, if any
+     */
+    synchronized UrbanGrids get(FeatureTypeInfo featureType, String year) {
+        final String key = buildKey(featureType, year);
+        CachedUrbanGrids value = featureType.getId() != null ? entries.get(key) : null;
+        if (value != null && isExpired(value)) {
+            size -= value.grids.getSize();
+            entries.remove(key);
+            value = null;
+        }
+        if (value != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Urban grid cache " + (value != null ? "hit" : "miss") + ", hits: "
+                    + hits.get() + ", misses: " + misses.get());
+        }
+        return value != null ? value.grids : null;
+    }
+
+    /**
+     * Adds the urban grids of a layer and year, evicting the least recently used entries if needed
+     */
+    synchronized void put(FeatureTypeInfo featureType, String year, UrbanGrids grids) {
+        if (featureType.getId() == null || grids.getSize() > maxSize) {
+            return;
+        }
+        CachedUrbanGrids value = new CachedUrbanGrids(featureType.getId(), featureType
+                .getStore().getId(), grids);
+        CachedUrbanGrids old = entries.put(buildKey(featureType, year), value);
+        if (old != null) {
+            size -= old.grids.getSize();
+        }
+        size += grids.getSize();
+        // eviction of the least recently used entries
+        Iterator<CachedUrbanGrids> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().grids.getSize();
+            it.remove();
+        }
+    }
+
+    /**
+     * Records that the urban grids of a layer and year exceed the maximum size, until the layer is modified or the maximum size changes
+     */
+    synchronized void putOversized(FeatureTypeInfo featureType, String year) {
+        if (featureType.getId() != null) {
+            oversized.put(buildKey(featureType, year), new CachedUrbanGrids(featureType.getId(),
+                    featureType.getStore().getId(), null));
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the urban grids of the layer and year are known to exceed the maximum size
+     */
+    synchronized boolean isOversized(FeatureTypeInfo featureType, String year) {
+        if (featureType.getId() == null) {
+            return false;
+        }
+        final String key = buildKey(featureType, year);
+        final CachedUrbanGrids value = oversized.get(key);
+        if (value != null && isExpired(value)) {
+            oversized.remove(key);
+            return false;
+        }
+        return value != null;
+    }
+
+    /**
+     * Returns the lock to be held while loading the urban grids of a layer and year, so that concurrent misses load them only once. Each call
+     * must be followed by a {@link #releaseLoadLock} call once the lock is not needed anymore.
+     */
+    synchronized Object acquireLoadLock(FeatureTypeInfo featureType, String year) {
+        final String key = buildKey(featureType, year);
+        LoadLock lock = loadLocks.get(key);
+        if (lock == null) {
+            lock = new LoadLock();
+            loadLocks.put(key, lock);
+        }
+        lock.users++;
+        return lock;
+    }
+
+    /**
+     * Releases a lock returned by {@link #acquireLoadLock}, dropping it if no other load is waiting for it
+     */
+    synchronized void releaseLoadLock(FeatureTypeInfo featureType, String year) {
+        final String key = buildKey(featureType, year);
+        final LoadLock lock = loadLocks.get(key);
+        if (lock != null && --lock.users == 0) {
+            loadLocks.remove(key);
+        }
+    }
+
+    /**
+     * @return the number of locks in use
+     */
+    synchronized int getLoadLocks() {
+        return loadLocks.size();
+    }
+
+    private boolean isExpired(CachedUrbanGrids value) {
+        return timeToLive > 0 && System.currentTimeMillis() - value.created > timeToLive;
+    }
+
+    /**
+     * Removes all the entries
+     */
+    public synchronized void clear() {
+        entries.clear();
+        oversized.clear();
+        size = 0;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        oversized.clear();
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Sets the time in milliseconds after which the entries are loaded again from the database, 0 or less keeps them until the catalog
+     * changes
+     */
+    public synchronized void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    // ////
+    // Catalog events
+    // ////
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // nothing to do
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // wait for the post modify event
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    /**
+     * Drops the entries related to the provided catalog object
+     */
+    private synchronized void invalidate(CatalogInfo info) {
+        if (!(info instanceof FeatureTypeInfo || info instanceof DataStoreInfo)
+                || info.getId() == null) {
+            return;
+        }
+        Iterator<CachedUrbanGrids> it = entries.values().iterator();
+        while (it.hasNext()) {
+            CachedUrbanGrids value = it.next();
+            if (info.getId().equals(info instanceof FeatureTypeInfo ? value.featureTypeId
+                    : value.storeId)) {
+                size -= value.grids.getSize();
+                it.remove();
+            }
+        }
+        it = oversized.values().iterator();
+        while (it.hasNext()) {
+            CachedUrbanGrids value = it.next();
+            if (info.getId().equals(info instanceof FeatureTypeInfo ? value.featureTypeId
+                    : value.storeId)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static String buildKey(FeatureTypeInfo featureType, String year) {
+        return featureType.getId() + "|" + year;
+    }
+
+    /**
+     * The cached urban grids of a layer and year, <code>null</code> if they exceed the maximum size
+     */
+    private static class CachedUrbanGrids {
+
+        private final String featureTypeId;
+
+        private final String storeId;
+
+        private final UrbanGrids grids;
+
+        /** Creation time of the entry */
+        private final long created = System.currentTimeMillis();
+
+        CachedUrbanGrids(String featureTypeId, String storeId, UrbanGrids grids) {
+            this.featureTypeId = featureTypeId;
+            this.storeId = storeId;
+            this.grids = grids;
+        }
+    }
+
+    /**
+     * Lock of the loads of a layer and year, with the number of loads using it
+     */
+    private static class LoadLock {
+
+        private int users;
+    }
+}
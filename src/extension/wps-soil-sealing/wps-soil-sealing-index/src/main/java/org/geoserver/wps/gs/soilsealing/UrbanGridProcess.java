@@ -4,39 +4,33 @@
  */
 package org.geoserver.wps.gs.soilsealing;
 
-import it.geosolutions.jaiext.algebra.AlgebraCRIF;
-import it.geosolutions.jaiext.algebra.AlgebraDescriptor;
-import it.geosolutions.jaiext.algebra.AlgebraDescriptor.Operator;
 import it.geosolutions.jaiext.bandmerge.BandMergeCRIF;
 import it.geosolutions.jaiext.bandmerge.BandMergeDescriptor;
-import it.geosolutions.jaiext.buffer.BufferDescriptor;
-import it.geosolutions.jaiext.buffer.BufferRIF;
 
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
-import java.awt.image.DataBuffer;
 import java.awt.image.RenderedImage;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.media.jai.JAI;
-import javax.media.jai.ROI;
-import javax.media.jai.RenderedOp;
-import javax.media.jai.operator.BandSelectDescriptor;
 
 import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.wps.gs.SoilSealingExecutor;
 import org.geoserver.wps.gs.soilsealing.CLCProcess.StatisticContainer;
+import org.geoserver.wps.gs.soilsealing.ConnectedComponentLabeler.ZoneComponents;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.data.DataStore;
 import org.geotools.data.DefaultTransaction;
@@ -53,13 +47,12 @@ import org.geotools.process.ProcessException;
 import org.geotools.process.factory.DescribeParameter;
 import org.geotools.process.factory.DescribeResult;
 import org.geotools.process.gs.GSProcess;
-import org.geotools.referencing.CRS;
-import org.jaitools.imageutils.ROIGeometry;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.FeatureType;
 import org.opengis.filter.Filter;
 import org.opengis.filter.FilterFactory2;
+import org.opengis.metadata.spatial.PixelOrientation;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.NoSuchAuthorityCodeException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -67,7 +60,6 @@ import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.TransformException;
 
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.Point;
 
 /**
  * This process calculates various indexes on the UrbanGrids. Indexes 5-6-7b-7c are calculated using Urban Grids as polygons. The other indexes are
@@ -130,18 +122,22 @@ public class UrbanGridProcess implements GSProcess {
     /** Default Pixel Area */
     private static final double PIXEL_AREA = 400;
 
+    /** Default radius in pixels of the window used for the index 8 */
+    public static final int DEFAULT_FRAGMENTATION_RADIUS = 10;
+
+    /** Value of the impervious pixels */
+    private static final int IMPERVIOUS_VALUE = 1;
+
     public static final String JAI_EXT_PRODUCT = "it.geosolutions.jaiext";
     static {
         try {
-            Registry.registerRIF(JAI.getDefaultInstance(), new BufferDescriptor(), new BufferRIF(), JAI_EXT_PRODUCT);
-            Registry.registerRIF(JAI.getDefaultInstance(), new AlgebraDescriptor(), new AlgebraCRIF(), JAI_EXT_PRODUCT);
             Registry.registerRIF(JAI.getDefaultInstance(), new BandMergeDescriptor(), new BandMergeCRIF(), JAI_EXT_PRODUCT);
         } catch (Throwable e) {
             // swallow exception in case the op has already been registered.
         }
         CoordinateReferenceSystem crs = null;
         try {
-            crs = CRS.decode("EPSG:4326");
+            crs = CRSCache.decode("EPSG:4326");
         } catch (NoSuchAuthorityCodeException e) {
             LOGGER.log(Level.WARNING, e.getMessage(), e);
         } catch (FactoryException e) {
@@ -151,8 +147,20 @@ public class UrbanGridProcess implements GSProcess {
         WGS84 = crs;
     }
 
-    /** Countdown latch used for handling various threads simultaneously */
-    private CountDownLatch latch;
+    /** Cached transforms to the local Lambert-Equal Area projections */
+    private static final EqualAreaTransforms EQUAL_AREA_TRANSFORMS = new EqualAreaTransforms(WGS84);
+
+    /** Executor shared between the requests for the Urban Grids calculations */
+    private SoilSealingExecutor executor;
+
+    /** Optional in memory cache of the Urban Grids */
+    private UrbanGridCache urbanGridCache;
+
+    /** Radius in pixels of the window used for the index 8 */
+    private int fragmentationRadius = DEFAULT_FRAGMENTATION_RADIUS;
+
+    /** Whether the Urban Grids of the indexes 5-6-7b-7c are labelled on the coverages instead of being read from the vector layer */
+    private boolean rasterUrbanGrids;
 
     /** Imperviousness Vectorial Layer */
     private FeatureTypeInfo imperviousnessReference;
@@ -166,6 +174,9 @@ public class UrbanGridProcess implements GSProcess {
     private String pathToRefShp;
 
     private String pathToCurShp;
+
+    /** Optional roll-up of the leaf ROIs, only supported by the indexes 7a-9-10 */
+    private ZoneRollUp rollUp;
     
     public UrbanGridProcess(FeatureTypeInfo imperviousnessReference, String referenceYear, String currentYear) {
         this.imperviousnessReference = imperviousnessReference;
@@ -173,16 +184,54 @@ public class UrbanGridProcess implements GSProcess {
         this.currentYear = currentYear;
     }
 
+    public UrbanGridProcess(FeatureTypeInfo imperviousnessReference, String referenceYear,
+            String currentYear, ZoneRollUp rollUp) {
+        this(imperviousnessReference, referenceYear, currentYear);
+        this.rollUp = rollUp;
+    }
+
     public UrbanGridProcess(String pathToRefShp, String pathToCurShp) {
         this.pathToRefShp = pathToRefShp;
         this.pathToCurShp = pathToCurShp;
     }
+
+    /**
+     * Sets whether the Urban Grids of the indexes 5-6-7b-7c are the connected components of the impervious pixels of the input coverages,
+     * instead of the polygons of the vector layer
+     */
+    public void setRasterUrbanGrids(boolean rasterUrbanGrids) {
+        this.rasterUrbanGrids = rasterUrbanGrids;
+    }
+
+    /**
+     * Sets the radius in pixels of the window used for the index 8
+     */
+    public void setFragmentationRadius(int fragmentationRadius) {
+        if (fragmentationRadius < 0) {
+            throw new IllegalArgumentException("Fragmentation radius must not be negative");
+        }
+        this.fragmentationRadius = fragmentationRadius;
+    }
+
+    /**
+     * Sets the cache of the Urban Grids, if not set the Urban Grids are read from the store for each request
+     */
+    public void setUrbanGridCache(UrbanGridCache urbanGridCache) {
+        this.urbanGridCache = urbanGridCache;
+    }
+
+    /**
+     * Sets the executor used for the Urban Grids calculations of each Administrative area, if not set the one of the application context is used
+     */
+    public void setExecutor(SoilSealingExecutor executor) {
+        this.executor = executor;
+    }
     
     // HP to verify
     // HP1 = admin geometries in Raster space, for index 7a-8-9-10; in SHP CRS for the other indexes
     // HP2 = Coverages already cropped and transformed to the Raster Space
 
-    @DescribeResult(name = "UrbanGridProcess", description = "Urban Grid indexes", type = List.class)
+    @DescribeResult(name = "UrbanGridProcess", description = "Urban Grid indexes. The images of the index 8 are single precision (float) rasters", type = List.class)
     public List<StatisticContainer> execute(
             @DescribeParameter(name = "reference", description = "Name of the reference raster") GridCoverage2D referenceCoverage,
             @DescribeParameter(name = "now", description = "Name of the new raster") GridCoverage2D nowCoverage,
@@ -201,6 +250,10 @@ public class UrbanGridProcess implements GSProcess {
         if (index == SEVENTH_INDEX && (nullSubId || !(subIndexA || subIndexB || subIndexC))) {
             throw new IllegalArgumentException("Wrong subindex for index 7");
         }
+        // Only the histogram based indexes can roll up the leaf statistics
+        if (rollUp != null && !rollUp.isIdentity() && !supportsRollUp(index, subId)) {
+            throw new IllegalArgumentException("The selected index does not support rolled up zones");
+        }
         // Check if almost one coverage is present
         if (referenceCoverage == null && nowCoverage == null) {
             throw new IllegalArgumentException("No input Coverage provided");
@@ -213,13 +266,11 @@ public class UrbanGridProcess implements GSProcess {
             areaPx = pixelArea;
         }
 
-        // Number of Geometries
-        int numThreads = rois.size();
         // Check if Geometry area or perimeter must be calculated
         boolean area = false;
         // Simple class set used for the raster calculations on indexes 7a-9-10
         Set<Integer> classes = new TreeSet<Integer>();
-        classes.add(Integer.valueOf(1));
+        classes.add(Integer.valueOf(IMPERVIOUS_VALUE));
         // Selection of the operation to do for each index
         switch (index) {
         case FIFTH_INDEX:
@@ -232,7 +283,7 @@ public class UrbanGridProcess implements GSProcess {
             area = true;
             // If index is 7a raster calculation can be executed
             if (subIndexA) {
-                return new CLCProcess().execute(referenceCoverage, nowCoverage, classes,
+                return new CLCProcess(rollUp).execute(referenceCoverage, nowCoverage, classes,
                         CLCProcess.FIRST_INDEX, areaPx, rois, null, null, true);
             }
             break;
@@ -241,11 +292,11 @@ public class UrbanGridProcess implements GSProcess {
             return prepareImages(referenceCoverage, nowCoverage, rois, areaPx * HACONVERTER);
             // For the indexes 9-10 Zonal Stats are calculated
         case NINTH_INDEX:
-            return new CLCProcess().execute(referenceCoverage, nowCoverage, classes,
+            return new CLCProcess(rollUp).execute(referenceCoverage, nowCoverage, classes,
                     CLCProcess.THIRD_INDEX, areaPx, rois, populations, Double.valueOf(1), null);
         case TENTH_INDEX:
             if (coeff != null) {
-                return new CLCProcess().execute(referenceCoverage, nowCoverage, classes,
+                return new CLCProcess(rollUp).execute(referenceCoverage, nowCoverage, classes,
                         CLCProcess.THIRD_INDEX, areaPx, rois, populations, coeff, null);
             } else {
                 throw new IllegalArgumentException("No coefficient provided for the selected index");
@@ -260,13 +311,45 @@ public class UrbanGridProcess implements GSProcess {
         double[] statsRef = null;
         double[] statsNow = null;
         try {
+            // The Urban Grids are labelled directly on the input coverages
+            if (rasterUrbanGrids) {
+                if (referenceCoverage != null) {
+                    statsRef = prepareResults(referenceYear, null, index, rois, subIndexB, area,
+                            labelUrbanGrids(referenceCoverage, rois, areaPx));
+                }
+                if (nowCoverage != null) {
+                    statsNow = prepareResults(currentYear, null, index, rois, subIndexB, area,
+                            labelUrbanGrids(nowCoverage, rois, areaPx));
+                }
+                return accumulateResults(rois, statsRef, statsNow);
+            }
+
+            // Years to calculate
+            final boolean refExists = referenceCoverage != null && referenceYear != null && imperviousnessReference != null;
+            final boolean nowExists = nowCoverage != null && currentYear != null && imperviousnessReference != null;
+            List<String> years = new ArrayList<String>(2);
+            if (refExists) {
+                years.add(referenceYear);
+            }
+            if (nowExists) {
+                years.add(currentYear);
+            }
+            // Urban Grid statistics of all the years and geometries from the cache, if enabled,
+            // or calculated by the database, if supported
+            Map<String, List<ListContainer>> aggregated = cachedGeometries(imperviousnessReference, rois, years, area);
+            if (aggregated == null) {
+                aggregated = aggregateGeometries(imperviousnessReference, rois, years);
+            }
+
             // For each coverage are calculated the results
-            if (referenceCoverage != null && referenceYear != null && imperviousnessReference != null) {
-                statsRef = prepareResults(referenceYear, imperviousnessReference, index, rois, subIndexB, numThreads, area);
+            if (refExists) {
+                statsRef = prepareResults(referenceYear, imperviousnessReference, index, rois, subIndexB, area,
+                        aggregated != null ? aggregated.get(referenceYear) : null);
             }
 
-            if (nowCoverage != null && currentYear != null && imperviousnessReference != null) {
-                statsNow = prepareResults(currentYear, imperviousnessReference, index, rois, subIndexB, numThreads, area);
+            if (nowExists) {
+                statsNow = prepareResults(currentYear, imperviousnessReference, index, rois, subIndexB, area,
+                        aggregated != null ? aggregated.get(currentYear) : null);
             }
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, e.getMessage(), e);
@@ -279,6 +362,22 @@ public class UrbanGridProcess implements GSProcess {
 
     }
 
+    /**
+     * Checks if the statistics of the selected index can be rolled up from the leaf zones, i.e. if the index is computed from the zonal class
+     * histograms (7a-9-10).
+     */
+    public static boolean supportsRollUp(int index, String subId) {
+        switch (index) {
+        case SEVENTH_INDEX:
+            return subId != null && subId.equalsIgnoreCase("a");
+        case NINTH_INDEX:
+        case TENTH_INDEX:
+            return true;
+        default:
+            return false;
+        }
+    }
+
     /**
      * Takes the in input the result for each Coverage and return the result as a List of {@link StatisticContainer} objects.
      * 
@@ -359,8 +458,8 @@ public class UrbanGridProcess implements GSProcess {
      * @param index index to calculate
      * @param rois Input Administrative Areas
      * @param subIndexB Boolean indicating if the subIndex to calculate is "b"
-     * @param numThreads Total number of Threads to lauch
      * @param area Boolean indicating if Urban Grid Area must be calculated
+     * @param aggregated Urban Grid statistics already calculated by the database, if any
      * @return
      * @throws MalformedURLException
      * @throws IOException
@@ -369,10 +468,11 @@ public class UrbanGridProcess implements GSProcess {
      * @throws TransformException
      */
     private double[] prepareResults(String year, FeatureTypeInfo imperviousnessReference, int index, List<Geometry> rois,
-            boolean subIndexB, int numThreads, boolean area) throws MalformedURLException,
+            boolean subIndexB, boolean area, List<ListContainer> aggregated) throws MalformedURLException,
             IOException, InterruptedException, FactoryException, TransformException {
         // Calculation on the Urban Grids
-        List<ListContainer> urbanGrids = calculateGeometries(year, imperviousnessReference, rois, numThreads, area);
+        List<ListContainer> urbanGrids = aggregated != null ? aggregated : calculateGeometries(year,
+                imperviousnessReference, rois, area);
         // Results
         double[] stats = new double[rois.size()];
         // Counter used for cycling on the Geometries
@@ -381,13 +481,11 @@ public class UrbanGridProcess implements GSProcess {
         for (ListContainer container : urbanGrids) {
 
             if (area) {
-                // List of all the areas
-                List<Double> areas = container.getSortedList();
-                if (areas != null && areas.size() > 0) {
+                if (container.getCount() > 0) {
                     // Total polygon number except the biggest
-                    int numPolyNotMax = areas.size() - 1;
+                    int numPolyNotMax = container.getCount() - 1;
                     // Area of the maximum polygon
-                    double polyMaxArea = areas.get(numPolyNotMax);
+                    double polyMaxArea = container.getMaxArea();
                     // Calculation of the total urban area
                     double sut = container.getTotalArea();
                     // Calculation of the urban area without the maximum polygon area
@@ -409,11 +507,14 @@ public class UrbanGridProcess implements GSProcess {
                 } else {
                     stats[counter] = 0;
                 }
+            } else if (container.getAdminArea() > 0) {
+                // Administrative area already measured on the raster
+                stats[counter] = (container.getTotalPerimeter() / container.getAdminArea()) / HACONVERTER;
             } else {
                 // Selection of the Geometry
                 Geometry geo = rois.get(counter);
                 // Selection of the Geometry CRS
-                CoordinateReferenceSystem sourceCRS = CRS.decode("EPSG:" + geo.getSRID());
+                CoordinateReferenceSystem sourceCRS = CRSCache.decode("EPSG:" + geo.getSRID());
                 // Geometry reprojection
                 Geometry geoPrj = reprojectToEqualArea(sourceCRS, geo);
                 if (geoPrj == null) {
@@ -433,12 +534,182 @@ public class UrbanGridProcess implements GSProcess {
     }
 
     /**
-     * Calculates the UrbanGrid area/perimeters for each Administrative area inside a separate thread.
+     * Calculates the UrbanGrid area/perimeters of all the Administrative areas from the connected components of the impervious pixels of the
+     * coverage, instead of the vectorized Urban Grids. Each component is clipped to the Administrative area; the perimeter is measured along
+     * the pixel sides, assuming square pixels.
+     * 
+     * @param coverage Input imperviousness coverage
+     * @param rois List of all the input Geometries, in the coverage CRS
+     * @param pixelArea Pixel area in square meters
+     * @return the statistics of each Geometry
+     */
+    private List<ListContainer> labelUrbanGrids(GridCoverage2D coverage, List<Geometry> rois,
+            double pixelArea) throws TransformException {
+        // Administrative areas in raster space
+        final MathTransform crsToGrid = coverage.getGridGeometry().getCRSToGrid2D(
+                PixelOrientation.UPPER_LEFT);
+        List<Geometry> zones = new ArrayList<Geometry>(rois.size());
+        for (Geometry roi : rois) {
+            zones.add(JTS.transform(roi, crsToGrid));
+        }
+        ZoneComponents[] components = ConnectedComponentLabeler.compute(
+                coverage.getRenderedImage(), 0, IMPERVIOUS_VALUE, zones);
+        if (components == null) {
+            throw new ProcessException("The Administrative areas must be polygonal");
+        }
+        final double pixelSide = Math.sqrt(pixelArea);
+        List<ListContainer> result = new ArrayList<ListContainer>(rois.size());
+        for (ZoneComponents zone : components) {
+            ListContainer container = new ListContainer();
+            container.setTotalArea(zone.getPixels() * pixelArea);
+            container.setMaxArea(zone.getMaxPixels() * pixelArea);
+            container.setCount(zone.getCount());
+            container.setTotalPerimeter(zone.getEdges() * pixelSide);
+            container.setAdminArea(zone.getZonePixels() * pixelArea);
+            result.add(container);
+        }
+        return result;
+    }
+
+    /**
+     * Calculates the UrbanGrid area/perimeters of all the Administrative areas and years from the Urban Grids kept in memory by the
+     * {@link UrbanGridCache}, loading the missing years.
+     * 
+     * @param imperviousnessReference Input Urban Grids layer
+     * @param rois List of all the input Geometries
+     * @param years Years to calculate
+     * @param area Boolean indicating if area must be calculated. (Otherwise perimeter is calculated)
+     * @return the statistics of each Geometry for each year, or <code>null</code> if the cache is disabled or a year is too big to be cached
+     */
+    private Map<String, List<ListContainer>> cachedGeometries(FeatureTypeInfo imperviousnessReference,
+            List<Geometry> rois, List<String> years, boolean area) {
+        if (urbanGridCache == null || imperviousnessReference == null) {
+            return null;
+        }
+        Map<String, List<ListContainer>> result = new HashMap<String, List<ListContainer>>();
+        for (String year : years) {
+            if (urbanGridCache.isOversized(imperviousnessReference, year)) {
+                return null;
+            }
+            UrbanGrids grids = urbanGridCache.get(imperviousnessReference, year);
+            if (grids == null) {
+                // concurrent misses of the same year wait for a single load
+                final Object loadLock = urbanGridCache.acquireLoadLock(imperviousnessReference, year);
+                try {
+                    synchronized (loadLock) {
+                        if (urbanGridCache.isOversized(imperviousnessReference, year)) {
+                            return null;
+                        }
+                        grids = urbanGridCache.get(imperviousnessReference, year);
+                        if (grids == null) {
+                            try {
+                                grids = loadUrbanGrids(year, imperviousnessReference, urbanGridCache.getMaxSize());
+                            } catch (Exception e) {
+                                LOGGER.log(Level.WARNING, "Unable to load the Urban Grids of the year " + year, e);
+                                return null;
+                            }
+                            if (grids == null) {
+                                if (LOGGER.isLoggable(Level.FINE)) {
+                                    LOGGER.fine("The Urban Grids of the year " + year + " exceed the cache size");
+                                }
+                                urbanGridCache.putOversized(imperviousnessReference, year);
+                                return null;
+                            }
+                            urbanGridCache.put(imperviousnessReference, year, grids);
+                        }
+                    }
+                } finally {
+                    urbanGridCache.releaseLoadLock(imperviousnessReference, year);
+                }
+            }
+            List<ListContainer> stats = new ArrayList<ListContainer>(rois.size());
+            for (Geometry roi : rois) {
+                stats.add(grids.aggregate(roi, area));
+            }
+            result.put(year, stats);
+        }
+        return result;
+    }
+
+    /**
+     * Loads all the Urban Grids of a year, computing their equal area and perimeter.
+     * 
+     * @param year Year to load
+     * @param imperviousnessReference Input Urban Grids layer
+     * @param maxSize maximum estimated size of the loaded Urban Grids
+     * @return the Urban Grids, or <code>null</code> if they exceed the maximum size
+     */
+    private UrbanGrids loadUrbanGrids(String year, FeatureTypeInfo imperviousnessReference,
+            long maxSize) throws IOException, FactoryException, TransformException {
+        final DataStore ds = (DataStore) imperviousnessReference.getStore().getDataStore(null);
+        final String typeName = imperviousnessReference.getFeatureType().getName().getLocalPart();
+        final SimpleFeatureType schema = ds.getSchema(typeName);
+        final CoordinateReferenceSystem sourceCRS = schema.getGeometryDescriptor().getCoordinateReferenceSystem();
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2(null);
+        Query query = new Query(typeName, ff.equals(ff.property("imp_year"), ff.literal(year)));
+
+        // the year is not read at all if the number of polygons alone exceeds the maximum size
+        final int count = ds.getFeatureSource(typeName).getCount(query);
+        if (count >= 0 && UrbanGrids.estimateMinSize(count) > maxSize) {
+            return null;
+        }
+
+        UrbanGrids grids = new UrbanGrids();
+        FeatureReader<SimpleFeatureType, SimpleFeature> ftReader = ds.getFeatureReader(query,
+                Transaction.AUTO_COMMIT);
+        try {
+            while (ftReader.hasNext()) {
+                Geometry sourceGeometry = (Geometry) ftReader.next().getDefaultGeometry();
+                if (sourceGeometry == null) {
+                    continue;
+                }
+                Geometry geoPrj = reprojectToEqualArea(sourceCRS, sourceGeometry);
+                grids.add(sourceGeometry, geoPrj.getArea(), geoPrj.getLength());
+                if (grids.getSize() > maxSize) {
+                    return null;
+                }
+            }
+        } finally {
+            ftReader.close();
+        }
+        grids.build();
+        return grids;
+    }
+
+    /**
+     * Calculates the UrbanGrid area/perimeters of all the Administrative areas and years with a single grouped query, if the Urban Grids are
+     * stored in PostGIS.
+     * 
+     * @param imperviousnessReference Input Urban Grids layer
+     * @param rois List of all the input Geometries
+     * @param years Years to calculate
+     * @return the statistics of each Geometry for each year, or <code>null</code> if they must be calculated feature by feature
+     */
+    private Map<String, List<ListContainer>> aggregateGeometries(FeatureTypeInfo imperviousnessReference,
+            List<Geometry> rois, List<String> years) {
+        if (imperviousnessReference == null || years.isEmpty()) {
+            return null;
+        }
+        try {
+            final DataStore ds = (DataStore) imperviousnessReference.getStore().getDataStore(null);
+            if (!UrbanGridAggregator.isSupported(ds)) {
+                return null;
+            }
+            final String typeName = imperviousnessReference.getFeatureType().getName().getLocalPart();
+            return UrbanGridAggregator.aggregate((JDBCDataStore) ds, typeName, rois, years);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to aggregate the Urban Grids in the database, "
+                    + "falling back to the feature by feature calculation", e);
+            return null;
+        }
+    }
+
+    /**
+     * Calculates the UrbanGrid area/perimeters for each Administrative area inside a separate task of the shared executor.
      * 
      * @param year Input ShapeFile year
      * @param imperviousnessReference Input ShapeFile layer
      * @param rois List of all the input Geometries
-     * @param numThreads Number of threads to lauch
      * @param area Boolean indicating if area must be calculated. (Otherwise perimeter is calculated)
      * @return
      * @throws MalformedURLException
@@ -446,32 +717,30 @@ public class UrbanGridProcess implements GSProcess {
      * @throws InterruptedException
      */
     private List<ListContainer> calculateGeometries(String year, FeatureTypeInfo imperviousnessReference, List<Geometry> rois,
-            int numThreads, boolean area) throws MalformedURLException, IOException,
-            InterruptedException {
-        // Initialization of the CountDown latch for handling multiple threads together
-        latch = new CountDownLatch(numThreads);
+            boolean area) throws MalformedURLException, IOException, InterruptedException {
         // Datastore creation
-        final JDBCDataStore ds = (JDBCDataStore) imperviousnessReference.getStore().getDataStore(null);
-        // ThreadPoolExecutor object used for launching multiple threads simultaneously
-        ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads, 60,
-                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1000000));
-        // Final list containing the result calculated by each thread
-        List<ListContainer> allLists = new ArrayList<ListContainer>(numThreads);
+        final DataStore ds = (DataStore) imperviousnessReference.getStore().getDataStore(null);
+        // Final list containing the result calculated by each task
+        List<ListContainer> allLists = new ArrayList<ListContainer>(rois.size());
+        List<Callable<ListContainer>> tasks = new ArrayList<Callable<ListContainer>>(rois.size());
         // Cycle on the input geometries
         for (Geometry geo : rois) {
             // Creation of a new ListContainer object
             ListContainer container = new ListContainer();
             allLists.add(container);
-            // Creation of a new Runnable for the UrbanGrids computation
+            // Creation of a new task for the UrbanGrids computation
             MyRunnable run = new MyRunnable(year, geo, imperviousnessReference, ds, container, area);
-            executor.execute(run);
+            tasks.add(Executors.callable(run, container));
+        }
+        // Executor shared between the requests, looked up in the application context if it has not been provided
+        final SoilSealingExecutor executor = this.executor != null ? this.executor
+                : SoilSealingExecutor.lookup();
+        try {
+            // Waiting until all the tasks have finished
+            executor.invokeAll(tasks);
+        } catch (ExecutionException e) {
+            throw new ProcessException(e.getCause());
         }
-        // Waiting until all the threads have finished
-        latch.await();
-        // Executor closure
-        executor.shutdown();
-
-        executor.awaitTermination(30, TimeUnit.SECONDS);
 
         // Datastore disposal
 //        ds.dispose();
@@ -481,7 +750,8 @@ public class UrbanGridProcess implements GSProcess {
 
     /**
      * Private method which reprojects the input Geometry in the input CRS to a Lambert-Equal Area CRS used for calculating Geometry Area and
-     * perimeter.
+     * perimeter. Areas are the same of a projection centered on the Geometry centroid, perimeters differ by a few ppm at most for the urban grid
+     * polygons (see {@link EqualAreaTransforms}).
      * 
      * @param sourceCRS Source geometry CRS.
      * @param sourceGeometry Source Geometry
@@ -491,32 +761,15 @@ public class UrbanGridProcess implements GSProcess {
      */
     private Geometry reprojectToEqualArea(CoordinateReferenceSystem sourceCRS,
             Geometry sourceGeometry) throws FactoryException, TransformException {
-        // Reproject to the Lambert Equal Area
-        // Geometry center used for centering the reprojection on the Geometry(reduces distance artifacts)
-        Point center = sourceGeometry.getCentroid();
-        // Creation of the MathTransform associated to the reprojection
-        MathTransform transPoint = CRS.findMathTransform(sourceCRS, WGS84, true);
-        Point centerRP = (Point) JTS.transform(center, transPoint);
-        // Creation of a wkt for the selected Geometry
-        String wkt = PROJ_4326.replace("%LAT0%", String.valueOf(centerRP.getY()));
-        wkt = wkt.replace("%LON0%", String.valueOf(centerRP.getX()));
-        // Parsing of the selected WKT
-        final CoordinateReferenceSystem targetCRS = CRS.parseWKT(wkt);
-        // Creation of the MathTransform associated to the reprojection
-        MathTransform trans = CRS.findMathTransform(sourceCRS, targetCRS);
-        // Geometry reprojection
-        Geometry geoPrj;
-        if (!trans.isIdentity()) {
-            geoPrj = JTS.transform(sourceGeometry, trans);
-        } else {
-            geoPrj = sourceGeometry;
-        }
-        return geoPrj;
+        // Reproject to the Lambert Equal Area centered on the Geometry (reduces distance artifacts), the transforms are cached for each
+        // centre quantized on a 0.1 degrees grid
+        return EQUAL_AREA_TRANSFORMS.reproject(sourceCRS, sourceGeometry);
     }
 
     /**
-     * Private method used for calculating index 8. This method takes 1/2 coverages in input and counts the not-0 values on a buffer for each pixel.
-     * If 2 coverages are provided the result will return the image for each coverage and their difference.
+     * Private method used for calculating index 8. This method takes 1/2 coverages in input and sums the pixel values on a square window around each pixel.
+     * If 2 coverages are provided the result will return the image for each coverage and their difference. The images are float, the window sums
+     * of the previous jai-ext Buffer implementation were double.
      * 
      * @param referenceCoverage Input reference coverage
      * @param nowCoverage Input current coverage
@@ -545,45 +798,30 @@ public class UrbanGridProcess implements GSProcess {
         } else {
             inputImage = nowCoverage.getRenderedImage();
         }
-        // ROI preparation
-        List<ROI> rois = new ArrayList<ROI>(geoms.size());
-        // ROIGeometry associated to the geometry objects
-        for (Geometry geom : geoms) {
-            rois.add(new ROIGeometry(geom));
+        // Zones where the pixels are counted
+        final Rectangle bounds = new Rectangle(inputImage.getMinX(), inputImage.getMinY(),
+                inputImage.getWidth(), inputImage.getHeight());
+        final ZoneLabelRaster zones = ZoneLabelRaster.create(bounds, geoms);
+        if (zones == null) {
+            throw new ProcessException("The Administrative areas must be polygonal");
         }
-
-        // Padding dimensions used for the buffer creation
-        int leftPad = 10;
-        int rightPad = 10;
-        int bottomPad = 10;
-        int topPad = 10;
-        // Destination No Data value
-        double destNoData = 0;
         // Final list initialization
         List<StatisticContainer> stats = new ArrayList<StatisticContainer>(1);
 
         StatisticContainer container = new StatisticContainer();
 
-        // Buffer calculation
-        RenderedOp buffered = BufferDescriptor.create(inputImage,
-                BufferDescriptor.DEFAULT_EXTENDER, leftPad, rightPad, topPad, bottomPad, rois,
-                null, destNoData, null, DataBuffer.TYPE_DOUBLE, pixelArea, hints);
-        // Selection of the first image
-        RenderedOp imageRef = BandSelectDescriptor.create(buffered, new int[] { 0 }, hints);
+        // Window sums of the reference, current and difference images, computed at once; the bands share the computed tiles so that
+        // they can be written together in a single pass
+        BandFanOut buffered = new BandFanOut(new FragmentationOpImage(inputImage, zones,
+                fragmentationRadius, pixelArea, hints));
         // Setting of the first image
-        container.setReferenceImage(imageRef);
+        container.setReferenceImage(buffered.getBand(0));
 
-        RenderedOp imageNow = null;
         // if even the current coverage exists, it is taken.
         if (buffered.getNumBands() > 1) {
-            imageNow = BandSelectDescriptor.create(buffered, new int[] { 1 }, hints);
-
-            container.setNowImage(imageNow);
-            // Calculation of the variation between current and reference images
-            RenderedOp diff = AlgebraDescriptor.create(Operator.SUBTRACT, null, null, destNoData,
-                    hints, imageNow, imageRef);
-
-            container.setDiffImage(diff);
+            container.setNowImage(buffered.getBand(1));
+            // Variation between current and reference images
+            container.setDiffImage(buffered.getBand(2));
         }
         // Storing of the result
         stats.add(container);
@@ -667,10 +905,11 @@ public class UrbanGridProcess implements GSProcess {
 
             double totalPerimeter = 0;
 
-            // Selection of the inner list
-            List<Double> areas = new ArrayList<Double>();
-
             double totalArea = 0;
+
+            double maxArea = 0;
+
+            int count = 0;
             // Cycle on each polygon
             try {
                 while (ftReader.hasNext()) {
@@ -683,8 +922,9 @@ public class UrbanGridProcess implements GSProcess {
                     if (geoPrj != null) {
                         if (area) {
                             double area = geoPrj.getArea();
-                            areas.add(area);
+                            maxArea = Math.max(maxArea, area);
                             totalArea += area;
+                            count++;
                         } else {
                             totalPerimeter += geoPrj.getLength();
                         }
@@ -710,45 +950,35 @@ public class UrbanGridProcess implements GSProcess {
             }
             // Saving results
             if (area) {
-                values.setList(areas);
                 values.setTotalArea(totalArea);
+                values.setMaxArea(maxArea);
+                values.setCount(count);
             } else {
                 values.setTotalPerimeter(totalPerimeter);
             }
-            // Countdown of the latch
-            latch.countDown();
         }
     }
 
     /**
      * Container class used for passing parameters between threads.
      */
-    class ListContainer {
-        /** List containing all the polygon areas */
-        private List<Double> list;
-
+    static class ListContainer {
         /** Sum of all the areas */
-        private Double totalArea;
+        private double totalArea;
 
-        /** Sum of all the perimeters */
-        private Double totalPerimeter;
+        /** Area of the biggest polygon */
+        private double maxArea;
 
-        ListContainer() {
-        }
+        /** Number of polygons */
+        private int count;
 
-        /** Return a sorted list of areas */
-        public List<Double> getSortedList() {
-            return list;
-        }
+        /** Sum of all the perimeters */
+        private double totalPerimeter;
 
-        /**
-         * Note: this method takes the list and sort it
-         * 
-         * @param list
-         */
-        public void setList(List<Double> list) {
-            Collections.sort(list);
-            this.list = list;
+        /** Area of the Administrative area, 0 if it must be computed from its Geometry */
+        private double adminArea;
+
+        ListContainer() {
         }
 
         public double getTotalArea() {
@@ -759,16 +989,36 @@ public class UrbanGridProcess implements GSProcess {
             this.totalArea = totalArea;
         }
 
-        public Double getTotalPerimeter() {
+        public double getMaxArea() {
+            return maxArea;
+        }
+
+        public void setMaxArea(double maxArea) {
+            this.maxArea = maxArea;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public void setCount(int count) {
+            this.count = count;
+        }
+
+        public double getTotalPerimeter() {
             return totalPerimeter;
         }
 
-        public void setTotalPerimeter(Double totalPerimeter) {
+        public void setTotalPerimeter(double totalPerimeter) {
             this.totalPerimeter = totalPerimeter;
         }
 
-        public void setTotalArea(Double totalArea) {
-            this.totalArea = totalArea;
+        public double getAdminArea() {
+            return adminArea;
+        }
+
+        public void setAdminArea(double adminArea) {
+            this.adminArea = adminArea;
         }
     }
 }
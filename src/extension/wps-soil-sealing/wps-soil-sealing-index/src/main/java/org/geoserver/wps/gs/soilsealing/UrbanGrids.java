@@ -0,0 +1,132 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.util.List;
+
+import org.geoserver.wps.gs.soilsealing.UrbanGridProcess.ListContainer;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * In memory, spatially indexed urban grid polygons of a single year, together with their equal area and perimeter. The polygons contained in
+ * an Administrative area are found with an {@link STRtree} query on its envelope followed by a {@link PreparedGeometry} containment test.
+ */
+class UrbanGrids {
+
+    /** Estimated overhead of a single polygon */
+    private static final int POLYGON_OVERHEAD = 200;
+
+    /** Estimated size of a single coordinate */
+    private static final int COORDINATE_SIZE = 48;
+
+    private final STRtree index = new STRtree();
+
+    private int count;
+
+    private long size;
+
+    /**
+     * Adds a polygon, must be called before {@link #build()}
+     *
+     * @param geometry the polygon, in the layer CRS
+     * @param area its area in square meters
+     * @param perimeter its perimeter in meters
+     */
+    void add(Geometry geometry, double area, double perimeter) {
+        index.insert(geometry.getEnvelopeInternal(), new UrbanGrid(geometry, area, perimeter));
+        count++;
+        size += estimateSize(geometry);
+    }
+
+    /**
+     * Builds the spatial index, the polygons cannot be added anymore and the aggregations can be computed concurrently
+     */
+    void build() {
+        index.build();
+    }
+
+    /**
+     * Computes the statistics of the polygons within the provided Administrative area.
+     *
+     * @param roi the Administrative area, in the layer CRS
+     * @param area <code>true</code> to compute the areas, <code>false</code> to compute the perimeters
+     * @return the statistics
+     */
+    @SuppressWarnings("unchecked")
+    ListContainer aggregate(Geometry roi, boolean area) {
+        final PreparedGeometry prepared = PreparedGeometryFactory.prepare(roi);
+        double totalArea = 0;
+        double maxArea = 0;
+        int num = 0;
+        double totalPerimeter = 0;
+        for (UrbanGrid grid : (List<UrbanGrid>) index.query(roi.getEnvelopeInternal())) {
+            if (prepared.contains(grid.geometry)) {
+                totalArea += grid.area;
+                maxArea = Math.max(maxArea, grid.area);
+                num++;
+                totalPerimeter += grid.perimeter;
+            }
+        }
+        ListContainer container = new ListContainer();
+        if (area) {
+            container.setTotalArea(totalArea);
+            container.setMaxArea(maxArea);
+            container.setCount(num);
+        } else {
+            container.setTotalPerimeter(totalPerimeter);
+        }
+        return container;
+    }
+
+    /**
+     * @return the number of polygons
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the estimated size in bytes
+     */
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the minimum estimated size in bytes of the provided number of polygons, made of closed rings of at least 4 points
+     */
+    static long estimateMinSize(int count) {
+        return count * (POLYGON_OVERHEAD + 4L * COORDINATE_SIZE);
+    }
+
+    /**
+     * Returns the estimated size in bytes of a polygon
+     */
+    static long estimateSize(Geometry geometry) {
+        return POLYGON_OVERHEAD + (long) geometry.getNumPoints() * COORDINATE_SIZE;
+    }
+
+    /**
+     * A single polygon
+     */
+    private static final class UrbanGrid {
+
+        private final Geometry geometry;
+
+        private final double area;
+
+        private final double perimeter;
+
+        UrbanGrid(Geometry geometry, double area, double perimeter) {
+            this.geometry = geometry;
+            this.area = area;
+            this.perimeter = perimeter;
+        }
+    }
+}
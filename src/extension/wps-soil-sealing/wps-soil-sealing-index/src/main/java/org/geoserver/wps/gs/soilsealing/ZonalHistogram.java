@@ -0,0 +1,112 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import it.geosolutions.jaiext.stats.Statistics;
+import it.geosolutions.jaiext.zonal.ZoneGeometry;
+
+import org.jaitools.imageutils.ROIGeometry;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Class histograms of a single zone, one for each band of the input image. Bins have unit width and start from 0, so that the bin index is the
+ * class value itself.
+ */
+public class ZonalHistogram {
+
+    private final Geometry geometry;
+
+    /** Number of pixels for each band and class */
+    private final long[][] counts;
+
+    /** Number of pixels falling inside the histogram range, for each band */
+    private final long[] numSamples;
+
+    public ZonalHistogram(Geometry geometry, int numBands, int numBins) {
+        this.geometry = geometry;
+        this.counts = new long[numBands][numBins];
+        this.numSamples = new long[numBands];
+    }
+
+    /**
+     * Creates a {@link ZonalHistogram} from the histogram statistics computed by the ZonalStats operation
+     */
+    static ZonalHistogram fromZone(ZoneGeometry zone, int numBands, int numBins) {
+        ZonalHistogram result = new ZonalHistogram(((ROIGeometry) zone.getROI()).getAsGeometry(),
+                numBands, numBins);
+        for (int b = 0; b < numBands; b++) {
+            Statistics out = zone.getStatsPerBandNoClassifierNoRange(b)[0];
+            double[] histogram = (double[]) out.getResult();
+            for (int i = 0; i < Math.min(numBins, histogram.length); i++) {
+                result.counts[b][i] = Math.round(histogram[i]);
+            }
+            result.numSamples[b] = out.getNumSamples();
+        }
+        return result;
+    }
+
+    public Geometry getGeometry() {
+        return geometry;
+    }
+
+    public int getNumBands() {
+        return counts.length;
+    }
+
+    public int getNumBins() {
+        return counts[0].length;
+    }
+
+    /**
+     * Returns the histogram of the provided band; the returned array must not be modified
+     */
+    public long[] getHistogram(int band) {
+        return counts[band];
+    }
+
+    public long getCount(int band, int value) {
+        return value >= 0 && value < counts[band].length ? counts[band][value] : 0;
+    }
+
+    public long getNumSamples(int band) {
+        return numSamples[band];
+    }
+
+    /**
+     * Adds a sample to the histogram of the provided band, ignoring values outside the histogram range
+     */
+    public void add(int band, int value) {
+        if (value >= 0 && value < counts[band].length) {
+            counts[band][value]++;
+            numSamples[band]++;
+        }
+    }
+
+    /**
+     * Adds a run of samples sharing the same value to the histogram of the provided band, ignoring values outside the histogram range
+     */
+    public void add(int band, int value, long count) {
+        if (value >= 0 && value < counts[band].length) {
+            counts[band][value] += count;
+            numSamples[band] += count;
+        }
+    }
+
+    /**
+     * Sums the content of another histogram into this one
+     */
+    public void merge(ZonalHistogram other) {
+        if (other.counts.length != counts.length || other.counts[0].length != counts[0].length) {
+            throw new IllegalArgumentException("Unable to merge histograms of different size");
+        }
+        for (int b = 0; b < counts.length; b++) {
+            for (int i = 0; i < counts[b].length; i++) {
+                counts[b][i] += other.counts[b][i];
+            }
+            numSamples[b] += other.numSamples[b];
+        }
+    }
+}
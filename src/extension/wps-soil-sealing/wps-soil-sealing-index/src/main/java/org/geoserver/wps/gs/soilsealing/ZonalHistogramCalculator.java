@@ -0,0 +1,262 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.media.jai.PlanarImage;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Single pass zonal histogram engine. All the zones are rasterized once into a {@link ZoneLabelRaster} aligned to the image grid, then the
+ * tiles of the image are visited once and each sample is added to the histogram of the zone it belongs to. The bands of each row are run-length
+ * encoded between the first and the last zone span crossing the tile, so that only the pixels of the zones are read and the runs of the same
+ * class are added as a whole after clipping them to the spans.
+ * <p>
+ * A pixel can only carry a single label, so overlapping zones are not supported: in that case {@link #compute} returns <code>null</code> and
+ * the caller should fall back to a per-zone computation.
+ * </p>
+ * <p>
+ * When {@link ClassHistogramPyramid}s of the bands are available, each zone is first decomposed in the largest pyramid cells fully inside it:
+ * their histograms are read from the pyramids and only the remaining border pixels are visited.
+ * </p>
+ */
+class ZonalHistogramCalculator {
+
+    private ZonalHistogramCalculator() {
+    }
+
+    /**
+     * Computes the class histograms of each zone.
+     *
+     * @param image input image
+     * @param bands bands to take into account
+     * @param zones zones, in raster space
+     * @param numBins number of unit width bins, starting from 0
+     * @return one histogram for each zone, in the same order, or <code>null</code> if the zones overlap or are not polygonal
+     */
+    static List<ZonalHistogram> compute(RenderedImage image, int[] bands, List<Geometry> zones,
+            int numBins) {
+        return compute(image, bands, zones, numBins, null);
+    }
+
+    /**
+     * Computes the class histograms of each zone, reading the ones of the areas fully inside the zones from the provided pyramids.
+     *
+     * @param image input image
+     * @param bands bands to take into account
+     * @param zones zones, in raster space
+     * @param numBins number of unit width bins, starting from 0
+     * @param pyramids optional pyramids of the bands, in the same order, built on the raster space of the image
+     * @return one histogram for each zone, in the same order, or <code>null</code> if the zones overlap or are not polygonal
+     */
+    static List<ZonalHistogram> compute(RenderedImage image, int[] bands, List<Geometry> zones,
+            int numBins, ClassHistogramPyramid[] pyramids) {
+        if (pyramids != null && pyramids.length != bands.length) {
+            throw new IllegalArgumentException("A pyramid is needed for each band");
+        }
+        final Rectangle bounds = new Rectangle(image.getMinX(), image.getMinY(),
+                image.getWidth(), image.getHeight());
+        final ZoneLabelRaster labels = ZoneLabelRaster.create(bounds, zones);
+        if (labels == null || labels.isOverlapping()) {
+            return null;
+        }
+
+        final List<ZonalHistogram> result = new ArrayList<ZonalHistogram>(zones.size());
+        final ZonalHistogram[] histograms = new ZonalHistogram[zones.size()];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new ZonalHistogram(zones.get(i), bands.length, numBins);
+            result.add(histograms[i]);
+        }
+
+        final Rectangle active = labels.getActiveBounds();
+        if (active.isEmpty()) {
+            return result;
+        }
+
+        // Areas read from the pyramids, not overlapping each other since the zones don't
+        final List<Rectangle> excluded = new ArrayList<Rectangle>();
+        if (pyramids != null) {
+            for (int z = 0; z < histograms.length; z++) {
+                for (ClassHistogramPyramid.Cell cell : pyramids[0].getCells(zones.get(z), bounds)) {
+                    for (int b = 0; b < bands.length; b++) {
+                        pyramids[b].add(cell, histograms[z], b);
+                    }
+                    excluded.add(cell.getBounds());
+                }
+            }
+        }
+
+        // Only the tiles intersecting the labelled area are visited
+        final int tileWidth = image.getTileWidth();
+        final int tileHeight = image.getTileHeight();
+        final int minTileX = PlanarImage.XToTileX(active.x, image.getTileGridXOffset(), tileWidth);
+        final int maxTileX = PlanarImage.XToTileX(active.x + active.width - 1,
+                image.getTileGridXOffset(), tileWidth);
+        final int minTileY = PlanarImage.YToTileY(active.y, image.getTileGridYOffset(),
+                tileHeight);
+        final int maxTileY = PlanarImage.YToTileY(active.y + active.height - 1,
+                image.getTileGridYOffset(), tileHeight);
+        final int numTilesX = maxTileX - minTileX + 1;
+
+        // Excluded areas crossing each tile
+        final List<List<Rectangle>> excludedByTile = new ArrayList<List<Rectangle>>(numTilesX
+                * (maxTileY - minTileY + 1));
+        for (int i = 0; i < numTilesX * (maxTileY - minTileY + 1); i++) {
+            excludedByTile.add(null);
+        }
+        for (Rectangle r : excluded) {
+            final Rectangle area = r.intersection(active);
+            if (area.isEmpty()) {
+                continue;
+            }
+            final int fromTileY = PlanarImage.YToTileY(area.y, image.getTileGridYOffset(),
+                    tileHeight);
+            final int toTileY = PlanarImage.YToTileY(area.y + area.height - 1,
+                    image.getTileGridYOffset(), tileHeight);
+            final int fromTileX = PlanarImage.XToTileX(area.x, image.getTileGridXOffset(),
+                    tileWidth);
+            final int toTileX = PlanarImage.XToTileX(area.x + area.width - 1,
+                    image.getTileGridXOffset(), tileWidth);
+            for (int ty = fromTileY; ty <= toTileY; ty++) {
+                for (int tx = fromTileX; tx <= toTileX; tx++) {
+                    final int index = (ty - minTileY) * numTilesX + tx - minTileX;
+                    if (excludedByTile.get(index) == null) {
+                        excludedByTile.set(index, new ArrayList<Rectangle>());
+                    }
+                    excludedByTile.get(index).add(r);
+                }
+            }
+        }
+
+        // the rows are encoded one at a time, reusing the same buffers
+        final RunLengthRaster.Row[] encoded = new RunLengthRaster.Row[bands.length];
+        for (int b = 0; b < bands.length; b++) {
+            encoded[b] = new RunLengthRaster.Row();
+        }
+        for (int ty = minTileY; ty <= maxTileY; ty++) {
+            for (int tx = minTileX; tx <= maxTileX; tx++) {
+                final Rectangle rect = new Rectangle(image.getTileGridXOffset() + tx * tileWidth,
+                        image.getTileGridYOffset() + ty * tileHeight, tileWidth, tileHeight)
+                        .intersection(active);
+                if (rect.isEmpty()) {
+                    continue;
+                }
+                List<Rectangle> skipped = excludedByTile.get((ty - minTileY) * numTilesX + tx
+                        - minTileX);
+                if (skipped == null) {
+                    skipped = Collections.emptyList();
+                } else if (isCovered(rect, skipped)) {
+                    // the whole tile has been read from the pyramids
+                    continue;
+                }
+                final int minX = rect.x;
+                final int maxX = rect.x + rect.width;
+                // The tile is requested only if some zone span crosses it
+                Raster tile = null;
+                for (int y = rect.y; y < rect.y + rect.height; y++) {
+                    final int numRuns = labels.getNumRuns(y);
+                    if (numRuns == 0) {
+                        continue;
+                    }
+                    final int[] runs = labels.getRuns(y);
+                    // Extent of the spans of the row inside the tile
+                    int rowStart = maxX;
+                    int rowEnd = minX;
+                    for (int r = 0; r < numRuns * 3; r += 3) {
+                        if (runs[r] >= maxX) {
+                            // runs are sorted by start column
+                            break;
+                        }
+                        final int start = Math.max(runs[r], minX);
+                        final int end = Math.min(runs[r + 1], maxX);
+                        if (start < end) {
+                            rowStart = Math.min(rowStart, start);
+                            rowEnd = Math.max(rowEnd, end);
+                        }
+                    }
+                    if (rowStart >= rowEnd) {
+                        continue;
+                    }
+                    if (tile == null) {
+                        tile = image.getTile(tx, ty);
+                    }
+                    for (int b = 0; b < bands.length; b++) {
+                        encoded[b].encode(tile, bands[b], rowStart, y, rowEnd - rowStart);
+                    }
+                    for (int r = 0; r < numRuns * 3; r += 3) {
+                        if (runs[r] >= maxX) {
+                            break;
+                        }
+                        final int start = Math.max(runs[r], minX);
+                        final int end = Math.min(runs[r + 1], maxX);
+                        if (start >= end) {
+                            continue;
+                        }
+                        final ZonalHistogram histogram = histograms[runs[r + 2]];
+                        for (int b = 0; b < bands.length; b++) {
+                            addRuns(encoded[b], y, start, end, histogram, b, skipped);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks if the provided non overlapping rectangles cover the whole area
+     */
+    private static boolean isCovered(Rectangle rect, List<Rectangle> rects) {
+        long covered = 0;
+        for (Rectangle r : rects) {
+            final Rectangle intersection = r.intersection(rect);
+            if (!intersection.isEmpty()) {
+                covered += (long) intersection.width * intersection.height;
+            }
+        }
+        return covered == (long) rect.width * rect.height;
+    }
+
+    /**
+     * Adds the runs of a row clipped to the span between start (inclusive) and end (exclusive), leaving out the pixels of the skipped
+     * rectangles
+     */
+    private static void addRuns(RunLengthRaster.Row encoded, int y, int start, int end,
+            ZonalHistogram histogram, int band, List<Rectangle> skipped) {
+        for (Rectangle r : skipped) {
+            if (y >= r.y && y < r.y + r.height && r.x < end && r.x + r.width > start) {
+                // the parts before and after the skipped rectangle
+                if (r.x > start) {
+                    addRuns(encoded, y, start, r.x, histogram, band, skipped);
+                }
+                if (r.x + r.width < end) {
+                    addRuns(encoded, y, r.x + r.width, end, histogram, band, skipped);
+                }
+                return;
+            }
+        }
+        addRuns(encoded, start, end, histogram, band);
+    }
+
+    /**
+     * Adds the runs of a row clipped to the span between start (inclusive) and end (exclusive)
+     */
+    private static void addRuns(RunLengthRaster.Row encoded, int start, int end,
+            ZonalHistogram histogram, int band) {
+        final int[] runs = encoded.getRuns();
+        for (int r = encoded.findRun(start); start < end; r += RunLengthRaster.RUN_SIZE) {
+            final int runEnd = Math.min(runs[r], end);
+            histogram.add(band, runs[r + 1], runEnd - start);
+            start = runEnd;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.quadtree.Quadtree;
+
+/**
+ * Coalesces the zonal scans of concurrent requests sharing the same coverage, filters and index family. The first request of a batch waits for
+ * a short window collecting the zones of the compatible requests arriving meanwhile, then runs a single scan over all of them and hands each
+ * request the histograms of its own zones; the other requests just wait for the outcome. Raster reads and pixel visits are then shared among
+ * the requests of the batch.
+ * <p>
+ * The zones of a batch never overlap, so that the scan is never pushed to the per-zone computation by the zones of another request: a zone
+ * equal to one already in the batch is computed once, while a request with a zone overlapping the batch opens a new one.
+ * </p>
+ * <p>
+ * The scan reads the coverages over the envelope of all the zones of the batch, so a request far from the batch opens a new one too: the
+ * combined envelope can cover at most {@link #getMaxAreaRatio()} times the pixels of the envelopes of the batch and of the request.
+ * </p>
+ * <p>
+ * If the shared scan fails each request of the batch runs its own scan, so that a request is never failed because of the zones of another
+ * one.
+ * </p>
+ */
+public class ZonalScanBatcher {
+
+    private static final Logger LOGGER = Logging.getLogger(ZonalScanBatcher.class);
+
+    /** Default time in milliseconds a batch waits for compatible requests */
+    public static final long DEFAULT_WINDOW = 100;
+
+    /** Default maximum number of zones of a batch */
+    public static final int DEFAULT_MAX_ZONES = 10000;
+
+    /** Default maximum ratio between the pixels of the combined envelope and the pixels of the separate ones */
+    public static final double DEFAULT_MAX_AREA_RATIO = 2;
+
+    /**
+     * Scan computing the histograms of a list of zones
+     */
+    public interface Scan {
+
+        /**
+         * @param zones the zones, in raster space
+         * @return a histogram for each zone, in the same order
+         */
+        List<ZonalHistogram> compute(List<Geometry> zones) throws Exception;
+    }
+
+    /**
+     * The requests collected for a single scan
+     */
+    private static class Batch {
+
+        private static final int NOT_FOUND = -1;
+
+        private static final int OVERLAPPING = -2;
+
+        private final List<Geometry> zones = new ArrayList<Geometry>();
+
+        /** Positions of the zones, by envelope */
+        private final Quadtree index = new Quadtree();
+
+        /** Envelope of the zones */
+        private final Envelope envelope = new Envelope();
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private int numRequests;
+
+        private List<ZonalHistogram> results;
+
+        private Throwable failure;
+
+        /**
+         * Adds the zones of a request, reusing the equal ones already in the batch.
+         *
+         * @return the position in the batch of each zone, or <code>null</code> if a zone overlaps the batch, the batch would exceed the
+         *         maximum number of zones or its envelope would grow beyond the maximum area ratio
+         */
+        private int[] join(List<Geometry> requestZones, int maxZones, double maxAreaRatio) {
+            final Envelope requestEnvelope = new Envelope();
+            for (Geometry zone : requestZones) {
+                requestEnvelope.expandToInclude(zone.getEnvelopeInternal());
+            }
+            if (!zones.isEmpty()) {
+                final Envelope combined = new Envelope(envelope);
+                combined.expandToInclude(requestEnvelope);
+                if (pixels(combined) > maxAreaRatio
+                        * (pixels(envelope) + pixels(requestEnvelope))) {
+                    return null;
+                }
+            }
+
+            final int[] positions = new int[requestZones.size()];
+            final List<Geometry> added = new ArrayList<Geometry>();
+            final Quadtree addedIndex = new Quadtree();
+            for (int i = 0; i < positions.length; i++) {
+                final Geometry zone = requestZones.get(i);
+                int position = find(zone, zones, index);
+                if (position == OVERLAPPING) {
+                    return null;
+                } else if (position == NOT_FOUND) {
+                    // zones of the same request are checked against each other too
+                    position = find(zone, added, addedIndex);
+                    if (position == OVERLAPPING) {
+                        return null;
+                    } else if (position == NOT_FOUND) {
+                        position = added.size();
+                        addedIndex.insert(zone.getEnvelopeInternal(), position);
+                        added.add(zone);
+                    }
+                    position += zones.size();
+                }
+                positions[i] = position;
+            }
+            if (zones.size() + added.size() > maxZones) {
+                return null;
+            }
+            for (Geometry zone : added) {
+                index.insert(zone.getEnvelopeInternal(), zones.size());
+                zones.add(zone);
+            }
+            envelope.expandToInclude(requestEnvelope);
+            numRequests++;
+            return positions;
+        }
+
+        /**
+         * Returns the pixels read over an envelope in raster space, counting the partial ones at the borders
+         */
+        private static double pixels(Envelope envelope) {
+            return (envelope.getWidth() + 1) * (envelope.getHeight() + 1);
+        }
+
+        /**
+         * Looks for the provided zone in a list of non overlapping zones
+         *
+         * @param index the positions of the zones in the list, by envelope
+         * @return the position of the equal zone, {@link #NOT_FOUND} or {@link #OVERLAPPING}
+         */
+        private static int find(Geometry zone, List<Geometry> list, Quadtree index) {
+            for (Object item : index.query(zone.getEnvelopeInternal())) {
+                final int position = (Integer) item;
+                final int result = check(zone, list.get(position));
+                if (result != NOT_FOUND) {
+                    return result == OVERLAPPING ? OVERLAPPING : position;
+                }
+            }
+            return NOT_FOUND;
+        }
+
+        /**
+         * @return 0 if the zones are equal, {@link #NOT_FOUND} if their interiors are disjoint, {@link #OVERLAPPING} otherwise
+         */
+        private static int check(Geometry zone, Geometry other) {
+            if (!zone.getEnvelopeInternal().intersects(other.getEnvelopeInternal())) {
+                return NOT_FOUND;
+            } else if (zone.equalsExact(other)) {
+                return 0;
+            } else if (zone.relate(other, "T********")) {
+                return OVERLAPPING;
+            }
+            return NOT_FOUND;
+        }
+    }
+
+    /** Open batches, by key */
+    private final Map<String, Batch> pending = new HashMap<String, Batch>();
+
+    private final AtomicLong scans = new AtomicLong();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private long window = DEFAULT_WINDOW;
+
+    private int maxZones = DEFAULT_MAX_ZONES;
+
+    private double maxAreaRatio = DEFAULT_MAX_AREA_RATIO;
+
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Sets the time in milliseconds a batch waits for compatible requests, 0 disables the batching
+     */
+    public void setWindow(long window) {
+        this.window = window;
+    }
+
+    public int getMaxZones() {
+        return maxZones;
+    }
+
+    public void setMaxZones(int maxZones) {
+        this.maxZones = maxZones;
+    }
+
+    public double getMaxAreaRatio() {
+        return maxAreaRatio;
+    }
+
+    /**
+     * Sets the maximum ratio between the pixels of the envelope of a batch joined by a request and the pixels of the envelopes of the batch
+     * and of the request taken separately
+     */
+    public void setMaxAreaRatio(double maxAreaRatio) {
+        this.maxAreaRatio = maxAreaRatio;
+    }
+
+    /**
+     * @return the number of scans run so far
+     */
+    public long getScans() {
+        return scans.get();
+    }
+
+    /**
+     * @return the number of requests served so far
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Computes the histograms of the provided zones, sharing the scan with the other requests with the same key.
+     *
+     * @param key identifies the requests whose zones can be computed by the same scan
+     * @param zones the zones of the request, in raster space
+     * @param scan the scan of this request, run over the zones of the whole batch if this request opens it
+     * @return a histogram for each zone, in the same order
+     * @throws Exception if the scan fails
+     */
+    public List<ZonalHistogram> compute(String key, List<Geometry> zones, Scan scan)
+            throws Exception {
+        requests.incrementAndGet();
+        if (window <= 0 || zones.size() >= maxZones) {
+            scans.incrementAndGet();
+            return scan.compute(zones);
+        }
+
+        // the zones of the request on their own, in case it opens a new batch
+        final Batch created = new Batch();
+        int[] positions = created.join(zones, maxZones, maxAreaRatio);
+        if (positions == null) {
+            // overlapping zones are computed one by one, no batch would speed them up
+            scans.incrementAndGet();
+            return scan.compute(zones);
+        }
+
+        final Batch batch;
+        final boolean leader;
+        synchronized (pending) {
+            final Batch open = pending.get(key);
+            final int[] joined = open != null ? open.join(zones, maxZones, maxAreaRatio) : null;
+            if (joined == null) {
+                // a full, overlapping or distant batch is left to its leader, the following requests join the new one
+                pending.put(key, created);
+                batch = created;
+                leader = true;
+            } else {
+                batch = open;
+                positions = joined;
+                leader = false;
+            }
+        }
+
+        if (leader) {
+            try {
+                Thread.sleep(window);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (pending) {
+                if (pending.get(key) == batch) {
+                    pending.remove(key);
+                }
+            }
+            // no request can join the batch anymore
+            scans.incrementAndGet();
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Scanning " + batch.zones.size() + " zones of " + batch.numRequests
+                        + " requests for " + key);
+            }
+            try {
+                batch.results = scan.compute(batch.zones);
+                if (batch.results == null || batch.results.size() != batch.zones.size()) {
+                    throw new IllegalStateException("The scan returned "
+                            + (batch.results == null ? 0 : batch.results.size())
+                            + " histograms for " + batch.zones.size() + " zones");
+                }
+            } catch (Throwable t) {
+                batch.failure = t;
+                if (batch.numRequests == 1) {
+                    if (t instanceof Error) {
+                        throw (Error) t;
+                    }
+                    throw (Exception) t;
+                }
+            } finally {
+                batch.done.countDown();
+            }
+        } else {
+            batch.done.await();
+        }
+
+        if (batch.failure != null) {
+            // the failure may have been caused by the zones of another request
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "Shared scan failed, scanning the request zones",
+                        batch.failure);
+            }
+            scans.incrementAndGet();
+            return scan.compute(zones);
+        }
+        final List<ZonalHistogram> result = new ArrayList<ZonalHistogram>(positions.length);
+        for (int position : positions) {
+            result.add(batch.results.get(position));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,267 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Integer label image of a list of polygonal zones, aligned to the raster grid. Each pixel whose center falls inside a zone is labelled with the
+ * index of the zone in the input list, the other pixels are labelled with {@link #NO_ZONE}. The labels are stored as runs of pixels for each
+ * row, so the memory footprint depends on the complexity of the zones rather than on the raster size.
+ * <p>
+ * The zones are rasterized once with a scanline algorithm; geometries are expected to be in raster space.
+ * </p>
+ */
+class ZoneLabelRaster {
+
+    /** Label of the pixels outside any zone */
+    static final int NO_ZONE = -1;
+
+    /** Values stored for each run: start column, end column (exclusive) and zone */
+    private static final int RUN_SIZE = 3;
+
+    private final Rectangle bounds;
+
+    /** Runs for each row, sorted by start column */
+    private final int[][] runs;
+
+    /** Number of runs for each row */
+    private final int[] numRuns;
+
+    /** Bounds of the labelled pixels */
+    private Rectangle activeBounds;
+
+    /** Whether at least one pixel belongs to more than one zone */
+    private boolean overlapping;
+
+    private ZoneLabelRaster(Rectangle bounds) {
+        this.bounds = new Rectangle(bounds);
+        this.runs = new int[bounds.height][];
+        this.numRuns = new int[bounds.height];
+    }
+
+    /**
+     * Rasterizes the zones over the provided raster bounds.
+     *
+     * @param bounds bounds of the raster
+     * @param zones zones, in raster space
+     * @return the label raster, or <code>null</code> if some zone is not polygonal
+     */
+    static ZoneLabelRaster create(Rectangle bounds, List<Geometry> zones) {
+        ZoneLabelRaster labels = new ZoneLabelRaster(bounds);
+        for (int i = 0; i < zones.size(); i++) {
+            if (!labels.rasterize(i, zones.get(i))) {
+                return null;
+            }
+        }
+        labels.sortRuns();
+        return labels;
+    }
+
+    Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    /**
+     * @return the bounds of the labelled pixels, empty if no pixel belongs to a zone
+     */
+    Rectangle getActiveBounds() {
+        return activeBounds != null ? new Rectangle(activeBounds) : new Rectangle();
+    }
+
+    boolean isOverlapping() {
+        return overlapping;
+    }
+
+    /**
+     * Returns the number of runs of the provided row
+     */
+    int getNumRuns(int y) {
+        return y < bounds.y || y >= bounds.y + bounds.height ? 0 : numRuns[y - bounds.y];
+    }
+
+    /**
+     * Returns the runs of the provided row as (start, end, zone) triplets, the end column being exclusive. Only the first
+     * {@link #getNumRuns(int)} triplets are meaningful and the returned array must not be modified.
+     */
+    int[] getRuns(int y) {
+        return runs[y - bounds.y];
+    }
+
+    /**
+     * Returns the label of a single pixel
+     */
+    int getLabel(int x, int y) {
+        final int n = getNumRuns(y);
+        if (n == 0) {
+            return NO_ZONE;
+        }
+        final int[] row = runs[y - bounds.y];
+        for (int i = 0; i < n * RUN_SIZE; i += RUN_SIZE) {
+            if (row[i] > x) {
+                break;
+            }
+            if (x < row[i + 1]) {
+                return row[i + 2];
+            }
+        }
+        return NO_ZONE;
+    }
+
+    /**
+     * Rasterizes a single zone, returns <code>false</code> if the geometry is not polygonal
+     */
+    private boolean rasterize(int zone, Geometry geometry) {
+        // collection of the non horizontal edges as (minY, maxY, x at minY, dx/dy)
+        List<double[]> edges = new ArrayList<double[]>();
+        for (int g = 0; g < geometry.getNumGeometries(); g++) {
+            Geometry part = geometry.getGeometryN(g);
+            if (part.isEmpty()) {
+                continue;
+            }
+            if (!(part instanceof Polygon)) {
+                return false;
+            }
+            Polygon polygon = (Polygon) part;
+            addEdges(polygon.getExteriorRing(), edges);
+            for (int r = 0; r < polygon.getNumInteriorRing(); r++) {
+                addEdges(polygon.getInteriorRingN(r), edges);
+            }
+        }
+        if (edges.isEmpty()) {
+            return true;
+        }
+        Collections.sort(edges, new Comparator<double[]>() {
+
+            @Override
+            public int compare(double[] e1, double[] e2) {
+                return Double.compare(e1[0], e2[0]);
+            }
+        });
+
+        // rows whose pixel centers fall inside the zone envelope
+        final Envelope envelope = geometry.getEnvelopeInternal();
+        final int rowStart = Math.max(bounds.y, (int) Math.ceil(envelope.getMinY() - 0.5));
+        final int rowEnd = Math.min(bounds.y + bounds.height,
+                (int) Math.ceil(envelope.getMaxY() - 0.5));
+        final int colMin = bounds.x;
+        final int colMax = bounds.x + bounds.width;
+
+        final List<double[]> active = new ArrayList<double[]>();
+        double[] crossings = new double[16];
+        int next = 0;
+        for (int y = rowStart; y < rowEnd; y++) {
+            final double yc = y + 0.5;
+            // update the active edges, each edge covering [minY, maxY)
+            for (int i = active.size() - 1; i >= 0; i--) {
+                if (active.get(i)[1] <= yc) {
+                    active.remove(i);
+                }
+            }
+            while (next < edges.size() && edges.get(next)[0] <= yc) {
+                double[] edge = edges.get(next++);
+                if (edge[1] > yc) {
+                    active.add(edge);
+                }
+            }
+            if (active.isEmpty()) {
+                continue;
+            }
+
+            // crossings of the row center line, filled with the even-odd rule
+            if (crossings.length < active.size()) {
+                crossings = new double[active.size() * 2];
+            }
+            int n = 0;
+            for (double[] edge : active) {
+                crossings[n++] = edge[2] + (yc - edge[0]) * edge[3];
+            }
+            Arrays.sort(crossings, 0, n);
+            for (int i = 0; i + 1 < n; i += 2) {
+                final int start = Math.max(colMin, (int) Math.ceil(crossings[i] - 0.5));
+                final int end = Math.min(colMax, (int) Math.ceil(crossings[i + 1] - 0.5));
+                if (start < end) {
+                    addRun(y, start, end, zone);
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void addEdges(LineString ring, List<double[]> edges) {
+        final int n = ring.getNumPoints();
+        Coordinate c0 = ring.getCoordinateN(0);
+        for (int i = 1; i < n; i++) {
+            Coordinate c1 = ring.getCoordinateN(i);
+            if (c0.y != c1.y) {
+                Coordinate top = c0.y < c1.y ? c0 : c1;
+                Coordinate bottom = c0.y < c1.y ? c1 : c0;
+                edges.add(new double[] { top.y, bottom.y, top.x,
+                        (bottom.x - top.x) / (bottom.y - top.y) });
+            }
+            c0 = c1;
+        }
+    }
+
+    private void addRun(int y, int start, int end, int zone) {
+        final int row = y - bounds.y;
+        int[] values = runs[row];
+        final int offset = numRuns[row] * RUN_SIZE;
+        if (values == null) {
+            values = new int[RUN_SIZE * 2];
+            runs[row] = values;
+        } else if (offset + RUN_SIZE > values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+            runs[row] = values;
+        }
+        values[offset] = start;
+        values[offset + 1] = end;
+        values[offset + 2] = zone;
+        numRuns[row]++;
+
+        Rectangle run = new Rectangle(start, y, end - start, 1);
+        activeBounds = activeBounds == null ? run : activeBounds.union(run);
+    }
+
+    /**
+     * Sorts the runs of each row by start column, detecting the overlapping zones
+     */
+    private void sortRuns() {
+        for (int row = 0; row < runs.length; row++) {
+            final int[] values = runs[row];
+            final int n = numRuns[row];
+            // insertion sort of the triplets, rows usually hold a handful of runs
+            for (int i = 1; i < n; i++) {
+                final int start = values[i * RUN_SIZE];
+                final int end = values[i * RUN_SIZE + 1];
+                final int zone = values[i * RUN_SIZE + 2];
+                int j = i - 1;
+                while (j >= 0 && values[j * RUN_SIZE] > start) {
+                    System.arraycopy(values, j * RUN_SIZE, values, (j + 1) * RUN_SIZE, RUN_SIZE);
+                    j--;
+                }
+                values[(j + 1) * RUN_SIZE] = start;
+                values[(j + 1) * RUN_SIZE + 1] = end;
+                values[(j + 1) * RUN_SIZE + 2] = zone;
+            }
+            for (int i = 1; i < n; i++) {
+                if (values[i * RUN_SIZE] < values[(i - 1) * RUN_SIZE + 1]) {
+                    overlapping = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Describes how the statistics of the leaf administrative units (municipalities) are rolled up into the requested zones. Each requested zone is
+ * either a single leaf or a parent unit (district or region) whose statistics are the sum of the ones of its leaves, so that parent units never
+ * need to be unioned nor scanned on their own.
+ * <p>
+ * The leaves are the ROIs handed to the index processes, in the same order; the populations are expected to be already summed for each
+ * requested zone.
+ * </p>
+ */
+public class ZoneRollUp {
+
+    /** Leaves of each requested zone */
+    private final List<int[]> groups = new ArrayList<int[]>();
+
+    /** Geometry of each requested zone, <code>null</code> for the zones made of a single leaf */
+    private final List<Geometry> geometries = new ArrayList<Geometry>();
+
+    /**
+     * Adds a requested zone made of a single leaf
+     *
+     * @param leaf index of the leaf ROI
+     */
+    public void addLeaf(int leaf) {
+        groups.add(new int[] { leaf });
+        geometries.add(null);
+    }
+
+    /**
+     * Adds a requested zone made of a sequence of leaves.
+     *
+     * @param geometry geometry of the parent unit, reported in the results
+     * @param firstLeaf index of the first leaf ROI
+     * @param numLeaves number of leaves
+     */
+    public void addGroup(Geometry geometry, int firstLeaf, int numLeaves) {
+        int[] leaves = new int[numLeaves];
+        for (int i = 0; i < numLeaves; i++) {
+            leaves[i] = firstLeaf + i;
+        }
+        groups.add(leaves);
+        geometries.add(geometry);
+    }
+
+    /**
+     * @return the number of requested zones
+     */
+    public int getNumZones() {
+        return groups.size();
+    }
+
+    /**
+     * @return the number of leaves referenced by the requested zones
+     */
+    public int getNumLeaves() {
+        int max = -1;
+        for (int[] leaves : groups) {
+            for (int leaf : leaves) {
+                max = Math.max(max, leaf);
+            }
+        }
+        return max + 1;
+    }
+
+    /**
+     * @return <code>true</code> if each requested zone is a single leaf, in the same order
+     */
+    public boolean isIdentity() {
+        for (int i = 0; i < groups.size(); i++) {
+            if (groups.get(i).length != 1 || groups.get(i)[0] != i || geometries.get(i) != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sums the histograms of the leaves into the histograms of the requested zones.
+     *
+     * @param leaves one histogram for each leaf ROI
+     * @return one histogram for each requested zone
+     */
+    public List<ZonalHistogram> apply(List<ZonalHistogram> leaves) {
+        if (leaves.size() < getNumLeaves()) {
+            throw new IllegalArgumentException("Expected " + getNumLeaves()
+                    + " leaf histograms, found " + leaves.size());
+        }
+        List<ZonalHistogram> result = new ArrayList<ZonalHistogram>(groups.size());
+        for (int i = 0; i < groups.size(); i++) {
+            int[] group = groups.get(i);
+            Geometry geometry = geometries.get(i);
+            if (geometry == null && group.length == 1) {
+                result.add(leaves.get(group[0]));
+                continue;
+            }
+            ZonalHistogram first = leaves.get(group[0]);
+            ZonalHistogram zone = new ZonalHistogram(geometry != null ? geometry
+                    : first.getGeometry(), first.getNumBands(), first.getNumBins());
+            for (int leaf : group) {
+                zone.merge(leaves.get(leaf));
+            }
+            result.add(zone);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,132 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.util.Collections;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.event.impl.CatalogRemoveEventImpl;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.catalog.impl.DataStoreInfoImpl;
+import org.geoserver.catalog.impl.FeatureTypeInfoImpl;
+import org.geoserver.wps.gs.soilsealing.SoilSealingAdministrativeUnit.AuType;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class AdministrativeUnitCacheTest {
+
+    private final GeometryFactory factory = new GeometryFactory();
+
+    private Catalog catalog;
+
+    private FeatureTypeInfo geoCoding;
+
+    private FeatureTypeInfo population;
+
+    private DataStoreInfoImpl populationStore;
+
+    @Before
+    public void setup() {
+        catalog = new CatalogImpl();
+        geoCoding = createFeatureType("geocoding", createStore("geoStore"));
+        populationStore = createStore("populationStore");
+        population = createFeatureType("population", populationStore);
+    }
+
+    private DataStoreInfoImpl createStore(String id) {
+        DataStoreInfoImpl store = new DataStoreInfoImpl(catalog);
+        store.setId(id);
+        return store;
+    }
+
+    private FeatureTypeInfo createFeatureType(String id, DataStoreInfoImpl store) {
+        FeatureTypeInfoImpl featureType = new FeatureTypeInfoImpl(catalog);
+        featureType.setId(id);
+        featureType.setStore(store);
+        return featureType;
+    }
+
+    private SoilSealingAdministrativeUnit createUnit(String name) {
+        Geometry square = factory.createPolygon(
+                factory.createLinearRing(new Coordinate[] { new Coordinate(0, 0),
+                        new Coordinate(1, 0), new Coordinate(1, 1), new Coordinate(0, 1),
+                        new Coordinate(0, 0) }), null);
+        return new SoilSealingAdministrativeUnit(name, "parent", AuType.MUNICIPALITY, square,
+                geoCoding, population);
+    }
+
+    @Test
+    public void testEviction() {
+        AdministrativeUnitCache cache = new AdministrativeUnitCache(catalog);
+        SoilSealingAdministrativeUnit first = createUnit("first");
+        cache.setMaxSize(first.estimateSize() * 2);
+
+        cache.put(geoCoding, population, "first_parent", first);
+        cache.put(geoCoding, population, "second_parent", createUnit("second"));
+        Assert.assertSame(first, cache.get(geoCoding, population, "first_parent"));
+        Assert.assertEquals(2, cache.getEntries());
+
+        // the least recently used entry is evicted
+        cache.put(geoCoding, population, "third_parent", createUnit("third"));
+        Assert.assertEquals(2, cache.getEntries());
+        Assert.assertNull(cache.get(geoCoding, population, "second_parent"));
+        Assert.assertSame(first, cache.get(geoCoding, population, "first_parent"));
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testReadOnly() {
+        AdministrativeUnitCache cache = new AdministrativeUnitCache(catalog);
+        SoilSealingAdministrativeUnit unit = createUnit("district");
+        unit.addSub(createUnit("first"));
+        unit.getSubs().get(0).putPopulation(Collections.singletonMap("2006", 100));
+        cache.put(geoCoding, population, "district_parent", unit);
+
+        // the units handed out cannot be changed by a request
+        SoilSealingAdministrativeUnit cached = cache.get(geoCoding, population, "district_parent");
+        try {
+            cached.getSubs().clear();
+            Assert.fail("The subs should be read only");
+        } catch (UnsupportedOperationException e) {
+            // fine
+        }
+        try {
+            cached.getSubs().get(0).getPopulation().put("2006", 0);
+            Assert.fail("The population should be read only");
+        } catch (UnsupportedOperationException e) {
+            // fine
+        }
+        Assert.assertEquals(1, cached.getSubs().size());
+        Assert.assertEquals(Integer.valueOf(100), cached.getSubs().get(0).getPopulation()
+                .get("2006"));
+    }
+
+    @Test
+    public void testInvalidation() {
+        AdministrativeUnitCache cache = new AdministrativeUnitCache(catalog);
+        cache.put(geoCoding, population, "first_parent", createUnit("first"));
+        Assert.assertEquals(1, cache.getEntries());
+
+        // changes to unrelated objects are ignored
+        CatalogRemoveEventImpl event = new CatalogRemoveEventImpl();
+        event.setSource(createStore("anotherStore"));
+        cache.handleRemoveEvent(event);
+        Assert.assertEquals(1, cache.getEntries());
+
+        // the removal of the population store drops the entry
+        event = new CatalogRemoveEventImpl();
+        event.setSource(populationStore);
+        cache.handleRemoveEvent(event);
+        Assert.assertEquals(0, cache.getEntries());
+        Assert.assertEquals(0, cache.getSize());
+    }
+}
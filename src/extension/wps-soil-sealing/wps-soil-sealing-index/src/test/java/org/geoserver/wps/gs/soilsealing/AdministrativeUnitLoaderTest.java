@@ -0,0 +1,248 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.catalog.impl.DataStoreInfoImpl;
+import org.geoserver.catalog.impl.FeatureTypeInfoImpl;
+import org.geoserver.wps.gs.soilsealing.SoilSealingAdministrativeUnit.AuType;
+import org.geotools.data.DataAccess;
+import org.geotools.data.FeatureReader;
+import org.geotools.data.Query;
+import org.geotools.data.Transaction;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.Feature;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.util.ProgressListener;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+
+public class AdministrativeUnitLoaderTest {
+
+    /** Districts of the region, making the children of a level exceed a filter chunk */
+    private static final int DISTRICTS = AdministrativeUnitLoader.MAX_FILTER_SIZE + 20;
+
+    private static final int MUNICIPALITIES_PER_DISTRICT = 2;
+
+    private final GeometryFactory factory = new GeometryFactory();
+
+    private CountingDataStore geoCodingStore;
+
+    private CountingDataStore populationStore;
+
+    private FeatureTypeInfoImpl geoCoding;
+
+    private FeatureTypeInfoImpl population;
+
+    /**
+     * Memory store counting the queries
+     */
+    private static class CountingDataStore extends MemoryDataStore {
+
+        private int queries;
+
+        @Override
+        public FeatureReader<SimpleFeatureType, SimpleFeature> getFeatureReader(Query query,
+                Transaction tx) throws IOException {
+            queries++;
+            return super.getFeatureReader(query, tx);
+        }
+    }
+
+    @Before
+    public void setup() throws Exception {
+        Catalog catalog = new CatalogImpl();
+
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName("geocoding");
+        tb.add("the_geom", Polygon.class);
+        tb.add("name", String.class);
+        tb.add("parent", String.class);
+        tb.add("type", Integer.class);
+        final SimpleFeatureType unitType = tb.buildFeatureType();
+        geoCodingStore = new CountingDataStore();
+        geoCodingStore.createSchema(unitType);
+        geoCoding = createFeatureType(catalog, geoCodingStore, unitType);
+
+        tb = new SimpleFeatureTypeBuilder();
+        tb.setName("population");
+        tb.add("au_name", String.class);
+        tb.add("a_2006", Integer.class);
+        tb.add("a_2009", Integer.class);
+        final SimpleFeatureType populationType = tb.buildFeatureType();
+        populationStore = new CountingDataStore();
+        populationStore.createSchema(populationType);
+        population = createFeatureType(catalog, populationStore, populationType);
+
+        // a region, its districts and their municipalities, the last one without population
+        addUnit(unitType, "R", "ITALY", AuType.REGION);
+        for (int d = 0; d < DISTRICTS; d++) {
+            addUnit(unitType, "D" + d, "R", AuType.DISTRICT);
+            for (int m = 0; m < MUNICIPALITIES_PER_DISTRICT; m++) {
+                String name = "M" + d + "x" + m;
+                addUnit(unitType, name, "D" + d, AuType.MUNICIPALITY);
+                if (d < DISTRICTS - 1 || m < MUNICIPALITIES_PER_DISTRICT - 1) {
+                    populationStore.addFeature(SimpleFeatureBuilder.build(populationType,
+                            new Object[] { name, d * 10 + m, d * 20 + m }, null));
+                }
+            }
+        }
+    }
+
+    @After
+    public void dispose() {
+        geoCodingStore.dispose();
+        populationStore.dispose();
+    }
+
+    private FeatureTypeInfoImpl createFeatureType(Catalog catalog,
+            final MemoryDataStore dataStore, final SimpleFeatureType schema) {
+        DataStoreInfoImpl store = new DataStoreInfoImpl(catalog) {
+
+            @Override
+            public DataAccess<? extends FeatureType, ? extends Feature> getDataStore(
+                    ProgressListener listener) throws IOException {
+                return dataStore;
+            }
+        };
+        FeatureTypeInfoImpl featureType = new FeatureTypeInfoImpl(catalog) {
+
+            @Override
+            public FeatureType getFeatureType() throws IOException {
+                return schema;
+            }
+        };
+        featureType.setName(schema.getTypeName());
+        featureType.setNativeName(schema.getTypeName());
+        featureType.setStore(store);
+        return featureType;
+    }
+
+    private void addUnit(SimpleFeatureType unitType, String name, String parent, AuType type) {
+        Polygon square = factory.createPolygon(
+                factory.createLinearRing(new Coordinate[] { new Coordinate(0, 0),
+                        new Coordinate(1, 0), new Coordinate(1, 1), new Coordinate(0, 1),
+                        new Coordinate(0, 0) }), null);
+        geoCodingStore.addFeature(SimpleFeatureBuilder.build(unitType, new Object[] { square,
+                name, parent, type.getValue() }, null));
+    }
+
+    private AdministrativeUnitLoader createLoader() {
+        return new AdministrativeUnitLoader(geoCoding, population, null);
+    }
+
+    @Test
+    public void testTree() throws Exception {
+        List<SoilSealingAdministrativeUnit> units = createLoader().load(
+                Collections.singletonList("R_ITALY"));
+        Assert.assertEquals(1, units.size());
+        SoilSealingAdministrativeUnit region = units.get(0);
+        Assert.assertEquals("R", region.getName());
+        Assert.assertEquals(AuType.REGION, region.getType());
+
+        // each level is complete, across the filter chunks
+        Assert.assertEquals(DISTRICTS, region.getSubs().size());
+        boolean[] found = new boolean[DISTRICTS];
+        for (SoilSealingAdministrativeUnit district : region.getSubs()) {
+            Assert.assertEquals(AuType.DISTRICT, district.getType());
+            Assert.assertEquals("R", district.getParent());
+            int d = Integer.parseInt(district.getName().substring(1));
+            Assert.assertFalse(found[d]);
+            found[d] = true;
+            Assert.assertEquals(MUNICIPALITIES_PER_DISTRICT, district.getSubs().size());
+            for (SoilSealingAdministrativeUnit municipality : district.getSubs()) {
+                Assert.assertEquals(AuType.MUNICIPALITY, municipality.getType());
+                Assert.assertEquals(district.getName(), municipality.getParent());
+                Assert.assertTrue(municipality.getSubs().isEmpty());
+                int m = Integer.parseInt(municipality.getName().split("x")[1]);
+                if (d == DISTRICTS - 1 && m == MUNICIPALITIES_PER_DISTRICT - 1) {
+                    Assert.assertTrue(municipality.getPopulation().isEmpty());
+                } else {
+                    Assert.assertEquals(Integer.valueOf(d * 10 + m), municipality
+                            .getPopulation().get("2006"));
+                    Assert.assertEquals(Integer.valueOf(d * 20 + m), municipality
+                            .getPopulation().get("2009"));
+                }
+            }
+        }
+
+        // one query for the region, one for the districts, two for the municipalities
+        Assert.assertEquals(4, geoCodingStore.queries);
+        // the populations of all the municipalities in chunks
+        int municipalities = DISTRICTS * MUNICIPALITIES_PER_DISTRICT;
+        Assert.assertEquals(
+                (municipalities + AdministrativeUnitLoader.MAX_FILTER_SIZE - 1)
+                        / AdministrativeUnitLoader.MAX_FILTER_SIZE, populationStore.queries);
+    }
+
+    @Test
+    public void testMixedLevels() throws Exception {
+        List<SoilSealingAdministrativeUnit> units = createLoader().load(
+                Arrays.asList("D3_R", "M7x1_D7", "D3_R"));
+        Assert.assertEquals(3, units.size());
+
+        // a unit requested twice is loaded once
+        Assert.assertSame(units.get(0), units.get(2));
+        Assert.assertEquals(MUNICIPALITIES_PER_DISTRICT, units.get(0).getSubs().size());
+        for (SoilSealingAdministrativeUnit municipality : units.get(0).getSubs()) {
+            Assert.assertEquals("D3", municipality.getParent());
+            Assert.assertEquals(2, municipality.getPopulation().size());
+        }
+
+        SoilSealingAdministrativeUnit municipality = units.get(1);
+        Assert.assertEquals(AuType.MUNICIPALITY, municipality.getType());
+        Assert.assertEquals(Integer.valueOf(71), municipality.getPopulation().get("2006"));
+        Assert.assertEquals(Integer.valueOf(141), municipality.getPopulation().get("2009"));
+    }
+
+    @Test
+    public void testManyUnits() throws Exception {
+        // the requested units alone exceed a filter chunk
+        String[] aus = new String[DISTRICTS];
+        for (int d = 0; d < DISTRICTS; d++) {
+            aus[d] = "M" + d + "x0_D" + d;
+        }
+        List<SoilSealingAdministrativeUnit> units = createLoader().load(Arrays.asList(aus));
+        Assert.assertEquals(DISTRICTS, units.size());
+        for (int d = 0; d < DISTRICTS; d++) {
+            Assert.assertEquals("M" + d + "x0", units.get(d).getName());
+            Assert.assertEquals(Integer.valueOf(d * 10), units.get(d).getPopulation().get("2006"));
+        }
+        Assert.assertEquals(2, geoCodingStore.queries);
+        Assert.assertEquals(2, populationStore.queries);
+    }
+
+    @Test
+    public void testNotFound() throws Exception {
+        try {
+            createLoader().load(Arrays.asList("D3_R", "nowhere_R"));
+            Assert.fail("The unit should not be found");
+        } catch (IOException e) {
+            // fine
+        }
+        try {
+            createLoader().load(Collections.singletonList("invalid"));
+            Assert.fail("The unit name should be invalid");
+        } catch (IOException e) {
+            // fine
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.Rectangle;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.io.File;
+import java.io.IOException;
+
+import javax.media.jai.TiledImage;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.event.impl.CatalogPostModifyEventImpl;
+import org.geoserver.catalog.event.impl.CatalogRemoveEventImpl;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.catalog.impl.CoverageInfoImpl;
+import org.geoserver.catalog.impl.CoverageStoreInfoImpl;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClassHistogramPyramidCacheTest {
+
+    private static final int SIZE = 128;
+
+    private final Rectangle bounds = new Rectangle(0, 0, SIZE, SIZE);
+
+    private CoverageStoreInfoImpl store;
+
+    private CoverageInfoImpl coverage;
+
+    private File file;
+
+    private TiledImage image;
+
+    @Before
+    public void setup() throws IOException {
+        Catalog catalog = new CatalogImpl();
+        store = new CoverageStoreInfoImpl(catalog);
+        store.setId("store");
+        coverage = new CoverageInfoImpl(catalog);
+        coverage.setId("coverage");
+        coverage.setStore(store);
+
+        SampleModel sm = new ComponentSampleModel(DataBuffer.TYPE_BYTE, SIZE, SIZE, 1, SIZE,
+                new int[] { 0 });
+        image = new TiledImage(sm, 32, 32);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                image.setSample(x, y, 0, (x / 10 + y / 7) % 6);
+            }
+        }
+        file = File.createTempFile("clchist", ".idx");
+        ClassHistogramPyramid.build(file, bounds, 16, image, 0);
+    }
+
+    @After
+    public void dispose() {
+        image.dispose();
+        file.delete();
+    }
+
+    @Test
+    public void testHit() {
+        ClassHistogramPyramidCache cache = new ClassHistogramPyramidCache(null);
+        ClassHistogramPyramid pyramid = cache.open(coverage, file, bounds);
+        Assert.assertNotNull(pyramid);
+        Assert.assertSame(pyramid, cache.open(coverage, file, bounds));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.getEntries());
+        Assert.assertEquals(pyramid.getSize(), cache.getSize());
+
+        // a different grid does not match the cached pyramid
+        Assert.assertNull(cache.open(coverage, file, new Rectangle(0, 0, 10, 10)));
+    }
+
+    @Test
+    public void testFileChange() throws IOException {
+        ClassHistogramPyramidCache cache = new ClassHistogramPyramidCache(null);
+        ClassHistogramPyramid pyramid = cache.open(coverage, file, bounds);
+
+        // the pyramid is rebuilt
+        ClassHistogramPyramid.build(file, bounds, 32, image, 0);
+        Assert.assertTrue(file.setLastModified(file.lastModified() + 2000));
+        ClassHistogramPyramid rebuilt = cache.open(coverage, file, bounds);
+        Assert.assertNotSame(pyramid, rebuilt);
+        Assert.assertEquals(32, rebuilt.getCellSize());
+        Assert.assertEquals(1, cache.getEntries());
+
+        // an explicit invalidation
+        cache.invalidate(file);
+        Assert.assertEquals(0, cache.getEntries());
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testMaxSize() {
+        ClassHistogramPyramidCache cache = new ClassHistogramPyramidCache(null);
+        ClassHistogramPyramid pyramid = cache.open(coverage, file, bounds);
+
+        // a smaller bound evicts it, and a pyramid larger than the bound is read but not kept
+        cache.setMaxSize(pyramid.getSize() - 1);
+        Assert.assertEquals(0, cache.getEntries());
+        ClassHistogramPyramid reread = cache.open(coverage, file, bounds);
+        Assert.assertNotNull(reread);
+        Assert.assertNotSame(pyramid, reread);
+        Assert.assertEquals(0, cache.getEntries());
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testCatalogEvents() {
+        ClassHistogramPyramidCache cache = new ClassHistogramPyramidCache(null);
+        cache.open(coverage, file, bounds);
+
+        // the modification of the coverage
+        CatalogPostModifyEventImpl modify = new CatalogPostModifyEventImpl();
+        modify.setSource(coverage);
+        cache.handlePostModifyEvent(modify);
+        Assert.assertEquals(0, cache.getEntries());
+
+        // the removal of the store
+        cache.open(coverage, file, bounds);
+        Assert.assertEquals(1, cache.getEntries());
+        CatalogRemoveEventImpl remove = new CatalogRemoveEventImpl();
+        remove.setSource(store);
+        cache.handleRemoveEvent(remove);
+        Assert.assertEquals(0, cache.getEntries());
+        Assert.assertEquals(0, cache.getSize());
+
+        // a reload of the catalog
+        cache.open(coverage, file, bounds);
+        cache.reloaded();
+        Assert.assertEquals(0, cache.getEntries());
+    }
+}
@@ -0,0 +1,189 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.Rectangle;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.media.jai.TiledImage;
+
+import org.geoserver.wps.gs.soilsealing.ConnectedComponentLabeler.ZoneComponents;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class ConnectedComponentLabelerTest {
+
+    public static final int DEF_H = 128;
+
+    public static final int DEF_W = 128;
+
+    public static final int DEF_TILE_H = 16;
+
+    public static final int DEF_TILE_W = 16;
+
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    private static TiledImage image;
+
+    private static TiledImage blobs;
+
+    @BeforeClass
+    public static void setup() {
+        SampleModel sm = new ComponentSampleModel(DataBuffer.TYPE_BYTE, DEF_W, DEF_H, 1, DEF_W,
+                new int[] { 0 });
+        image = new TiledImage(sm, DEF_TILE_W, DEF_TILE_H);
+        blobs = new TiledImage(sm, DEF_TILE_W, DEF_TILE_H);
+        // blobs of various shapes crossing the tile boundaries, including U shapes merged late
+        for (int y = 0; y < DEF_H; y++) {
+            for (int x = 0; x < DEF_W; x++) {
+                boolean impervious = ((x / 5 + y / 3) % 4 == 0) || (x % 23 == 0 && y > 10)
+                        || (y % 29 == 0 && x < 100);
+                image.setSample(x, y, 0, impervious ? 1 : 0);
+                // isolated squares, some of them across the tile boundaries, and a bar crossing several strips
+                impervious = (x % 7 < 3 && y % 7 < 3) || (x == 45 && y > 4 && y < 100);
+                blobs.setSample(x, y, 0, impervious ? 1 : 0);
+            }
+        }
+    }
+
+    @AfterClass
+    public static void dispose() {
+        image.dispose();
+        blobs.dispose();
+    }
+
+    private static Geometry polygon(double... ordinates) {
+        Coordinate[] coordinates = new Coordinate[ordinates.length / 2 + 1];
+        for (int i = 0; i < ordinates.length / 2; i++) {
+            coordinates[i] = new Coordinate(ordinates[i * 2], ordinates[i * 2 + 1]);
+        }
+        coordinates[coordinates.length - 1] = coordinates[0];
+        return FACTORY.createPolygon(FACTORY.createLinearRing(coordinates), null);
+    }
+
+    @Test
+    public void testAdjacentZones() {
+        List<Geometry> zones = new ArrayList<Geometry>();
+        zones.add(polygon(2.3, 3.1, 70.2, 3.1, 2.3, 120.4));
+        zones.add(polygon(70.2, 3.1, 2.3, 120.4, 127, 127, 127, 3.1));
+        checkZones(zones);
+    }
+
+    @Test
+    public void testOverlappingZones() {
+        List<Geometry> zones = new ArrayList<Geometry>();
+        zones.add(polygon(0, 0, 100, 0, 100, 100, 0, 100));
+        zones.add(polygon(50.5, 20.5, 128, 20.5, 128, 128, 50.5, 128));
+        checkZones(image, zones);
+    }
+
+    @Test
+    public void testCrossingComponents() {
+        // the whole image, the components touching the image boundary are kept
+        List<Geometry> zones = new ArrayList<Geometry>();
+        zones.add(polygon(0, 0, DEF_W, 0, DEF_W, DEF_H, 0, DEF_H));
+        ZoneComponents[] results = checkZones(blobs, zones);
+        Assert.assertEquals(19 * 19 - 14 + 1, results[0].getCount());
+
+        // the squares and the bar cut by the zone boundaries are dropped
+        zones.clear();
+        zones.add(polygon(8.2, 2.2, 60.2, 2.2, 60.2, 90.2, 8.2, 90.2));
+        zones.add(polygon(60.2, 2.2, 120.2, 2.2, 120.2, 90.2, 60.2, 90.2));
+        results = checkZones(blobs, zones);
+        Assert.assertTrue(results[0].getCount() > 0);
+        Assert.assertTrue(results[1].getCount() > 0);
+        Assert.assertEquals(9, results[0].getMaxPixels());
+
+        // a zone holding the whole bar and the squares it touches
+        zones.clear();
+        zones.add(polygon(40.2, 3.2, 50.2, 3.2, 50.2, 110.2, 40.2, 110.2));
+        results = checkZones(blobs, zones);
+        Assert.assertEquals(95 + 14 * 9, results[0].getMaxPixels());
+    }
+
+    private ZoneComponents[] checkZones(TiledImage image, List<Geometry> zones) {
+        ZoneComponents[] results = ConnectedComponentLabeler.compute(image, 0, 1, zones);
+        Assert.assertNotNull(results);
+        Assert.assertEquals(zones.size(), results.length);
+        for (int i = 0; i < zones.size(); i++) {
+            ZoneLabelRaster labels = ZoneLabelRaster.create(new Rectangle(0, 0, DEF_W, DEF_H),
+                    zones.subList(i, i + 1));
+            long[] expected = floodFill(image, labels);
+            Assert.assertEquals(expected[0], results[i].getZonePixels());
+            Assert.assertEquals(expected[1], results[i].getPixels());
+            Assert.assertEquals(expected[2], results[i].getMaxPixels());
+            Assert.assertEquals(expected[3], results[i].getCount());
+            Assert.assertEquals(expected[4], results[i].getEdges());
+        }
+        return results;
+    }
+
+    /**
+     * Brute force labeling of a single zone, returns the zone pixels, the component pixels, the biggest component, the number of components
+     * and the boundary edges of the components not continuing outside the zone
+     */
+    private static long[] floodFill(TiledImage image, ZoneLabelRaster labels) {
+        boolean[][] inside = new boolean[DEF_H][DEF_W];
+        long zonePixels = 0;
+        for (int y = 0; y < DEF_H; y++) {
+            for (int x = 0; x < DEF_W; x++) {
+                if (labels.getLabel(x, y) == 0) {
+                    zonePixels++;
+                    inside[y][x] = image.getSample(x, y, 0) == 1;
+                }
+            }
+        }
+        boolean[][] visited = new boolean[DEF_H][DEF_W];
+        long pixels = 0, max = 0, count = 0, edges = 0;
+        int[][] neighbours = { { 1, 0 }, { -1, 0 }, { 0, 1 }, { 0, -1 } };
+        for (int y = 0; y < DEF_H; y++) {
+            for (int x = 0; x < DEF_W; x++) {
+                if (!inside[y][x] || visited[y][x]) {
+                    continue;
+                }
+                long size = 0, sides = 0;
+                boolean open = false;
+                LinkedList<int[]> queue = new LinkedList<int[]>();
+                queue.add(new int[] { x, y });
+                visited[y][x] = true;
+                while (!queue.isEmpty()) {
+                    int[] p = queue.removeFirst();
+                    size++;
+                    for (int[] n : neighbours) {
+                        int nx = p[0] + n[0];
+                        int ny = p[1] + n[1];
+                        if (nx < 0 || ny < 0 || nx >= DEF_W || ny >= DEF_H) {
+                            sides++;
+                        } else if (!inside[ny][nx]) {
+                            sides++;
+                            open |= image.getSample(nx, ny, 0) == 1;
+                        } else if (!visited[ny][nx]) {
+                            visited[ny][nx] = true;
+                            queue.add(new int[] { nx, ny });
+                        }
+                    }
+                }
+                if (!open) {
+                    count++;
+                    pixels += size;
+                    edges += sides;
+                    max = Math.max(max, size);
+                }
+            }
+        }
+        return new long[] { zonePixels, pixels, max, count, edges };
+    }
+}
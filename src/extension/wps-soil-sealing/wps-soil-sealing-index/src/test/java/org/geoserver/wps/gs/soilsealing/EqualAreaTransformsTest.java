@@ -0,0 +1,84 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.CRS;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+public class EqualAreaTransformsTest {
+
+    /** Maximum relative difference of the areas */
+    private static final double AREA_TOLERANCE = 1e-9;
+
+    /** Maximum relative difference of the perimeters */
+    private static final double PERIMETER_TOLERANCE = 2e-6;
+
+    private static CoordinateReferenceSystem utm32N;
+
+    private static CoordinateReferenceSystem wgs84;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        utm32N = CRS.decode("EPSG:32632");
+        wgs84 = CRS.decode("EPSG:4326");
+    }
+
+    @Test
+    public void testSameMeasures() throws Exception {
+        EqualAreaTransforms transforms = new EqualAreaTransforms(wgs84);
+        for (double offset = 0; offset < 20000; offset += 2500) {
+            Geometry polygon = createPolygon(500000 + offset, 5000000 - offset, 1200, 700);
+            Geometry expected = reprojectOnCentroid(polygon);
+            Geometry cached = transforms.reproject(utm32N, polygon);
+
+            Assert.assertEquals(1, cached.getArea() / expected.getArea(), AREA_TOLERANCE);
+            Assert.assertEquals(1, cached.getLength() / expected.getLength(),
+                    PERIMETER_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void testTransformReuse() throws Exception {
+        EqualAreaTransforms transforms = new EqualAreaTransforms(wgs84);
+        // polygons closer than the centre resolution share the same transform
+        transforms.reproject(utm32N, createPolygon(500000, 5000000, 100, 100));
+        transforms.reproject(utm32N, createPolygon(500100, 5000100, 100, 100));
+        transforms.reproject(utm32N, createPolygon(500200, 5000000, 50, 50));
+        Assert.assertEquals(1, transforms.size());
+
+        transforms.reproject(utm32N, createPolygon(600000, 5100000, 100, 100));
+        Assert.assertEquals(2, transforms.size());
+    }
+
+    private static Geometry createPolygon(double x, double y, double width, double height) {
+        GeometryFactory factory = new GeometryFactory();
+        return factory.createPolygon(
+                factory.createLinearRing(new Coordinate[] { new Coordinate(x, y),
+                        new Coordinate(x + width, y), new Coordinate(x + width, y + height),
+                        new Coordinate(x, y + height), new Coordinate(x, y) }), null);
+    }
+
+    /**
+     * Reprojection on a projection centered on the geometry centroid, as computed for each geometry before the transforms were cached
+     */
+    private static Geometry reprojectOnCentroid(Geometry sourceGeometry) throws Exception {
+        MathTransform transPoint = CRS.findMathTransform(utm32N, wgs84, true);
+        Point centerRP = (Point) JTS.transform(sourceGeometry.getCentroid(), transPoint);
+        String wkt = UrbanGridProcess.PROJ_4326.replace("%LAT0%", String.valueOf(centerRP.getY()));
+        wkt = wkt.replace("%LON0%", String.valueOf(centerRP.getX()));
+        MathTransform trans = CRS.findMathTransform(utm32N, CRS.parseWKT(wkt));
+        return JTS.transform(sourceGeometry, trans);
+    }
+}
@@ -0,0 +1,171 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import it.geosolutions.jaiext.buffer.BufferDescriptor;
+import it.geosolutions.jaiext.buffer.BufferRIF;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.media.jai.JAI;
+import javax.media.jai.ROI;
+import javax.media.jai.RenderedOp;
+import javax.media.jai.TiledImage;
+
+import org.geotools.image.jai.Registry;
+import org.jaitools.imageutils.ROIGeometry;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class FragmentationOpImageTest {
+
+    private static final int DEF_W = 96;
+
+    private static final int DEF_H = 80;
+
+    private static final int DEF_TILE = 32;
+
+    private static final double PIXEL_AREA = 0.04;
+
+    private static final double DELTA = 1E-4;
+
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    private static TiledImage image;
+
+    private static ZoneLabelRaster zones;
+
+    static {
+        // the reference implementation of the index 8
+        try {
+            Registry.registerRIF(JAI.getDefaultInstance(), new BufferDescriptor(), new BufferRIF(),
+                    UrbanGridProcess.JAI_EXT_PRODUCT);
+        } catch (Throwable e) {
+            // swallow exception in case the op has already been registered.
+        }
+    }
+
+    @BeforeClass
+    public static void setup() {
+        SampleModel sm = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, DEF_TILE,
+                DEF_TILE, 2, DEF_TILE * 2, new int[] { 0, 1 });
+        image = new TiledImage(0, 0, DEF_W, DEF_H, 0, 0, sm, null);
+        for (int y = 0; y < DEF_H; y++) {
+            for (int x = 0; x < DEF_W; x++) {
+                image.setSample(x, y, 0, (x / 3 + y / 2) % 3 == 0 ? 1 : 0);
+                image.setSample(x, y, 1, (x * 7 + y * 3) % 5 < 2 ? 1 : 0);
+            }
+        }
+        List<Geometry> geoms = new ArrayList<Geometry>();
+        geoms.add(polygon(3.2, 2.5, 60.1, 4.3, 40.7, 70.2));
+        geoms.add(polygon(50.5, 10.5, 96, 10.5, 96, 80, 50.5, 80));
+        zones = ZoneLabelRaster.create(new Rectangle(0, 0, DEF_W, DEF_H), geoms);
+    }
+
+    @AfterClass
+    public static void dispose() {
+        image.dispose();
+    }
+
+    private static Geometry polygon(double... ordinates) {
+        Coordinate[] coordinates = new Coordinate[ordinates.length / 2 + 1];
+        for (int i = 0; i < ordinates.length / 2; i++) {
+            coordinates[i] = new Coordinate(ordinates[i * 2], ordinates[i * 2 + 1]);
+        }
+        coordinates[coordinates.length - 1] = coordinates[0];
+        return FACTORY.createPolygon(FACTORY.createLinearRing(coordinates), null);
+    }
+
+    @Test
+    public void testWindowSums() {
+        for (int radius : new int[] { 0, 1, 10, 40 }) {
+            FragmentationOpImage result = new FragmentationOpImage(image, zones, radius,
+                    PIXEL_AREA, null);
+            Assert.assertEquals(3, result.getSampleModel().getNumBands());
+            Assert.assertEquals(DataBuffer.TYPE_FLOAT, result.getSampleModel().getDataType());
+            Raster data = result.getData();
+            for (int y = 0; y < DEF_H; y++) {
+                for (int x = 0; x < DEF_W; x++) {
+                    double ref = windowSum(x, y, 0, radius) * PIXEL_AREA;
+                    double now = windowSum(x, y, 1, radius) * PIXEL_AREA;
+                    Assert.assertEquals(ref, data.getSampleDouble(x, y, 0), DELTA);
+                    Assert.assertEquals(now, data.getSampleDouble(x, y, 1), DELTA);
+                    Assert.assertEquals(now - ref, data.getSampleDouble(x, y, 2), DELTA);
+                }
+            }
+            result.dispose();
+        }
+    }
+
+    @Test
+    public void testBuffer() {
+        // a small single band image, with zones crossing the tile borders and touching the image edges
+        final int width = 40;
+        final int height = 30;
+        final int radius = 3;
+        SampleModel sm = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, 16, 16, 1, 16,
+                new int[] { 0 });
+        TiledImage source = new TiledImage(0, 0, width, height, 0, 0, sm, null);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                source.setSample(x, y, 0, (x * 5 + y * 3) % 7 < 3 ? 1 : 0);
+            }
+        }
+        List<Geometry> geoms = new ArrayList<Geometry>();
+        geoms.add(polygon(0, 0, 17.5, 0, 13.2, 15.7, 0, 20.4));
+        geoms.add(polygon(20.3, 2.6, 40, 2.6, 40, 30, 24.8, 30, 18.1, 16.5));
+        List<ROI> rois = new ArrayList<ROI>(geoms.size());
+        for (Geometry geom : geoms) {
+            rois.add(new ROIGeometry(geom));
+        }
+
+        RenderedOp expected = BufferDescriptor.create(source, BufferDescriptor.DEFAULT_EXTENDER,
+                radius, radius, radius, radius, rois, null, 0, null, DataBuffer.TYPE_DOUBLE,
+                PIXEL_AREA, null);
+        FragmentationOpImage result = new FragmentationOpImage(source, ZoneLabelRaster.create(
+                new Rectangle(0, 0, width, height), geoms), radius, PIXEL_AREA, null);
+        Raster expectedData = expected.getData();
+        Raster data = result.getData();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                Assert.assertEquals("Pixel " + x + "," + y, expectedData.getSampleDouble(x, y, 0),
+                        data.getSampleDouble(x, y, 0), DELTA);
+            }
+        }
+        result.dispose();
+        expected.dispose();
+        source.dispose();
+    }
+
+    /**
+     * Brute force sum of the pixels inside the zones on the window of a pixel, 0 if the pixel is outside the zones
+     */
+    private static int windowSum(int x, int y, int band, int radius) {
+        if (zones.getLabel(x, y) < 0) {
+            return 0;
+        }
+        int sum = 0;
+        for (int j = Math.max(0, y - radius); j <= Math.min(DEF_H - 1, y + radius); j++) {
+            for (int i = Math.max(0, x - radius); i <= Math.min(DEF_W - 1, x + radius); i++) {
+                if (zones.getLabel(i, j) >= 0) {
+                    sum += image.getSample(i, j, band);
+                }
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,64 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.geoserver.wps.gs.SoilSealingExecutor;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class GeometryUnionsTest {
+
+    private static final double DELTA = 1E-9;
+
+    private final GeometryFactory factory = new GeometryFactory();
+
+    private Geometry createSquare(double x, double y, double size) {
+        return factory.createPolygon(
+                factory.createLinearRing(new Coordinate[] { new Coordinate(x, y),
+                        new Coordinate(x + size, y), new Coordinate(x + size, y + size),
+                        new Coordinate(x, y + size), new Coordinate(x, y) }), null);
+    }
+
+    @Test
+    public void testParallelUnion() {
+        // a 20x20 grid of adjacent squares, with a hole in the middle
+        List<Geometry> geometries = new ArrayList<Geometry>();
+        for (int x = 0; x < 20; x++) {
+            for (int y = 0; y < 20; y++) {
+                if (x != 10 || y != 10) {
+                    geometries.add(createSquare(x, y, 1));
+                }
+            }
+        }
+        SoilSealingExecutor executor = new SoilSealingExecutor(4);
+        try {
+            Geometry union = GeometryUnions.union(geometries, executor);
+            Assert.assertEquals(1, union.getNumGeometries());
+            Assert.assertEquals(399, union.getArea(), DELTA);
+            Assert.assertTrue(union.equalsTopo(GeometryUnions.union(geometries, null)));
+        } finally {
+            executor.destroy();
+        }
+    }
+
+    @Test
+    public void testSmallUnion() {
+        List<Geometry> geometries = new ArrayList<Geometry>();
+        geometries.add(createSquare(0, 0, 2));
+        geometries.add(createSquare(1, 1, 2));
+        Geometry union = GeometryUnions.union(geometries, null);
+        Assert.assertEquals(7, union.getArea(), DELTA);
+
+        Assert.assertNull(GeometryUnions.union(Collections.<Geometry> emptyList(), null));
+    }
+}
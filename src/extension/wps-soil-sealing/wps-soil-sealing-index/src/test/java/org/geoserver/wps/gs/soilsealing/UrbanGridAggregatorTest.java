@@ -0,0 +1,91 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.geoserver.wps.gs.soilsealing.UrbanGridProcess.ListContainer;
+import org.geotools.data.postgis.PostGISDialect;
+import org.geotools.data.postgis.PostGISPSDialect;
+import org.geotools.feature.AttributeTypeBuilder;
+import org.geotools.jdbc.JDBCDataStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mockrunner.mock.jdbc.MockResultSet;
+
+public class UrbanGridAggregatorTest {
+
+    @Test
+    public void testSupported() {
+        Assert.assertFalse(UrbanGridAggregator.isSupported(new Object()));
+        Assert.assertFalse(UrbanGridAggregator.isSupported(new JDBCDataStore()));
+
+        JDBCDataStore store = new JDBCDataStore();
+        PostGISDialect dialect = new PostGISDialect(store);
+        store.setSQLDialect(dialect);
+        Assert.assertTrue(UrbanGridAggregator.isSupported(store));
+
+        JDBCDataStore psStore = new JDBCDataStore();
+        psStore.setSQLDialect(new PostGISPSDialect(psStore, dialect));
+        Assert.assertTrue(UrbanGridAggregator.isSupported(psStore));
+    }
+
+    @Test
+    public void testQuery() {
+        PostGISDialect dialect = new PostGISDialect(new JDBCDataStore());
+        String geography = "geography(ST_Transform(u.\"the_geom\", 4326))";
+        String expected = "SELECT r.roi_id, u.\"imp_year\", SUM(ST_Area(" + geography
+                + ")), MAX(ST_Area(" + geography + ")), COUNT(*), SUM(ST_Perimeter("
+                + geography + ")) FROM (VALUES (0, ST_GeomFromWKB(?, ?)), "
+                + "(1, ST_GeomFromWKB(?, ?))) AS r(roi_id, geom) "
+                + "JOIN \"public\".\"urban_grids\" u ON ST_Within(u.\"the_geom\", r.geom) "
+                + "WHERE u.\"imp_year\" IN (?, ?) GROUP BY r.roi_id, u.\"imp_year\"";
+        Assert.assertEquals(expected, UrbanGridAggregator.buildQuery(dialect, "public",
+                "urban_grids", "the_geom", 2, 2));
+
+        // without a schema the table name is not qualified
+        Assert.assertTrue(UrbanGridAggregator.buildQuery(dialect, null, "urban_grids",
+                "the_geom", 1, 1).contains(" JOIN \"urban_grids\" u ON "));
+    }
+
+    @Test
+    public void testCollect() throws Exception {
+        MockResultSet rs = new MockResultSet("urbanGrids");
+        rs.addRow(new Object[] { 0, 2006, 10d, 6d, 2, 20d });
+        rs.addRow(new Object[] { 1, 2009, 5d, 5d, 1, 9d });
+        rs.addRow(new Object[] { 1, 2006, 3d, 3d, 1, 7d });
+        // a year that has not been requested
+        rs.addRow(new Object[] { 0, 2012, 1d, 1d, 1, 4d });
+
+        AttributeTypeBuilder builder = new AttributeTypeBuilder();
+        builder.setBinding(Integer.class);
+        Map<String, List<ListContainer>> result = UrbanGridAggregator.collect(rs, 2,
+                Arrays.asList("2006", "2009"), builder.buildDescriptor(
+                        UrbanGridAggregator.YEAR_ATTRIBUTE));
+
+        Assert.assertEquals(2, result.size());
+        List<ListContainer> stats2006 = result.get("2006");
+        Assert.assertEquals(2, stats2006.size());
+        checkStats(stats2006.get(0), 10, 6, 2, 20);
+        checkStats(stats2006.get(1), 3, 3, 1, 7);
+
+        // the ROI without urban grids in a year gets empty statistics
+        List<ListContainer> stats2009 = result.get("2009");
+        Assert.assertEquals(2, stats2009.size());
+        checkStats(stats2009.get(0), 0, 0, 0, 0);
+        checkStats(stats2009.get(1), 5, 5, 1, 9);
+    }
+
+    private void checkStats(ListContainer stats, double totalArea, double maxArea, int count,
+            double totalPerimeter) {
+        Assert.assertEquals(totalArea, stats.getTotalArea(), 0);
+        Assert.assertEquals(maxArea, stats.getMaxArea(), 0);
+        Assert.assertEquals(count, stats.getCount());
+        Assert.assertEquals(totalPerimeter, stats.getTotalPerimeter(), 0);
+    }
+}
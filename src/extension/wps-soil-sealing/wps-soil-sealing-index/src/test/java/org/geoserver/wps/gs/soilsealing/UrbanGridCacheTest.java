@@ -0,0 +1,130 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.event.impl.CatalogRemoveEventImpl;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.catalog.impl.DataStoreInfoImpl;
+import org.geoserver.catalog.impl.FeatureTypeInfoImpl;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class UrbanGridCacheTest {
+
+    private final GeometryFactory factory = new GeometryFactory();
+
+    private Catalog catalog;
+
+    private DataStoreInfoImpl store;
+
+    private FeatureTypeInfo urbanGrids;
+
+    @Before
+    public void setup() {
+        catalog = new CatalogImpl();
+        store = new DataStoreInfoImpl(catalog);
+        store.setId("store");
+        FeatureTypeInfoImpl featureType = new FeatureTypeInfoImpl(catalog);
+        featureType.setId("urbanGrids");
+        featureType.setStore(store);
+        urbanGrids = featureType;
+    }
+
+    private UrbanGrids createGrids() {
+        UrbanGrids grids = new UrbanGrids();
+        grids.add(factory.createPolygon(
+                factory.createLinearRing(new Coordinate[] { new Coordinate(0, 0),
+                        new Coordinate(1, 0), new Coordinate(1, 1), new Coordinate(0, 1),
+                        new Coordinate(0, 0) }), null), 1, 4);
+        grids.build();
+        return grids;
+    }
+
+    @Test
+    public void testOversized() {
+        UrbanGridCache cache = new UrbanGridCache(catalog);
+        Assert.assertFalse(cache.isOversized(urbanGrids, "2006"));
+
+        // the year is remembered without holding any urban grid
+        cache.putOversized(urbanGrids, "2006");
+        Assert.assertTrue(cache.isOversized(urbanGrids, "2006"));
+        Assert.assertFalse(cache.isOversized(urbanGrids, "2009"));
+        Assert.assertEquals(0, cache.getEntries());
+        Assert.assertEquals(0, cache.getSize());
+
+        // a new maximum size may fit it
+        cache.setMaxSize(UrbanGridCache.DEFAULT_MAX_SIZE * 2);
+        Assert.assertFalse(cache.isOversized(urbanGrids, "2006"));
+    }
+
+    @Test
+    public void testInvalidation() {
+        UrbanGridCache cache = new UrbanGridCache(catalog);
+        UrbanGrids grids = createGrids();
+        cache.put(urbanGrids, "2006", grids);
+        cache.putOversized(urbanGrids, "2009");
+        Assert.assertSame(grids, cache.get(urbanGrids, "2006"));
+
+        // the removal of the store drops the entries and the oversized years
+        CatalogRemoveEventImpl event = new CatalogRemoveEventImpl();
+        event.setSource(store);
+        cache.handleRemoveEvent(event);
+        Assert.assertEquals(0, cache.getEntries());
+        Assert.assertNull(cache.get(urbanGrids, "2006"));
+        Assert.assertFalse(cache.isOversized(urbanGrids, "2009"));
+    }
+
+    @Test
+    public void testLoadLock() {
+        UrbanGridCache cache = new UrbanGridCache(catalog);
+        Object lock = cache.acquireLoadLock(urbanGrids, "2006");
+        Assert.assertSame(lock, cache.acquireLoadLock(urbanGrids, "2006"));
+        Assert.assertNotSame(lock, cache.acquireLoadLock(urbanGrids, "2009"));
+        Assert.assertEquals(2, cache.getLoadLocks());
+
+        // a lock is dropped once all its loads are done
+        cache.releaseLoadLock(urbanGrids, "2009");
+        cache.releaseLoadLock(urbanGrids, "2006");
+        Assert.assertEquals(1, cache.getLoadLocks());
+        Assert.assertSame(lock, cache.acquireLoadLock(urbanGrids, "2006"));
+        cache.releaseLoadLock(urbanGrids, "2006");
+        cache.releaseLoadLock(urbanGrids, "2006");
+        Assert.assertEquals(0, cache.getLoadLocks());
+    }
+
+    @Test
+    public void testTimeToLive() throws Exception {
+        UrbanGridCache cache = new UrbanGridCache(catalog);
+        cache.setTimeToLive(50);
+        cache.put(urbanGrids, "2006", createGrids());
+        cache.putOversized(urbanGrids, "2009");
+        Assert.assertNotNull(cache.get(urbanGrids, "2006"));
+        Assert.assertTrue(cache.isOversized(urbanGrids, "2009"));
+
+        // the urban grids may have been changed in the database meanwhile
+        Thread.sleep(100);
+        Assert.assertNull(cache.get(urbanGrids, "2006"));
+        Assert.assertFalse(cache.isOversized(urbanGrids, "2009"));
+        Assert.assertEquals(0, cache.getEntries());
+        Assert.assertEquals(0, cache.getSize());
+
+        // no expiration
+        cache.setTimeToLive(0);
+        cache.put(urbanGrids, "2006", createGrids());
+        Thread.sleep(100);
+        Assert.assertNotNull(cache.get(urbanGrids, "2006"));
+    }
+
+    @Test
+    public void testMinSize() {
+        Assert.assertTrue(UrbanGrids.estimateMinSize(1) <= createGrids().getSize());
+    }
+}
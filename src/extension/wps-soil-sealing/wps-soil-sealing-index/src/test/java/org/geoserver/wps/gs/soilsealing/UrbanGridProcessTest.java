@@ -4,9 +4,11 @@
  */
 package org.geoserver.wps.gs.soilsealing;
 
+import it.geosolutions.jaiext.algebra.AlgebraCRIF;
 import it.geosolutions.jaiext.algebra.AlgebraDescriptor;
 import it.geosolutions.jaiext.algebra.AlgebraDescriptor.Operator;
 import it.geosolutions.jaiext.buffer.BufferDescriptor;
+import it.geosolutions.jaiext.buffer.BufferRIF;
 import it.geosolutions.jaiext.stats.Statistics;
 import it.geosolutions.jaiext.stats.Statistics.StatsType;
 import it.geosolutions.jaiext.stats.StatisticsDescriptor;
@@ -23,10 +25,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.media.jai.JAI;
 import javax.media.jai.ROI;
 import javax.media.jai.RenderedOp;
 import javax.media.jai.TiledImage;
 
+import org.geoserver.wps.gs.SoilSealingExecutor;
 import org.geoserver.wps.gs.soilsealing.CLCProcess.StatisticContainer;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridCoverageFactory;
@@ -40,6 +44,7 @@ import org.geotools.feature.FeatureIterator;
 import org.geotools.geometry.Envelope2D;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.image.jai.Registry;
 import org.geotools.process.ProcessException;
 import org.geotools.referencing.CRS;
 import org.geotools.test.TestData;
@@ -90,6 +95,9 @@ public class UrbanGridProcessTest {
 
     private static UrbanGridProcess urbanProcess;
 
+    /** Executor of the processes, configured in the application context when running inside GeoServer */
+    private static SoilSealingExecutor executor;
+
     private static String pathToRefShp = "src/test/resources/org/geoserver/wps/gs/soilsealing/test-data/referenceCov.shp";
 
     private static String pathToCurShp = "src/test/resources/org/geoserver/wps/gs/soilsealing/test-data/nowCov.shp";
@@ -122,6 +130,18 @@ public class UrbanGridProcessTest {
 
     public static final int DEFAULT_POP_NOW = 20;
 
+    static {
+        // the expected index 8 images are computed with the jai-ext Buffer and Algebra operations
+        try {
+            Registry.registerRIF(JAI.getDefaultInstance(), new BufferDescriptor(), new BufferRIF(),
+                    UrbanGridProcess.JAI_EXT_PRODUCT);
+            Registry.registerRIF(JAI.getDefaultInstance(), new AlgebraDescriptor(),
+                    new AlgebraCRIF(), UrbanGridProcess.JAI_EXT_PRODUCT);
+        } catch (Throwable e) {
+            // swallow exception in case the op has already been registered.
+        }
+    }
+
     @BeforeClass
     public static void initialSetup() throws NoSuchAuthorityCodeException, FactoryException,
             IOException {
@@ -172,7 +192,9 @@ public class UrbanGridProcessTest {
         poly2.setSRID(32632);
         geomListUtm32N.add(poly2);
 
+        executor = new SoilSealingExecutor(4);
         urbanProcess = new UrbanGridProcess(pathToRefShp, pathToCurShp);
+        urbanProcess.setExecutor(executor);
 
         // HAConverter
         converter = UrbanGridProcess.HACONVERTER;
@@ -547,8 +569,10 @@ public class UrbanGridProcessTest {
     
     @Test(expected = ProcessException.class)
     public void testNoDatastore(){
-        List<StatisticContainer> results = new UrbanGridProcess(refShp, curShp).execute(referenceCoverage, null, 5,
-                null, 1d, geomListUtm32N, null, null);
+        UrbanGridProcess process = new UrbanGridProcess(refShp, curShp);
+        process.setExecutor(executor);
+        List<StatisticContainer> results = process.execute(referenceCoverage, null, 5, null, 1d,
+                geomListUtm32N, null, null);
     }
     
     
@@ -556,6 +580,7 @@ public class UrbanGridProcessTest {
     public static void finalDispose() {
         referenceCoverage.dispose(true);
         nowCoverage.dispose(true);
+        executor.destroy();
     }
 
     public static GridCoverage2D createImage(boolean reference) {
@@ -0,0 +1,69 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import org.geoserver.wps.gs.soilsealing.UrbanGridProcess.ListContainer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class UrbanGridsTest {
+
+    private static final double DELTA = 1E-9;
+
+    private final GeometryFactory factory = new GeometryFactory();
+
+    @Test
+    public void testAggregateWithin() {
+        UrbanGrids grids = new UrbanGrids();
+        // a 10x10 grid of unit squares, the area of each one depends on its position
+        for (int x = 0; x < 10; x++) {
+            for (int y = 0; y < 10; y++) {
+                grids.add(createSquare(x + 0.25, y + 0.25, 0.5), x + y, 2 * (x + y));
+            }
+        }
+        grids.build();
+        Assert.assertEquals(100, grids.getCount());
+
+        // only the squares fully within the roi are taken into account
+        Geometry roi = createSquare(0, 0, 3.5);
+        ListContainer areas = grids.aggregate(roi, true);
+        double expected = 0;
+        double max = 0;
+        for (int x = 0; x < 3; x++) {
+            for (int y = 0; y < 3; y++) {
+                expected += x + y;
+                max = Math.max(max, x + y);
+            }
+        }
+        Assert.assertEquals(9, areas.getCount());
+        Assert.assertEquals(expected, areas.getTotalArea(), DELTA);
+        Assert.assertEquals(max, areas.getMaxArea(), DELTA);
+
+        ListContainer perimeters = grids.aggregate(roi, false);
+        Assert.assertEquals(2 * expected, perimeters.getTotalPerimeter(), DELTA);
+    }
+
+    @Test
+    public void testAggregateEmpty() {
+        UrbanGrids grids = new UrbanGrids();
+        grids.add(createSquare(0, 0, 1), 1, 4);
+        grids.build();
+
+        ListContainer areas = grids.aggregate(createSquare(5, 5, 1), true);
+        Assert.assertEquals(0, areas.getCount());
+        Assert.assertEquals(0, areas.getTotalArea(), DELTA);
+    }
+
+    private Geometry createSquare(double x, double y, double size) {
+        return factory.createPolygon(
+                factory.createLinearRing(new Coordinate[] { new Coordinate(x, y),
+                        new Coordinate(x + size, y), new Coordinate(x + size, y + size),
+                        new Coordinate(x, y + size), new Coordinate(x, y) }), null);
+    }
+}
@@ -0,0 +1,152 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.Rectangle;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.media.jai.TiledImage;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+public class ZonalHistogramCalculatorTest {
+
+    public static final int DEF_H = 256;
+
+    public static final int DEF_W = 256;
+
+    public static final int DEF_TILE_H = 32;
+
+    public static final int DEF_TILE_W = 32;
+
+    public static final int NUM_BINS = 255;
+
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    private static TiledImage image;
+
+    @BeforeClass
+    public static void setup() {
+        SampleModel sm = new ComponentSampleModel(DataBuffer.TYPE_BYTE, DEF_W, DEF_H, 2,
+                DEF_W * 2, new int[] { 0, 1 });
+        image = new TiledImage(sm, DEF_TILE_W, DEF_TILE_H);
+        for (int y = 0; y < DEF_H; y++) {
+            for (int x = 0; x < DEF_W; x++) {
+                image.setSample(x, y, 0, (x / 10 + y / 7) % 6);
+                image.setSample(x, y, 1, (x * y) % 9);
+            }
+        }
+    }
+
+    @AfterClass
+    public static void dispose() {
+        image.dispose();
+    }
+
+    private static Geometry polygon(double... ordinates) {
+        Coordinate[] coordinates = new Coordinate[ordinates.length / 2 + 1];
+        for (int i = 0; i < ordinates.length / 2; i++) {
+            coordinates[i] = new Coordinate(ordinates[i * 2], ordinates[i * 2 + 1]);
+        }
+        coordinates[coordinates.length - 1] = coordinates[0];
+        return FACTORY.createPolygon(FACTORY.createLinearRing(coordinates), null);
+    }
+
+    private static List<Geometry> createAdjacentZones() {
+        List<Geometry> zones = new ArrayList<Geometry>();
+        // a triangle and a polygon with a hole sharing its edge, not aligned to the tiles
+        zones.add(polygon(3.2, 5.7, 140.4, 5.7, 3.2, 201.3));
+        Geometry square = polygon(140.4, 5.7, 3.2, 201.3, 250, 250, 250, 10);
+        zones.add(square.difference(polygon(150, 100, 200, 100, 200, 150, 150, 150)));
+        // a zone partially outside the image
+        zones.add(polygon(-20, 230, 100, 230, 100, 300, -20, 300));
+        return zones;
+    }
+
+    @Test
+    public void testAdjacentZones() {
+        List<Geometry> zones = createAdjacentZones();
+        checkHistograms(zones, ZonalHistogramCalculator.compute(image, new int[] { 0, 1 }, zones,
+                NUM_BINS));
+    }
+
+    @Test
+    public void testPyramids() throws Exception {
+        Rectangle bounds = new Rectangle(0, 0, DEF_W, DEF_H);
+        ClassHistogramPyramid[] pyramids = new ClassHistogramPyramid[2];
+        for (int b = 0; b < 2; b++) {
+            File file = File.createTempFile("clchist", ".idx");
+            try {
+                ClassHistogramPyramid.build(file, bounds, 16, image, b);
+                Assert.assertNull(ClassHistogramPyramid.open(file, new Rectangle(0, 0, 10, 10)));
+                pyramids[b] = ClassHistogramPyramid.open(file, bounds);
+                Assert.assertNotNull(pyramids[b]);
+                Assert.assertTrue(pyramids[b].getSize() > 0);
+            } finally {
+                file.delete();
+            }
+        }
+        Assert.assertEquals(5, pyramids[0].getNumLevels());
+
+        // the large zones are mostly read from the upper levels
+        List<Geometry> zones = createAdjacentZones();
+        List<ClassHistogramPyramid.Cell> cells = pyramids[0].getCells(zones.get(1), bounds);
+        Assert.assertFalse(cells.isEmpty());
+        boolean upper = false;
+        for (ClassHistogramPyramid.Cell cell : cells) {
+            upper |= cell.getLevel() > 0;
+        }
+        Assert.assertTrue(upper);
+
+        checkHistograms(zones, ZonalHistogramCalculator.compute(image, new int[] { 0, 1 }, zones,
+                NUM_BINS, pyramids));
+    }
+
+    private void checkHistograms(List<Geometry> zones, List<ZonalHistogram> results) {
+        Assert.assertNotNull(results);
+        Assert.assertEquals(zones.size(), results.size());
+
+        for (int z = 0; z < zones.size(); z++) {
+            ZonalHistogram expected = new ZonalHistogram(zones.get(z), 2, NUM_BINS);
+            for (int y = 0; y < DEF_H; y++) {
+                for (int x = 0; x < DEF_W; x++) {
+                    Point center = FACTORY.createPoint(new Coordinate(x + 0.5, y + 0.5));
+                    if (zones.get(z).contains(center)) {
+                        expected.add(0, image.getSample(x, y, 0));
+                        expected.add(1, image.getSample(x, y, 1));
+                    }
+                }
+            }
+            ZonalHistogram result = results.get(z);
+            Assert.assertSame(zones.get(z), result.getGeometry());
+            for (int b = 0; b < 2; b++) {
+                Assert.assertEquals(expected.getNumSamples(b), result.getNumSamples(b));
+                Assert.assertArrayEquals(expected.getHistogram(b), result.getHistogram(b));
+            }
+        }
+    }
+
+    @Test
+    public void testOverlappingZones() {
+        List<Geometry> zones = new ArrayList<Geometry>();
+        zones.add(polygon(0, 0, 128, 0, 128, 128, 0, 128));
+        zones.add(polygon(64, 64, 192, 64, 192, 192, 64, 192));
+        Assert.assertNull(ZonalHistogramCalculator.compute(image, new int[] { 0 }, zones,
+                NUM_BINS));
+    }
+}
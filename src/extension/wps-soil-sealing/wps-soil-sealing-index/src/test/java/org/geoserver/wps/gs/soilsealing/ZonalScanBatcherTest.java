@@ -0,0 +1,292 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class ZonalScanBatcherTest {
+
+    private final GeometryFactory factory = new GeometryFactory();
+
+    /**
+     * Scan returning a histogram per zone, referencing the zone itself
+     */
+    private static class CountingScan implements ZonalScanBatcher.Scan {
+
+        private final AtomicInteger scans = new AtomicInteger();
+
+        /** The zones of each scan */
+        private final List<List<Geometry>> scanned = Collections
+                .synchronizedList(new ArrayList<List<Geometry>>());
+
+        /** Zone making the scan fail, if any */
+        private Geometry bad;
+
+        /** Whether the failure is an error rather than an exception */
+        private boolean error;
+
+        @Override
+        public List<ZonalHistogram> compute(List<Geometry> zones) throws Exception {
+            scans.incrementAndGet();
+            scanned.add(new ArrayList<Geometry>(zones));
+            for (Geometry zone : zones) {
+                if (bad != null && bad.equalsExact(zone)) {
+                    if (error) {
+                        throw new Error("Bad zone");
+                    }
+                    throw new Exception("Bad zone");
+                }
+            }
+            List<ZonalHistogram> results = new ArrayList<ZonalHistogram>();
+            for (Geometry zone : zones) {
+                results.add(new ZonalHistogram(zone, 1, 1));
+            }
+            return results;
+        }
+    }
+
+    private List<Geometry> createZones(int request, int numZones) {
+        List<Geometry> zones = new ArrayList<Geometry>();
+        for (int i = 0; i < numZones; i++) {
+            zones.add(factory.createPoint(new Coordinate(request, i)));
+        }
+        return zones;
+    }
+
+    private Geometry square(double x, double y, double size) {
+        return factory.createPolygon(
+                factory.createLinearRing(new Coordinate[] { new Coordinate(x, y),
+                        new Coordinate(x + size, y), new Coordinate(x + size, y + size),
+                        new Coordinate(x, y + size), new Coordinate(x, y) }), null);
+    }
+
+    /**
+     * Runs the requests concurrently
+     */
+    private List<Future<List<ZonalHistogram>>> submit(final ZonalScanBatcher batcher,
+            final CountingScan scan, List<List<Geometry>> zones, ExecutorService executor) {
+        List<Future<List<ZonalHistogram>>> futures = new ArrayList<Future<List<ZonalHistogram>>>();
+        for (final List<Geometry> requestZones : zones) {
+            futures.add(executor.submit(new Callable<List<ZonalHistogram>>() {
+
+                @Override
+                public List<ZonalHistogram> call() throws Exception {
+                    return batcher.compute("key", requestZones, scan);
+                }
+            }));
+        }
+        return futures;
+    }
+
+    private void checkResults(List<Geometry> zones, List<ZonalHistogram> results) {
+        Assert.assertEquals(zones.size(), results.size());
+        for (int i = 0; i < results.size(); i++) {
+            Assert.assertTrue(zones.get(i).equalsExact(results.get(i).getGeometry()));
+        }
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        final ZonalScanBatcher batcher = new ZonalScanBatcher();
+        batcher.setWindow(1000);
+        final CountingScan scan = new CountingScan();
+        final int numRequests = 4;
+
+        ExecutorService executor = Executors.newFixedThreadPool(numRequests);
+        try {
+            List<List<Geometry>> zones = new ArrayList<List<Geometry>>();
+            List<Future<List<ZonalHistogram>>> futures = new ArrayList<Future<List<ZonalHistogram>>>();
+            for (int r = 0; r < numRequests; r++) {
+                final List<Geometry> requestZones = createZones(r, r + 1);
+                zones.add(requestZones);
+                futures.add(executor.submit(new Callable<List<ZonalHistogram>>() {
+
+                    @Override
+                    public List<ZonalHistogram> call() throws Exception {
+                        return batcher.compute("key", requestZones, scan);
+                    }
+                }));
+            }
+
+            // each request gets the histograms of its own zones
+            for (int r = 0; r < numRequests; r++) {
+                List<ZonalHistogram> results = futures.get(r).get();
+                Assert.assertEquals(zones.get(r).size(), results.size());
+                for (int i = 0; i < results.size(); i++) {
+                    Assert.assertSame(zones.get(r).get(i), results.get(i).getGeometry());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(numRequests, batcher.getRequests());
+        Assert.assertEquals(scan.scans.get(), batcher.getScans());
+        Assert.assertTrue(batcher.getScans() < numRequests);
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        ZonalScanBatcher batcher = new ZonalScanBatcher();
+        batcher.setWindow(0);
+        CountingScan scan = new CountingScan();
+        List<Geometry> zones = createZones(0, 3);
+
+        List<ZonalHistogram> results = batcher.compute("key", zones, scan);
+        Assert.assertEquals(3, results.size());
+        Assert.assertEquals(1, scan.scans.get());
+        Assert.assertEquals(1, batcher.getScans());
+    }
+
+    @Test
+    public void testDuplicateZones() throws Exception {
+        ZonalScanBatcher batcher = new ZonalScanBatcher();
+        batcher.setWindow(1000);
+        CountingScan scan = new CountingScan();
+        // the same municipality requested twice, with geometries built separately
+        List<List<Geometry>> zones = new ArrayList<List<Geometry>>();
+        zones.add(Arrays.asList(square(0, 0, 10), square(10, 0, 10)));
+        zones.add(Arrays.asList(square(0, 0, 10), square(20, 0, 10)));
+
+        ExecutorService executor = Executors.newFixedThreadPool(zones.size());
+        try {
+            List<Future<List<ZonalHistogram>>> futures = submit(batcher, scan, zones, executor);
+            for (int r = 0; r < zones.size(); r++) {
+                checkResults(zones.get(r), futures.get(r).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(1, scan.scans.get());
+        Assert.assertEquals(3, scan.scanned.get(0).size());
+    }
+
+    @Test
+    public void testOverlappingRequests() throws Exception {
+        ZonalScanBatcher batcher = new ZonalScanBatcher();
+        batcher.setWindow(500);
+        CountingScan scan = new CountingScan();
+        // a region, one of its municipalities and an unrelated one
+        List<List<Geometry>> zones = new ArrayList<List<Geometry>>();
+        zones.add(Arrays.asList(square(0, 0, 20)));
+        zones.add(Arrays.asList(square(5, 5, 5)));
+        zones.add(Arrays.asList(square(40, 40, 5)));
+
+        ExecutorService executor = Executors.newFixedThreadPool(zones.size());
+        try {
+            List<Future<List<ZonalHistogram>>> futures = submit(batcher, scan, zones, executor);
+            for (int r = 0; r < zones.size(); r++) {
+                checkResults(zones.get(r), futures.get(r).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // the overlapping zones are never scanned together
+        Assert.assertTrue(scan.scans.get() >= 2);
+        for (List<Geometry> scanned : scan.scanned) {
+            for (int i = 0; i < scanned.size(); i++) {
+                for (int j = i + 1; j < scanned.size(); j++) {
+                    Assert.assertFalse(scanned.get(i).relate(scanned.get(j), "T********"));
+                }
+            }
+        }
+
+        // a request whose own zones overlap is not batched
+        Assert.assertEquals(2, batcher.compute("key",
+                Arrays.asList(square(0, 0, 20), square(5, 5, 5)), scan).size());
+    }
+
+    @Test
+    public void testDistantRequests() throws Exception {
+        ZonalScanBatcher batcher = new ZonalScanBatcher();
+        batcher.setWindow(500);
+        CountingScan scan = new CountingScan();
+        // two neighbouring municipalities and a far away one
+        List<List<Geometry>> zones = new ArrayList<List<Geometry>>();
+        zones.add(Arrays.asList(square(0, 0, 10)));
+        zones.add(Arrays.asList(square(10, 0, 10)));
+        zones.add(Arrays.asList(square(1000, 1000, 10)));
+
+        ExecutorService executor = Executors.newFixedThreadPool(zones.size());
+        try {
+            List<Future<List<ZonalHistogram>>> futures = submit(batcher, scan, zones, executor);
+            for (int r = 0; r < zones.size(); r++) {
+                checkResults(zones.get(r), futures.get(r).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // the far zone is never scanned with the others
+        Assert.assertTrue(scan.scans.get() >= 2);
+        for (List<Geometry> scanned : scan.scanned) {
+            for (Geometry zone : scanned) {
+                if (zone.getEnvelopeInternal().getMinX() >= 1000) {
+                    Assert.assertEquals(1, scanned.size());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        checkFailure(false);
+    }
+
+    @Test
+    public void testError() throws Exception {
+        checkFailure(true);
+    }
+
+    /**
+     * Checks that only the request with the bad zone fails, whatever request runs the shared scan
+     */
+    private void checkFailure(boolean error) throws Exception {
+        ZonalScanBatcher batcher = new ZonalScanBatcher();
+        batcher.setWindow(500);
+        CountingScan scan = new CountingScan();
+        scan.bad = square(10, 0, 10);
+        scan.error = error;
+        List<List<Geometry>> zones = new ArrayList<List<Geometry>>();
+        for (int r = 0; r < 4; r++) {
+            zones.add(Arrays.asList(square(r * 10, 0, 10)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(zones.size());
+        try {
+            List<Future<List<ZonalHistogram>>> futures = submit(batcher, scan, zones, executor);
+            for (int r = 0; r < zones.size(); r++) {
+                if (r == 1) {
+                    try {
+                        futures.get(r).get();
+                        Assert.fail("The request with the bad zone should fail");
+                    } catch (ExecutionException e) {
+                        Assert.assertEquals("Bad zone", e.getCause().getMessage());
+                    }
+                } else {
+                    checkResults(zones.get(r), futures.get(r).get());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/* Copyright (c) 2001 - 2014 OpenPlans - www.openplans.org. All rights
+ * reserved. This code is licensed under the GPL 2.0 license, available at the
+ * root application directory.
+ */
+package org.geoserver.wps.gs.soilsealing;
+
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.media.jai.TiledImage;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class ZoneRollUpTest {
+
+    public static final int DEF_H = 256;
+
+    public static final int DEF_W = 256;
+
+    public static final int DEF_TILE_H = 32;
+
+    public static final int DEF_TILE_W = 32;
+
+    public static final int NUM_BINS = 255;
+
+    private static final int[] BANDS = new int[] { 0, 1 };
+
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    private static TiledImage image;
+
+    /** Municipalities: top left, top right, bottom left, bottom right */
+    private static List<Geometry> leaves;
+
+    @BeforeClass
+    public static void setup() {
+        SampleModel sm = new ComponentSampleModel(DataBuffer.TYPE_BYTE, DEF_W, DEF_H, 2,
+                DEF_W * 2, new int[] { 0, 1 });
+        image = new TiledImage(sm, DEF_TILE_W, DEF_TILE_H);
+        for (int y = 0; y < DEF_H; y++) {
+            for (int x = 0; x < DEF_W; x++) {
+                image.setSample(x, y, 0, (x / 10 + y / 7) % 6);
+                image.setSample(x, y, 1, (x * y) % 9);
+            }
+        }
+
+        // the vertical border zigzags below the pixel size, like a detailed administrative border
+        List<Coordinate> border = new ArrayList<Coordinate>();
+        for (int i = 0; i <= 24; i++) {
+            border.add(new Coordinate(i % 2 == 0 ? 120 : 120.7, 4 + i * 10));
+        }
+        List<Coordinate> top = border.subList(0, 13);
+        List<Coordinate> bottom = border.subList(12, 25);
+        leaves = new ArrayList<Geometry>();
+        leaves.add(polygon(top, new Coordinate(4, 124), new Coordinate(4, 4)));
+        leaves.add(polygon(top, new Coordinate(244, 124), new Coordinate(244, 4)));
+        leaves.add(polygon(bottom, new Coordinate(4, 244), new Coordinate(4, 124)));
+        leaves.add(polygon(bottom, new Coordinate(244, 244), new Coordinate(244, 124)));
+    }
+
+    @AfterClass
+    public static void dispose() {
+        image.dispose();
+    }
+
+    private static Geometry polygon(List<Coordinate> border, Coordinate... others) {
+        List<Coordinate> coordinates = new ArrayList<Coordinate>(border);
+        coordinates.addAll(Arrays.asList(others));
+        coordinates.add(coordinates.get(0));
+        return FACTORY.createPolygon(
+                FACTORY.createLinearRing(coordinates.toArray(new Coordinate[coordinates.size()])),
+                null);
+    }
+
+    @Test
+    public void testIdentity() {
+        ZoneRollUp rollUp = new ZoneRollUp();
+        rollUp.addLeaf(0);
+        rollUp.addLeaf(1);
+        Assert.assertTrue(rollUp.isIdentity());
+        Assert.assertEquals(2, rollUp.getNumLeaves());
+
+        rollUp.addGroup(leaves.get(0).union(leaves.get(1)), 2, 2);
+        Assert.assertFalse(rollUp.isIdentity());
+        Assert.assertEquals(3, rollUp.getNumZones());
+        Assert.assertEquals(4, rollUp.getNumLeaves());
+    }
+
+    @Test
+    public void testDistricts() {
+        // the left and right halves, made of the municipalities listed one after the other
+        List<Geometry> rois = Arrays.asList(leaves.get(0), leaves.get(2), leaves.get(1),
+                leaves.get(3));
+        Geometry left = leaves.get(0).union(leaves.get(2));
+        Geometry right = leaves.get(1).union(leaves.get(3));
+        ZoneRollUp rollUp = new ZoneRollUp();
+        rollUp.addGroup(left, 0, 2);
+        rollUp.addGroup(right, 2, 2);
+
+        checkRollUp(rollUp, rois, Arrays.asList(left, right));
+    }
+
+    @Test
+    public void testRegion() {
+        Geometry region = leaves.get(0).union(leaves.get(1)).union(leaves.get(2))
+                .union(leaves.get(3));
+        ZoneRollUp rollUp = new ZoneRollUp();
+        rollUp.addGroup(region, 0, 4);
+
+        checkRollUp(rollUp, leaves, Arrays.asList(region));
+    }
+
+    /**
+     * Checks the rolled up histograms of the leaves against the ones computed on the unions
+     */
+    private void checkRollUp(ZoneRollUp rollUp, List<Geometry> rois, List<Geometry> unions) {
+        // the exact leaves don't overlap, so they are computed in a single pass
+        List<ZonalHistogram> leafHistograms = ZonalHistogramCalculator.compute(image, BANDS,
+                rois, NUM_BINS);
+        Assert.assertNotNull(leafHistograms);
+        List<ZonalHistogram> results = rollUp.apply(leafHistograms);
+
+        List<ZonalHistogram> expected = ZonalHistogramCalculator.compute(image, BANDS, unions,
+                NUM_BINS);
+        Assert.assertNotNull(expected);
+        Assert.assertEquals(expected.size(), results.size());
+        for (int z = 0; z < expected.size(); z++) {
+            Assert.assertSame(unions.get(z), results.get(z).getGeometry());
+            for (int b = 0; b < BANDS.length; b++) {
+                Assert.assertTrue(expected.get(z).getNumSamples(b) > 0);
+                Assert.assertEquals(expected.get(z).getNumSamples(b), results.get(z)
+                        .getNumSamples(b));
+                Assert.assertArrayEquals(expected.get(z).getHistogram(b), results.get(z)
+                        .getHistogram(b));
+            }
+        }
+    }
+}